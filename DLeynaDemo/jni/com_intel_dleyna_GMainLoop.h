@@ -7,6 +7,22 @@
 #ifdef __cplusplus
 extern "C" {
 #endif
+#undef com_intel_dleyna_GMainLoop_LOG
+#define com_intel_dleyna_GMainLoop_LOG 0L
+#undef com_intel_dleyna_GMainLoop_MAX_DRAIN_BATCH
+#define com_intel_dleyna_GMainLoop_MAX_DRAIN_BATCH 32L
+#undef com_intel_dleyna_GMainLoop_LANE_HIGH
+#define com_intel_dleyna_GMainLoop_LANE_HIGH 0L
+#undef com_intel_dleyna_GMainLoop_LANE_BULK
+#define com_intel_dleyna_GMainLoop_LANE_BULK 1L
+#undef com_intel_dleyna_GMainLoop_LANE_BACKGROUND
+#define com_intel_dleyna_GMainLoop_LANE_BACKGROUND 2L
+#undef com_intel_dleyna_GMainLoop_LANE_COUNT
+#define com_intel_dleyna_GMainLoop_LANE_COUNT 3L
+#undef com_intel_dleyna_GMainLoop_HIGH_BURST
+#define com_intel_dleyna_GMainLoop_HIGH_BURST 4L
+#undef com_intel_dleyna_GMainLoop_FOREGROUND_BURST
+#define com_intel_dleyna_GMainLoop_FOREGROUND_BURST 32L
 /*
  * Class:     com_intel_dleyna_GMainLoop
  * Method:    allocNative
@@ -21,15 +37,15 @@ JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GMainLoop_allocNative
  * Signature: (J)J
  */
 JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GMainLoop_freeNative
-  (JNIEnv *, jobject, jlong);
+  (JNIEnv *, jclass, jlong);
 
 /*
  * Class:     com_intel_dleyna_GMainLoop
- * Method:    idleAddNative
- * Signature: (JLjava/lang/Runnable;)V
+ * Method:    wakeupNative
+ * Signature: (J)V
  */
-JNIEXPORT void JNICALL Java_com_intel_dleyna_GMainLoop_idleAddNative
-  (JNIEnv *, jobject, jlong, jobject);
+JNIEXPORT void JNICALL Java_com_intel_dleyna_GMainLoop_wakeupNative
+  (JNIEnv *, jobject, jlong);
 
 #ifdef __cplusplus
 }
@@ -7,6 +7,42 @@
 #ifdef __cplusplus
 extern "C" {
 #endif
+#undef com_intel_dleyna_GVariant_TYPE_CODE_OTHER
+#define com_intel_dleyna_GVariant_TYPE_CODE_OTHER 0L
+#undef com_intel_dleyna_GVariant_TYPE_CODE_BOOLEAN
+#define com_intel_dleyna_GVariant_TYPE_CODE_BOOLEAN 1L
+#undef com_intel_dleyna_GVariant_TYPE_CODE_BYTE
+#define com_intel_dleyna_GVariant_TYPE_CODE_BYTE 2L
+#undef com_intel_dleyna_GVariant_TYPE_CODE_INT16
+#define com_intel_dleyna_GVariant_TYPE_CODE_INT16 3L
+#undef com_intel_dleyna_GVariant_TYPE_CODE_UINT16
+#define com_intel_dleyna_GVariant_TYPE_CODE_UINT16 4L
+#undef com_intel_dleyna_GVariant_TYPE_CODE_INT32
+#define com_intel_dleyna_GVariant_TYPE_CODE_INT32 5L
+#undef com_intel_dleyna_GVariant_TYPE_CODE_UINT32
+#define com_intel_dleyna_GVariant_TYPE_CODE_UINT32 6L
+#undef com_intel_dleyna_GVariant_TYPE_CODE_INT64
+#define com_intel_dleyna_GVariant_TYPE_CODE_INT64 7L
+#undef com_intel_dleyna_GVariant_TYPE_CODE_UINT64
+#define com_intel_dleyna_GVariant_TYPE_CODE_UINT64 8L
+#undef com_intel_dleyna_GVariant_TYPE_CODE_DOUBLE
+#define com_intel_dleyna_GVariant_TYPE_CODE_DOUBLE 9L
+#undef com_intel_dleyna_GVariant_TYPE_CODE_STRING
+#define com_intel_dleyna_GVariant_TYPE_CODE_STRING 10L
+#undef com_intel_dleyna_GVariant_TYPE_CODE_OBJECT_PATH
+#define com_intel_dleyna_GVariant_TYPE_CODE_OBJECT_PATH 11L
+#undef com_intel_dleyna_GVariant_TYPE_CODE_STRING_ARRAY
+#define com_intel_dleyna_GVariant_TYPE_CODE_STRING_ARRAY 12L
+#undef com_intel_dleyna_GVariant_TYPE_CODE_OBJECT_PATH_ARRAY
+#define com_intel_dleyna_GVariant_TYPE_CODE_OBJECT_PATH_ARRAY 13L
+#undef com_intel_dleyna_GVariant_TYPE_CODE_DOUBLE_ARRAY
+#define com_intel_dleyna_GVariant_TYPE_CODE_DOUBLE_ARRAY 14L
+#undef com_intel_dleyna_GVariant_TYPE_CODE_DICTIONARY
+#define com_intel_dleyna_GVariant_TYPE_CODE_DICTIONARY 15L
+#undef com_intel_dleyna_GVariant_TYPE_CODE_DICTIONARY_ARRAY
+#define com_intel_dleyna_GVariant_TYPE_CODE_DICTIONARY_ARRAY 16L
+#undef com_intel_dleyna_GVariant_TYPE_CODE_CONTAINER_UPDATE_ID_ARRAY
+#define com_intel_dleyna_GVariant_TYPE_CODE_CONTAINER_UPDATE_ID_ARRAY 17L
 /*
  * Class:     com_intel_dleyna_GVariant
  * Method:    refSink
@@ -23,6 +59,14 @@ JNIEXPORT void JNICALL Java_com_intel_dleyna_GVariant_refSink
 JNIEXPORT void JNICALL Java_com_intel_dleyna_GVariant_unref
   (JNIEnv *, jclass, jlong);
 
+/*
+ * Class:     com_intel_dleyna_GVariant
+ * Method:    unrefAll
+ * Signature: ([JI)V
+ */
+JNIEXPORT void JNICALL Java_com_intel_dleyna_GVariant_unrefAll
+  (JNIEnv *, jclass, jlongArray, jint);
+
 /*
  * Class:     com_intel_dleyna_GVariant
  * Method:    newBooleanNative
@@ -73,59 +117,11 @@ JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newObjectPathNative
 
 /*
  * Class:     com_intel_dleyna_GVariant
- * Method:    newArrayNative
- * Signature: ([JJ)J
- */
-JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newArrayNative
-  (JNIEnv *, jclass, jlongArray, jlong);
-
-/*
- * Class:     com_intel_dleyna_GVariant
- * Method:    newTupleInt64Native
- * Signature: (J)J
+ * Method:    newFromDataNative
+ * Signature: (Ljava/lang/String;Ljava/nio/ByteBuffer;I)J
  */
-JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newTupleInt64Native
-  (JNIEnv *, jclass, jlong);
-
-/*
- * Class:     com_intel_dleyna_GVariant
- * Method:    newTupleDoubleNative
- * Signature: (D)J
- */
-JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newTupleDoubleNative
-  (JNIEnv *, jclass, jdouble);
-
-/*
- * Class:     com_intel_dleyna_GVariant
- * Method:    newTupleStringNative
- * Signature: (Ljava/lang/String;)J
- */
-JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newTupleStringNative
-  (JNIEnv *, jclass, jstring);
-
-/*
- * Class:     com_intel_dleyna_GVariant
- * Method:    newTupleStringStringNative
- * Signature: (Ljava/lang/String;Ljava/lang/String;)J
- */
-JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newTupleStringStringNative
-  (JNIEnv *, jclass, jstring, jstring);
-
-/*
- * Class:     com_intel_dleyna_GVariant
- * Method:    newTupleStringStringVariantNative
- * Signature: (Ljava/lang/String;Ljava/lang/String;J)J
- */
-JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newTupleStringStringVariantNative
-  (JNIEnv *, jclass, jstring, jstring, jlong);
-
-/*
- * Class:     com_intel_dleyna_GVariant
- * Method:    newTupleObjPathInt64Native
- * Signature: (Ljava/lang/String;J)J
- */
-JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newTupleObjPathInt64Native
-  (JNIEnv *, jclass, jstring, jlong);
+JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newFromDataNative
+  (JNIEnv *, jclass, jstring, jobject, jint);
 
 /*
  * Class:     com_intel_dleyna_GVariant
@@ -146,9 +142,17 @@ JNIEXPORT jint JNICALL Java_com_intel_dleyna_GVariant_getUInt32Native
 /*
  * Class:     com_intel_dleyna_GVariant
  * Method:    getInt64Native
- * Signature: (J)I
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_getInt64Native
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_intel_dleyna_GVariant
+ * Method:    getIntegerNative
+ * Signature: (J)J
  */
-JNIEXPORT jint JNICALL Java_com_intel_dleyna_GVariant_getInt64Native
+JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_getIntegerNative
   (JNIEnv *, jclass, jlong);
 
 /*
@@ -207,6 +211,22 @@ JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_getChildValueNative
 JNIEXPORT jstring JNICALL Java_com_intel_dleyna_GVariant_getTypeStringNative
   (JNIEnv *, jclass, jlong);
 
+/*
+ * Class:     com_intel_dleyna_GVariant
+ * Method:    getTypeCodeNative
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_intel_dleyna_GVariant_getTypeCodeNative
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_intel_dleyna_GVariant
+ * Method:    getDataNative
+ * Signature: (J)Ljava/nio/ByteBuffer;
+ */
+JNIEXPORT jobject JNICALL Java_com_intel_dleyna_GVariant_getDataNative
+  (JNIEnv *, jclass, jlong);
+
 #ifdef __cplusplus
 }
 #endif
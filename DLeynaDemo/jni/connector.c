@@ -37,6 +37,8 @@ static jmethodID    sMIDDisconnect;
 static jmethodID    sMIDSetClientLostCB;
 static jmethodID    sMIDPublishObject;
 static jmethodID    sMIDPublishSubtree;
+static jmethodID    sMIDUnpublishObject;
+static jmethodID    sMIDUnpublishSubtree;
 static jmethodID    sMIDReturnResponse;
 static jmethodID    sMIDReturnError;
 static jmethodID    sMIDNotify;
@@ -45,6 +47,11 @@ static dleyna_connector_connected_cb_t      sSayConnected;
 static dleyna_connector_disconnected_cb_t   sSayDisconnected;
 static dleyna_connector_client_lost_cb_t    sSayClientLost;
 
+// The arguments of dispatched calls, by message id, until their results come back.
+// Java may give up on a call and free its arguments while the dleyna task still
+// has them, so we hold a reference of our own. Only used on the g_main_loop.
+static GHashTable*  sInFlightArgs;
+
 JNIEXPORT void JNICALL Java_com_intel_dleyna_Connector_setJNIEnvNative(
     JNIEnv* env, jobject connector)
 {
@@ -73,6 +80,8 @@ static gboolean initialize(
     sMIDSetClientLostCB = (*sEnv)->GetMethodID(sEnv, clazz, "setClientLostCallback", "(J)V");
     sMIDPublishObject   = (*sEnv)->GetMethodID(sEnv, clazz, "publishObject", "(Ljava/lang/String;ZLjava/lang/String;J)I");
     sMIDPublishSubtree  = (*sEnv)->GetMethodID(sEnv, clazz, "publishSubtree", "(Ljava/lang/String;[JJ)I");
+    sMIDUnpublishObject = (*sEnv)->GetMethodID(sEnv, clazz, "unpublishObject", "(I)V");
+    sMIDUnpublishSubtree = (*sEnv)->GetMethodID(sEnv, clazz, "unpublishSubtree", "(I)V");
     sMIDReturnResponse  = (*sEnv)->GetMethodID(sEnv, clazz, "returnResponse", "(JJ)V");
     sMIDReturnError     = (*sEnv)->GetMethodID(sEnv, clazz, "returnError", "(JJ)V");
     sMIDNotify          = (*sEnv)->GetMethodID(sEnv, clazz, "notify", "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;J)V");
@@ -91,6 +100,10 @@ static void shutdown(void)
     LOGI("connector.shutdown");
     (*sEnv)->CallVoidMethod(sEnv, sPeer, sMIDShutdown);
     (*sEnv)->DeleteGlobalRef(sEnv, sPeer);
+    if (sInFlightArgs) {
+        g_hash_table_destroy(sInFlightArgs);
+        sInFlightArgs = NULL;
+    }
 }
 
 static gboolean doConnect(gpointer p) {
@@ -177,14 +190,24 @@ static void unpublish_object(
     dleyna_connector_id_t peer,
     guint object_id)
 {
-    LOGI("connector.unpublish_object");
+    LOGI("connector.unpublish_object: id=%u", object_id);
+    (*sEnv)->CallVoidMethod(sEnv, sPeer, sMIDUnpublishObject, (jint)object_id);
 }
 
 static void unpublish_subtree(
     dleyna_connector_id_t peer,
     guint object_id)
 {
-    LOGI("connector.unpublish_subtree");
+    LOGI("connector.unpublish_subtree: id=%u", object_id);
+    (*sEnv)->CallVoidMethod(sEnv, sPeer, sMIDUnpublishSubtree, (jint)object_id);
+}
+
+static void release_args(dleyna_connector_msg_id_t message_id)
+{
+    if (sInFlightArgs) {
+        // The table's value destroy function drops our reference.
+        g_hash_table_remove(sInFlightArgs, message_id);
+    }
 }
 
 static void return_response(
@@ -193,6 +216,7 @@ static void return_response(
 {
     LOGI("connector.return_response");
     (*sEnv)->CallVoidMethod(sEnv, sPeer, sMIDReturnResponse, PTR_TO_JLONG(message_id), PTR_TO_JLONG(parameters));
+    release_args(message_id);
 }
 
 static void return_error(
@@ -201,6 +225,7 @@ static void return_error(
 {
     LOGI("connector.return_error");
     (*sEnv)->CallVoidMethod(sEnv, sPeer, sMIDReturnError, PTR_TO_JLONG(message_id), PTR_TO_JLONG(error));
+    release_args(message_id);
 }
 
 static gboolean notify(
@@ -259,6 +284,14 @@ JNIEXPORT void JNICALL Java_com_intel_dleyna_Connector_dispatchNative(
     if (args) {
       LOGD("connector.dispatch: args type=%s n_children=%d is_floating=%s", g_variant_get_type_string((GVariant*)JLONG_TO_PTR(_args)),
               g_variant_n_children((GVariant*)JLONG_TO_PTR(_args)), g_variant_is_floating((GVariant*)JLONG_TO_PTR(_args))?"true":"false");
+
+        // Keep the arguments alive until the result comes back, which may be
+        // during dispatchFunc(), so before calling it.
+        if (!sInFlightArgs) {
+            sInFlightArgs = g_hash_table_new_full(g_direct_hash, g_direct_equal,
+                    NULL, (GDestroyNotify)g_variant_unref);
+        }
+        g_hash_table_replace(sInFlightArgs, msgId, g_variant_ref(args));
     }
 
     dispatchFunc(peer, senderC, objIdC, ifaceC, methodC, args, msgId);
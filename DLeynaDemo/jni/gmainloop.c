@@ -28,51 +28,59 @@
 
 typedef struct {
     JNIEnv*   env;
-    jmethodID runMID;
+    jweak     loop;     /* the Java GMainLoop, weakly, so it can still be finalized */
+    jmethodID drainMID;
 } This;
 
-typedef struct {
-    This*   this;
-    jobject runnable;
-} Invocation;
-
-static gboolean run(gpointer _invo) {
-    Invocation* invo = (Invocation*)_invo;
-    This* this = invo->this;
+/*
+ * The idle source that drains the Java-side queue of runnables.
+ * There is at most one of these installed at any time.
+ */
+static gboolean drain(gpointer _this) {
+    This* this = (This*)_this;
     JNIEnv* env = this->env;
-    jobject runnable = invo->runnable;
-    if (this->runMID == NULL) {
-        jclass runnableClass = (*env)->GetObjectClass(env, runnable);
-        this->runMID = (*env)->GetMethodID(env, runnableClass, "run", "()V");
+    gboolean again = FALSE;
+    jobject loop = (*env)->NewLocalRef(env, this->loop);
+    if (loop != NULL) {
+        again = (*env)->CallBooleanMethod(env, loop, this->drainMID);
+        if ((*env)->ExceptionCheck(env)) {
+            (*env)->ExceptionDescribe(env);
+            (*env)->ExceptionClear(env);
+            again = FALSE;
+        }
+        (*env)->DeleteLocalRef(env, loop);
     }
-    LOGI("gmainloop: run: runnable=%p", runnable);
-    (*env)->CallVoidMethod(env, runnable, this->runMID);
-    (*env)->DeleteGlobalRef(env, runnable);
-    g_free(invo);
-    return FALSE;
+    LOGI("gmainloop: drain: again=%d", again);
+    return again;
 }
 
 JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GMainLoop_allocNative
     (JNIEnv* env, jobject peer)
 {
     This* this = g_malloc0(sizeof(This));
+    jclass loopClass = (*env)->GetObjectClass(env, peer);
     this->env = env;
+    this->loop = (*env)->NewWeakGlobalRef(env, peer);
+    this->drainMID = (*env)->GetMethodID(env, loopClass, "drain", "()Z");
+    (*env)->DeleteLocalRef(env, loopClass);
     return PTR_TO_JLONG(this);
 }
 
 JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GMainLoop_freeNative
-    (JNIEnv* env, jobject peer, jlong _this)
+    (JNIEnv* env, jclass clazz, jlong _this)
 {
-    g_free(JLONG_TO_PTR(_this));
+    This* this = JLONG_TO_PTR(_this);
+    while (g_idle_remove_by_data(this)) {
+    }
+    (*env)->DeleteWeakGlobalRef(env, this->loop);
+    g_free(this);
+    return 0;
 }
 
-JNIEXPORT void JNICALL Java_com_intel_dleyna_GMainLoop_idleAddNative
-    (JNIEnv* env, jobject peer, jlong _this, jobject runnable)
+JNIEXPORT void JNICALL Java_com_intel_dleyna_GMainLoop_wakeupNative
+    (JNIEnv* env, jobject peer, jlong _this)
 {
     This* this = JLONG_TO_PTR(_this);
-    Invocation* invo = g_malloc0(sizeof(Invocation));
-    invo->this = this;
-    invo->runnable = (*env)->NewGlobalRef(env, runnable);
-    LOGI("gmainloop: idleAddNative: runnable=%p", invo->runnable);
-    g_idle_add(run, invo);
+    LOGI("gmainloop: wakeupNative");
+    g_idle_add(drain, this);
 }
@@ -19,6 +19,7 @@
  * Tom Keel <thomas.keel@intel.com>
  */
 
+#include <string.h>
 #include <glib.h>
 #include <jni.h>
 
@@ -40,6 +41,20 @@ JNIEXPORT void JNICALL Java_com_intel_dleyna_GVariant_unref(
     g_variant_unref(gv);
 }
 
+JNIEXPORT void JNICALL Java_com_intel_dleyna_GVariant_unrefAll(
+    JNIEnv* env, jclass clazz, jlongArray _gvs, jint count)
+{
+    jlong* gvs = (*env)->GetLongArrayElements(env, _gvs, NULL);
+    if (gvs == NULL) {
+        return;
+    }
+    int i;
+    for (i = 0; i < count; i++) {
+        g_variant_unref(JLONG_TO_PTR(gvs[i]));
+    }
+    (*env)->ReleaseLongArrayElements(env, _gvs, gvs, JNI_ABORT);
+}
+
 JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newBooleanNative(
     JNIEnv* env, jclass clazz, jboolean value)
 {
@@ -88,184 +103,18 @@ JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newObjectPathNative(
     return PTR_TO_JLONG(gv);
 }
 
-JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newArrayNative(
-    JNIEnv* env, jclass clazz, jlongArray _gvElems, jlong elemType)
-{
-    jint n = (*env)->GetArrayLength(env, _gvElems);
-    GVariant** gvElems = g_malloc_n(n, sizeof(GVariant*));
-    int i;
-    for (i=0; i < n; i++) {
-        gvElems[i] = JLONG_TO_PTR(_gvElems);
-    }
-    GVariant* gva = g_variant_new_array(JLONG_TO_PTR(elemType), gvElems, (gsize)n);
-    g_free(gvElems);
-    return PTR_TO_JLONG(gva);
-}
-
-JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newTupleInt64Native(
-    JNIEnv* env, jclass clazz, jlong value)
-{
-    GVariant* gv = g_variant_new("(x)", value);
-    return PTR_TO_JLONG(gv);
-}
-
-JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newTupleDoubleNative(
-    JNIEnv* env, jclass clazz, jdouble value)
-{
-    GVariant* gv = g_variant_new("(d)", value);
-    return PTR_TO_JLONG(gv);
-}
-
-JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newTupleStringNative(
-    JNIEnv* env, jclass clazz, jstring str)
-{
-    const jbyte* strC = (*env)->GetStringUTFChars(env, str, NULL);
-    if (strC == NULL) {
-        return 0;
-    }
-    GVariant* gv = g_variant_new("(s)", strC);
-    (*env)->ReleaseStringUTFChars(env, str, strC);
-    return PTR_TO_JLONG(gv);
-}
-
-JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newTupleStringStringNative(
-    JNIEnv* env, jclass clazz, jstring str1, jstring str2)
-{
-    const jbyte* str1C = (*env)->GetStringUTFChars(env, str1, NULL);
-    const jbyte* str2C = (*env)->GetStringUTFChars(env, str2, NULL);
-    if (str1C == NULL || str2C == NULL) {
-        return 0;
-    }
-    GVariant* gv = g_variant_new("(ss)", str1C, str2C);
-    (*env)->ReleaseStringUTFChars(env, str1, str1C);
-    (*env)->ReleaseStringUTFChars(env, str2, str2C);
-    return PTR_TO_JLONG(gv);
-}
-
-JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newTupleStringStringVariantNative(
-    JNIEnv* env, jclass clazz, jstring str1, jstring str2, jlong vNative)
-{
-    const jbyte* str1C = (*env)->GetStringUTFChars(env, str1, NULL);
-    const jbyte* str2C = (*env)->GetStringUTFChars(env, str2, NULL);
-    if (str1C == NULL || str2C == NULL) {
-        return 0;
-    }
-    GVariant* gv = g_variant_new("(ssv)", str1C, str2C, JLONG_TO_PTR(vNative));
-    (*env)->ReleaseStringUTFChars(env, str1, str1C);
-    (*env)->ReleaseStringUTFChars(env, str2, str2C);
-    return PTR_TO_JLONG(gv);
-}
-
-JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newTupleObjPathInt64Native(
-    JNIEnv* env, jclass clazz, jstring str, jlong l)
+JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newFromDataNative(
+    JNIEnv* env, jclass clazz, jstring type, jobject data, jint size)
 {
-    const jbyte* strC = (*env)->GetStringUTFChars(env, str, NULL);
-    if (strC == NULL) {
+    const jbyte* typeC = (*env)->GetStringUTFChars(env, type, NULL);
+    if (typeC == NULL) {
         return 0;
     }
-    GVariant* gv = g_variant_new("(ox)", strC, l);
-    (*env)->ReleaseStringUTFChars(env, str, strC);
-    return PTR_TO_JLONG(gv);
-}
-
-JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newTupleStringArrayStringArrayNative(
-    JNIEnv* env, jclass clazz, jobjectArray sa1, jobjectArray sa2)
-{
-    GVariantBuilder tuple;
-    int i;
-
-    g_variant_builder_init(&tuple, G_VARIANT_TYPE("(aoas)"));
-    // build first array
-    g_variant_builder_open(&tuple, G_VARIANT_TYPE("ao"));
-    for (i = 0; i < (*env)->GetArrayLength(env, sa1); ++i) {
-        jstring str1 = (jstring)((*env)->GetObjectArrayElement(env, sa1, i));
-        const jbyte* utfChars1 = (*env)->GetStringUTFChars(env, str1, JNI_FALSE);
-        g_variant_builder_add(&tuple, "o", utfChars1);
-        (*env)->ReleaseStringUTFChars(env, str1, utfChars1);
-    }
-    g_variant_builder_close(&tuple);
-
-    // build second array
-    g_variant_builder_open(&tuple, G_VARIANT_TYPE("as"));
-    for (i = 0; i < (*env)->GetArrayLength(env, sa2); ++i) {
-        jstring str2 = (jstring)((*env)->GetObjectArrayElement(env, sa2, i));
-        const jbyte* utfChars2 = (*env)->GetStringUTFChars(env, str2, JNI_FALSE);
-        g_variant_builder_add(&tuple, "s", utfChars2);
-        (*env)->ReleaseStringUTFChars(env, str2, utfChars2);
-    }
-    g_variant_builder_close(&tuple);
-
-    GVariant* gv = g_variant_builder_end(&tuple);
-
-    //LOGD("newTupleStringArrayStringArray: gv=%p", gv);
-    //LOGD("newTupleStringArrayStringArray: gvType=%s", g_variant_get_type_string(gv));
-    return PTR_TO_JLONG(gv);
-}
-
-JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newTupleIntIntStringArrayStringNative(
-    JNIEnv* env, jclass clazz, jint i1, jint i2, jobjectArray sa, jstring s)
-{
-    GVariantBuilder tuple;
-    int i;
-
-    g_variant_builder_init(&tuple, G_VARIANT_TYPE("(uuass)"));
-    g_variant_builder_add(&tuple, "u", i1);
-    g_variant_builder_add(&tuple, "u", i2);
-
-    // build string array
-    g_variant_builder_open(&tuple, G_VARIANT_TYPE("as"));
-    for (i = 0; i < (*env)->GetArrayLength(env, sa); ++i) {
-        jstring str = (jstring)((*env)->GetObjectArrayElement(env, sa, i));
-        const jbyte* utfChars = (*env)->GetStringUTFChars(env, str, JNI_FALSE);
-        g_variant_builder_add(&tuple, "s", utfChars);
-        (*env)->ReleaseStringUTFChars(env, str, utfChars);
-    }
-    g_variant_builder_close(&tuple);
-
-    const jbyte* utfChars = (*env)->GetStringUTFChars(env, s, JNI_FALSE);
-    g_variant_builder_add(&tuple, "s", utfChars);
-    (*env)->ReleaseStringUTFChars(env, s, utfChars);
-
-    GVariant* gv = g_variant_builder_end(&tuple);
-
-    //LOGD("newTupleIntIntStringArrayString: gv=%p", gv);
-    //LOGD("newTupleIntIntStringArrayString: gvType=%s", g_variant_get_type_string(gv));
-    return PTR_TO_JLONG(gv);
-}
-
-JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_newTupleStringIntIntStringArrayStringNative(
-    JNIEnv* env, jclass clazz, jstring s1, jint i1, jint i2, jobjectArray sa, jstring s2)
-{
-    GVariantBuilder tuple;
-    int i;
-
-    g_variant_builder_init(&tuple, G_VARIANT_TYPE("(suuass)"));
-
-    const jbyte* utfChars1 = (*env)->GetStringUTFChars(env, s1, JNI_FALSE);
-    g_variant_builder_add(&tuple, "s", utfChars1);
-    (*env)->ReleaseStringUTFChars(env, s1, utfChars1);
-
-    g_variant_builder_add(&tuple, "u", i1);
-    g_variant_builder_add(&tuple, "u", i2);
-
-    // build string array
-    g_variant_builder_open(&tuple, G_VARIANT_TYPE("as"));
-    for (i = 0; i < (*env)->GetArrayLength(env, sa); ++i) {
-        jstring str = (jstring)((*env)->GetObjectArrayElement(env, sa, i));
-        const jbyte* utfChars = (*env)->GetStringUTFChars(env, str, JNI_FALSE);
-        g_variant_builder_add(&tuple, "s", utfChars);
-        (*env)->ReleaseStringUTFChars(env, str, utfChars);
-    }
-    g_variant_builder_close(&tuple);
-
-    const jbyte* utfChars2 = (*env)->GetStringUTFChars(env, s2, JNI_FALSE);
-    g_variant_builder_add(&tuple, "s", utfChars2);
-    (*env)->ReleaseStringUTFChars(env, s2, utfChars2);
-
-    GVariant* gv = g_variant_builder_end(&tuple);
-
-    //LOGD("newTupleStringIntIntStringArrayString: gv=%p", gv);
-    //LOGD("newTupleStringIntIntStringArrayString: gvType=%s", g_variant_get_type_string(gv));
+    // The Java buffer is reused, so the GVariant gets its own (suitably aligned) copy.
+    gpointer dataC = size > 0 ? g_memdup((*env)->GetDirectBufferAddress(env, data), size) : NULL;
+    GVariant* gv = g_variant_new_from_data(G_VARIANT_TYPE(typeC), dataC, (gsize)size,
+                                           FALSE, g_free, dataC);
+    (*env)->ReleaseStringUTFChars(env, type, typeC);
     return PTR_TO_JLONG(gv);
 }
 
@@ -276,13 +125,39 @@ JNIEXPORT jboolean JNICALL Java_com_intel_dleyna_GVariant_getBooleanNative(
     return g_variant_get_boolean(gv);
 }
 
-JNIEXPORT jint JNICALL Java_com_intel_dleyna_GVariant_getInt64Native(
+JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_getInt64Native(
     JNIEnv* env, jclass clazz, jlong _gv)
 {
     GVariant* gv = JLONG_TO_PTR(_gv);
     return g_variant_get_int64(gv);
 }
 
+JNIEXPORT jlong JNICALL Java_com_intel_dleyna_GVariant_getIntegerNative(
+    JNIEnv* env, jclass clazz, jlong _gv)
+{
+    GVariant* gv = JLONG_TO_PTR(_gv);
+    switch (g_variant_classify(gv)) {
+    case G_VARIANT_CLASS_BYTE:
+        return g_variant_get_byte(gv);
+    case G_VARIANT_CLASS_INT16:
+        return g_variant_get_int16(gv);
+    case G_VARIANT_CLASS_UINT16:
+        return g_variant_get_uint16(gv);
+    case G_VARIANT_CLASS_INT32:
+        return g_variant_get_int32(gv);
+    case G_VARIANT_CLASS_UINT32:
+        return g_variant_get_uint32(gv);
+    case G_VARIANT_CLASS_INT64:
+        return g_variant_get_int64(gv);
+    case G_VARIANT_CLASS_UINT64:
+        return (jlong)g_variant_get_uint64(gv);
+    case G_VARIANT_CLASS_HANDLE:
+        return g_variant_get_handle(gv);
+    default:
+        return 0;
+    }
+}
+
 JNIEXPORT jint JNICALL Java_com_intel_dleyna_GVariant_getUInt32Native(
     JNIEnv* env, jclass clazz, jlong _gv)
 {
@@ -350,9 +225,8 @@ JNIEXPORT jlongArray JNICALL Java_com_intel_dleyna_GVariant_getArrayOfNativeGVar
     jlong* buf = g_malloc_n(n, sizeof(jlong));
     int i;
     for (i=0; i < n; i++) {
-        GVariant* gvElem = g_variant_get_child_value(gvA, i);
-        buf[i] = PTR_TO_JLONG(gvElem);
-        g_variant_unref(gvElem);
+        // The caller takes over the reference to each element.
+        buf[i] = PTR_TO_JLONG(g_variant_get_child_value(gvA, i));
     }
     jlongArray jA = (*env)->NewLongArray(env, n);
     (*env)->SetLongArrayRegion(env, jA, 0, n, buf);
@@ -375,3 +249,65 @@ JNIEXPORT jstring JNICALL Java_com_intel_dleyna_GVariant_getTypeStringNative(
     const gchar* str = g_variant_get_type_string(gv);
     return (*env)->NewStringUTF(env, str);
 }
+
+JNIEXPORT jint JNICALL Java_com_intel_dleyna_GVariant_getTypeCodeNative(
+    JNIEnv* env, jclass clazz, jlong _gv)
+{
+    GVariant* gv = JLONG_TO_PTR(_gv);
+    const gchar* type;
+    switch (g_variant_classify(gv)) {
+    case G_VARIANT_CLASS_BOOLEAN:
+        return com_intel_dleyna_GVariant_TYPE_CODE_BOOLEAN;
+    case G_VARIANT_CLASS_BYTE:
+        return com_intel_dleyna_GVariant_TYPE_CODE_BYTE;
+    case G_VARIANT_CLASS_INT16:
+        return com_intel_dleyna_GVariant_TYPE_CODE_INT16;
+    case G_VARIANT_CLASS_UINT16:
+        return com_intel_dleyna_GVariant_TYPE_CODE_UINT16;
+    case G_VARIANT_CLASS_INT32:
+        return com_intel_dleyna_GVariant_TYPE_CODE_INT32;
+    case G_VARIANT_CLASS_UINT32:
+        return com_intel_dleyna_GVariant_TYPE_CODE_UINT32;
+    case G_VARIANT_CLASS_INT64:
+        return com_intel_dleyna_GVariant_TYPE_CODE_INT64;
+    case G_VARIANT_CLASS_UINT64:
+        return com_intel_dleyna_GVariant_TYPE_CODE_UINT64;
+    case G_VARIANT_CLASS_DOUBLE:
+        return com_intel_dleyna_GVariant_TYPE_CODE_DOUBLE;
+    case G_VARIANT_CLASS_STRING:
+        return com_intel_dleyna_GVariant_TYPE_CODE_STRING;
+    case G_VARIANT_CLASS_OBJECT_PATH:
+        return com_intel_dleyna_GVariant_TYPE_CODE_OBJECT_PATH;
+    case G_VARIANT_CLASS_ARRAY:
+        // The type string is the variant's own, so this doesn't allocate.
+        type = g_variant_get_type_string(gv);
+        if (strcmp(type, "as") == 0) {
+            return com_intel_dleyna_GVariant_TYPE_CODE_STRING_ARRAY;
+        } else if (strcmp(type, "ao") == 0) {
+            return com_intel_dleyna_GVariant_TYPE_CODE_OBJECT_PATH_ARRAY;
+        } else if (strcmp(type, "ad") == 0) {
+            return com_intel_dleyna_GVariant_TYPE_CODE_DOUBLE_ARRAY;
+        } else if (strcmp(type, "a{sv}") == 0) {
+            return com_intel_dleyna_GVariant_TYPE_CODE_DICTIONARY;
+        } else if (strcmp(type, "aa{sv}") == 0) {
+            return com_intel_dleyna_GVariant_TYPE_CODE_DICTIONARY_ARRAY;
+        } else if (strcmp(type, "a(ou)") == 0) {
+            return com_intel_dleyna_GVariant_TYPE_CODE_CONTAINER_UPDATE_ID_ARRAY;
+        }
+        return com_intel_dleyna_GVariant_TYPE_CODE_OTHER;
+    default:
+        return com_intel_dleyna_GVariant_TYPE_CODE_OTHER;
+    }
+}
+
+JNIEXPORT jobject JNICALL Java_com_intel_dleyna_GVariant_getDataNative(
+    JNIEnv* env, jclass clazz, jlong _gv)
+{
+    GVariant* gv = JLONG_TO_PTR(_gv);
+    gsize size = g_variant_get_size(gv);
+    if (size == 0) {
+        return NULL;
+    }
+    // The buffer refers to the GVariant's own memory, which lives as long as the GVariant.
+    return (*env)->NewDirectByteBuffer(env, (void*)g_variant_get_data(gv), (jlong)size);
+}
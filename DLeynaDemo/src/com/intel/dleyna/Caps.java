@@ -0,0 +1,146 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+
+package com.intel.dleyna;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks sort orders and search queries against what a server says it supports,
+ * in its SortCaps and SearchCaps properties, before we bother it with them.
+ * A capability of "*" means anything goes.
+ */
+final class Caps {
+
+    private static final String[] QUERY_WORD_OPERATORS = {
+        "contains", "doesNotContain", "derivedfrom", "exists" };
+
+    private Caps() {
+    }
+
+    /**
+     * @param sortBy a sort order, such as "+DisplayName,-Date"
+     * @param sortCaps the properties the server can sort by
+     * @return the first property of the order that the server can't sort by, or null
+     */
+    static String findUnsupportedSortKey(String sortBy, String[] sortCaps) {
+        if (sortBy == null || contains(sortCaps, "*")) {
+            return null;
+        }
+        for (String key : sortBy.split(",")) {
+            key = key.trim();
+            if (key.startsWith("+") || key.startsWith("-")) {
+                key = key.substring(1);
+            }
+            if (key.length() > 0 && !contains(sortCaps, key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param query a search query, à la UPnP ContentDirectory SearchCriteria,
+     * such as "Type derivedfrom \"item.audio\" and Artist contains \"Bach\""
+     * @param searchCaps the properties the server can search on
+     * @return the first property of the query that the server can't search on, or null
+     */
+    static String findUnsupportedSearchProperty(String query, String[] searchCaps) {
+        if (query == null || contains(searchCaps, "*")) {
+            return null;
+        }
+        List<String> tokens = tokenize(query);
+        // Each relation is a property, an operator, and a value.
+        for (int i = 1; i < tokens.size(); i++) {
+            if (isOperator(tokens.get(i))) {
+                String property = tokens.get(i - 1);
+                if (!contains(searchCaps, property)) {
+                    return property;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Split a query into words and relational operators,
+     * leaving out parentheses and quoted values.
+     */
+    private static List<String> tokenize(String query) {
+        List<String> tokens = new ArrayList<String>();
+        int n = query.length();
+        int i = 0;
+        while (i < n) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c) || c == '(' || c == ')') {
+                i++;
+            } else if (c == '"' || c == '\'') {
+                // A quoted value, in which a backslash escapes the next character.
+                for (i++; i < n && query.charAt(i) != c; i++) {
+                    if (query.charAt(i) == '\\') {
+                        i++;
+                    }
+                }
+                i++;
+                tokens.add("\"\"");
+            } else {
+                int start = i;
+                boolean symbol = isSymbol(c);
+                while (i < n && isSymbol(query.charAt(i)) == symbol && !isDelimiter(query.charAt(i))) {
+                    i++;
+                }
+                tokens.add(query.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isSymbol(char c) {
+        return c == '=' || c == '!' || c == '<' || c == '>';
+    }
+
+    private static boolean isDelimiter(char c) {
+        return Character.isWhitespace(c) || c == '(' || c == ')' || c == '"' || c == '\'';
+    }
+
+    private static boolean isOperator(String token) {
+        if (isSymbol(token.charAt(0))) {
+            return true;
+        }
+        for (String op : QUERY_WORD_OPERATORS) {
+            if (op.equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(String[] caps, String name) {
+        for (String cap : caps) {
+            if (cap.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -21,11 +21,18 @@
 
 package com.intel.dleyna;
 
+import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.SparseArray;
 
+import com.intel.dleyna.lib.DLeynaException;
 import com.intel.dleyna.lib.IRendererClient;
 import com.intel.dleyna.lib.IServerClient;
+import com.intel.dleyna.lib.Stats;
 
 
 /**
@@ -67,11 +74,24 @@ public class Connector {
     private static final String TAG = "Connector";
 
     // for publish_subtree (callbacks)
-    private static final String IFACE_DBUS_PROP  = "org.freedesktop.DBus.Properties"; // [0]
-    private static final String IFACE_MEDIA_OBJECT = "org.gnome.MediaObject2"; // [1]
-    private static final String IFACE_CONTAINER  = "org.gnome.UPnP.MediaContainer2"; // [2]
-    private static final String IFACE_MEDIA_ITEM = "org.gnome.MediaItem2"; // [3]
-    private static final String IFACE_DEVICE  = "com.intel.dLeynaServer.MediaDevice"; // [4]
+    static final String IFACE_DBUS_PROP  = "org.freedesktop.DBus.Properties"; // [0]
+    static final String IFACE_MEDIA_OBJECT = "org.gnome.MediaObject2"; // [1]
+    static final String IFACE_CONTAINER  = "org.gnome.UPnP.MediaContainer2"; // [2]
+    static final String IFACE_MEDIA_ITEM = "org.gnome.MediaItem2"; // [3]
+    static final String IFACE_DEVICE  = "com.intel.dLeynaServer.MediaDevice"; // [4]
+
+    private static final String METHOD_CANCEL = "Cancel";
+
+    private static final String WATCHDOG_THREAD_NAME = "ConnectorWatchdog";
+
+    /** How often the watchdog looks for overdue asynchronous invocations, in ms. */
+    private static final long WATCHDOG_PERIOD = 250;
+
+    /** A timeout value meaning "wait as long as it takes". */
+    public static final long NO_TIMEOUT = 0;
+
+    /** A lane value meaning "whatever lane is configured for the method". */
+    public static final int LANE_DEFAULT = -1;
 
     /** The current set of remote objects */
     private RemoteObject.Store remoteObjects = new RemoteObject.Store();
@@ -80,44 +100,208 @@ public class Connector {
     private int lastAssignedObjectId;
 
     /** The current set of pending method invocations. */
-    private SparseArray<Invocation> pendingInvocations = new SparseArray<Invocation>();
-
-    /** We attribute ids to outstanding method invocations starting with 1. */
-    private int lastAssignedInvocationId;
+    private final InvocationTable pendingInvocations = new InvocationTable(this);
 
     private GMainLoop gMainLoop;
 
+    /** The service's methods, signals and properties, from its introspection documents. */
+    private final Introspection introspection = new Introspection();
+
     private IConnectorClient client;
 
     private String mgrObjPath;
     private String mgrIfaceName;
+    private String cancelIfaceName;
+
+    /** Default timeouts in ms, by interface name. */
+    private final ConcurrentHashMap<String, Long> defaultTimeouts = new ConcurrentHashMap<String, Long>();
+
+    /** Default timeout in ms for interfaces not in {@link #defaultTimeouts}. */
+    private volatile long defaultTimeout = NO_TIMEOUT;
+
+    /** Lanes configured by interface name, then method name. */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> methodLanes =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>>();
+
+    /** Lanes configured by interface name, for methods not in {@link #methodLanes}. */
+    private final ConcurrentHashMap<String, Integer> ifaceLanes = new ConcurrentHashMap<String, Integer>();
+
+    private Thread watchdogThread;
+
+    /** Per-method timings and error counts, if enabled. */
+    private final DispatchStats stats = new DispatchStats();
 
     /**
      * Construct a connector instance.
      * @param client who will get callbacks
      * @param mgrObjPath the manager object's pathname
      * @param mgrIfaceName the manager objects' manager interface name
+     * @param cancelIfaceName the name of the device interface whose Cancel method
+     * aborts a client's outstanding calls on that device
      */
-    public Connector(IConnectorClient client, String mgrObjPath, String mgrIfaceName) {
+    public Connector(IConnectorClient client, String mgrObjPath, String mgrIfaceName,
+            String cancelIfaceName) {
         if (LOG) Log.i(TAG, "Connector:ctor: client = " + client + ", mgrObjPath = " + mgrObjPath + ", mgrIfaceName = " + mgrIfaceName);
         this.client = client;
         this.mgrObjPath = mgrObjPath;
         this.mgrIfaceName = mgrIfaceName;
+        this.cancelIfaceName = cancelIfaceName;
     }
 
-    public RemoteObject getRemoteObject(String objectPath, String ifaceName) {
-        if (LOG) Log.i(TAG, "getRemoteObject:  objectPath = " + objectPath + ", ifaceName = " + ifaceName);
-        RemoteObject ro = remoteObjects.getByName(objectPath, ifaceName);
-        if (ro == null) {
-            // try the server part of the object path
-            String[] parts = objectPath.split("/");
-            if (parts.length > 5) {
-                //if (LOG) Log.i(TAG, "retry getRemoteObject: '" +  parts[0] + "' '" + parts[1] + "' '" + parts[2] + "' '" + parts[3] + "' '" + parts[4] + "' '" + parts[5] + "'");
-                objectPath = parts[0] + "/" + parts[1] + "/" + parts[2] + "/" + parts[3] + "/" + parts[4] + "/" + parts[5];
-                if (LOG) Log.i(TAG, "retry getRemoteObject:  objectPath = " + objectPath + ", ifaceName = " + ifaceName);
-                ro = remoteObjects.getByName(objectPath, ifaceName);
+    /**
+     * Set the timeout for dispatched methods of interfaces that have no timeout of their own.
+     * @param timeout in ms, or {@link #NO_TIMEOUT}
+     */
+    public void setDefaultTimeout(long timeout) {
+        defaultTimeout = timeout;
+    }
+
+    /**
+     * Set the default timeout for dispatched methods of the given interface.
+     * @param ifaceName name of the interface
+     * @param timeout in ms, or {@link #NO_TIMEOUT}
+     */
+    public void setDefaultTimeout(String ifaceName, long timeout) {
+        defaultTimeouts.put(ifaceName, timeout);
+    }
+
+    long getDefaultTimeout(String ifaceName) {
+        Long timeout = defaultTimeouts.get(ifaceName);
+        return timeout != null ? timeout : defaultTimeout;
+    }
+
+    /**
+     * Set the g_main_loop lane in which to dispatch methods of the given interface.
+     * Methods are dispatched in {@link GMainLoop#LANE_HIGH} unless configured otherwise.
+     * @param ifaceName name of the interface
+     * @param lane {@link GMainLoop#LANE_HIGH}, {@link GMainLoop#LANE_BULK} or {@link GMainLoop#LANE_BACKGROUND}
+     */
+    public void setLane(String ifaceName, int lane) {
+        ifaceLanes.put(ifaceName, lane);
+    }
+
+    /**
+     * Set the g_main_loop lane in which to dispatch the given method.
+     * This takes precedence over {@link #setLane(String, int)}.
+     * @param ifaceName name of the interface
+     * @param methodName name of the method
+     * @param lane {@link GMainLoop#LANE_HIGH}, {@link GMainLoop#LANE_BULK} or {@link GMainLoop#LANE_BACKGROUND}
+     */
+    public void setLane(String ifaceName, String methodName, int lane) {
+        ConcurrentHashMap<String, Integer> lanes = methodLanes.get(ifaceName);
+        if (lanes == null) {
+            ConcurrentHashMap<String, Integer> newLanes = new ConcurrentHashMap<String, Integer>();
+            lanes = methodLanes.putIfAbsent(ifaceName, newLanes);
+            if (lanes == null) {
+                lanes = newLanes;
             }
         }
+        lanes.put(methodName, lane);
+    }
+
+    private int getLane(String ifaceName, String methodName) {
+        ConcurrentHashMap<String, Integer> lanes = methodLanes.get(ifaceName);
+        Integer lane = lanes != null ? lanes.get(methodName) : null;
+        if (lane == null) {
+            lane = ifaceLanes.get(ifaceName);
+        }
+        return lane != null ? lane : GMainLoop.LANE_HIGH;
+    }
+
+    /**
+     * @return the g_main_loop, for its statistics
+     */
+    public GMainLoop getGMainLoop() {
+        return gMainLoop;
+    }
+
+    /*------------+
+     | Statistics |
+     +------------*/
+
+    /**
+     * Start or stop recording per-method timings and error counts.
+     * They're not recorded by default.
+     */
+    public void setStatsEnabled(boolean enabled) {
+        stats.setEnabled(enabled);
+    }
+
+    /**
+     * Forget the per-method timings and error counts recorded so far.
+     */
+    public void resetStats() {
+        stats.reset();
+    }
+
+    /**
+     * @return the dispatch statistics, as described in {@link Stats}
+     */
+    public Bundle getStats() {
+        Bundle b = new Bundle();
+        stats.toBundle(b);
+        GMainLoop loop = gMainLoop;
+        if (loop != null) {
+            b.putInt(Stats.KEY_LOOP_QUEUE_DEPTH, loop.getQueueDepth());
+            b.putInt(Stats.KEY_LOOP_MAX_QUEUE_DEPTH, loop.getMaxQueueDepth());
+            b.putLong(Stats.KEY_LOOP_HIGH_MEAN_WAIT, loop.getMeanWaitMicros(GMainLoop.LANE_HIGH));
+            b.putLong(Stats.KEY_LOOP_HIGH_MAX_WAIT, loop.getMaxWaitMicros(GMainLoop.LANE_HIGH));
+            b.putLong(Stats.KEY_LOOP_BULK_MEAN_WAIT, loop.getMeanWaitMicros(GMainLoop.LANE_BULK));
+            b.putLong(Stats.KEY_LOOP_BULK_MAX_WAIT, loop.getMaxWaitMicros(GMainLoop.LANE_BULK));
+            b.putLong(Stats.KEY_LOOP_BACKGROUND_MEAN_WAIT, loop.getMeanWaitMicros(GMainLoop.LANE_BACKGROUND));
+            b.putLong(Stats.KEY_LOOP_BACKGROUND_MAX_WAIT, loop.getMaxWaitMicros(GMainLoop.LANE_BACKGROUND));
+        }
+        b.putInt(Stats.KEY_PENDING, pendingInvocations.getPendingCount());
+        b.putInt(Stats.KEY_LIVE_GVARIANTS, GVariant.getLiveCount());
+        return b;
+    }
+
+    /**
+     * Print the dispatch statistics in human-readable form, for dumpsys.
+     */
+    public void dumpStats(PrintWriter pw) {
+        GMainLoop loop = gMainLoop;
+        if (loop != null) {
+            pw.println(String.format("g_main_loop: depth=%d maxDepth=%d wakeups=%d drains=%d drained=%d maxBatch=%d",
+                    loop.getQueueDepth(), loop.getMaxQueueDepth(), loop.getWakeupCount(),
+                    loop.getDrainCount(), loop.getDrainedCount(), loop.getMaxDrainBatch()));
+            pw.println(String.format("  high: waits=%d mean=%dus max=%dus",
+                    loop.getWaitCount(GMainLoop.LANE_HIGH), loop.getMeanWaitMicros(GMainLoop.LANE_HIGH),
+                    loop.getMaxWaitMicros(GMainLoop.LANE_HIGH)));
+            pw.println(String.format("  bulk: waits=%d mean=%dus max=%dus",
+                    loop.getWaitCount(GMainLoop.LANE_BULK), loop.getMeanWaitMicros(GMainLoop.LANE_BULK),
+                    loop.getMaxWaitMicros(GMainLoop.LANE_BULK)));
+            pw.println(String.format("  background: waits=%d mean=%dus max=%dus",
+                    loop.getWaitCount(GMainLoop.LANE_BACKGROUND), loop.getMeanWaitMicros(GMainLoop.LANE_BACKGROUND),
+                    loop.getMaxWaitMicros(GMainLoop.LANE_BACKGROUND)));
+        }
+        pw.println("Pending invocations: " + pendingInvocations.getPendingCount());
+        NativePeers.dump(pw);
+        stats.dump(pw);
+    }
+
+    /**
+     * Note the start of decoding a result, for the statistics.
+     * @return a token for {@link #endDecode(String, String, long)}
+     */
+    public long startDecode() {
+        return stats.start();
+    }
+
+    /**
+     * Note the end of decoding a result, for the statistics.
+     * @param iface name of the interface
+     * @param meth name of the method
+     * @param token as returned by {@link #startDecode()}
+     */
+    public void endDecode(String iface, String meth, long token) {
+        stats.recordDecode(iface, meth, token);
+    }
+
+    public RemoteObject getRemoteObject(String objectPath, String ifaceName) {
+        if (LOG) Log.i(TAG, "getRemoteObject:  objectPath = " + objectPath + ", ifaceName = " + ifaceName);
+        // Objects beneath a published subtree resolve to the subtree's object.
+        RemoteObject ro = remoteObjects.resolve(objectPath, ifaceName);
         if (LOG && (ro == null)) {
             Log.w(TAG, String.format("Remote Object not found: objPath=%s iface=%s", objectPath, ifaceName));
         }
@@ -143,6 +327,9 @@ public class Connector {
     public void setJNIEnv() {
         setJNIEnvNative();
         gMainLoop = new GMainLoop();
+        watchdogThread = new Thread(watchdogRunnable, WATCHDOG_THREAD_NAME);
+        watchdogThread.setDaemon(true);
+        watchdogThread.start();
     }
 
     private native void setJNIEnvNative();
@@ -157,15 +344,74 @@ public class Connector {
      */
     public boolean initialize(String serverInfo, String rootInfo, int errorQuark) {
         if (LOG) Log.i(TAG, "initialize: root=" + rootInfo + " quark=" + errorQuark);
+        parseIntrospection("server", serverInfo);
+        parseIntrospection("root", rootInfo);
         return true;
     }
 
+    private void parseIntrospection(String what, String xml) {
+        if (xml == null) {
+            return;
+        }
+        try {
+            int count = introspection.parse(xml);
+            if (LOG) Log.i(TAG, "initialize: " + count + " members from " + what + " info");
+        } catch (Exception e) {
+            // We still have the built-in signatures.
+            Log.w(TAG, "initialize: can't parse " + what + " info: " + e);
+        }
+    }
+
+    /**
+     * Get the codec for a method of the service.
+     * @param iface name of the interface
+     * @param method name of the method
+     * @return the codec
+     * @throws IllegalStateException if the method is unknown
+     */
+    MethodCodec getMethodCodec(String iface, String method) {
+        return checkCodec(introspection.getMethod(iface, method), iface, method);
+    }
+
+    /**
+     * Get the codec for a signal of the service, which decodes the signal's arguments.
+     * @param iface name of the interface
+     * @param signal name of the signal
+     * @return the codec
+     * @throws IllegalStateException if the signal is unknown
+     */
+    MethodCodec getSignalCodec(String iface, String signal) {
+        return checkCodec(introspection.getSignal(iface, signal), iface, signal);
+    }
+
+    /**
+     * Get the codec for a property of the service, which decodes the property's value.
+     * @param iface name of the interface
+     * @param property name of the property
+     * @return the codec
+     * @throws IllegalStateException if the property is unknown
+     */
+    MethodCodec getPropertyCodec(String iface, String property) {
+        return checkCodec(introspection.getProperty(iface, property), iface, property);
+    }
+
+    private static MethodCodec checkCodec(MethodCodec codec, String iface, String member) {
+        if (codec == null) {
+            throw new IllegalStateException("No signature for " + iface + "." + member);
+        }
+        return codec;
+    }
+
     /**
      * Upward call, after the g_main_loop exits, and after {@link #disconnect()} has been called.
      * Clean up.
      */
     public void shutdown() {
         if (LOG) Log.i(TAG, "shutdown");
+        if (watchdogThread != null) {
+            watchdogThread.interrupt();
+            watchdogThread = null;
+        }
     }
 
     /**
@@ -292,7 +538,7 @@ public class Connector {
      */
     public void unpublishSubtree(int objectId) {
         if (LOG) Log.i(TAG, "unpublishSubtree id = " + objectId);
-        remoteObjects.remove(objectId);
+        remoteObjects.removeSubtree(objectId);
     }
 
     /**
@@ -307,139 +553,359 @@ public class Connector {
         client.onNotify(objPath, ifaceName, notifName, params);
     }
 
+    /**
+     * Downward call to invoke a method in the native service.
+     * This is called on an arbitrary binder thread.
+     * We transfer the call to the daemon thread, and wait for the response,
+     * at most the default timeout for the interface.
+     * @param client the client
+     * @param obj the remote object info
+     * @param iface name of the interface
+     * @param meth name of the method
+     * @param gvArgs arguments to the method
+     * @return description of the finished method invocation
+     */
+    public Invocation dispatch(IRendererClient client, RemoteObject obj,
+            String iface, String meth, GVariant gvArgs) {
+        return dispatch(client, obj, iface, meth, gvArgs, getDefaultTimeout(iface));
+    }
+
     /**
      * Downward call to invoke a method in the native service.
      * This is called on an arbitrary binder thread.
      * We transfer the call to the daemon thread, and wait for the response.
+     * <p>
+     * If the response doesn't arrive in time, or the calling thread is interrupted,
+     * the invocation fails with {@link DLeynaException#ERR_TIMEOUT} or
+     * {@link DLeynaException#ERR_CANCELLED} respectively,
+     * and we may ask the device to cancel it; see {@link #cancel(Invocation)}.
      * @param client the client
      * @param obj the remote object info
      * @param iface name of the interface
      * @param meth name of the method
      * @param gvArgs arguments to the method
+     * @param timeout how long to wait, in ms, or {@link #NO_TIMEOUT}
      * @return description of the finished method invocation
      */
-    public Invocation dispatch(final IRendererClient client, final RemoteObject obj,
-            final String iface, final String meth, GVariant gvArgs) {
+    public Invocation dispatch(IRendererClient client, RemoteObject obj,
+            String iface, String meth, GVariant gvArgs, long timeout) {
+        return dispatch(client, obj, iface, meth, gvArgs, timeout, LANE_DEFAULT);
+    }
 
-        final long args = gvArgs == null ? 0 : gvArgs.getPeer();
-        final Invocation invocation;
+    /**
+     * Like {@link #dispatch(IRendererClient, RemoteObject, String, String, GVariant, long)},
+     * but in the given g_main_loop lane rather than the one configured for the method.
+     * @param lane a {@link GMainLoop} lane, or {@link #LANE_DEFAULT}
+     */
+    public Invocation dispatch(IRendererClient client, RemoteObject obj,
+            String iface, String meth, GVariant gvArgs, long timeout, int lane) {
+        return submit(client.asBinder().toString(), obj.objectPath, obj, iface, meth, gvArgs,
+                null, timeout, lane).await();
+    }
 
-        synchronized(pendingInvocations) {
-            // Add a new Invocation to our list of pending Invocations.
-            invocation = new Invocation(++lastAssignedInvocationId);
-            pendingInvocations.append(invocation.id, invocation);
+    /**
+     * Downward call to invoke a method in the native service.
+     * This is called on an arbitrary binder thread.
+     * We transfer the call to the daemon thread, and wait for the response,
+     * at most the default timeout for the interface.
+     * @param client the client
+     * @param objectPath the path of the target object, which may lie beneath obj's path
+     * @param obj the remote object info
+     * @param iface name of the interface
+     * @param meth name of the method
+     * @param gvArgs arguments to the method
+     * @return description of the finished method invocation
+     */
+    public Invocation dispatch(IServerClient client, String objectPath, RemoteObject obj,
+            String iface, String meth, GVariant gvArgs) {
+        return dispatch(client, objectPath, obj, iface, meth, gvArgs, getDefaultTimeout(iface));
+    }
 
-            if (LOG) Log.i(TAG, String.format(
-                    "dispatch: SCHEDULE id=%d meth=%s args=%s obj=%s iface=%s f=0x%08x",
-                    invocation.id, meth, gvArgs == null ? "null" : gvArgs.getTypeString(),
-                    obj.objectPath, iface, obj.dispatchCb));
+    /**
+     * Downward call to invoke a method in the native service.
+     * This is called on an arbitrary binder thread.
+     * We transfer the call to the daemon thread, and wait for the response.
+     * <p>
+     * If the response doesn't arrive in time, or the calling thread is interrupted,
+     * the invocation fails with {@link DLeynaException#ERR_TIMEOUT} or
+     * {@link DLeynaException#ERR_CANCELLED} respectively,
+     * and we may ask the device to cancel it; see {@link #cancel(Invocation)}.
+     * @param client the client
+     * @param objectPath the path of the target object, which may lie beneath obj's path
+     * @param obj the remote object info
+     * @param iface name of the interface
+     * @param meth name of the method
+     * @param gvArgs arguments to the method
+     * @param timeout how long to wait, in ms, or {@link #NO_TIMEOUT}
+     * @return description of the finished method invocation
+     */
+    public Invocation dispatch(IServerClient client, String objectPath, RemoteObject obj,
+            String iface, String meth, GVariant gvArgs, long timeout) {
+        return dispatch(client, objectPath, obj, iface, meth, gvArgs, timeout, LANE_DEFAULT);
+    }
 
-            // Schedule the invocation to run on the g_main_loop.
-            gMainLoop.idleAdd(new Runnable() {
-                public void run() {
-                    if (LOG) Log.i(TAG, "dispatch: RUNNING id=" + invocation.id);
-                    dispatchNative(obj.dispatchCb, client.asBinder().toString(), obj.objectPath,
-                            iface, meth, args, invocation.id);
-                }
-            });
-        }
+    /**
+     * Like {@link #dispatch(IServerClient, String, RemoteObject, String, String, GVariant, long)},
+     * but in the given g_main_loop lane rather than the one configured for the method.
+     * @param lane a {@link GMainLoop} lane, or {@link #LANE_DEFAULT}
+     */
+    public Invocation dispatch(IServerClient client, String objectPath, RemoteObject obj,
+            String iface, String meth, GVariant gvArgs, long timeout, int lane) {
+        return submit(client.asBinder().toString(), objectPath, obj, iface, meth, gvArgs,
+                null, timeout, lane).await();
+    }
+
+    /**
+     * Downward call to invoke a method in the native service, without waiting for the response.
+     * This is called on an arbitrary binder thread.
+     * We transfer the call to the daemon thread and return immediately;
+     * the callback is invoked once the response arrives,
+     * or once the default timeout for the interface expires.
+     * <p>
+     * The connector takes ownership of gvArgs, and frees it once the invocation has finished.
+     * @param client the client
+     * @param obj the remote object info
+     * @param iface name of the interface
+     * @param meth name of the method
+     * @param gvArgs arguments to the method
+     * @param callback who gets the finished method invocation
+     * @return description of the pending method invocation
+     */
+    public Invocation dispatchAsync(IRendererClient client, RemoteObject obj,
+            String iface, String meth, GVariant gvArgs, Callback callback) {
+        return submit(client.asBinder().toString(), obj.objectPath, obj, iface, meth, gvArgs,
+                callback, getDefaultTimeout(iface), LANE_DEFAULT);
+    }
+
+    /**
+     * Downward call to invoke a method in the native service, without waiting for the response.
+     * This is called on an arbitrary binder thread.
+     * We transfer the call to the daemon thread and return immediately;
+     * the callback is invoked once the response arrives,
+     * or once the default timeout for the interface expires.
+     * <p>
+     * The connector takes ownership of gvArgs, and frees it once the invocation has finished.
+     * @param client the client
+     * @param objectPath the path of the target object, which may lie beneath obj's path
+     * @param obj the remote object info
+     * @param iface name of the interface
+     * @param meth name of the method
+     * @param gvArgs arguments to the method
+     * @param callback who gets the finished method invocation
+     * @return description of the pending method invocation
+     */
+    public Invocation dispatchAsync(IServerClient client, String objectPath, RemoteObject obj,
+            String iface, String meth, GVariant gvArgs, Callback callback) {
+        return submit(client.asBinder().toString(), objectPath, obj, iface, meth, gvArgs,
+                callback, getDefaultTimeout(iface), LANE_DEFAULT);
+    }
 
-        // Wait for the response.
-        if (LOG) Log.i(TAG, "dispatch: WAITING id=" + invocation.id);
+    /**
+     * Like {@link #dispatchAsync(IServerClient, String, RemoteObject, String, String, GVariant, Callback)},
+     * but in the given g_main_loop lane rather than the one configured for the method.
+     * @param lane a {@link GMainLoop} lane, or {@link #LANE_DEFAULT}
+     */
+    public Invocation dispatchAsync(IServerClient client, String objectPath, RemoteObject obj,
+            String iface, String meth, GVariant gvArgs, Callback callback, int lane) {
+        return submit(client.asBinder().toString(), objectPath, obj, iface, meth, gvArgs,
+                callback, getDefaultTimeout(iface), lane);
+    }
+
+    private Invocation submit(String sender, String objectPath, RemoteObject obj,
+            String iface, String meth, GVariant gvArgs, Callback callback, long timeout, int lane) {
+
+        // Take a recycled Invocation from the table of pending Invocations.
+        Invocation invocation = pendingInvocations.acquire();
+        if (invocation == null) {
+            Log.e(TAG, "dispatch: no free invocation slot for " + iface + "." + meth
+                    + "; are invocations being recycled?");
+            return fail(iface, meth, gvArgs, callback, DLeynaException.ERR_OPERATION_FAILED,
+                    "Too many pending invocations");
+        }
         synchronized (invocation) {
-            while (!invocation.done) {
-                try {
-                    invocation.wait();
-                } catch (InterruptedException e) {
-                }
+            invocation.dispatchCb = obj.dispatchCb;
+            invocation.sender = sender;
+            invocation.objectPath = objectPath;
+            invocation.iface = iface;
+            invocation.meth = meth;
+            invocation.args = gvArgs == null ? 0 : gvArgs.getPeer();
+            invocation.timeout = timeout;
+            invocation.deadline = timeout == NO_TIMEOUT ? 0 : SystemClock.uptimeMillis() + timeout;
+            if (callback != null) {
+                invocation.callback = callback;
+                invocation.gvArgs = gvArgs;
             }
+            invocation.queued = true;
+            // Publish it as pending last, so whoever sees it pending sees all of the above.
+            invocation.pendingId = invocation.id;
         }
 
-        if (LOG) Log.i(TAG, "dispatch: DONE!!! id=" + invocation.id);
+        if (LOG) Log.i(TAG, String.format(
+                "dispatch: SCHEDULE id=%d meth=%s args=%s obj=%s iface=%s f=0x%08x async=%B timeout=%d",
+                invocation.id, meth, gvArgs == null ? "null" : gvArgs.getTypeString(),
+                objectPath, iface, obj.dispatchCb, callback != null, timeout));
+
+        // Schedule the invocation to run on the g_main_loop.
+        gMainLoop.idleAdd(invocation, lane == LANE_DEFAULT ? getLane(iface, meth) : lane);
+
         return invocation;
     }
-/*
-    public Invocation dispatch(final IServerClient client, final RemoteObject obj,
-            final String iface, final String meth, GVariant gvArgs) {
-
-        final long args = gvArgs == null ? 0 : gvArgs.getPeer();
-        final Invocation invocation;
-
-        synchronized(pendingInvocations) {
-            // Add a new Invocation to our list of pending Invocations.
-            invocation = new Invocation(++lastAssignedInvocationId);
-            pendingInvocations.append(invocation.id, invocation);
-
-            if (LOG) Log.i(TAG, String.format(
-                    "dispatch: SCHEDULE id=%d meth=%s args=%s obj=%s iface=%s f=0x%08x",
-                    invocation.id, meth, gvArgs == null ? "null" : gvArgs.getTypeString(),
-                    obj.objectPath, iface, obj.dispatchCb));
-
-            // Schedule the invocation to run on the g_main_loop.
-            gMainLoop.idleAdd(new Runnable() {
-                public void run() {
-                    if (LOG) Log.i(TAG, "dispatch: RUNNING id=" + invocation.id);
-                    dispatchNative(obj.dispatchCb, client.asBinder().toString(), obj.objectPath,
-                            iface, meth, args, invocation.id);
-                }
-            });
+
+    /**
+     * Fail an invocation that couldn't even be submitted.
+     * It's not from the table, so recycling it just drops it.
+     */
+    private Invocation fail(String iface, String meth, GVariant gvArgs, Callback callback,
+            int errCode, String errMessage) {
+        Invocation invocation = new Invocation(null, this, -1);
+        invocation.iface = iface;
+        invocation.meth = meth;
+        invocation.done = true;
+        invocation.errCode = errCode;
+        invocation.errMessage = errMessage;
+        stats.recordError(iface, meth, errCode);
+        if (callback != null) {
+            // We took ownership of the arguments.
+            if (gvArgs != null) {
+                gvArgs.free();
+            }
+            try {
+                callback.onDone(invocation);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "fail: callback failed", e);
+            }
         }
+        return invocation;
+    }
 
-        // Wait for the response.
-        if (LOG) Log.i(TAG, "dispatch: WAITING id=" + invocation.id);
+    /**
+     * Fail a pending invocation that won't wait any longer for its response,
+     * and maybe ask the device to cancel it; see {@link #cancel(Invocation)}.
+     * A response that arrives later will be dropped.
+     * @param invocation the invocation
+     * @param id the invocation's id, as of when it was seen to be pending
+     * @return true if we failed it, false if it had already finished or was finishing
+     */
+    private boolean expire(Invocation invocation, int id, int errCode, String errMessage) {
+        Callback callback;
+        GVariant gvArgs;
         synchronized (invocation) {
-            while (!invocation.done) {
-                try {
-                    invocation.wait();
-                } catch (InterruptedException e) {
-                }
+            // Holding the lock means the daemon thread is not in the middle of dispatching it.
+            // If it's been dispatched, the dleyna task may still be using the arguments,
+            // but the native layer holds a reference to them until the result comes back,
+            // so ours is free to go.
+            if (!Invocation.PENDING_ID.compareAndSet(invocation, id, 0)) {
+                return false;
+            }
+            if (LOG) Log.w(TAG, "expire: id=" + id + " meth=" + invocation.meth + " err=" + errCode);
+            callback = invocation.callback;
+            gvArgs = invocation.gvArgs;
+            invocation.gvArgs = null;
+            invocation.done = true;
+            invocation.success = false;
+            invocation.errCode = errCode;
+            invocation.errMessage = errMessage;
+            stats.recordError(invocation.iface, invocation.meth, errCode);
+            invocation.notify();
+            cancel(invocation);
+        }
+        if (gvArgs != null) {
+            gvArgs.free();
+        }
+        if (callback != null) {
+            try {
+                callback.onDone(invocation);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "expire: callback failed: id=" + id, e);
             }
         }
+        return true;
+    }
 
-        if (LOG) Log.i(TAG, "dispatch: DONE!!! id=" + invocation.id);
-        return invocation;
+    /**
+     * Ask the device that an expired invocation was addressed to to cancel it.
+     * <p>
+     * The device's Cancel method aborts all of a sender's calls to the device, not just one,
+     * and a call may have been dispatched on behalf of several clients (see {@link SingleFlight}),
+     * so we only cancel when the expired invocation is the sender's only one pending on the device.
+     * Otherwise we let it run its course and drop its result.
+     */
+    private void cancel(Invocation invocation) {
+        if (cancelIfaceName == null || METHOD_CANCEL.equals(invocation.meth)) {
+            return;
+        }
+        RemoteObject ro = getRemoteObject(invocation.objectPath, cancelIfaceName);
+        if (ro == null) {
+            return;
+        }
+        if (hasPendingOnDevice(invocation.sender, ro)) {
+            if (LOG) Log.i(TAG, "cancel: not cancelling id=" + invocation.id + ": sender has other calls pending");
+            return;
+        }
+        submit(invocation.sender, ro.objectPath, ro, cancelIfaceName, METHOD_CANCEL, null,
+                RECYCLER, getDefaultTimeout(cancelIfaceName), GMainLoop.LANE_HIGH);
     }
-*/
-    public Invocation dispatch(final IServerClient client, final String objectPath, final RemoteObject obj,
-            final String iface, final String meth, GVariant gvArgs) {
-
-        final long args = gvArgs == null ? 0 : gvArgs.getPeer();
-        final Invocation invocation;
-
-        synchronized(pendingInvocations) {
-            // Add a new Invocation to our list of pending Invocations.
-            invocation = new Invocation(++lastAssignedInvocationId);
-            pendingInvocations.append(invocation.id, invocation);
-
-            if (LOG) Log.i(TAG, String.format(
-                    "dispatch: SCHEDULE id=%d meth=%s args=%s obj=%s iface=%s f=0x%08x",
-                    invocation.id, meth, gvArgs == null ? "null" : gvArgs.getTypeString(),
-                    objectPath, iface, obj.dispatchCb));
-
-            // Schedule the invocation to run on the g_main_loop.
-            gMainLoop.idleAdd(new Runnable() {
-                public void run() {
-                    if (LOG) Log.i(TAG, "dispatch: RUNNING id=" + invocation.id);
-                    dispatchNative(obj.dispatchCb, client.asBinder().toString(), objectPath,
-                            iface, meth, args, invocation.id);
-                }
-            });
+
+    /**
+     * @return whether the sender has any invocation pending on the given device
+     */
+    private boolean hasPendingOnDevice(String sender, RemoteObject device) {
+        for (int i = 0; i < InvocationTable.CAPACITY; i++) {
+            Invocation other = pendingInvocations.get(i);
+            // Reading pendingId first makes the other fields, written before it, visible.
+            if (other == null || other.pendingId == 0) {
+                continue;
+            }
+            String otherSender = other.sender;
+            String otherPath = other.objectPath;
+            if (otherSender == null || otherPath == null || !otherSender.equals(sender)) {
+                continue;
+            }
+            if (getRemoteObject(otherPath, cancelIfaceName) == device) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        // Wait for the response.
-        if (LOG) Log.i(TAG, "dispatch: WAITING id=" + invocation.id);
-        synchronized (invocation) {
-            while (!invocation.done) {
+    /** For fire-and-forget invocations. */
+    private static final Callback RECYCLER = new Callback() {
+        public void onDone(Invocation invocation) {
+            if (invocation.result != null) {
+                invocation.result.free();
+            }
+            invocation.recycle();
+        }
+    };
+
+    /**
+     * Expires overdue asynchronous invocations.
+     * (Synchronous invocations are expired by their waiting threads.)
+     */
+    private final Runnable watchdogRunnable = new Runnable() {
+        public void run() {
+            while (true) {
                 try {
-                    invocation.wait();
+                    Thread.sleep(WATCHDOG_PERIOD);
                 } catch (InterruptedException e) {
+                    break;
+                }
+                long now = SystemClock.uptimeMillis();
+                for (int i = 0; i < InvocationTable.CAPACITY; i++) {
+                    Invocation invocation = pendingInvocations.get(i);
+                    if (invocation == null) {
+                        continue;
+                    }
+                    int id = invocation.pendingId;
+                    if (id != 0 && invocation.callback != null
+                            && invocation.deadline != 0 && now >= invocation.deadline) {
+                        expire(invocation, id, DLeynaException.ERR_TIMEOUT,
+                                "Timed out after " + invocation.timeout + " ms");
+                    }
                 }
             }
         }
-
-        if (LOG) Log.i(TAG, "dispatch: DONE!!! id=" + invocation.id);
-        return invocation;
-    }
+    };
 
     private native void dispatchNative(long dispatchFuncAddr, String sender, String objectId,
             String iface, String method, long args, long msgId);
@@ -466,38 +932,71 @@ public class Connector {
 
     private void returnResult(int id, boolean success, long result) {
         if (LOG) Log.i(TAG, String.format("returnResult: id=%d ok=%B result=0x%08x", id, success, result));
-        Invocation invocation;
-        synchronized(pendingInvocations) {
-            invocation = pendingInvocations.get(id);
-            if (invocation != null) {
-                pendingInvocations.remove(id);
-            }
+        Invocation invocation = pendingInvocations.claim(id);
+        if (invocation == null) {
+            // It expired, and whoever was waiting for it has moved on.
+            if (LOG) Log.w(TAG, "returnResult: dropping late result: id=" + id);
+            return;
         }
-        if (invocation != null) {
-            synchronized(invocation) {
-                invocation.done = true;
-                invocation.success = success;
-                if (success) {
-                    if (result != 0) {
-                        invocation.result = GVariant.getFromNativeContainerAtIndex(result, 0);
-                    }
-                } else {
-                    invocation.errCode = GError.getCodeNative(result);
-                    invocation.errMessage = GError.getMessageNative(result);
+        // Once a synchronous invocation is done, its waiter may recycle it at any moment,
+        // so take what we need from it first.
+        Callback callback = invocation.callback;
+        GVariant gvArgs = invocation.gvArgs;
+        invocation.gvArgs = null;
+        synchronized(invocation) {
+            invocation.done = true;
+            invocation.success = success;
+            stats.recordNative(invocation.iface, invocation.meth, invocation.runTime);
+            if (success) {
+                if (result != 0) {
+                    invocation.result = GVariant.getFromNativeContainerAtIndex(result, 0);
                 }
-                invocation.notify();
+            } else {
+                invocation.errCode = GError.getCodeNative(result);
+                invocation.errMessage = GError.getMessageNative(result);
+                stats.recordError(invocation.iface, invocation.meth, invocation.errCode);
             }
-        } else {
-            throw new IllegalStateException("No pending result!");
+            invocation.notify();
         }
+        if (gvArgs != null) {
+            gvArgs.free();
+        }
+        if (callback != null) {
+            if (LOG) Log.i(TAG, "returnResult: CALLBACK id=" + id);
+            try {
+                callback.onDone(invocation);
+            } catch (RuntimeException e) {
+                // Don't let a faulty callback take down the g_main_loop.
+                Log.e(TAG, "returnResult: callback failed: id=" + id, e);
+            }
+        }
+    }
+
+    /**
+     * Receives the finished invocation of an asynchronous dispatch.
+     * <p>
+     * This is called on the daemon thread, or on the watchdog thread if the invocation
+     * timed out, so implementations must not block: hand anything lengthy off to some other thread.
+     * The callback becomes responsible for {@link Invocation#recycle()}.
+     */
+    public interface Callback {
+        public void onDone(Invocation invocation);
     }
 
     /**
      * The status of a dispatched method invocation.
+     * <p>
+     * Invocations are pooled: whoever receives a finished invocation, from
+     * {@link Connector#dispatch} or in a {@link Callback}, must call {@link #recycle()}
+     * once done reading it, and must not touch it afterwards.
      */
-    public static class Invocation {
+    public static class Invocation extends GMainLoop.Task {
+
+        static final AtomicIntegerFieldUpdater<Invocation> PENDING_ID =
+                AtomicIntegerFieldUpdater.newUpdater(Invocation.class, "pendingId");
+
         /** A unique identifier for this invocation. */
-        public int id;
+        public volatile int id;
         /** Has this invocation finished? */
         public boolean done = false;
         /** Did this invocation succeed? */
@@ -509,8 +1008,138 @@ public class Connector {
         /** If failure, error message */
         public String errMessage;
 
-        Invocation(int id) {
-            this.id = id;
+        /** Our slot in the table of pending invocations. */
+        final int slot;
+        /** Our id while awaiting a result, or 0. Claiming the result resets it. */
+        volatile int pendingId;
+
+        private final InvocationTable table;
+        private final Connector connector;
+
+        // What to dispatch.
+        long dispatchCb;
+        String sender;
+        String objectPath;
+        String iface;
+        String meth;
+        long args;
+        long timeout;
+        /** When to give up, in {@link SystemClock#uptimeMillis()} terms, or 0 for never. */
+        long deadline;
+
+        /** When this was dispatched, in {@link System#nanoTime()} terms, or 0 if not recording. */
+        long runTime;
+
+        /** Is this waiting to run on the g_main_loop? */
+        private boolean queued;
+        /** Was this recycled while still queued, and so should be released once it has run? */
+        private boolean releaseWhenRun;
+
+        /** If asynchronous, who to tell when finished. */
+        Callback callback;
+        /** If asynchronous, the arguments to free when finished. */
+        GVariant gvArgs;
+
+        Invocation(InvocationTable table, Connector connector, int slot) {
+            this.table = table;
+            this.connector = connector;
+            this.slot = slot;
+        }
+
+        /**
+         * Called on the g_main_loop to dispatch this invocation to the native service.
+         */
+        public void run() {
+            boolean release;
+            synchronized (this) {
+                // We hold the lock while dispatching so it can't expire in mid-dispatch.
+                queued = false;
+                release = releaseWhenRun;
+                releaseWhenRun = false;
+                if (!release && pendingId == id) {
+                    if (LOG) Log.i(TAG, "dispatch: RUNNING id=" + id);
+                    runTime = connector.stats.start();
+                    if (runTime != 0) {
+                        connector.stats.recordWait(iface, meth, runTime - enqueueTime);
+                    }
+                    connector.dispatchNative(dispatchCb, sender, objectPath, iface, meth, args, id);
+                } else {
+                    if (LOG) Log.i(TAG, "dispatch: SKIPPING expired id=" + id);
+                }
+            }
+            if (release) {
+                table.release(this);
+            }
+        }
+
+        /**
+         * Block until this invocation has finished, or its deadline has passed,
+         * or the calling thread is interrupted; in the latter two cases
+         * it finishes with an error.
+         * The thread's interrupted status is preserved.
+         * @return this invocation
+         */
+        public Invocation await() {
+            if (LOG) Log.i(TAG, "dispatch: WAITING id=" + id);
+            boolean interrupted = false;
+            synchronized (this) {
+                while (!done) {
+                    long remaining = 0;
+                    if (deadline != 0) {
+                        remaining = deadline - SystemClock.uptimeMillis();
+                        if (remaining <= 0) {
+                            // If this fails, the response is on its way: wait for it.
+                            deadline = 0;
+                            connector.expire(this, id, DLeynaException.ERR_TIMEOUT,
+                                    "Timed out after " + timeout + " ms");
+                            continue;
+                        }
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        if (!interrupted) {
+                            interrupted = true;
+                            deadline = 0;
+                            connector.expire(this, id, DLeynaException.ERR_CANCELLED, "Interrupted");
+                        }
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (LOG) Log.i(TAG, "dispatch: DONE!!! id=" + id);
+            return this;
+        }
+
+        /**
+         * Return this finished invocation to the pool.
+         * Ownership of {@link #result}, if any, stays with the caller.
+         */
+        public void recycle() {
+            boolean release;
+            synchronized (this) {
+                done = false;
+                success = false;
+                result = null;
+                errCode = 0;
+                errMessage = null;
+                sender = null;
+                objectPath = null;
+                iface = null;
+                meth = null;
+                callback = null;
+                deadline = 0;
+                runTime = 0;
+                // The g_main_loop queue may still hold this, if it expired before being run,
+                // and mustn't find it reused when it gets there.
+                release = !queued;
+                releaseWhenRun = queued;
+            }
+            if (release && table != null) {
+                table.release(this);
+            }
         }
     }
 }
@@ -0,0 +1,363 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+package com.intel.dleyna;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.intel.dleyna.lib.Extras;
+import com.intel.dleyna.lib.IServerClient;
+import com.intel.dleyna.lib.MediaObjectList;
+
+/**
+ * Walks the container trees of servers, a page of ListChildrenEx at a time,
+ * so that their listings get cached and their objects indexed.
+ * <p>
+ * Each server's crawl makes at most a given number of calls at once, and starts them
+ * at most at a given rate, on low priority threads. Our {@link Source} dispatches them
+ * in the g_main_loop's background lane, behind the user's own ListChildrenEx and
+ * other calls; but once dispatched, they compete with those for the server.
+ * <p>
+ * A server may return fewer children than asked for before the end of a container,
+ * so we carry on until we've had the container's ChildCount, as its parent listed it,
+ * or, if we don't know that, until a page comes back empty.
+ * <p>
+ * A crawl remembers the ContainerUpdateID of each container it's listed.
+ * Stopping a crawl keeps its queue, so starting it again carries on where it left off.
+ * A container whose ContainerUpdateIDs notification or listing in its parent shows
+ * a new ID is crawled again; others aren't.
+ */
+final class Crawler {
+
+    private static final boolean LOG = false;
+    private static final String TAG = "Crawler";
+
+    private static final String THREAD_NAME = "Crawler";
+
+    /** The most calls in progress at once, for all servers together. */
+    static final int MAX_CONCURRENCY = 4;
+
+    /** The children to get with each call. */
+    private static final int PAGE_SIZE = 200;
+
+    /** The properties the crawler and the index need. */
+    static final String[] FILTER = makeFilter("Path", "Parent", "Type", "ContainerUpdateID", "ChildCount");
+
+    /** Meaning we don't know a container's update ID. */
+    private static final int UNKNOWN_UPDATE_ID = -1;
+
+    /** Meaning we don't know how many children a container has. */
+    private static final int UNKNOWN_CHILD_COUNT = -1;
+
+    /** What the crawler needs from the service. */
+    interface Source {
+        /**
+         * Get a page of a container's children, with at least the properties of {@link Crawler#FILTER}.
+         * @return the page, or null, with an error in the extras, if we can't get it
+         */
+        MediaObjectList listChildren(IServerClient client, String containerPath, int offset, int max,
+                Bundle extras);
+
+        /**
+         * Called after each page, and when a crawl finishes.
+         * @param containersDone the containers listed completely
+         * @param containersPending the containers waiting to be listed, or being listed
+         * @param objects the objects seen, including any seen more than once
+         */
+        void onProgress(String serverPath, int containersDone, int containersPending, int objects,
+                boolean finished);
+    }
+
+    private final Source source;
+
+    private final ConcurrentHashMap<String, Crawl> crawls = new ConcurrentHashMap<String, Crawl>();
+
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(MAX_CONCURRENCY,
+            new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, THREAD_NAME);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    Crawler(Source source) {
+        this.source = source;
+    }
+
+    /**
+     * Start crawling a server, or carry on with a stopped crawl, or change a crawl's limits.
+     * @param client the client to make the calls for
+     * @param concurrency the most calls at once, up to {@link #MAX_CONCURRENCY}
+     * @param requestsPerSecond the most calls to start each second, or 0 for no limit
+     */
+    void start(IServerClient client, String serverPath, int concurrency, int requestsPerSecond) {
+        Crawl crawl = crawls.get(serverPath);
+        if (crawl == null) {
+            Crawl newCrawl = new Crawl(serverPath);
+            crawl = crawls.putIfAbsent(serverPath, newCrawl);
+            if (crawl == null) {
+                crawl = newCrawl;
+            }
+        }
+        synchronized (crawl) {
+            crawl.client = client;
+            crawl.concurrency = Math.max(1, Math.min(concurrency, MAX_CONCURRENCY));
+            crawl.interval = requestsPerSecond > 0 ? 1000 / requestsPerSecond : 0;
+            crawl.running = true;
+            if (crawl.queue.isEmpty() && crawl.crawled.isEmpty()) {
+                // The server itself is the root container.
+                crawl.enqueue(serverPath, UNKNOWN_UPDATE_ID, UNKNOWN_CHILD_COUNT);
+            }
+            if (LOG) Log.i(TAG, "start: " + serverPath + ": queue=" + crawl.queue.size());
+            pump(crawl);
+        }
+    }
+
+    /**
+     * Stop making calls for a crawl, keeping its state.
+     */
+    void stop(String serverPath) {
+        Crawl crawl = crawls.get(serverPath);
+        if (crawl != null) {
+            synchronized (crawl) {
+                crawl.running = false;
+            }
+        }
+    }
+
+    /**
+     * Forget a crawl, since its server is gone.
+     */
+    void forget(String serverPath) {
+        Crawl crawl = crawls.remove(serverPath);
+        if (crawl != null) {
+            synchronized (crawl) {
+                crawl.running = false;
+            }
+        }
+    }
+
+    /**
+     * Crawl a container again if it's changed since we last did.
+     */
+    void onContainerUpdateId(String containerPath, int updateId) {
+        String serverPath = DiskListingCache.getServerPath(containerPath);
+        Crawl crawl = serverPath == null ? null : crawls.get(serverPath);
+        if (crawl != null) {
+            synchronized (crawl) {
+                Integer seen = crawl.crawled.get(containerPath);
+                if (crawl.queued.contains(containerPath)) {
+                    // The pages we've already got may be out of date.
+                    crawl.changed.add(containerPath);
+                } else if (seen == null || seen != updateId) {
+                    crawl.crawled.remove(containerPath);
+                    crawl.enqueue(containerPath, updateId, UNKNOWN_CHILD_COUNT);
+                    pump(crawl);
+                }
+            }
+        }
+    }
+
+    /**
+     * Start as many calls as the crawl's limits allow. Called with the crawl locked.
+     */
+    private void pump(final Crawl crawl) {
+        while (crawl.running && crawl.active < crawl.concurrency && !crawl.queue.isEmpty()) {
+            if (!crawl.client.asBinder().isBinderAlive()) {
+                if (LOG) Log.i(TAG, crawl.serverPath + ": client is gone");
+                crawl.running = false;
+                break;
+            }
+            final Page page = crawl.queue.poll();
+            crawl.active++;
+            long now = SystemClock.uptimeMillis();
+            long at = Math.max(now, crawl.nextStart);
+            crawl.nextStart = at + crawl.interval;
+            executor.schedule(new Runnable() {
+                public void run() {
+                    fetch(crawl, page);
+                }
+            }, at - now, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void fetch(Crawl crawl, Page page) {
+        IServerClient client;
+        synchronized (crawl) {
+            if (!crawl.running) {
+                crawl.active--;
+                crawl.queue.addFirst(page);
+                return;
+            }
+            client = crawl.client;
+        }
+        Bundle extras = new Bundle();
+        MediaObjectList list = source.listChildren(client, page.containerPath, page.offset, PAGE_SIZE, extras);
+        int containersDone;
+        int containersPending;
+        int objects;
+        boolean finished;
+        synchronized (crawl) {
+            crawl.active--;
+            if (list == null) {
+                Log.w(TAG, "Can't list " + page.containerPath + ": " + extras.getString(Extras.KEY_ERR_MSG));
+                crawl.errors++;
+                crawl.queued.remove(page.containerPath);
+                crawl.changed.remove(page.containerPath);
+            } else {
+                addChildContainers(crawl, list);
+                crawl.objects += list.size();
+                int next = page.offset + list.size();
+                if (list.size() > 0 && (page.childCount == UNKNOWN_CHILD_COUNT || next < page.childCount)) {
+                    // Finish containers before starting others.
+                    crawl.queue.addFirst(new Page(page.containerPath, next, page.updateId, page.childCount));
+                } else {
+                    crawl.queued.remove(page.containerPath);
+                    if (crawl.changed.remove(page.containerPath)) {
+                        crawl.enqueue(page.containerPath, UNKNOWN_UPDATE_ID, UNKNOWN_CHILD_COUNT);
+                    } else {
+                        crawl.crawled.put(page.containerPath, page.updateId);
+                    }
+                }
+            }
+            pump(crawl);
+            containersDone = crawl.crawled.size();
+            containersPending = crawl.queued.size();
+            objects = crawl.objects;
+            finished = crawl.queue.isEmpty() && crawl.active == 0;
+        }
+        source.onProgress(crawl.serverPath, containersDone, containersPending, objects, finished);
+    }
+
+    /**
+     * Queue the containers in a page that we haven't crawled, or that have changed since.
+     */
+    private static void addChildContainers(Crawl crawl, MediaObjectList list) {
+        for (int i = 0; i < list.size(); i++) {
+            String type = list.getString(i, "Type");
+            String path = list.getString(i, "Path");
+            if (type == null || !type.startsWith("container") || path == null) {
+                continue;
+            }
+            Object id = list.getValue(i, "ContainerUpdateID");
+            int updateId = id instanceof Integer ? (Integer) id : UNKNOWN_UPDATE_ID;
+            Integer seen = crawl.crawled.get(path);
+            if (seen == null || updateId == UNKNOWN_UPDATE_ID || seen != updateId) {
+                Object count = list.getValue(i, "ChildCount");
+                crawl.crawled.remove(path);
+                crawl.enqueue(path, updateId, count instanceof Integer ? (Integer) count : UNKNOWN_CHILD_COUNT);
+            }
+        }
+    }
+
+    private static String[] makeFilter(String... props) {
+        String[] filter = Arrays.copyOf(props, props.length + MediaIndex.INDEXED_PROPERTIES.length);
+        System.arraycopy(MediaIndex.INDEXED_PROPERTIES, 0, filter, props.length,
+                MediaIndex.INDEXED_PROPERTIES.length);
+        return filter;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("Crawls: " + crawls.size());
+        for (Crawl crawl : crawls.values()) {
+            synchronized (crawl) {
+                pw.println(String.format("  %s: %s done=%d pending=%d active=%d objects=%d errors=%d"
+                        + " concurrency=%d interval=%dms",
+                        crawl.serverPath, crawl.running ? "running" : "stopped", crawl.crawled.size(),
+                        crawl.queued.size(), crawl.active, crawl.objects, crawl.errors,
+                        crawl.concurrency, crawl.interval));
+            }
+        }
+    }
+
+    /** A page of a container's children, to be fetched. */
+    private static final class Page {
+        final String containerPath;
+        final int offset;
+        /** The container's update ID when it was queued. */
+        final int updateId;
+        /** The container's ChildCount when it was queued. */
+        final int childCount;
+
+        Page(String containerPath, int offset, int updateId, int childCount) {
+            this.containerPath = containerPath;
+            this.offset = offset;
+            this.updateId = updateId;
+            this.childCount = childCount;
+        }
+    }
+
+    /** The state of a server's crawl, guarded by itself. */
+    private static final class Crawl {
+        final String serverPath;
+        IServerClient client;
+        int concurrency;
+        /** The least time between starting calls, in ms. */
+        long interval;
+        boolean running;
+
+        /** Pages waiting to be fetched. */
+        final ArrayDeque<Page> queue = new ArrayDeque<Page>();
+        /** The containers with pages waiting or being fetched. */
+        final HashSet<String> queued = new HashSet<String>();
+        /** The containers listed completely, and their update IDs when they were. */
+        final HashMap<String, Integer> crawled = new HashMap<String, Integer>();
+        /** The queued containers that changed after we started listing them. */
+        final HashSet<String> changed = new HashSet<String>();
+
+        /** Calls in progress. */
+        int active;
+        /** When the next call may start, in uptime ms. */
+        long nextStart;
+        int objects;
+        int errors;
+
+        Crawl(String serverPath) {
+            this.serverPath = serverPath;
+        }
+
+        void enqueue(String containerPath, int updateId, int childCount) {
+            if (queued.add(containerPath)) {
+                queue.add(new Page(containerPath, 0, updateId, childCount));
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+
+package com.intel.dleyna;
+
+import java.io.PrintWriter;
+
+import android.os.Bundle;
+
+import com.intel.dleyna.lib.GVariantReader;
+
+/**
+ * Measures decoding an "aa{sv}" listing with {@link GVariantReader}, from the serialized form,
+ * against walking it entry by entry through JNI as ServerService used to, for
+ * "adb shell dumpsys activity service com.intel.dleyna.ServerService decodebench".
+ * <p>
+ * The listing is made up in Java, with the properties a typical music item has,
+ * so nothing is asked of any server.
+ */
+final class DecodeBenchmark {
+
+    /** The listing sizes to measure with. */
+    private static final int[] ITEM_COUNTS = new int[] { 100, 500, 2000 };
+
+    /** How many items each measurement decodes, in total. */
+    private static final int ITEMS_PER_RUN = 20000;
+
+    private DecodeBenchmark() {
+    }
+
+    static void run(PrintWriter pw) {
+        pw.println("Decode benchmark: " + ITEMS_PER_RUN + " items per measurement");
+        for (int count : ITEM_COUNTS) {
+            GVariant gvListing = GVariant.newFromJava("aa{sv}", makeListing(count));
+            try {
+                int repeats = ITEMS_PER_RUN / count;
+                // Warm up, then measure.
+                runReader(gvListing, repeats / 10 + 1);
+                long reader = runReader(gvListing, repeats);
+                runPerEntry(gvListing, repeats / 10 + 1);
+                long perEntry = runPerEntry(gvListing, repeats);
+                pw.println(String.format("  %4d items: reader=%.2fms per-entry JNI=%.2fms (%dns vs %dns per item)",
+                        count, reader / (repeats * 1e6), perEntry / (repeats * 1e6),
+                        reader / ((long) repeats * count), perEntry / ((long) repeats * count)));
+            } finally {
+                gvListing.free();
+            }
+        }
+        pw.flush();
+    }
+
+    private static Bundle[] makeListing(int count) {
+        Bundle[] listing = new Bundle[count];
+        for (int i = 0; i < count; i++) {
+            Bundle b = new Bundle();
+            b.putString("Path", "/com/intel/dLeynaServer/server/0/" + Integer.toHexString(0x10000 + i));
+            b.putString("Parent", "/com/intel/dLeynaServer/server/0/2a");
+            b.putString("Type", "music");
+            b.putString("DisplayName", "Track " + i);
+            b.putString("Artist", "Some Artist");
+            b.putString("Album", "Some Album");
+            b.putString("MIMEType", "audio/mpeg");
+            b.putInt("Duration", 200 + i % 100);
+            b.putLong("Size", 5000000L + i);
+            b.putStringArray("URLs", new String[] { "http://192.168.1.2:8200/MediaItems/" + i + ".mp3" });
+            listing[i] = b;
+        }
+        return listing;
+    }
+
+    /** @return the elapsed time in ns */
+    private static long runReader(GVariant gvListing, int repeats) {
+        long start = System.nanoTime();
+        for (int i = 0; i < repeats; i++) {
+            new GVariantReader(gvListing.getData(), gvListing.getTypeString()).readDictionaryArray();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** @return the elapsed time in ns */
+    private static long runPerEntry(GVariant gvListing, int repeats) {
+        long start = System.nanoTime();
+        for (int i = 0; i < repeats; i++) {
+            GVariant[] gvDicts = gvListing.getArrayOfGVariant();
+            Bundle[] result = new Bundle[gvDicts.length];
+            for (int j = 0; j < gvDicts.length; j++) {
+                result[j] = makeBundleFromDictionary(gvDicts[j]);
+                gvDicts[j].free();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /*-------------------------------------------+
+     | The per-entry decoding the reader replaced |
+     +-------------------------------------------*/
+
+    private static Bundle makeBundleFromDictionary(GVariant gvDictionary) {
+        Bundle bundle = new Bundle();
+        GVariant gvEntries[] = gvDictionary.getArrayOfGVariant();
+        for (GVariant gvEntry : gvEntries) {
+            GVariant gvEntryName = gvEntry.getChildAtIndex(0);
+            GVariant gvEntryValueVariant = gvEntry.getChildAtIndex(1);
+            GVariant gvEntryValue = gvEntryValueVariant.getChildAtIndex(0);
+            putToBundleMaybe(bundle, gvEntryName.getString(), gvEntryValue);
+            gvEntryValue.free();
+            gvEntryValueVariant.free();
+            gvEntryName.free();
+            gvEntry.free();
+        }
+        return bundle;
+    }
+
+    private static void putToBundleMaybe(Bundle bundle, String key, GVariant gvValue) {
+        String type = gvValue.getTypeString();
+        if (type.equals("o") || type.equals("s")) {
+            bundle.putString(key, gvValue.getString());
+        } else if (type.equals("i") || type.equals("u")) {
+            bundle.putInt(key, gvValue.getUInt32());
+        } else if (type.equals("x") || type.equals("t")) {
+            bundle.putLong(key, gvValue.getInt64());
+        } else if (type.equals("b")) {
+            bundle.putBoolean(key, gvValue.getBoolean());
+        } else if (type.equals("as")) {
+            bundle.putStringArray(key, gvValue.getArrayOfString());
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+package com.intel.dleyna;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Bundle;
+
+import com.intel.dleyna.lib.DeviceSnapshot;
+
+/**
+ * The device properties of each device, got with one GetAll and kept
+ * up to date from the device's change notifications until it's lost.
+ */
+class DeviceSnapshots {
+
+    /** Gets all of a device's properties. */
+    interface Fetcher {
+        /**
+         * @return the properties, or null, with an error in the extras, if we can't get them
+         */
+        Bundle fetch(String objectPath, Bundle extras);
+    }
+
+    private final ConcurrentHashMap<String, DeviceSnapshot> snapshots =
+            new ConcurrentHashMap<String, DeviceSnapshot>();
+
+    /**
+     * Bumped by every change, so that a fetch that overlaps one
+     * doesn't put what may be stale properties in the cache.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Get a device's snapshot, fetching it if we don't have it.
+     * @return the snapshot, or null, with an error in the extras, if we can't get it
+     */
+    DeviceSnapshot get(String objectPath, Fetcher fetcher, Bundle extras) {
+        DeviceSnapshot s = snapshots.get(objectPath);
+        if (s != null) {
+            return s;
+        }
+        long gen = generation.get();
+        Bundle props = fetcher.fetch(objectPath, extras);
+        if (props == null) {
+            return null;
+        }
+        s = new DeviceSnapshot(objectPath, props);
+        if (generation.get() == gen) {
+            DeviceSnapshot prev = snapshots.putIfAbsent(objectPath, s);
+            if (prev != null) {
+                s = prev;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Replace a device's snapshot with properties just got from it.
+     */
+    void put(String objectPath, Bundle props) {
+        generation.incrementAndGet();
+        snapshots.put(objectPath, new DeviceSnapshot(objectPath, props));
+    }
+
+    /**
+     * Apply some changed properties to a device's snapshot, if we have one.
+     * @param invalidated properties that changed without their new values, or null
+     */
+    void onPropertiesChanged(String objectPath, Bundle changes, String[] invalidated) {
+        generation.incrementAndGet();
+        if (invalidated != null && invalidated.length > 0) {
+            snapshots.remove(objectPath);
+            return;
+        }
+        for (;;) {
+            DeviceSnapshot s = snapshots.get(objectPath);
+            if (s == null || snapshots.replace(objectPath, s, s.withChanges(changes))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forget a device's snapshot, because it's changed in ways we can't apply,
+     * or it's gone.
+     */
+    void invalidate(String objectPath) {
+        generation.incrementAndGet();
+        snapshots.remove(objectPath);
+    }
+}
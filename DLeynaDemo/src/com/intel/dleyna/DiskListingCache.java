@@ -0,0 +1,823 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+package com.intel.dleyna;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.intel.dleyna.lib.ContainerUpdateId;
+import com.intel.dleyna.lib.GVariantReader;
+import com.intel.dleyna.lib.GVariantWriter;
+import com.intel.dleyna.lib.IServerClient;
+import com.intel.dleyna.lib.MediaObjectList;
+
+/**
+ * Container listings and device properties of servers, kept on disk so that they
+ * outlive the service process. There's a file per server, named after its UDN,
+ * since a server's object path may differ from one run of the service to the next.
+ * <p>
+ * A file is a header (magic number, version, and the server's object path when the
+ * file was written), then records, only ever appended: listings, containers that
+ * changed, device properties, and the server's state (ServiceResetToken and
+ * SystemUpdateID). Every listing before a change of state is stale.
+ * We read the whole file into an index when we first see the server, and rewrite it
+ * without its dead records when they take up much of it.
+ * <p>
+ * A server's file is opened in the background, when we're first asked about the server:
+ * we get its UDN, read the file, then get the device's properties and check them against
+ * the state. Listings are served as soon as the file is read. If the properties don't
+ * match, we drop the server's listings and tell our {@link Source}.
+ * If we can't get the UDN, we don't try again for a while.
+ * <p>
+ * Object paths in the records are those of the server when they were written; if the
+ * server has another path now, we rewrite them when we read the file.
+ */
+final class DiskListingCache {
+
+    private static final boolean LOG = false;
+    private static final String TAG = "DiskListingCache";
+
+    private static final int MAGIC = 0x444c4243;  // "DLBC"
+    private static final int VERSION = 1;
+
+    private static final byte RECORD_LISTING = 1;
+    private static final byte RECORD_REMOVED = 2;
+    private static final byte RECORD_DEVICE = 3;
+    private static final byte RECORD_STATE = 4;
+
+    /** A ServiceResetToken and SystemUpdateID that match no server. */
+    private static final String UNKNOWN_TOKEN = "";
+    private static final int UNKNOWN_UPDATE_ID = -1;
+
+    private static final String SERVER_PATH_PREFIX = "/com/intel/dLeynaServer/server/";
+
+    /** How long to wait before trying again to get a server's UDN. */
+    private static final long UDN_RETRY_MS = 30 * 1000;
+
+    /** Below this size, a file isn't worth compacting. */
+    private static final int MIN_COMPACT_BYTES = 64 * 1024;
+
+    /** What the cache needs from the service. */
+    interface Source {
+        /**
+         * @return the server's UDN, or null if we can't get it
+         */
+        String getUniqueDeviceName(IServerClient client, String serverPath);
+
+        /**
+         * Get the server's device properties from the server, not from a cache.
+         * @return the properties, or null if we can't get them
+         */
+        Bundle getDeviceProperties(IServerClient client, String serverPath);
+
+        /**
+         * The server's listings have been checked against its properties.
+         * @param stale whether the listings were stale, and have been dropped
+         */
+        void onRevalidated(String serverPath, Bundle props, boolean stale);
+    }
+
+    private final File dir;
+    private final int maxFileBytes;
+    private final Source source;
+
+    private final ConcurrentHashMap<String, Store> stores = new ConcurrentHashMap<String, Store>();
+
+    /**
+     * Servers we've no store for yet, with when we may next try to open one:
+     * Long.MAX_VALUE while we're opening it, or a while after we've failed to.
+     */
+    private final HashMap<String, Long> opening = new HashMap<String, Long>();
+
+    /** Opens the stores and checks them against their servers, one at a time. */
+    private final Executor revalidator = Executors.newSingleThreadExecutor();
+
+    private int hits;
+    private int misses;
+    private int staleServers;
+
+    /**
+     * @param dir where to keep the files
+     * @param maxFileBytes the most bytes to keep for each server
+     */
+    DiskListingCache(File dir, int maxFileBytes, Source source) {
+        this.dir = dir;
+        this.maxFileBytes = maxFileBytes;
+        this.source = source;
+        dir.mkdirs();
+    }
+
+    /**
+     * @return the object path of the server an object is on, or null if it isn't a server's
+     */
+    static String getServerPath(String objectPath) {
+        if (!objectPath.startsWith(SERVER_PATH_PREFIX)) {
+            return null;
+        }
+        int end = objectPath.indexOf('/', SERVER_PATH_PREFIX.length());
+        return end < 0 ? objectPath : objectPath.substring(0, end);
+    }
+
+    /**
+     * Get a listing.
+     * @param args the arguments of the listing method, other than the container
+     * @return the listing, or null if we don't have it, or haven't read its server's file yet
+     */
+    MediaObjectList get(IServerClient client, String containerPath, Object[] args) {
+        Store store = getStore(client, containerPath);
+        MediaObjectList listing = store == null ? null : store.getListing(containerPath, args);
+        synchronized (this) {
+            if (listing != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * Keep a listing, if we've read its server's file.
+     */
+    void put(String containerPath, Object[] args, MediaObjectList listing) {
+        Store store = findStore(containerPath);
+        ByteBuffer data = listing.getData();
+        if (store != null && data != null) {
+            store.putListing(containerPath, args, data);
+        }
+    }
+
+    /**
+     * @return the server's device properties as we last saw them, or null if we don't have them
+     */
+    Bundle getDeviceProperties(IServerClient client, String serverPath) {
+        Store store = getStore(client, serverPath);
+        return store == null ? null : store.getDevice();
+    }
+
+    /**
+     * Keep a server's device properties, checking its listings against them.
+     * @return whether the listings were stale, and have been dropped
+     */
+    boolean putDeviceProperties(String serverPath, Bundle props) {
+        Store store = findStore(serverPath);
+        return store != null && store.putDevice(props);
+    }
+
+    /**
+     * Drop the listings of a container.
+     */
+    void invalidateContainer(String containerPath) {
+        Store store = findStore(containerPath);
+        if (store != null) {
+            store.removeListings(containerPath);
+        }
+    }
+
+    /**
+     * Drop all a server's listings, since its SystemUpdateID has changed.
+     */
+    void onSystemUpdateId(String serverPath, int systemUpdateId) {
+        Store store = findStore(serverPath);
+        if (store != null) {
+            store.setSystemUpdateId(systemUpdateId);
+        }
+    }
+
+    /**
+     * Close a server's file, since it's gone. It's kept for when the server comes back.
+     */
+    void close(String serverPath) {
+        synchronized (opening) {
+            opening.remove(serverPath);
+        }
+        Store store = stores.remove(serverPath);
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    private Store findStore(String objectPath) {
+        String serverPath = getServerPath(objectPath);
+        return serverPath == null ? null : stores.get(serverPath);
+    }
+
+    /**
+     * @return the server's store, or null if we haven't opened it yet,
+     * in which case we start opening it
+     */
+    private Store getStore(IServerClient client, String objectPath) {
+        String serverPath = getServerPath(objectPath);
+        if (serverPath == null) {
+            return null;
+        }
+        Store store = stores.get(serverPath);
+        if (store == null) {
+            open(client, serverPath);
+        }
+        return store;
+    }
+
+    /**
+     * Open a server's store in the background, unless we're already opening it,
+     * or have lately failed to.
+     */
+    void open(final IServerClient client, final String serverPath) {
+        if (stores.containsKey(serverPath)) {
+            return;
+        }
+        synchronized (opening) {
+            Long next = opening.get(serverPath);
+            if (next != null && SystemClock.elapsedRealtime() < next) {
+                return;
+            }
+            opening.put(serverPath, Long.MAX_VALUE);
+        }
+        revalidator.execute(new Runnable() {
+            public void run() {
+                openStore(client, serverPath);
+            }
+        });
+    }
+
+    private void openStore(IServerClient client, String serverPath) {
+        String udn = source.getUniqueDeviceName(client, serverPath);
+        if (udn == null) {
+            if (LOG) Log.i(TAG, "openStore: no UDN for " + serverPath);
+            synchronized (opening) {
+                if (opening.containsKey(serverPath)) {
+                    opening.put(serverPath, SystemClock.elapsedRealtime() + UDN_RETRY_MS);
+                }
+            }
+            return;
+        }
+        Store store = new Store(serverPath, new File(dir, getFileName(udn)));
+        store.open();
+        synchronized (opening) {
+            if (opening.remove(serverPath) == null || stores.putIfAbsent(serverPath, store) != null) {
+                // The server went away meanwhile.
+                store.close();
+                return;
+            }
+        }
+        Bundle props = source.getDeviceProperties(client, serverPath);
+        if (props != null) {
+            boolean stale = store.putDevice(props);
+            if (stale) {
+                synchronized (this) {
+                    staleServers++;
+                }
+            }
+            source.onRevalidated(serverPath, props, stale);
+        }
+    }
+
+    /** Make a UDN, typically "uuid:...", into a safe file name. */
+    private static String getFileName(String udn) {
+        StringBuilder sb = new StringBuilder(udn.length());
+        for (int i = 0; i < udn.length(); i++) {
+            char c = udn.charAt(i);
+            boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '.';
+            sb.append(safe ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(String.format("Disk listing cache: servers=%d hits=%d misses=%d stale=%d",
+                stores.size(), hits, misses, staleServers));
+        for (Store store : stores.values()) {
+            store.dump(pw);
+        }
+    }
+
+    synchronized void resetStats() {
+        hits = 0;
+        misses = 0;
+        staleServers = 0;
+    }
+
+    /** Where a record's data is in a file. */
+    private static final class Extent {
+        final int offset;
+        final int length;
+
+        Extent(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A server's file. Its methods are synchronized, and it reads the file
+     * the first time any of them is called.
+     * If the file can't be read or written, the store holds nothing.
+     */
+    private final class Store {
+
+        final String serverPath;
+        private final File file;
+
+        private boolean opened;
+        private RandomAccessFile raf;
+
+        /** The listings, by key relative to the server. */
+        private final HashMap<String, Extent> listings = new HashMap<String, Extent>();
+        private Extent device;
+        private int liveBytes;
+
+        private String token = UNKNOWN_TOKEN;
+        private int systemUpdateId = UNKNOWN_UPDATE_ID;
+
+        Store(String serverPath, File file) {
+            this.serverPath = serverPath;
+            this.file = file;
+        }
+
+        synchronized MediaObjectList getListing(String containerPath, Object[] args) {
+            ensureOpen();
+            Extent e = listings.get(getKey(containerPath, args));
+            if (e == null) {
+                return null;
+            }
+            byte[] data = read(e);
+            return data == null ? null : new MediaObjectList(ByteBuffer.wrap(data));
+        }
+
+        synchronized void putListing(String containerPath, Object[] args, ByteBuffer data) {
+            ensureOpen();
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            String key = getKey(containerPath, args);
+            Extent old = listings.get(key);
+            Extent e = append(RECORD_LISTING, key, bytes);
+            if (e != null) {
+                if (old != null) {
+                    liveBytes -= old.length;
+                }
+                listings.put(key, e);
+                liveBytes += e.length;
+            }
+        }
+
+        synchronized void removeListings(String containerPath) {
+            ensureOpen();
+            String relPath = containerPath.substring(serverPath.length());
+            if (removeIndexed(relPath)) {
+                append(RECORD_REMOVED, relPath, new byte[0]);
+            }
+        }
+
+        synchronized Bundle getDevice() {
+            ensureOpen();
+            byte[] data = device == null ? null : read(device);
+            return data == null ? null : new GVariantReader(data, "a{sv}").readDictionary();
+        }
+
+        synchronized void open() {
+            ensureOpen();
+        }
+
+        /**
+         * @return whether the listings were stale, and have been dropped
+         */
+        synchronized boolean putDevice(Bundle props) {
+            ensureOpen();
+            boolean stale = setState(props.getString("ServiceResetToken", UNKNOWN_TOKEN),
+                    props.getInt("SystemUpdateID", UNKNOWN_UPDATE_ID));
+            byte[] bytes = toBytes(new GVariantWriter().write("a{sv}", getWritable(props)));
+            Extent e = append(RECORD_DEVICE, "", bytes);
+            if (e != null) {
+                device = e;
+            }
+            return stale;
+        }
+
+        /**
+         * @return whether the listings were stale, and have been dropped
+         */
+        synchronized boolean setState(String token, int systemUpdateId) {
+            ensureOpen();
+            if (token.equals(this.token) && systemUpdateId == this.systemUpdateId) {
+                return false;
+            }
+            // Listings fetched before we knew the state were fetched this run, so they're fine.
+            boolean stale = !UNKNOWN_TOKEN.equals(this.token) || this.systemUpdateId != UNKNOWN_UPDATE_ID;
+            if (stale) {
+                listings.clear();
+                liveBytes = 0;
+            }
+            this.token = token;
+            this.systemUpdateId = systemUpdateId;
+            append(RECORD_STATE, token, toBytes(systemUpdateId));
+            return stale;
+        }
+
+        synchronized void setSystemUpdateId(int systemUpdateId) {
+            setState(token, systemUpdateId);
+        }
+
+        synchronized void close() {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                }
+                raf = null;
+            }
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            pw.println(String.format("  %s %s: listings=%d liveBytes=%d fileBytes=%d updateId=%d",
+                    serverPath, file.getName(), listings.size(), liveBytes, length(), systemUpdateId));
+        }
+
+        private String getKey(String containerPath, Object[] args) {
+            return ListingCache.key(containerPath.substring(serverPath.length()), args);
+        }
+
+        private boolean removeIndexed(String relPath) {
+            String prefix = ListingCache.getContainerPrefix(relPath);
+            boolean removed = false;
+            for (Iterator<Map.Entry<String, Extent>> it = listings.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, Extent> entry = it.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    liveBytes -= entry.getValue().length;
+                    it.remove();
+                    removed = true;
+                }
+            }
+            return removed;
+        }
+
+        private void ensureOpen() {
+            if (opened) {
+                return;
+            }
+            opened = true;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                String writtenPath = load();
+                if (writtenPath == null) {
+                    reset();
+                } else if (!writtenPath.equals(serverPath)) {
+                    // The server has a different object path this time.
+                    compact(writtenPath);
+                } else if (raf.length() > MIN_COMPACT_BYTES && liveBytes < raf.length() / 2) {
+                    compact(null);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+            if (LOG) Log.i(TAG, "open: " + serverPath + " " + file.getName() + ": " + listings.size() + " listings");
+        }
+
+        /**
+         * Read the file into the index, dropping any torn record at its end.
+         * @return the server path the file was written for, or null if it isn't one of ours
+         */
+        private String load() throws IOException {
+            if (raf.length() == 0) {
+                return null;
+            }
+            String writtenPath;
+            try {
+                if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                    return null;
+                }
+                writtenPath = raf.readUTF();
+            } catch (IOException e) {
+                return null;
+            }
+            long good = raf.getFilePointer();
+            try {
+                for (;;) {
+                    if (raf.getFilePointer() == raf.length()) {
+                        break;
+                    }
+                    byte kind = raf.readByte();
+                    String key = raf.readUTF();
+                    int length = raf.readInt();
+                    long offset = raf.getFilePointer();
+                    if (length < 0 || offset + length > raf.length()) {
+                        break;
+                    }
+                    Extent e = new Extent((int) offset, length);
+                    switch (kind) {
+                    case RECORD_LISTING:
+                        Extent old = listings.put(key, e);
+                        if (old != null) {
+                            liveBytes -= old.length;
+                        }
+                        liveBytes += length;
+                        break;
+                    case RECORD_REMOVED:
+                        removeIndexed(key);
+                        break;
+                    case RECORD_DEVICE:
+                        device = e;
+                        break;
+                    case RECORD_STATE:
+                        int id = raf.readInt();
+                        if (!key.equals(token) || id != systemUpdateId) {
+                            if (!UNKNOWN_TOKEN.equals(token) || systemUpdateId != UNKNOWN_UPDATE_ID) {
+                                listings.clear();
+                                liveBytes = 0;
+                            }
+                            token = key;
+                            systemUpdateId = id;
+                        }
+                        break;
+                    default:
+                        throw new IOException("Bad record kind " + kind);
+                    }
+                    raf.seek(offset + length);
+                    good = raf.getFilePointer();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, file.getName() + ": dropping the end of the file: " + e);
+            }
+            if (good < raf.length()) {
+                raf.setLength(good);
+            }
+            if (UNKNOWN_TOKEN.equals(token) && systemUpdateId == UNKNOWN_UPDATE_ID) {
+                // We never found out what state these were fetched in.
+                listings.clear();
+                liveBytes = 0;
+            }
+            return writtenPath;
+        }
+
+        /** Empty the file, and the index. */
+        private void reset() throws IOException {
+            listings.clear();
+            liveBytes = 0;
+            device = null;
+            token = UNKNOWN_TOKEN;
+            systemUpdateId = UNKNOWN_UPDATE_ID;
+            raf.setLength(0);
+            raf.seek(0);
+            writeHeader(raf);
+        }
+
+        private void writeHeader(RandomAccessFile f) throws IOException {
+            f.writeInt(MAGIC);
+            f.writeInt(VERSION);
+            f.writeUTF(serverPath);
+        }
+
+        /**
+         * Rewrite the file with only its live records.
+         * @param oldPath if not null, the server path the records were written with,
+         * to replace with the current one
+         */
+        private void compact(String oldPath) throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+            HashMap<String, Extent> newListings = new HashMap<String, Extent>();
+            Extent newDevice = null;
+            try {
+                out.setLength(0);
+                writeHeader(out);
+                out.writeByte(RECORD_STATE);
+                out.writeUTF(token);
+                out.writeInt(4);
+                out.writeInt(systemUpdateId);
+                if (device != null) {
+                    newDevice = copy(out, RECORD_DEVICE, "", device, oldPath);
+                }
+                for (Map.Entry<String, Extent> entry : listings.entrySet()) {
+                    newListings.put(entry.getKey(), copy(out, RECORD_LISTING, entry.getKey(),
+                            entry.getValue(), oldPath));
+                }
+            } finally {
+                out.close();
+            }
+            raf.close();
+            raf = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can't rename " + tmp);
+            }
+            raf = new RandomAccessFile(file, "rw");
+            raf.seek(raf.length());
+            listings.clear();
+            listings.putAll(newListings);
+            device = newDevice;
+        }
+
+        private Extent copy(RandomAccessFile out, byte kind, String key, Extent e, String oldPath)
+                throws IOException {
+            byte[] data = new byte[e.length];
+            raf.seek(e.offset);
+            raf.readFully(data);
+            if (oldPath != null) {
+                data = movePaths(data, kind == RECORD_DEVICE ? "a{sv}" : "aa{sv}", oldPath, serverPath);
+            }
+            out.writeByte(kind);
+            out.writeUTF(key);
+            out.writeInt(data.length);
+            Extent result = new Extent((int) out.getFilePointer(), data.length);
+            out.write(data);
+            return result;
+        }
+
+        /**
+         * Append a record, compacting the file first if it would grow too big,
+         * and dropping the listings if it still would.
+         * @return where the record's data is, or null if we couldn't write it
+         */
+        private Extent append(byte kind, String key, byte[] data) {
+            if (raf == null) {
+                return null;
+            }
+            try {
+                if (raf.length() + data.length > maxFileBytes) {
+                    compact(null);
+                    if (raf.length() + data.length > maxFileBytes) {
+                        listings.clear();
+                        liveBytes = 0;
+                        compact(null);
+                        if (raf.length() + data.length > maxFileBytes) {
+                            return null;
+                        }
+                    }
+                }
+                raf.seek(raf.length());
+                raf.writeByte(kind);
+                raf.writeUTF(key);
+                raf.writeInt(data.length);
+                Extent e = new Extent((int) raf.getFilePointer(), data.length);
+                raf.write(data);
+                return e;
+            } catch (IOException ex) {
+                fail(ex);
+                return null;
+            }
+        }
+
+        private byte[] read(Extent e) {
+            if (raf == null) {
+                return null;
+            }
+            try {
+                byte[] data = new byte[e.length];
+                raf.seek(e.offset);
+                raf.readFully(data);
+                return data;
+            } catch (IOException ex) {
+                fail(ex);
+                return null;
+            }
+        }
+
+        private long length() {
+            try {
+                return raf == null ? 0 : raf.length();
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+
+        /** Give up on the file for this run, and delete it. */
+        private void fail(IOException e) {
+            Log.w(TAG, file.getName() + ": " + e);
+            close();
+            file.delete();
+            listings.clear();
+            liveBytes = 0;
+            device = null;
+        }
+    }
+
+    /**
+     * Rewrite a record's data for a server whose object path has changed.
+     * Every value keeps its own type, whatever it is; only the paths change.
+     * @param typeString "a{sv}" or "aa{sv}"
+     */
+    private static byte[] movePaths(byte[] data, String typeString, final String oldPath,
+            final String newPath) {
+        Object value = new GVariantReader(data, typeString).readWritable(
+                new GVariantReader.StringMapper() {
+            public String map(String s) {
+                return movePath(s, oldPath, newPath);
+            }
+        });
+        return toBytes(new GVariantWriter().write(typeString, value));
+    }
+
+    /**
+     * @return the properties, as a value of type "a{sv}" whose entries read back
+     * as the same Bundle
+     */
+    private static Map<String, Object> getWritable(Bundle props) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (String key : props.keySet()) {
+            Object v = props.get(key);
+            if (v instanceof String || v instanceof String[] || v instanceof Boolean
+                    || v instanceof Integer || v instanceof Long || v instanceof Double) {
+                result.put(key, v);
+            } else if (v instanceof Byte) {
+                result.put(key, serialize("y", v));
+            } else if (v instanceof Short) {
+                result.put(key, serialize("n", v));
+            } else if (v instanceof double[]) {
+                result.put(key, serialize("ad", v));
+            } else if (v instanceof Bundle) {
+                result.put(key, serialize("a{sv}", getWritable((Bundle) v)));
+            } else if (v instanceof Parcelable[] && isAll((Parcelable[]) v, Bundle.class)) {
+                Parcelable[] a = (Parcelable[]) v;
+                List<Object> values = new ArrayList<Object>(a.length);
+                for (Parcelable p : a) {
+                    values.add(getWritable((Bundle) p));
+                }
+                result.put(key, serialize("aa{sv}", values));
+            } else if (v instanceof Parcelable[]
+                    && isAll((Parcelable[]) v, ContainerUpdateId.class)) {
+                Parcelable[] a = (Parcelable[]) v;
+                List<Object> values = new ArrayList<Object>(a.length);
+                for (Parcelable p : a) {
+                    ContainerUpdateId id = (ContainerUpdateId) p;
+                    values.add(new Object[] { id.getObjectPath(), id.getId() });
+                }
+                result.put(key, serialize("a(ou)", values));
+            } else if (v != null) {
+                Log.w(TAG, "Not keeping " + key + ": can't write a " + v.getClass().getName());
+            }
+        }
+        return result;
+    }
+
+    private static boolean isAll(Parcelable[] a, Class<?> c) {
+        for (Parcelable p : a) {
+            if (!c.isInstance(p)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String movePath(String s, String oldPath, String newPath) {
+        if (oldPath == null || !s.startsWith(oldPath)) {
+            return s;
+        }
+        if (s.length() > oldPath.length() && s.charAt(oldPath.length()) != '/') {
+            // Not the server, nor one of its objects: server/1 isn't in server/10.
+            return s;
+        }
+        return newPath + s.substring(oldPath.length());
+    }
+
+    /** A value to write as a variant of a type the writer can't infer. */
+    private static GVariantWriter.Serialized serialize(String typeString, Object value) {
+        byte[] bytes = toBytes(new GVariantWriter().write(typeString, value));
+        return new GVariantWriter.Serialized(typeString, ByteBuffer.wrap(bytes));
+    }
+
+    private static byte[] toBytes(ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] toBytes(int value) {
+        return new byte[] {
+            (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+
+package com.intel.dleyna;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.os.Bundle;
+
+import com.intel.dleyna.lib.Stats;
+
+/**
+ * Per-method timings and error counts for a {@link Connector}'s dispatches.
+ * <p>
+ * Nothing is recorded unless enabled, and the recording calls cost
+ * only a volatile read when it isn't, so they can stay on the dispatch path.
+ * Recording is lock-free; reading may see a sample half-recorded, which is fine for this.
+ */
+final class DispatchStats {
+
+    private volatile boolean enabled;
+
+    /** Per-method statistics, by interface and method. */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, MethodStats>> methods =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, MethodStats>>();
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /** Forget everything recorded so far. */
+    void reset() {
+        methods.clear();
+    }
+
+    /**
+     * @return the current time in {@link System#nanoTime()} terms, or 0 if not enabled
+     */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    void recordWait(String iface, String meth, long nanos) {
+        if (enabled) {
+            get(iface, meth).wait.record(nanos);
+        }
+    }
+
+    /**
+     * @param startTime as returned by {@link #start()}; if 0, nothing is recorded
+     */
+    void recordNative(String iface, String meth, long startTime) {
+        if (startTime != 0) {
+            get(iface, meth).nativeTime.record(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * @param startTime as returned by {@link #start()}; if 0, nothing is recorded
+     */
+    void recordDecode(String iface, String meth, long startTime) {
+        if (startTime != 0) {
+            get(iface, meth).decode.record(System.nanoTime() - startTime);
+        }
+    }
+
+    void recordError(String iface, String meth, int errCode) {
+        if (enabled) {
+            get(iface, meth).recordError(errCode);
+        }
+    }
+
+    private MethodStats get(String iface, String meth) {
+        ConcurrentHashMap<String, MethodStats> ifaceMethods = methods.get(iface);
+        if (ifaceMethods == null) {
+            ifaceMethods = new ConcurrentHashMap<String, MethodStats>();
+            ConcurrentHashMap<String, MethodStats> prev = methods.putIfAbsent(iface, ifaceMethods);
+            if (prev != null) {
+                ifaceMethods = prev;
+            }
+        }
+        MethodStats ms = ifaceMethods.get(meth);
+        if (ms == null) {
+            ms = new MethodStats();
+            MethodStats prev = ifaceMethods.putIfAbsent(meth, ms);
+            if (prev != null) {
+                ms = prev;
+            }
+        }
+        return ms;
+    }
+
+    /**
+     * Add the per-method statistics to a Bundle, as described in {@link Stats}.
+     */
+    void toBundle(Bundle b) {
+        b.putBoolean(Stats.KEY_ENABLED, enabled);
+        for (Map.Entry<String, MethodStats> e : snapshot().entrySet()) {
+            MethodStats ms = e.getValue();
+            Bundle mb = new Bundle();
+            mb.putBundle(Stats.KEY_WAIT, ms.wait.toBundle());
+            mb.putBundle(Stats.KEY_NATIVE, ms.nativeTime.toBundle());
+            mb.putBundle(Stats.KEY_DECODE, ms.decode.toBundle());
+            Bundle eb = new Bundle();
+            for (Map.Entry<Integer, AtomicLong> err : ms.errors.entrySet()) {
+                eb.putLong(err.getKey().toString(), err.getValue().get());
+            }
+            mb.putBundle(Stats.KEY_ERRORS, eb);
+            b.putBundle(e.getKey(), mb);
+        }
+    }
+
+    /**
+     * Print the per-method statistics, one method per paragraph.
+     */
+    void dump(PrintWriter pw) {
+        pw.println("Dispatch statistics " + (enabled ? "(enabled)" : "(disabled)")
+                + ", in us: count mean p50 p90 p99 max");
+        for (Map.Entry<String, MethodStats> e : snapshot().entrySet()) {
+            MethodStats ms = e.getValue();
+            pw.println("  " + e.getKey());
+            ms.wait.dump(pw, "wait");
+            ms.nativeTime.dump(pw, "native");
+            ms.decode.dump(pw, "decode");
+            if (!ms.errors.isEmpty()) {
+                pw.print("    errors:");
+                for (Map.Entry<Integer, AtomicLong> err : ms.errors.entrySet()) {
+                    pw.print(" " + err.getKey() + "=" + err.getValue().get());
+                }
+                pw.println();
+            }
+        }
+    }
+
+    /** @return the per-method statistics by "interface.method", sorted */
+    private TreeMap<String, MethodStats> snapshot() {
+        TreeMap<String, MethodStats> all = new TreeMap<String, MethodStats>();
+        for (Map.Entry<String, ConcurrentHashMap<String, MethodStats>> i : methods.entrySet()) {
+            for (Map.Entry<String, MethodStats> m : i.getValue().entrySet()) {
+                all.put(i.getKey() + '.' + m.getKey(), m.getValue());
+            }
+        }
+        return all;
+    }
+
+    private static final class MethodStats {
+        final Histogram wait = new Histogram();
+        final Histogram nativeTime = new Histogram();
+        final Histogram decode = new Histogram();
+        final ConcurrentHashMap<Integer, AtomicLong> errors =
+                new ConcurrentHashMap<Integer, AtomicLong>();
+
+        void recordError(int errCode) {
+            AtomicLong count = errors.get(errCode);
+            if (count == null) {
+                count = new AtomicLong();
+                AtomicLong prev = errors.putIfAbsent(errCode, count);
+                if (prev != null) {
+                    count = prev;
+                }
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * A histogram of durations in power-of-two buckets of microseconds:
+     * bucket 0 counts durations under 2 us, bucket i counts those in [2^i, 2^(i+1)) us.
+     */
+    static final class Histogram {
+        static final int BUCKETS = 32;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = nanos < 0 ? 0 : nanos / 1000;
+            int bucket = micros < 2 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+            counts.incrementAndGet(bucket);
+            total.addAndGet(micros);
+            long m;
+            while (micros > (m = max.get()) && !max.compareAndSet(m, micros)) {
+            }
+        }
+
+        long getCount() {
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                n += counts.get(i);
+            }
+            return n;
+        }
+
+        /**
+         * @param fraction between 0 and 1
+         * @return the upper bound of the bucket holding that fraction of the samples,
+         * but no more than the maximum
+         */
+        long getPercentile(double fraction) {
+            long n = getCount();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min((2L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        Bundle toBundle() {
+            long n = getCount();
+            Bundle b = new Bundle();
+            b.putLong(Stats.KEY_COUNT, n);
+            b.putLong(Stats.KEY_MEAN, n == 0 ? 0 : total.get() / n);
+            b.putLong(Stats.KEY_P50, getPercentile(0.50));
+            b.putLong(Stats.KEY_P90, getPercentile(0.90));
+            b.putLong(Stats.KEY_P99, getPercentile(0.99));
+            b.putLong(Stats.KEY_MAX, max.get());
+            return b;
+        }
+
+        void dump(PrintWriter pw, String name) {
+            long n = getCount();
+            if (n == 0) {
+                return;
+            }
+            pw.println(String.format("    %-7s %7d %9d %9d %9d %9d %9d", name, n, total.get() / n,
+                    getPercentile(0.50), getPercentile(0.90), getPercentile(0.99), max.get()));
+        }
+    }
+}
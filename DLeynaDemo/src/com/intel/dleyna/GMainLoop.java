@@ -21,18 +21,123 @@
 
 package com.intel.dleyna;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import android.util.Log;
+
 /**
  * This class provides a way to schedule {@link java.lang.Runnable} objects to be
  * executed on a g_main_loop.
  * <p>
  * Create an instance of this class by calling the constructor {@link #GMainLoop()},
  * and then use {@link #idleAdd(Runnable)} to schedule a runnable object.
- * You should use {@link #free()} to reclaim resources when done.
+ * You should use {@link #free()} (or {@link #close()}) to reclaim resources when done.
+ * <p>
+ * Scheduled runnables are held in queues, and a single idle source drains the queues
+ * when the g_main_loop gets around to it, so a burst of submissions costs one wakeup
+ * rather than one source apiece. Each iteration of the g_main_loop runs at most
+ * {@link #MAX_DRAIN_BATCH} runnables, so other sources still get serviced during a burst.
+ * <p>
+ * There are three queues, or lanes: {@link #LANE_HIGH} for interactive work, which is
+ * drained first, {@link #LANE_BULK} for big jobs that can wait a little, and
+ * {@link #LANE_BACKGROUND} for work nobody is waiting for, which runs when the others
+ * are empty. So that bulk work isn't starved, a waiting bulk runnable gets a turn
+ * after every {@link #HIGH_BURST} high-priority runnables; and a waiting background
+ * runnable gets one after every {@link #FOREGROUND_BURST} others.
  */
-public class GMainLoop {
+public class GMainLoop implements AutoCloseable {
+
+    private static final boolean LOG = false;
+    private static final String TAG = "GMainLoop";
+
+    /** The most runnables we run in one iteration of the g_main_loop. */
+    public static final int MAX_DRAIN_BATCH = 32;
+
+    /** The lane for interactive work. */
+    public static final int LANE_HIGH = 0;
+    /** The lane for bulk work. */
+    public static final int LANE_BULK = 1;
+    /** The lane for background work. */
+    public static final int LANE_BACKGROUND = 2;
+    /** The number of lanes. */
+    public static final int LANE_COUNT = 3;
+
+    /** After this many high-priority runnables in a row, a waiting bulk runnable runs. */
+    public static final int HIGH_BURST = 4;
+
+    /** After this many high-priority and bulk runnables in a row, a waiting background runnable runs. */
+    public static final int FOREGROUND_BURST = 32;
+
+    /**
+     * A runnable that can go in our queues as is.
+     * Plain runnables get wrapped in one of these.
+     */
+    public static abstract class Task implements Runnable {
+        /** The lane we're queued in. */
+        int lane;
+        /** When we were queued, in {@link System#nanoTime()} terms. */
+        long enqueueTime;
+    }
+
+    private static class RunnableTask extends Task {
+        private final Runnable runnable;
+
+        RunnableTask(Runnable runnable) {
+            this.runnable = runnable;
+        }
+
+        public void run() {
+            runnable.run();
+        }
+    }
+
+    private static final NativePeers.Kind KIND = new NativePeers.Kind("GMainLoop") {
+        void release(long peer) {
+            freeNative(peer);
+        }
+    };
 
     private long peer;
 
+    // Our registration with the reaper
+    private final NativePeers.Ref ref;
+
+    /** Runnables waiting to run on the g_main_loop, by lane. */
+    @SuppressWarnings("unchecked")
+    private final ConcurrentLinkedQueue<Task>[] queues = new ConcurrentLinkedQueue[] {
+        new ConcurrentLinkedQueue<Task>(),
+        new ConcurrentLinkedQueue<Task>(),
+        new ConcurrentLinkedQueue<Task>()
+    };
+
+    /** The number of runnables in each queue (which can't count themselves cheaply). */
+    private final AtomicIntegerArray queueDepths = new AtomicIntegerArray(LANE_COUNT);
+
+    /** The number of runnables in all queues. */
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    /** Is the idle source that drains the queues currently installed? */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    /** How many high-priority runnables have run since the last bulk one. */
+    private int highStreak;
+
+    /** How many high-priority and bulk runnables have run since the last background one. */
+    private int foregroundStreak;
+
+    // Statistics. The drain counters are only written on the g_main_loop.
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private volatile long wakeupCount;
+    private volatile long drainCount;
+    private volatile long drainedCount;
+    private volatile int maxDrainBatch;
+    private final long[] waitCounts = new long[LANE_COUNT];
+    private final long[] totalWaitNanos = new long[LANE_COUNT];
+    private final long[] maxWaitNanos = new long[LANE_COUNT];
+
     /**
      * This constructor MUST be called on the thread that runs the g_main_loop.
      */
@@ -42,31 +147,190 @@ public class GMainLoop {
             throw new OutOfMemoryError();
         }
         this.peer = peer;
+        ref = NativePeers.register(this, KIND, peer);
     }
 
     /**
      * Free the native peer object.
      * The user should do this as soon as the peer is no longer needed,
-     * but it will be done at garbage collection time if necessary.
+     * but it will be done after garbage collection if necessary.
      */
     public void free() {
         if (peer != 0) {
-            freeNative(peer);
+            ref.free();
             peer = 0;
         }
     }
 
-    protected void finalize() {
+    /**
+     * Same as {@link #free()}.
+     */
+    public void close() {
         free();
     }
 
+    /**
+     * Schedule a runnable to run on the g_main_loop, in the high-priority lane.
+     * This may be called on any thread.
+     */
     public void idleAdd(Runnable r) {
-        idleAddNative(peer, r);
+        idleAdd(r, LANE_HIGH);
+    }
+
+    /**
+     * Schedule a runnable to run on the g_main_loop.
+     * This may be called on any thread.
+     * <p>
+     * A {@link Task} must not be scheduled again until it has run.
+     * @param lane {@link #LANE_HIGH}, {@link #LANE_BULK} or {@link #LANE_BACKGROUND}
+     */
+    public void idleAdd(Runnable r, int lane) {
+        Task task = r instanceof Task ? (Task) r : new RunnableTask(r);
+        task.lane = lane;
+        task.enqueueTime = System.nanoTime();
+        queues[lane].add(task);
+        queueDepths.incrementAndGet(lane);
+        int depth = queueDepth.incrementAndGet();
+        int max;
+        while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth)) {
+        }
+        if (wakeupPending.compareAndSet(false, true)) {
+            wakeupCount++;
+            wakeupNative(peer);
+        }
+    }
+
+    /**
+     * Upward call on the g_main_loop, from the idle source installed by {@link #wakeupNative(long)}.
+     * Run a batch of queued runnables.
+     * @return true iff the idle source should stay installed, i.e. there's more to run
+     */
+    private boolean drain() {
+        ConcurrentLinkedQueue<Task> high = queues[LANE_HIGH];
+        ConcurrentLinkedQueue<Task> bulk = queues[LANE_BULK];
+        ConcurrentLinkedQueue<Task> background = queues[LANE_BACKGROUND];
+        int n = 0;
+        while (n < MAX_DRAIN_BATCH) {
+            Task task = null;
+            if (foregroundStreak >= FOREGROUND_BURST) {
+                task = background.poll();
+            }
+            if (task == null) {
+                if (highStreak >= HIGH_BURST) {
+                    task = bulk.poll();
+                    if (task == null) {
+                        task = high.poll();
+                    }
+                } else {
+                    task = high.poll();
+                    if (task == null) {
+                        task = bulk.poll();
+                    }
+                }
+            }
+            if (task == null) {
+                task = background.poll();
+            }
+            if (task == null) {
+                break;
+            }
+            int lane = task.lane;
+            if (lane == LANE_BACKGROUND) {
+                foregroundStreak = 0;
+            } else {
+                highStreak = lane == LANE_HIGH ? highStreak + 1 : 0;
+                foregroundStreak++;
+            }
+            queueDepths.decrementAndGet(lane);
+            queueDepth.decrementAndGet();
+            long wait = System.nanoTime() - task.enqueueTime;
+            waitCounts[lane]++;
+            totalWaitNanos[lane] += wait;
+            if (wait > maxWaitNanos[lane]) {
+                maxWaitNanos[lane] = wait;
+            }
+            n++;
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // Don't let one bad runnable strand the rest of the queue.
+                Log.e(TAG, "drain: runnable failed", e);
+            }
+        }
+        drainCount++;
+        drainedCount += n;
+        if (n > maxDrainBatch) {
+            maxDrainBatch = n;
+        }
+        if (LOG) Log.i(TAG, "drain: ran " + n + ", depth " + queueDepth.get());
+
+        if (!isEmpty()) {
+            return true;
+        }
+        wakeupPending.set(false);
+        // Something may have been queued after our last poll by a thread that saw the source
+        // still installed; if so, and nobody has installed a new source since, keep this one.
+        return !isEmpty() && wakeupPending.compareAndSet(false, true);
+    }
+
+    private boolean isEmpty() {
+        return queues[LANE_HIGH].isEmpty() && queues[LANE_BULK].isEmpty() && queues[LANE_BACKGROUND].isEmpty();
+    }
+
+    /** @return the number of runnables currently waiting to run */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /** @return the number of runnables currently waiting to run in the given lane */
+    public int getQueueDepth(int lane) {
+        return queueDepths.get(lane);
+    }
+
+    /** @return the largest number of runnables that have been waiting at once */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /** @return the number of times an idle source was installed to drain the queues */
+    public long getWakeupCount() {
+        return wakeupCount;
+    }
+
+    /** @return the number of batches run */
+    public long getDrainCount() {
+        return drainCount;
+    }
+
+    /** @return the total number of runnables run */
+    public long getDrainedCount() {
+        return drainedCount;
+    }
+
+    /** @return the largest number of runnables run in one batch */
+    public int getMaxDrainBatch() {
+        return maxDrainBatch;
+    }
+
+    /** @return the number of runnables run from the given lane */
+    public long getWaitCount(int lane) {
+        return waitCounts[lane];
+    }
+
+    /** @return the mean time runnables in the given lane waited to run, in microseconds */
+    public long getMeanWaitMicros(int lane) {
+        long count = waitCounts[lane];
+        return count == 0 ? 0 : totalWaitNanos[lane] / count / 1000;
+    }
+
+    /** @return the longest time a runnable in the given lane waited to run, in microseconds */
+    public long getMaxWaitMicros(int lane) {
+        return maxWaitNanos[lane] / 1000;
     }
 
     private native long allocNative();
 
-    private native long freeNative(long peer);
+    private static native long freeNative(long peer);
 
-    private native void idleAddNative(long peer, Runnable r);
+    private native void wakeupNative(long peer);
 }
@@ -21,7 +21,10 @@
 
 package com.intel.dleyna;
 
-import android.util.Log;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.intel.dleyna.lib.GVariantWriter;
 
 /**
  * This is a wrapper class for the native GVariant class.
@@ -34,12 +37,52 @@ import android.util.Log;
  * <p>
  * To convert an instance of this class to a Java value,
  * use one of the getXxx() methods.
+ * <p>
+ * The native instance should be released with {@link #free()} (or {@link #close()})
+ * as soon as it's no longer needed, or by opening a {@link GVariantScope} beforehand.
+ * Children taken from a container within a scope are borrowed views, which the scope
+ * releases all together when it closes.
+ * If the Java instance is garbage collected first, the native instance is released
+ * in the background, and counted as leaked.
  */
-public class GVariant {
+public class GVariant implements AutoCloseable {
+
+    // Type codes, as returned by getTypeCode().
+    public static final int TYPE_CODE_OTHER = 0;
+    public static final int TYPE_CODE_BOOLEAN = 1;
+    public static final int TYPE_CODE_BYTE = 2;
+    public static final int TYPE_CODE_INT16 = 3;
+    public static final int TYPE_CODE_UINT16 = 4;
+    public static final int TYPE_CODE_INT32 = 5;
+    public static final int TYPE_CODE_UINT32 = 6;
+    public static final int TYPE_CODE_INT64 = 7;
+    public static final int TYPE_CODE_UINT64 = 8;
+    public static final int TYPE_CODE_DOUBLE = 9;
+    public static final int TYPE_CODE_STRING = 10;
+    public static final int TYPE_CODE_OBJECT_PATH = 11;
+    public static final int TYPE_CODE_STRING_ARRAY = 12;
+    public static final int TYPE_CODE_OBJECT_PATH_ARRAY = 13;
+    public static final int TYPE_CODE_DOUBLE_ARRAY = 14;
+    /** a{sv} */
+    public static final int TYPE_CODE_DICTIONARY = 15;
+    /** aa{sv} */
+    public static final int TYPE_CODE_DICTIONARY_ARRAY = 16;
+    /** a(ou) */
+    public static final int TYPE_CODE_CONTAINER_UPDATE_ID_ARRAY = 17;
+
+    private static final NativePeers.Kind KIND = new NativePeers.Kind("GVariant") {
+        void release(long peer) {
+            unref(peer);
+        }
+    };
 
     // Pointer to the native GVariant object
     private long peer;
 
+    // Our registration with the reaper, or null if we're a borrowed view,
+    // whose reference belongs to a scope
+    private final NativePeers.Ref ref;
+
     /**
      * Construct a new instance given the native instance,
      * and add a reference count to the native instance.
@@ -62,33 +105,76 @@ public class GVariant {
             refSink(peer);
         }
         this.peer = peer;
+        ref = NativePeers.register(this, KIND, peer);
+        GVariantScope.adopt(this);
+    }
+
+    /**
+     * Construct a borrowed view of a native instance,
+     * whose reference is handed to the scope.
+     */
+    private GVariant(long peer, GVariantScope scope) {
+        this.peer = peer;
+        ref = null;
+        scope.borrow(peer);
+    }
+
+    /**
+     * Wrap a reference to a child that's been handed to us:
+     * as a borrowed view if there's a scope, or as an ordinary instance if not.
+     */
+    private static GVariant newChild(long peer) {
+        GVariantScope scope = GVariantScope.getCurrent();
+        return scope != null ? new GVariant(peer, scope) : new GVariant(peer, false);
     }
 
     /**
      * Free the native peer object.
      * The user should do this as soon as the peer is no longer needed,
-     * but it will be done at garbage collection time if necessary.
+     * but it will be done after garbage collection if necessary.
      */
     public void free() {
         if (peer == 0) {
             throw new IllegalArgumentException("null peer");
         }
-        unref(peer);
+        if (ref != null) {
+            ref.free();
+        }
         peer = 0;
     }
 
-    protected void finalize() {
+    /**
+     * Free the native peer object, if that hasn't been done already.
+     */
+    public void close() {
         if (peer != 0) {
-            Log.w("GVariant", "finalize: peer leakage (" + this.getTypeString() + ")");
-            unref(peer);
-            peer = 0;
+            free();
         }
     }
 
+    /**
+     * @return the number of native instances not yet released
+     */
+    public static int getLiveCount() {
+        return KIND.getLiveCount();
+    }
+
     private static native void refSink(long peer);
 
     private static native void unref(long peer);
 
+    /**
+     * Release references to several native instances in one go.
+     */
+    static native void unrefAll(long[] peers, int count);
+
+    /**
+     * @return whether this is a borrowed view, belonging to a scope
+     */
+    boolean isBorrowed() {
+        return ref == null;
+    }
+
     public long getPeer() {
         return peer;
     }
@@ -160,17 +246,34 @@ public class GVariant {
 
     private static native long newObjectPathNative(String value);
 
+    // Each thread serializes into its own reusable buffer.
+    private static final ThreadLocal<GVariantWriter> writer = new ThreadLocal<GVariantWriter>() {
+        protected GVariantWriter initialValue() {
+            return new GVariantWriter();
+        }
+    };
+
+    /**
+     * Construct a new instance from a Java value, which is serialized in Java
+     * and handed to the native side in a single call.
+     * @param typeString the GVariant type of the new instance
+     * @param value the value, as described in {@link GVariantWriter}
+     * @return the new instance
+     */
+    public static GVariant newFromJava(String typeString, Object value) {
+        ByteBuffer data = writer.get().write(typeString, value);
+        return new GVariant(newFromDataNative(typeString, data, data.limit()));
+    }
+
+    private static native long newFromDataNative(String typeString, ByteBuffer data, int size);
+
     /**
      * Construct a new instance of type array-of-double.
      * @param value the array-of-double value
      * @return the new instance
      */
     public static GVariant newArrayOfDouble(double[] value) {
-        GVariant[] gva = new GVariant[value.length];
-        for (int i = 0; i < value.length; i++) {
-            gva[i] = newDouble(value[i]);
-        }
-        return newArray(gva, GVariantType.newBasic(GVariantType.DOUBLE));
+        return newFromJava("ad", value);
     }
 
     /**
@@ -179,11 +282,7 @@ public class GVariant {
      * @return the new instance
      */
     public static GVariant newArrayOfString(String[] value) {
-        GVariant[] gva = new GVariant[value.length];
-        for (int i = 0; i < value.length; i++) {
-            gva[i] = newString(value[i]);
-        }
-        return newArray(gva, GVariantType.newBasic(GVariantType.STRING));
+        return newFromJava("as", value);
     }
 
     /**
@@ -192,71 +291,43 @@ public class GVariant {
      * @return the new instance
      */
     public static GVariant newArrayOfObjectPath(String[] value) {
-        GVariant[] gva = new GVariant[value.length];
-        for (int i = 0; i < value.length; i++) {
-            gva[i] = newObjectPath(value[i]);
-        }
-        return newArray(gva, GVariantType.newBasic(GVariantType.OBJECT_PATH));
+        return newFromJava("ao", value);
     }
 
-    private static GVariant newArray(GVariant[] gva, GVariantType elemType) {
-        long[] gvaPeers = new long[gva.length];
-        for (int i = 0; i < gva.length; i++) {
-            gvaPeers[i] = gva[i].peer;
-        }
-        GVariant result = new GVariant(newArrayNative(gvaPeers, elemType.getPeer()));
-        for (int i = 0; i < gva.length; i++) {
-            gva[i].free();
-        }
-        elemType.free();
-        return result;
-    }
-
-    private static native long newArrayNative(long[] gvaPeers, long elemType);
-
     /**
      * Construct a new instance of type tuple of one int64.
      * @param l the int64 value
      */
     public static GVariant newTupleInt64(long l) {
-        return new GVariant(newTupleInt64Native(l));
+        return newFromJava("(x)", new Object[] { l });
     }
 
-    private static native long newTupleInt64Native(long l);
-
     /**
      * Construct a new instance of type tuple of one double.
      * @param d the double value
      */
     public static GVariant newTupleDouble(double d) {
-        return new GVariant(newTupleDoubleNative(d));
+        return newFromJava("(d)", new Object[] { d });
     }
 
-    private static native long newTupleDoubleNative(double d);
-
     /**
      * Construct a new instance of type tuple of one string.
      * @param s the string
      */
     public static GVariant newTupleString(String s) {
-        return new GVariant(newTupleStringNative(s));
+        return newFromJava("(s)", new Object[] { s });
     }
 
-    private static native long newTupleStringNative(String s);
-
     /**
      * Construct a new instance of type tuple of two strings.
      * @param s1 first string
      * @param s2 second string
      * @return the new instance
      */
-
     public static GVariant newTupleStringString(String s1, String s2) {
-        return new GVariant(newTupleStringStringNative(s1, s2));
+        return newFromJava("(ss)", new Object[] { s1, s2 });
     }
 
-    private static native long newTupleStringStringNative(String s1, String s2);
-
     /**
      * Construct a new instance of type tuple of two strings and a variant: (ssv).
      * @param s1 first string
@@ -265,11 +336,10 @@ public class GVariant {
      * @return the new instance
      */
     public static GVariant newTupleStringStringVariant(String s1, String s2, GVariant v) {
-        return new GVariant(newTupleStringStringVariantNative(s1, s2, v.getPeer()));
+        GVariantWriter.Serialized sv = new GVariantWriter.Serialized(v.getTypeString(), v.getData());
+        return newFromJava("(ssv)", new Object[] { s1, s2, sv });
     }
 
-    private static native long newTupleStringStringVariantNative(String s1, String s2, long vNative);
-
     /**
      * Construct a new instance of type tuple of string and int64.
      * @param s the string
@@ -277,11 +347,9 @@ public class GVariant {
      * @return the new instance
      */
     public static GVariant newTupleObjPathInt64(String s, long l) {
-        return new GVariant(newTupleObjPathInt64Native(s, l));
+        return newFromJava("(ox)", new Object[] { s, l });
     }
 
-    private static native long newTupleObjPathInt64Native(String s, long l);
-
     /**
      * Construct a new instance of type tuple of two string arrays.
      * @param sa1 first string array
@@ -289,11 +357,9 @@ public class GVariant {
      * @return the new instance
      */
     public static GVariant newTupleStringArrayStringArray(String[] sa1, String[] sa2) {
-        return new GVariant(newTupleStringArrayStringArrayNative(sa1, sa2));
+        return newFromJava("(aoas)", new Object[] { sa1, sa2 });
     }
 
-    private static native long newTupleStringArrayStringArrayNative(String[] sa1, String[] sa2);
-
     /**
      * Construct a new instance of type tuple of int, int, string array, string.
      * @param i1 first int
@@ -303,11 +369,9 @@ public class GVariant {
      * @return the new instance
      */
     public static GVariant newTupleIntIntStringArrayString(int i1, int i2, String[] sa, String s) {
-        return new GVariant(newTupleIntIntStringArrayStringNative(i1, i2, sa, s));
+        return newFromJava("(uuass)", new Object[] { i1, i2, sa, s });
     }
 
-    private static native long newTupleIntIntStringArrayStringNative(int i1, int i2, String[] sa, String s);
-
     /**
      * Construct a new instance of type tuple of string, int, int, string array, string.
      * @param s1 first string
@@ -318,11 +382,9 @@ public class GVariant {
      * @return the new instance
      */
     public static GVariant newTupleStringIntIntStringArrayString(String s1, int i1, int i2, String[] sa, String s2) {
-        return new GVariant(newTupleStringIntIntStringArrayStringNative(s1, i1, i2, sa, s2));
+        return newFromJava("(suuass)", new Object[] { s1, i1, i2, sa, s2 });
     }
 
-    private static native long newTupleStringIntIntStringArrayStringNative(String s1, int i1, int i2, String[] sa, String s2);
-
     /**
      * @return the value of this object, which must be of type boolean.
      */
@@ -344,11 +406,22 @@ public class GVariant {
     /**
      * @return the value of this object, which must be of type int64.
      */
-    public int getInt64() {
+    public long getInt64() {
         return getInt64Native(peer);
     }
 
-    private static native int getInt64Native(long peer);
+    private static native long getInt64Native(long peer);
+
+    /**
+     * @return the value of this object, which must be of one of the integer types
+     * (byte, int16, uint16, int32, uint32, int64, uint64 or handle), widened to a long.
+     * Unsigned 64 bit values keep their bits.
+     */
+    public long getInteger() {
+        return getIntegerNative(peer);
+    }
+
+    private static native long getIntegerNative(long peer);
 
     /**
      * @return the value of this object, which must be of type double.
@@ -394,7 +467,7 @@ public class GVariant {
         long[] angv = getArrayOfNativeGVariantNative(peer);
         GVariant[] agv = new GVariant[angv.length];
         for (int i=0; i < angv.length; i++) {
-            agv[i] = new GVariant(angv[i]);
+            agv[i] = newChild(angv[i]);
         }
         return agv;
     }
@@ -409,7 +482,7 @@ public class GVariant {
      * @return the child at the given index
      */
     public GVariant getChildAtIndex(int index) {
-        return new GVariant(getChildValueNative(peer, index), false);
+        return newChild(getChildValueNative(peer, index));
     }
 
     private static native long getChildValueNative(long peer, int index);
@@ -428,6 +501,24 @@ public class GVariant {
         return elem;
     }
 
+    /**
+     * Get the serialized form of this object, à la g_variant_get_data(), without copying it.
+     * <p>
+     * The buffer refers directly to the native object's memory,
+     * so it must not be used once this object is freed.
+     * Use {@link com.intel.dleyna.lib.GVariantReader} to decode it.
+     * @return the serialized data, in native byte order
+     */
+    public ByteBuffer getData() {
+        ByteBuffer data = getDataNative(peer);
+        if (data == null) {
+            return ByteBuffer.allocate(0);
+        }
+        return data.order(ByteOrder.nativeOrder());
+    }
+
+    private static native ByteBuffer getDataNative(long peer);
+
     /**
      * Get the string describing the type of this object, à la g_variant_get_type_string().
      * @return the type string
@@ -437,4 +528,15 @@ public class GVariant {
     }
 
     private static native String getTypeStringNative(long peer);
+
+    /**
+     * Classify this object's type, more cheaply than with {@link #getTypeString()}.
+     * @return one of the TYPE_CODE_XXX constants; {@link #TYPE_CODE_OTHER}
+     * for any type without a code of its own
+     */
+    public int getTypeCode() {
+        return getTypeCodeNative(peer);
+    }
+
+    private static native int getTypeCodeNative(long peer);
 }
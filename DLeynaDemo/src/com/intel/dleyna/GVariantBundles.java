@@ -0,0 +1,122 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+
+package com.intel.dleyna;
+
+import android.os.Bundle;
+
+import com.intel.dleyna.lib.ContainerUpdateId;
+import com.intel.dleyna.lib.GVariantReader;
+
+/**
+ * Converts GVariant values into what the services put in the Bundles they give clients.
+ * <p>
+ * Values are classified by {@link GVariant#getTypeCode()}, which needs neither a type
+ * string nor string comparisons. Containers are decoded in Java from their serialized
+ * form, with {@link GVariantReader}, rather than child by child.
+ */
+final class GVariantBundles {
+
+    private GVariantBundles() {
+    }
+
+    /**
+     * Add the (key, value) to the bundle if it's of a type we handle:
+     * booleans; integers (int for up to 32 bits, long for 64); doubles; strings
+     * and object paths; arrays of those; a{sv} (as a Bundle); aa{sv} (as an array
+     * of Bundles); and a(ou) (as an array of {@link ContainerUpdateId}s).
+     * @return whether the value was added
+     */
+    static boolean putToBundleMaybe(Bundle bundle, String key, GVariant gvValue) {
+        switch (gvValue.getTypeCode()) {
+        case GVariant.TYPE_CODE_BOOLEAN:
+            bundle.putBoolean(key, gvValue.getBoolean());
+            return true;
+        case GVariant.TYPE_CODE_BYTE:
+        case GVariant.TYPE_CODE_INT16:
+        case GVariant.TYPE_CODE_UINT16:
+        case GVariant.TYPE_CODE_INT32:
+        case GVariant.TYPE_CODE_UINT32:
+            bundle.putInt(key, (int) gvValue.getInteger());
+            return true;
+        case GVariant.TYPE_CODE_INT64:
+        case GVariant.TYPE_CODE_UINT64:
+            bundle.putLong(key, gvValue.getInteger());
+            return true;
+        case GVariant.TYPE_CODE_DOUBLE:
+            bundle.putDouble(key, gvValue.getDouble());
+            return true;
+        case GVariant.TYPE_CODE_STRING:
+        case GVariant.TYPE_CODE_OBJECT_PATH:
+            bundle.putString(key, gvValue.getString());
+            return true;
+        case GVariant.TYPE_CODE_STRING_ARRAY:
+        case GVariant.TYPE_CODE_OBJECT_PATH_ARRAY:
+            bundle.putStringArray(key, gvValue.getArrayOfString());
+            return true;
+        case GVariant.TYPE_CODE_DOUBLE_ARRAY:
+            bundle.putDoubleArray(key, gvValue.getArrayOfDouble());
+            return true;
+        case GVariant.TYPE_CODE_DICTIONARY:
+            bundle.putBundle(key, new GVariantReader(gvValue.getData(), "a{sv}").readDictionary());
+            return true;
+        case GVariant.TYPE_CODE_DICTIONARY_ARRAY:
+            bundle.putParcelableArray(key, new GVariantReader(gvValue.getData(), "aa{sv}").readDictionaryArray());
+            return true;
+        case GVariant.TYPE_CODE_CONTAINER_UPDATE_ID_ARRAY:
+            bundle.putParcelableArray(key, makeContainerUpdateIds(gvValue));
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Decode an "a{sv}" in one go, from its serialized form.
+     */
+    static Bundle makeBundleFromDictionary(GVariant gvDictionary) {
+        checkTypeCode(gvDictionary, GVariant.TYPE_CODE_DICTIONARY);
+        return new GVariantReader(gvDictionary.getData(), "a{sv}").readDictionary();
+    }
+
+    /**
+     * Decode an "aa{sv}" in one go, from its serialized form.
+     */
+    static Bundle[] makeBundleArrayFromDictionaryArray(GVariant gvArray) {
+        checkTypeCode(gvArray, GVariant.TYPE_CODE_DICTIONARY_ARRAY);
+        return new GVariantReader(gvArray.getData(), "aa{sv}").readDictionaryArray();
+    }
+
+    /**
+     * Decode an "a(ou)" in one go, from its serialized form.
+     */
+    static ContainerUpdateId[] makeContainerUpdateIds(GVariant gvArray) {
+        checkTypeCode(gvArray, GVariant.TYPE_CODE_CONTAINER_UPDATE_ID_ARRAY);
+        return new GVariantReader(gvArray.getData(), "a(ou)").readContainerUpdateIds();
+    }
+
+    private static void checkTypeCode(GVariant gv, int typeCode) {
+        if (gv.getTypeCode() != typeCode) {
+            throw new IllegalStateException("Unexpected type: " + gv.getTypeString());
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+
+package com.intel.dleyna;
+
+/**
+ * A scope that owns every {@link GVariant} constructed within it, on the thread that
+ * opened it, and frees them all when it's closed. This makes it easy to release
+ * a whole decode tree in one go:
+ * <pre>
+ * GVariantScope scope = GVariantScope.open();
+ * try {
+ *     GVariant child = gv.getChildAtIndex(0);
+ *     ...
+ * } finally {
+ *     scope.close();
+ * }
+ * </pre>
+ * or with try-with-resources. Scopes nest, and must be closed innermost first.
+ * Anything that must outlive the scope can be handed on with {@link #keep(GVariant)}.
+ * Freeing a member before the scope closes is allowed.
+ * <p>
+ * Children taken from containers within a scope, with {@link GVariant#getChildAtIndex(int)}
+ * or {@link GVariant#getArrayOfGVariant()}, are borrowed views. They don't count or track
+ * their own references; the scope collects the references and releases them
+ * with a single native call when it closes. So a borrowed view mustn't be used once its
+ * scope is closed, and can't be kept.
+ */
+public final class GVariantScope implements AutoCloseable {
+
+    private static final ThreadLocal<GVariantScope> current = new ThreadLocal<GVariantScope>();
+
+    private final GVariantScope parent;
+    private GVariant[] members = new GVariant[16];
+    private int size;
+    private long[] borrowed = new long[32];
+    private int borrowedCount;
+    private boolean closed;
+
+    private GVariantScope(GVariantScope parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Open a new scope on this thread, nested within the current one, if any.
+     * @return the new scope
+     */
+    public static GVariantScope open() {
+        GVariantScope scope = new GVariantScope(current.get());
+        current.set(scope);
+        return scope;
+    }
+
+    /**
+     * @return the current scope of this thread, or null
+     */
+    static GVariantScope getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * Make a newly constructed instance a member of the current scope, if any.
+     */
+    static void adopt(GVariant gv) {
+        GVariantScope scope = current.get();
+        if (scope != null) {
+            scope.add(gv);
+        }
+    }
+
+    private void add(GVariant gv) {
+        if (size == members.length) {
+            GVariant[] a = new GVariant[size * 2];
+            System.arraycopy(members, 0, a, 0, size);
+            members = a;
+        }
+        members[size++] = gv;
+    }
+
+    /**
+     * Take over a reference to a native instance, to be released when we close.
+     */
+    void borrow(long peer) {
+        if (borrowedCount == borrowed.length) {
+            long[] a = new long[borrowedCount * 2];
+            System.arraycopy(borrowed, 0, a, 0, borrowedCount);
+            borrowed = a;
+        }
+        borrowed[borrowedCount++] = peer;
+    }
+
+    /**
+     * Take an instance out of this scope, so it isn't freed when the scope closes.
+     * It becomes a member of the enclosing scope, if there is one.
+     * @param gv a member of this scope, not a borrowed view
+     * @return gv
+     */
+    public GVariant keep(GVariant gv) {
+        if (gv.isBorrowed()) {
+            throw new IllegalArgumentException("a borrowed view can't outlive its scope");
+        }
+        for (int i = size - 1; i >= 0; i--) {
+            if (members[i] == gv) {
+                System.arraycopy(members, i + 1, members, i, size - i - 1);
+                members[--size] = null;
+                if (parent != null) {
+                    parent.add(gv);
+                }
+                return gv;
+            }
+        }
+        throw new IllegalArgumentException("not a member of this scope");
+    }
+
+    /**
+     * Free every member of this scope, most recent first, release the references
+     * behind the borrowed views, and make the enclosing scope current again.
+     * This must be called on the thread that opened the scope.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        if (current.get() != this) {
+            throw new IllegalStateException("not the current scope of this thread");
+        }
+        closed = true;
+        current.set(parent);
+        for (int i = size - 1; i >= 0; i--) {
+            members[i].close();
+            members[i] = null;
+        }
+        size = 0;
+        if (borrowedCount > 0) {
+            GVariant.unrefAll(borrowed, borrowedCount);
+            borrowedCount = 0;
+        }
+    }
+}
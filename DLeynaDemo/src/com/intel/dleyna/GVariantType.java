@@ -24,7 +24,7 @@ package com.intel.dleyna;
 /**
  * This is a wrapper class for the native GVariantType class.
  */
-public class GVariantType {
+public class GVariantType implements AutoCloseable {
 
     // Basic types
     public static final char BOOLEAN     = 'b';
@@ -38,35 +38,48 @@ public class GVariantType {
     public static final char ARRAY       = 'a';
     public static final char TUPLE       = 'r';
 
+    private static final NativePeers.Kind KIND = new NativePeers.Kind("GVariantType") {
+        void release(long peer) {
+            free(peer);
+        }
+    };
+
     // Pointer to the native GVariantType object.
     private long peer;
 
+    // Our registration with the reaper
+    private final NativePeers.Ref ref;
+
     // Construct a new instance given the native peer instance.
     private GVariantType(long peer) {
         if (peer == 0) {
             throw new IllegalArgumentException();
         }
         this.peer = peer;
+        ref = NativePeers.register(this, KIND, peer);
     }
 
     /**
      * Free the native peer object.
      * The user should do this as soon as the peer is no longer needed,
-     * but it will be done at garbage collection time if necessary.
+     * but it will be done after garbage collection if necessary.
      */
     public void free() {
         if (peer != 0) {
-            free(peer);
+            ref.free();
             peer = 0;
         }
     }
 
-    private static native void free(long peer);
-
-    protected void finalize() {
+    /**
+     * Same as {@link #free()}.
+     */
+    public void close() {
         free();
     }
 
+    private static native void free(long peer);
+
     public static GVariantType newBasic(char basicType) {
         return new GVariantType(newBasicNative(basicType));
     }
@@ -0,0 +1,111 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+
+package com.intel.dleyna;
+
+import java.io.PrintWriter;
+
+import android.os.Bundle;
+
+import com.intel.dleyna.lib.GVariantWriter;
+import com.intel.dleyna.lib.MediaObjectList;
+
+/**
+ * Measures building a {@link MediaIndex} and querying it, for
+ * "adb shell dumpsys activity service com.intel.dleyna.ServerService indexbench".
+ * <p>
+ * The objects are made up, as music items of a few thousand albums by a few hundred
+ * artists, and put in an index of their own, so nothing is asked of any server,
+ * and the service's index is left alone.
+ */
+final class IndexBenchmark {
+
+    private static final int OBJECT_COUNT = 200000;
+
+    /** The objects in each listing added. */
+    private static final int LISTING_SIZE = 1000;
+
+    private static final int ARTIST_COUNT = 500;
+    private static final int ALBUM_COUNT = 5000;
+
+    /** How many times each query is run, after as many to warm up. */
+    private static final int REPEATS = 200;
+
+    private static final String[] QUERIES = new String[] {
+        "track",            // every object
+        "artist123",        // a few hundred
+        "album4321 track",  // a few dozen, and every object
+        "art*",             // one term
+        "album12*",         // a dozen or so terms
+        "t*",               // every term starting with t
+        "nosuchword",
+    };
+
+    private IndexBenchmark() {
+    }
+
+    static void run(PrintWriter pw) {
+        MediaIndex index = new MediaIndex(OBJECT_COUNT);
+        long start = System.nanoTime();
+        for (int i = 0; i < OBJECT_COUNT; i += LISTING_SIZE) {
+            index.add(makeListing(i, LISTING_SIZE));
+        }
+        long build = System.nanoTime() - start;
+        pw.println(String.format("Index benchmark: %d objects indexed in %dms", OBJECT_COUNT, build / 1000000));
+        for (String query : QUERIES) {
+            for (int i = 0; i < REPEATS; i++) {
+                index.search(null, query, 100);
+            }
+            long total = 0;
+            long max = 0;
+            int found = 0;
+            for (int i = 0; i < REPEATS; i++) {
+                long t = System.nanoTime();
+                found = index.search(null, query, 100).size();
+                t = System.nanoTime() - t;
+                total += t;
+                max = Math.max(max, t);
+            }
+            pw.println(String.format("  %-18s found=%3d mean=%dus max=%dus",
+                    '"' + query + '"', found, total / REPEATS / 1000, max / 1000));
+        }
+        pw.flush();
+    }
+
+    private static MediaObjectList makeListing(int first, int count) {
+        Bundle[] listing = new Bundle[count];
+        for (int i = 0; i < count; i++) {
+            int n = first + i;
+            int album = n % ALBUM_COUNT;
+            Bundle b = new Bundle();
+            b.putString("Path", "/com/intel/dLeynaServer/server/0/" + Integer.toHexString(0x100000 + n));
+            b.putString("Parent", "/com/intel/dLeynaServer/server/0/" + Integer.toHexString(album));
+            b.putString("DisplayName", "Track " + n);
+            b.putString("Artist", "Artist" + album % ARTIST_COUNT);
+            b.putString("Album", "Album" + album);
+            b.putString("Genre", "Rock");
+            b.putString("MIMEType", "audio/mpeg");
+            listing[i] = b;
+        }
+        return new MediaObjectList(new GVariantWriter().write("aa{sv}", listing));
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+
+package com.intel.dleyna;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Log;
+import android.util.Xml;
+
+/**
+ * The methods, signals and properties of the interfaces of a native DLeyna service,
+ * with a {@link MethodCodec} for each, kept in separate tables so that a signal or property
+ * can't be taken for a method of the same name, or the other way round.
+ * <p>
+ * The tables are filled in from the D-Bus introspection documents the service hands to
+ * {@link Connector#initialize(String, String, int)}.
+ * Members we use that the documents don't describe fall back to built-in signatures.
+ */
+final class Introspection {
+
+    private static final boolean LOG = false;
+    private static final String TAG = "Introspection";
+
+    /** Built-in method signatures: interface, method, in, out. */
+    private static final String[][] DEFAULT_METHODS = {
+        { Connector.IFACE_MEDIA_OBJECT, "GetMetaData", "", "s" },
+        { Connector.IFACE_CONTAINER, "ListChildren", "uuas", "aa{sv}" },
+        { Connector.IFACE_CONTAINER, "ListChildrenEx", "uuass", "aa{sv}" },
+        { Connector.IFACE_CONTAINER, "SearchObjects", "suuas", "aa{sv}" },
+        { Connector.IFACE_CONTAINER, "SearchObjectsEx", "suuass", "aa{sv}u" },
+        { Connector.IFACE_DEVICE, "BrowseObjects", "aoas", "aa{sv}" },
+        { Connector.IFACE_DBUS_PROP, "GetAll", "s", "a{sv}" },
+    };
+
+    /** Built-in signal signatures: interface, signal, arguments. */
+    private static final String[][] DEFAULT_SIGNALS = {
+        { Connector.IFACE_DEVICE, "ContainerUpdateIDs", "a(ou)" },
+        { Connector.IFACE_DBUS_PROP, "PropertiesChanged", "sa{sv}as" },
+    };
+
+    /** Built-in property types: interface, property, type. */
+    private static final String[][] DEFAULT_PROPERTIES = {
+        { Connector.IFACE_DEVICE, "FeatureList", "a(ssao)" },
+    };
+
+    private final ConcurrentHashMap<String, MethodCodec> methods =
+            new ConcurrentHashMap<String, MethodCodec>();
+
+    /** The codecs of signals treat their arguments as results. */
+    private final ConcurrentHashMap<String, MethodCodec> signals =
+            new ConcurrentHashMap<String, MethodCodec>();
+
+    /** The codecs of properties have the value as their single result. */
+    private final ConcurrentHashMap<String, MethodCodec> properties =
+            new ConcurrentHashMap<String, MethodCodec>();
+
+    Introspection() {
+        for (String[] d : DEFAULT_METHODS) {
+            add(methods, d[0], d[1], d[2], d[3]);
+        }
+        for (String[] d : DEFAULT_SIGNALS) {
+            add(signals, d[0], d[1], "", d[2]);
+        }
+        for (String[] d : DEFAULT_PROPERTIES) {
+            add(properties, d[0], d[1], "", d[2]);
+        }
+    }
+
+    /**
+     * @param iface the interface
+     * @param method the method
+     * @return the method's codec, or null if we know nothing of it
+     */
+    MethodCodec getMethod(String iface, String method) {
+        return methods.get(key(iface, method));
+    }
+
+    /**
+     * @param iface the interface
+     * @param signal the signal
+     * @return the signal's codec, or null if we know nothing of it
+     */
+    MethodCodec getSignal(String iface, String signal) {
+        return signals.get(key(iface, signal));
+    }
+
+    /**
+     * @param iface the interface
+     * @param property the property
+     * @return the property's codec, or null if we know nothing of it
+     */
+    MethodCodec getProperty(String iface, String property) {
+        return properties.get(key(iface, property));
+    }
+
+    /**
+     * Add the members described by an introspection document,
+     * replacing any we already have.
+     * Members whose signatures we can't make sense of are skipped.
+     * @param xml the document
+     * @return the number of members added
+     * @throws XmlPullParserException if the document is malformed
+     * @throws IOException
+     */
+    int parse(String xml) throws XmlPullParserException, IOException {
+        XmlPullParser p = Xml.newPullParser();
+        p.setInput(new StringReader(xml));
+        int count = 0;
+        String iface = null;
+        String member = null;
+        boolean signal = false;
+        StringBuilder in = new StringBuilder();
+        StringBuilder out = new StringBuilder();
+        for (int event = p.getEventType(); event != XmlPullParser.END_DOCUMENT; event = p.next()) {
+            if (event == XmlPullParser.START_TAG) {
+                String tag = p.getName();
+                if (tag.equals("interface")) {
+                    iface = p.getAttributeValue(null, "name");
+                } else if (tag.equals("method") || tag.equals("signal")) {
+                    member = p.getAttributeValue(null, "name");
+                    signal = tag.equals("signal");
+                    in.setLength(0);
+                    out.setLength(0);
+                } else if (tag.equals("arg") && member != null) {
+                    String type = p.getAttributeValue(null, "type");
+                    String direction = p.getAttributeValue(null, "direction");
+                    if (type != null) {
+                        // Method args are "in" by default; signal args have no direction,
+                        // and are what a listener receives, so they go out.
+                        if ("out".equals(direction) || (direction == null && signal)) {
+                            out.append(type);
+                        } else {
+                            in.append(type);
+                        }
+                    }
+                } else if (tag.equals("property") && iface != null) {
+                    String type = p.getAttributeValue(null, "type");
+                    if (type != null && add(properties, iface, p.getAttributeValue(null, "name"), "", type)) {
+                        count++;
+                    }
+                }
+            } else if (event == XmlPullParser.END_TAG) {
+                String tag = p.getName();
+                if (tag.equals("interface")) {
+                    iface = null;
+                } else if ((tag.equals("method") || tag.equals("signal")) && member != null) {
+                    if (iface != null && add(signal ? signals : methods, iface, member, in.toString(), out.toString())) {
+                        count++;
+                    }
+                    member = null;
+                }
+            }
+        }
+        return count;
+    }
+
+    private boolean add(ConcurrentHashMap<String, MethodCodec> table, String iface, String member,
+            String in, String out) {
+        if (member == null) {
+            return false;
+        }
+        try {
+            table.put(key(iface, member), new MethodCodec(iface, member, in, out));
+            return true;
+        } catch (IllegalArgumentException e) {
+            if (LOG) Log.w(TAG, "skipping " + iface + "." + member + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static String key(String iface, String member) {
+        return iface + '.' + member;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+
+package com.intel.dleyna;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.intel.dleyna.Connector.Invocation;
+
+/**
+ * The set of pending method invocations of a {@link Connector}.
+ * <p>
+ * This is a fixed number of slots, each of which owns one {@link Invocation} for the life
+ * of the table, so the invocation records are recycled rather than reallocated.
+ * Free slots are kept on a lock-free stack, and acquiring or releasing a slot takes
+ * no locks unless the table is full, in which case the acquiring thread waits for a release,
+ * but only for so long: a full table most likely means invocations aren't being recycled,
+ * and waiting forever would hang every dispatch.
+ * <p>
+ * The id of an acquired invocation encodes its slot in the low {@link #SLOT_BITS} bits
+ * and the slot's generation above that. The generation changes on every acquisition,
+ * so a result for an earlier use of the slot can be recognized as stale.
+ * Ids are always positive ints, since they make a round trip through the native
+ * layer as a dleyna_connector_msg_id_t, which is a pointer.
+ */
+final class InvocationTable {
+
+    /** The number of id bits that designate the slot. */
+    static final int SLOT_BITS = 10;
+
+    /** The number of slots. */
+    static final int CAPACITY = 1 << SLOT_BITS;
+
+    private static final int SLOT_MASK = CAPACITY - 1;
+
+    /** Generations wrap around within the remaining bits of a positive int, skipping 0. */
+    private static final int GENERATION_MASK = (1 << (31 - SLOT_BITS)) - 1;
+
+    /** How long {@link #acquire()} waits for a slot when the table is full, in ms. */
+    static final long ACQUIRE_TIMEOUT = 5000;
+
+    private final Connector connector;
+
+    /** Slot i's invocation, created on first use. */
+    private final AtomicReferenceArray<Invocation> slots =
+            new AtomicReferenceArray<Invocation>(CAPACITY);
+
+    /** For each free slot, the free-stack entry below it (slot index + 1, or 0 for none). */
+    private final AtomicIntegerArray nextFree = new AtomicIntegerArray(CAPACITY);
+
+    /**
+     * The top of the free stack: a modification stamp in the upper half, to defeat ABA,
+     * and the top slot index + 1 (or 0 if the stack is empty) in the lower half.
+     */
+    private final AtomicLong freeHead;
+
+    /** The number of threads blocked in {@link #acquire()} because the table was full. */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    InvocationTable(Connector connector) {
+        this.connector = connector;
+        for (int i = 0; i < CAPACITY - 1; i++) {
+            nextFree.set(i, i + 2);
+        }
+        freeHead = new AtomicLong(1);
+    }
+
+    /**
+     * Take a free invocation and give it a new id.
+     * If all slots are in use, this waits up to {@link #ACQUIRE_TIMEOUT} for one to be released.
+     * The caller marks it pending, by setting its pendingId, once it's ready to go.
+     * @return the invocation, or null if none was released in time
+     */
+    Invocation acquire() {
+        Invocation invocation = pop();
+        if (invocation == null) {
+            // Slow path: the table is full.
+            waiters.incrementAndGet();
+            boolean interrupted = false;
+            long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT;
+            synchronized (this) {
+                while ((invocation = pop()) == null) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            waiters.decrementAndGet();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (invocation == null) {
+                return null;
+            }
+        }
+        int generation = (invocation.id >>> SLOT_BITS) + 1 & GENERATION_MASK;
+        if (generation == 0) {
+            generation = 1;
+        }
+        invocation.id = generation << SLOT_BITS | invocation.slot;
+        return invocation;
+    }
+
+    /**
+     * Find the pending invocation with the given id, and claim the right to complete it.
+     * @return the invocation, or null if there's no such pending invocation,
+     * or if it has already been claimed
+     */
+    Invocation claim(int id) {
+        Invocation invocation = slots.get(id & SLOT_MASK);
+        if (invocation != null && Invocation.PENDING_ID.compareAndSet(invocation, id, 0)) {
+            // Since the id includes the generation, this can't claim a later use of the slot.
+            return invocation;
+        }
+        return null;
+    }
+
+    /**
+     * @return the invocation in the given slot, or null if the slot has never been used
+     */
+    Invocation get(int slot) {
+        return slots.get(slot);
+    }
+
+    /**
+     * Return an invocation's slot to the free stack.
+     */
+    void release(Invocation invocation) {
+        int top = invocation.slot + 1;
+        for (;;) {
+            long head = freeHead.get();
+            nextFree.set(invocation.slot, (int) head);
+            if (freeHead.compareAndSet(head, stamp(head) | top)) {
+                break;
+            }
+        }
+        if (waiters.get() > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private Invocation pop() {
+        for (;;) {
+            long head = freeHead.get();
+            int top = (int) head;
+            if (top == 0) {
+                return null;
+            }
+            long next = nextFree.get(top - 1) & 0xffffffffL;
+            if (freeHead.compareAndSet(head, stamp(head) | next)) {
+                int slot = top - 1;
+                Invocation invocation = slots.get(slot);
+                if (invocation == null) {
+                    // Only the thread that popped the slot can get here, so no race.
+                    invocation = new Invocation(this, connector, slot);
+                    slots.set(slot, invocation);
+                }
+                return invocation;
+            }
+        }
+    }
+
+    /** @return the next modification stamp, in the upper half of a head value */
+    private static long stamp(long head) {
+        return ((head >>> 32) + 1) << 32;
+    }
+
+    /** @return the number of invocations currently awaiting a result */
+    int getPendingCount() {
+        int n = 0;
+        for (int i = 0; i < CAPACITY; i++) {
+            Invocation invocation = slots.get(i);
+            if (invocation != null && invocation.pendingId != 0) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+package com.intel.dleyna;
+
+import java.io.PrintWriter;
+import java.util.concurrent.CountDownLatch;
+
+import android.util.SparseArray;
+
+import com.intel.dleyna.Connector.Invocation;
+
+/**
+ * Measures how {@link InvocationTable} holds up with many binder threads dispatching at once,
+ * against the SparseArray behind one lock that it replaced, for
+ * "adb shell dumpsys activity service com.intel.dleyna.ServerService bench".
+ * <p>
+ * Each thread repeatedly does what a dispatch does to the registry:
+ * acquire an invocation, publish it as pending, claim its result, and release it.
+ * Nothing is dispatched to the native service.
+ */
+final class InvocationTableBenchmark {
+
+    /** The numbers of contending threads to measure with. */
+    private static final int[] THREAD_COUNTS = new int[] { 1, 4, 16, 32 };
+
+    /** The registry operations each thread does per run. */
+    private static final int ROUNDS = 100000;
+
+    private InvocationTableBenchmark() {
+    }
+
+    static void run(PrintWriter pw) {
+        pw.println("InvocationTable benchmark: " + ROUNDS + " dispatches per thread");
+        for (int threads : THREAD_COUNTS) {
+            // Warm up, then measure.
+            runTable(threads, ROUNDS / 10);
+            long table = runTable(threads, ROUNDS);
+            runLocked(threads, ROUNDS / 10);
+            long locked = runLocked(threads, ROUNDS);
+            pw.println(String.format("  %2d threads: table=%dns/op locked SparseArray=%dns/op",
+                    threads, table / ((long) threads * ROUNDS), locked / ((long) threads * ROUNDS)));
+        }
+        pw.flush();
+    }
+
+    /** @return the elapsed time in ns */
+    private static long runTable(int threads, final int rounds) {
+        final InvocationTable table = new InvocationTable(null);
+        return race(threads, new Runnable() {
+            public void run() {
+                for (int i = 0; i < rounds; i++) {
+                    Invocation invocation = table.acquire();
+                    invocation.pendingId = invocation.id;
+                    if (table.claim(invocation.id) != invocation) {
+                        throw new IllegalStateException("Lost invocation " + invocation.id);
+                    }
+                    table.release(invocation);
+                }
+            }
+        });
+    }
+
+    /** The record the old registry allocated for each dispatch. */
+    private static final class Record {
+        final int id;
+
+        Record(int id) {
+            this.id = id;
+        }
+    }
+
+    /** @return the elapsed time in ns */
+    private static long runLocked(int threads, final int rounds) {
+        final SparseArray<Record> pending = new SparseArray<Record>();
+        final int[] lastAssignedId = new int[1];
+        return race(threads, new Runnable() {
+            public void run() {
+                for (int i = 0; i < rounds; i++) {
+                    Record record;
+                    synchronized (pending) {
+                        record = new Record(++lastAssignedId[0]);
+                        pending.append(record.id, record);
+                    }
+                    synchronized (pending) {
+                        if (pending.get(record.id) != record) {
+                            throw new IllegalStateException("Lost record " + record.id);
+                        }
+                        pending.remove(record.id);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Start the threads together and wait for them all to finish.
+     * @return the elapsed time in ns
+     */
+    private static long race(int threads, final Runnable work) {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        work.run();
+                    } catch (InterruptedException e) {
+                        // Just finish.
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "InvocationTableBenchmark");
+            t.start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return System.nanoTime() - startTime;
+    }
+}
@@ -71,6 +71,11 @@ public class JNI {
         }
     }
 
+    /** The name of the home directory, where the services can keep files across runs. */
+    static String getHomeDirName() {
+        return homeDirName;
+    }
+
     /** Inform the native layer of the names of home and temp dirs */
     public static native void setDirNames(String home, String temp);
 
@@ -0,0 +1,203 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+
+package com.intel.dleyna;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import android.os.Bundle;
+import android.util.LruCache;
+
+import com.intel.dleyna.lib.MediaObjectList;
+import com.intel.dleyna.lib.Stats;
+
+/**
+ * Recently fetched container listings, least recently used first out,
+ * bounded by the total size of their serialized data.
+ * <p>
+ * A listing is keyed by its container's object path and the arguments it was
+ * fetched with. Listings are dropped when the server says their container has changed
+ * (ContainerUpdateIDs), and all a server's listings are dropped when it says anything
+ * may have changed (SystemUpdateID).
+ * <p>
+ * A listing fetched while its server's listings were being dropped isn't kept, since it may be
+ * from before the change: callers get the server's generation number before fetching, and hand
+ * it back with what they fetched. Each server has its own, so that a busy server's changes
+ * don't keep the others' listings from being kept.
+ */
+final class ListingCache {
+
+    /** Separates a container's object path from the rest of a key. */
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    private final LruCache<String, MediaObjectList> lru;
+
+    /** The generation of each server's listings, by the server's object path. */
+    private final HashMap<String, Integer> generations = new HashMap<String, Integer>();
+    private int hits;
+    private int misses;
+    private int evictions;
+    private int invalidations;
+
+    /**
+     * @param maxBytes the most serialized data to keep
+     */
+    ListingCache(int maxBytes) {
+        lru = new LruCache<String, MediaObjectList>(maxBytes) {
+            protected int sizeOf(String key, MediaObjectList value) {
+                return value.getData().remaining();
+            }
+
+            protected void entryRemoved(boolean evicted, String key, MediaObjectList oldValue,
+                    MediaObjectList newValue) {
+                if (evicted) {
+                    synchronized (ListingCache.this) {
+                        evictions++;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * @param containerPath the container's object path
+     * @param args the arguments of the listing method, other than the container
+     * @return the key of the listing
+     */
+    static String key(String containerPath, Object... args) {
+        return containerPath + KEY_SEPARATOR + Arrays.deepToString(args);
+    }
+
+    /**
+     * @return what the keys of a container's listings start with
+     */
+    static String getContainerPrefix(String containerPath) {
+        return containerPath + KEY_SEPARATOR;
+    }
+
+    /**
+     * @return the listing, or null if we don't have it
+     */
+    MediaObjectList get(String key) {
+        MediaObjectList listing = lru.get(key);
+        synchronized (this) {
+            if (listing != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * @param containerPath the container about to be listed
+     * @return the generation to pass to {@link #put(String, MediaObjectList, int)}
+     */
+    synchronized int getGeneration(String containerPath) {
+        Integer generation = generations.get(getServer(containerPath));
+        return generation == null ? 0 : generation;
+    }
+
+    /**
+     * Keep a listing, unless its server's listings have been dropped since it was fetched.
+     * Listings that came through a pipe aren't kept.
+     * @param generation as returned by {@link #getGeneration(String)} before the listing was fetched
+     */
+    void put(String key, MediaObjectList listing, int generation) {
+        if (listing.getData() == null) {
+            return;
+        }
+        String containerPath = key.substring(0, key.indexOf(KEY_SEPARATOR));
+        synchronized (this) {
+            if (generation != getGeneration(containerPath)) {
+                return;
+            }
+            // Under our lock, so an invalidation can't slip in between the check and the put.
+            lru.put(key, listing);
+        }
+    }
+
+    /**
+     * Drop the listings of a container.
+     */
+    synchronized void invalidateContainer(String containerPath) {
+        nextGeneration(getServer(containerPath));
+        String prefix = getContainerPrefix(containerPath);
+        for (String key : lru.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                lru.remove(key);
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Drop the listings of all the containers of a server.
+     */
+    synchronized void invalidateServer(String serverPath) {
+        nextGeneration(serverPath);
+        String prefix = serverPath + '/';
+        String self = serverPath + KEY_SEPARATOR;
+        for (String key : lru.snapshot().keySet()) {
+            if (key.startsWith(prefix) || key.startsWith(self)) {
+                lru.remove(key);
+                invalidations++;
+            }
+        }
+    }
+
+    private void nextGeneration(String serverPath) {
+        Integer generation = generations.get(serverPath);
+        generations.put(serverPath, generation == null ? 1 : generation + 1);
+    }
+
+    /**
+     * @return the server an object is on, or the object itself if it's not on a server
+     */
+    private static String getServer(String objectPath) {
+        String serverPath = DiskListingCache.getServerPath(objectPath);
+        return serverPath != null ? serverPath : objectPath;
+    }
+
+    synchronized void toBundle(Bundle b) {
+        b.putInt(Stats.KEY_LISTING_CACHE_HITS, hits);
+        b.putInt(Stats.KEY_LISTING_CACHE_MISSES, misses);
+        b.putInt(Stats.KEY_LISTING_CACHE_EVICTIONS, evictions);
+        b.putInt(Stats.KEY_LISTING_CACHE_INVALIDATIONS, invalidations);
+        b.putInt(Stats.KEY_LISTING_CACHE_BYTES, lru.size());
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(String.format("Listing cache: bytes=%d/%d hits=%d misses=%d evictions=%d invalidations=%d",
+                lru.size(), lru.maxSize(), hits, misses, evictions, invalidations));
+    }
+
+    synchronized void resetStats() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        invalidations = 0;
+    }
+}
@@ -0,0 +1,695 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+package com.intel.dleyna;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import android.os.Bundle;
+
+import com.intel.dleyna.lib.GVariantReader;
+import com.intel.dleyna.lib.GVariantWriter;
+import com.intel.dleyna.lib.MediaObjectList;
+import com.intel.dleyna.lib.Stats;
+
+/**
+ * A local full-text index of the objects of all the servers,
+ * so that they can be searched quickly, and the same way whatever the server.
+ * <p>
+ * Each object is a document, numbered in the order it was added. The words of its
+ * indexed properties are the terms, numbered too: they're found by an open-addressed
+ * hash table of term numbers, and by prefix in an array of term numbers sorted by word,
+ * to which the latest few terms are merged in batches.
+ * Each term's postings are the numbers of its documents, in an int array.
+ * Removing a document only marks it deleted; once half the documents are deleted,
+ * the index is rebuilt without them.
+ * <p>
+ * Objects are added as listings of their containers are fetched, if the listings
+ * have all the properties we need (see {@link #isComplete}), and removed when their
+ * container changes (ContainerUpdateIDs) or their server comes or goes.
+ * An object that's listed again is indexed again if it's moved, or been renamed.
+ */
+final class MediaIndex {
+
+    /** The properties whose words are indexed. */
+    static final String[] INDEXED_PROPERTIES = new String[] {
+        "DisplayName", "Artist", "Album", "Genre", "MIMEType" };
+
+    /** The properties other than those indexed that a document needs. */
+    private static final String[] DOCUMENT_PROPERTIES = new String[] { "Path", "Parent" };
+
+    private static final int INITIAL_DOCS = 256;
+    private static final int INITIAL_TERMS = 256;
+    private static final int INITIAL_POSTINGS = 4;
+
+    /** The most terms to leave out of the sorted terms. */
+    private static final int MAX_UNSORTED_TERMS = 512;
+
+    private final int maxDocs;
+
+    // The documents, by number.
+    private String[] docPaths = new String[INITIAL_DOCS];
+    private String[] docParents = new String[INITIAL_DOCS];
+    private String[] docNames = new String[INITIAL_DOCS];
+    private String[] docMimeTypes = new String[INITIAL_DOCS];
+    private int docCount;
+    private final BitSet deleted = new BitSet();
+    private int deletedCount;
+    private final HashMap<String, Integer> docsByPath = new HashMap<String, Integer>();
+    /**
+     * Document numbers by parent path, after a count of them. They may include deleted
+     * documents, which are left until the next compaction.
+     */
+    private final HashMap<String, int[]> docsByParent = new HashMap<String, int[]>();
+
+    /** The same few MIME types over and over; one copy of each. */
+    private final HashMap<String, String> mimeTypes = new HashMap<String, String>();
+
+    // The terms, and their postings, by term number.
+    private String[] termWords = new String[INITIAL_TERMS];
+    private int[][] postings = new int[INITIAL_TERMS][];
+    private int[] postingCounts = new int[INITIAL_TERMS];
+    private int termCount;
+
+    /** Term numbers plus one, by hash of their words; 0 for none. At most half full. */
+    private int[] termTable = new int[INITIAL_TERMS * 2];
+
+    /** The term numbers below sortedCount, sorted by word; those from it on aren't yet. */
+    private int[] sortedTerms = new int[0];
+    private int sortedCount;
+
+    private int dropped;
+    private int queries;
+    private long queryNanos;
+    private long maxQueryNanos;
+
+    /**
+     * @param maxDocs the most objects to index; any more are dropped
+     */
+    MediaIndex(int maxDocs) {
+        this.maxDocs = maxDocs;
+    }
+
+    /**
+     * @param filter the properties a listing was fetched with
+     * @return whether a listing fetched with the filter has all we need to index its objects
+     */
+    static boolean isComplete(String[] filter) {
+        if (filter == null) {
+            return false;
+        }
+        List<String> props = Arrays.asList(filter);
+        if (props.contains("*")) {
+            return true;
+        }
+        return props.containsAll(Arrays.asList(DOCUMENT_PROPERTIES))
+                && props.containsAll(Arrays.asList(INDEXED_PROPERTIES));
+    }
+
+    /**
+     * Index the objects of a listing, unless they're already indexed as they are.
+     * @param listing a listing fetched with a filter that {@link #isComplete}
+     */
+    void add(MediaObjectList listing) {
+        Bundle[] objects = new GVariantReader(listing.getData(), "aa{sv}").readDictionaryArray();
+        synchronized (this) {
+            for (Bundle object : objects) {
+                add(object);
+            }
+        }
+    }
+
+    private void add(Bundle object) {
+        String path = object.getString("Path");
+        if (path == null) {
+            return;
+        }
+        Integer old = docsByPath.get(path);
+        if (old != null) {
+            // Other changes come with a new ContainerUpdateID, which removes the object first.
+            if (equal(docParents[old], object.getString("Parent"))
+                    && equal(docNames[old], object.getString("DisplayName"))
+                    && equal(docMimeTypes[old], object.getString("MIMEType"))) {
+                return;
+            }
+            docsByPath.remove(path);
+            delete(old);
+        }
+        if (docCount - deletedCount >= maxDocs) {
+            dropped++;
+            return;
+        }
+        if (docCount == docPaths.length) {
+            if (deletedCount > docCount / 2) {
+                compact();
+            } else {
+                growDocs();
+            }
+        }
+        int doc = docCount++;
+        docPaths[doc] = path;
+        docParents[doc] = object.getString("Parent");
+        docNames[doc] = object.getString("DisplayName");
+        docMimeTypes[doc] = intern(object.getString("MIMEType"));
+        docsByPath.put(path, doc);
+        addChild(docParents[doc], doc);
+
+        Set<String> words = new HashSet<String>();
+        for (String prop : INDEXED_PROPERTIES) {
+            Object value = object.get(prop);
+            if (value instanceof String) {
+                tokenize((String) value, words);
+            } else if (value instanceof String[]) {
+                for (String s : (String[]) value) {
+                    tokenize(s, words);
+                }
+            }
+        }
+        for (String word : words) {
+            addPosting(getTerm(word), doc);
+        }
+    }
+
+    /**
+     * Remove an object.
+     */
+    synchronized void remove(String path) {
+        Integer doc = docsByPath.remove(path);
+        if (doc != null) {
+            delete(doc);
+            compactIfSparse();
+        }
+    }
+
+    /**
+     * Remove a container's children, since it's changed.
+     */
+    synchronized void removeChildren(String containerPath) {
+        int[] children = docsByParent.remove(containerPath);
+        if (children == null) {
+            return;
+        }
+        for (int i = 1; i <= children[0]; i++) {
+            int doc = children[i];
+            // A deleted document has no parent.
+            if (containerPath.equals(docParents[doc])) {
+                docsByPath.remove(docPaths[doc]);
+                delete(doc);
+            }
+        }
+        compactIfSparse();
+    }
+
+    /**
+     * Remove all a server's objects.
+     */
+    synchronized void removeServer(String serverPath) {
+        String prefix = serverPath + '/';
+        for (int doc = 0; doc < docCount; doc++) {
+            if (!deleted.get(doc) && (docPaths[doc].startsWith(prefix) || docPaths[doc].equals(serverPath))) {
+                docsByPath.remove(docPaths[doc]);
+                if (docParents[doc] != null) {
+                    docsByParent.remove(docParents[doc]);
+                }
+                delete(doc);
+            }
+        }
+        compactIfSparse();
+    }
+
+    /**
+     * Find the objects that match a query.
+     * <p>
+     * A query is words separated by spaces; an object matches if each word is a word of
+     * its indexed properties, or, for a word ending in '*', the start of one.
+     * Case and punctuation don't matter.
+     * @param serverPath the server to search, or null for all
+     * @param max the most objects to find, or 0 for all
+     * @return the objects' Path, Parent, DisplayName and MIMEType, in the order they were indexed
+     */
+    MediaObjectList search(String serverPath, String query, int max) {
+        Bundle[] found;
+        synchronized (this) {
+            long start = System.nanoTime();
+            int[] docs = find(serverPath, query, max);
+            found = new Bundle[docs.length];
+            for (int i = 0; i < docs.length; i++) {
+                int doc = docs[i];
+                Bundle b = new Bundle();
+                b.putString("Path", docPaths[doc]);
+                b.putString("Parent", docParents[doc]);
+                b.putString("DisplayName", docNames[doc]);
+                b.putString("MIMEType", docMimeTypes[doc]);
+                found[i] = b;
+            }
+            long nanos = System.nanoTime() - start;
+            queries++;
+            queryNanos += nanos;
+            maxQueryNanos = Math.max(maxQueryNanos, nanos);
+        }
+        return new MediaObjectList(new GVariantWriter().write("aa{sv}", found));
+    }
+
+    private int[] find(String serverPath, String query, int max) {
+        List<Matcher> matchers = new ArrayList<Matcher>();
+        for (String word : query.trim().split("\\s+")) {
+            boolean prefix = word.endsWith("*");
+            List<String> parts = new ArrayList<String>();
+            tokenize(prefix ? word.substring(0, word.length() - 1) : word, parts);
+            for (int i = 0; i < parts.size(); i++) {
+                Matcher m = lookUp(parts.get(i), prefix && i == parts.size() - 1);
+                if (m.size == 0) {
+                    return new int[0];
+                }
+                matchers.add(m);
+            }
+        }
+        if (matchers.isEmpty()) {
+            return new int[0];
+        }
+        // Go through the rarest word's documents, checking the others'.
+        Collections.sort(matchers);
+        Matcher first = matchers.get(0);
+        String prefix = serverPath == null ? null : serverPath + '/';
+        int[] result = new int[max > 0 ? Math.min(max, first.size) : first.size];
+        int n = 0;
+        for (int doc = first.next(0); doc >= 0 && n < result.length; doc = first.next(doc + 1)) {
+            if (deleted.get(doc) || (prefix != null && !docPaths[doc].startsWith(prefix))) {
+                continue;
+            }
+            boolean all = true;
+            for (int i = 1; i < matchers.size() && all; i++) {
+                all = matchers.get(i).contains(doc);
+            }
+            if (all) {
+                result[n++] = doc;
+            }
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * @return the documents with a term, or, if prefix, with any term that starts with it
+     */
+    private Matcher lookUp(String word, boolean prefix) {
+        int term;
+        if (prefix) {
+            int[] matching = findTermsStartingWith(word);
+            if (matching.length != 1) {
+                BitSet docs = new BitSet(docCount);
+                int size = 0;
+                for (int t : matching) {
+                    int[] p = postings[t];
+                    for (int i = 0; i < postingCounts[t]; i++) {
+                        docs.set(p[i]);
+                    }
+                    size += postingCounts[t];
+                }
+                return new Matcher(docs, size);
+            }
+            term = matching[0];
+        } else {
+            term = findTerm(word);
+        }
+        return term < 0 ? new Matcher(new int[0], 0) : new Matcher(postings[term], postingCounts[term]);
+    }
+
+    /**
+     * @return the numbers of the terms that start with a prefix
+     */
+    private int[] findTermsStartingWith(String prefix) {
+        int[] result = new int[8];
+        int n = 0;
+        // The first sorted term not less than the prefix.
+        int lo = 0;
+        int hi = sortedCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (termWords[sortedTerms[mid]].compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < sortedCount && termWords[sortedTerms[i]].startsWith(prefix); i++) {
+            if (n == result.length) {
+                result = Arrays.copyOf(result, n * 2);
+            }
+            result[n++] = sortedTerms[i];
+        }
+        for (int term = sortedCount; term < termCount; term++) {
+            if (termWords[term].startsWith(prefix)) {
+                if (n == result.length) {
+                    result = Arrays.copyOf(result, n * 2);
+                }
+                result[n++] = term;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * The documents matching a word of a query: either the postings of a term,
+     * which are in ascending order, or the union of those of several.
+     */
+    private static final class Matcher implements Comparable<Matcher> {
+        private final int[] postings;
+        private final BitSet docs;
+        /** The number of documents, or, for a union, at most that. */
+        final int size;
+        /** Where in the postings the last lookup ended. */
+        private int cursor;
+
+        Matcher(int[] postings, int size) {
+            this.postings = postings;
+            this.docs = null;
+            this.size = size;
+        }
+
+        Matcher(BitSet docs, int size) {
+            this.postings = null;
+            this.docs = docs;
+            this.size = size;
+        }
+
+        /**
+         * @return the first document from doc on, or -1 if none
+         */
+        int next(int doc) {
+            if (docs != null) {
+                return docs.nextSetBit(doc);
+            }
+            while (cursor < size && postings[cursor] < doc) {
+                cursor++;
+            }
+            return cursor < size ? postings[cursor] : -1;
+        }
+
+        /**
+         * @param doc at least any document previously asked about
+         */
+        boolean contains(int doc) {
+            if (docs != null) {
+                return docs.get(doc);
+            }
+            // Gallop forward from the cursor, then search what's left between.
+            int step = 1;
+            int hi = cursor;
+            while (hi < size && postings[hi] < doc) {
+                cursor = hi;
+                hi += step;
+                step <<= 1;
+            }
+            int i = Arrays.binarySearch(postings, cursor, Math.min(hi + 1, size), doc);
+            if (i >= 0) {
+                cursor = i;
+                return true;
+            }
+            cursor = Math.max(cursor, -i - 2);
+            return false;
+        }
+
+        public int compareTo(Matcher other) {
+            return size < other.size ? -1 : size == other.size ? 0 : 1;
+        }
+    }
+
+    /**
+     * Split a string into its words, lower case, dropping punctuation.
+     */
+    private static void tokenize(String s, Collection<String> words) {
+        String lower = s.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean inWord = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                words.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * @return the term's number, or -1 if there's no such term
+     */
+    private int findTerm(String word) {
+        int mask = termTable.length - 1;
+        for (int i = hash(word) & mask;; i = (i + 1) & mask) {
+            int term = termTable[i] - 1;
+            if (term < 0 || termWords[term].equals(word)) {
+                return term;
+            }
+        }
+    }
+
+    /**
+     * @return the term's number, adding the term if it's new
+     */
+    private int getTerm(String word) {
+        int term = findTerm(word);
+        if (term >= 0) {
+            return term;
+        }
+        term = termCount++;
+        if (term == termWords.length) {
+            termWords = Arrays.copyOf(termWords, term * 2);
+            postings = Arrays.copyOf(postings, term * 2);
+            postingCounts = Arrays.copyOf(postingCounts, term * 2);
+        }
+        termWords[term] = word;
+        postings[term] = new int[INITIAL_POSTINGS];
+        if (termCount * 2 > termTable.length) {
+            termTable = new int[termTable.length * 2];
+            for (int t = 0; t < termCount; t++) {
+                insertTerm(t);
+            }
+        } else {
+            insertTerm(term);
+        }
+        if (termCount - sortedCount > MAX_UNSORTED_TERMS) {
+            sortTerms();
+        }
+        return term;
+    }
+
+    private void insertTerm(int term) {
+        int mask = termTable.length - 1;
+        int i = hash(termWords[term]) & mask;
+        while (termTable[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        termTable[i] = term + 1;
+    }
+
+    private static int hash(String word) {
+        int h = word.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /** Merge the terms that aren't sorted yet into those that are. */
+    private void sortTerms() {
+        String[] added = Arrays.copyOfRange(termWords, sortedCount, termCount);
+        Arrays.sort(added);
+        int[] merged = new int[termCount];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < sortedCount || j < added.length) {
+            if (j == added.length || (i < sortedCount && termWords[sortedTerms[i]].compareTo(added[j]) < 0)) {
+                merged[n++] = sortedTerms[i++];
+            } else {
+                merged[n++] = findTerm(added[j++]);
+            }
+        }
+        sortedTerms = merged;
+        sortedCount = termCount;
+    }
+
+    private void addPosting(int term, int doc) {
+        int[] p = postings[term];
+        int n = postingCounts[term];
+        if (n == p.length) {
+            p = postings[term] = Arrays.copyOf(p, n * 2);
+        }
+        p[n] = doc;
+        postingCounts[term] = n + 1;
+    }
+
+    private void addChild(String parent, int doc) {
+        if (parent == null) {
+            return;
+        }
+        int[] children = docsByParent.get(parent);
+        if (children == null) {
+            children = new int[1 + INITIAL_POSTINGS];
+            docsByParent.put(parent, children);
+        } else if (children[0] == children.length - 1) {
+            children = Arrays.copyOf(children, children.length * 2);
+            docsByParent.put(parent, children);
+        }
+        children[++children[0]] = doc;
+    }
+
+    private String intern(String mimeType) {
+        if (mimeType == null) {
+            return null;
+        }
+        String s = mimeTypes.get(mimeType);
+        if (s == null) {
+            mimeTypes.put(mimeType, mimeType);
+            s = mimeType;
+        }
+        return s;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /** Rebuild the index once most of it is deleted documents. */
+    private void compactIfSparse() {
+        if (deletedCount > INITIAL_DOCS && deletedCount > docCount / 2) {
+            compact();
+        }
+    }
+
+    private void delete(int doc) {
+        deleted.set(doc);
+        deletedCount++;
+        docParents[doc] = null;
+        docNames[doc] = null;
+        docMimeTypes[doc] = null;
+    }
+
+    private void growDocs() {
+        int n = docPaths.length * 2;
+        docPaths = Arrays.copyOf(docPaths, n);
+        docParents = Arrays.copyOf(docParents, n);
+        docNames = Arrays.copyOf(docNames, n);
+        docMimeTypes = Arrays.copyOf(docMimeTypes, n);
+    }
+
+    /**
+     * Renumber the documents without the deleted ones, drop the terms left with none,
+     * and renumber the others in order.
+     */
+    private void compact() {
+        int[] renumbered = new int[docCount];
+        int live = 0;
+        docsByParent.clear();
+        for (int doc = 0; doc < docCount; doc++) {
+            if (deleted.get(doc)) {
+                renumbered[doc] = -1;
+            } else {
+                renumbered[doc] = live;
+                docPaths[live] = docPaths[doc];
+                docParents[live] = docParents[doc];
+                docNames[live] = docNames[doc];
+                docMimeTypes[live] = docMimeTypes[doc];
+                docsByPath.put(docPaths[live], live);
+                addChild(docParents[live], live);
+                live++;
+            }
+        }
+        Arrays.fill(docPaths, live, docCount, null);
+        Arrays.fill(docParents, live, docCount, null);
+        Arrays.fill(docNames, live, docCount, null);
+        Arrays.fill(docMimeTypes, live, docCount, null);
+        docCount = live;
+        deleted.clear();
+        deletedCount = 0;
+
+        sortTerms();
+        int oldTermCount = termCount;
+        String[] oldWords = termWords;
+        int[][] oldPostings = postings;
+        int[] oldCounts = postingCounts;
+        termWords = new String[oldWords.length];
+        postings = new int[oldPostings.length][];
+        postingCounts = new int[oldCounts.length];
+        termCount = 0;
+        for (int i = 0; i < oldTermCount; i++) {
+            int old = sortedTerms[i];
+            int[] p = oldPostings[old];
+            int n = 0;
+            for (int j = 0; j < oldCounts[old]; j++) {
+                int doc = renumbered[p[j]];
+                if (doc >= 0) {
+                    p[n++] = doc;
+                }
+            }
+            if (n > 0) {
+                int term = termCount++;
+                termWords[term] = oldWords[old];
+                postings[term] = n < p.length / 4 ? Arrays.copyOf(p, n) : p;
+                postingCounts[term] = n;
+            }
+        }
+        int tableSize = INITIAL_TERMS * 2;
+        while (termCount * 2 > tableSize) {
+            tableSize *= 2;
+        }
+        termTable = new int[tableSize];
+        sortedTerms = new int[termCount];
+        for (int term = 0; term < termCount; term++) {
+            insertTerm(term);
+            sortedTerms[term] = term;
+        }
+        sortedCount = termCount;
+    }
+
+    synchronized void toBundle(Bundle b) {
+        b.putInt(Stats.KEY_INDEX_OBJECTS, docCount - deletedCount);
+        b.putInt(Stats.KEY_INDEX_TERMS, termCount);
+        b.putInt(Stats.KEY_INDEX_QUERIES, queries);
+        b.putLong(Stats.KEY_INDEX_MEAN_QUERY_TIME, queries == 0 ? 0 : queryNanos / queries / 1000);
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        long postingCount = 0;
+        for (int term = 0; term < termCount; term++) {
+            postingCount += postingCounts[term];
+        }
+        pw.println(String.format("Index: objects=%d/%d deleted=%d dropped=%d terms=%d postings=%d"
+                + " queries=%d meanQueryUs=%d maxQueryUs=%d",
+                docCount - deletedCount, maxDocs, deletedCount, dropped, termCount, postingCount,
+                queries, queries == 0 ? 0 : queryNanos / queries / 1000, maxQueryNanos / 1000));
+    }
+
+    synchronized void resetStats() {
+        dropped = 0;
+        queries = 0;
+        queryNanos = 0;
+        maxQueryNanos = 0;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+
+package com.intel.dleyna;
+
+import com.intel.dleyna.lib.GVariantReader;
+import com.intel.dleyna.lib.GVariantWriter;
+
+/**
+ * Converts the arguments and results of one D-Bus method between Java and GVariant,
+ * according to the method's signatures.
+ * <p>
+ * The signatures are checked, and their types prepared, when the codec is made,
+ * so each call just serializes its arguments in Java and decodes its results from
+ * their serialized form in Java, with no per-type code of its own.
+ * All codecs share the one interpreter of prepared types in {@link GVariantWriter} and
+ * {@link GVariantReader}; nothing is generated for each signature.
+ * Codecs are also made for signals, whose arguments are treated as results,
+ * and for properties, whose single result is the value; {@link Introspection} keeps
+ * those apart from the methods.
+ * <p>
+ * See {@link GVariantWriter} and {@link GVariantReader} for how Java values
+ * correspond to GVariant types.
+ */
+final class MethodCodec {
+
+    final String iface;
+    final String member;
+
+    /** The in arguments, as a tuple, or null if there are none. */
+    final String inSignature;
+
+    /** The results, as a tuple. */
+    final String outSignature;
+
+    /** If there's exactly one result, its type; otherwise null. */
+    private final String singleOutSignature;
+
+    /**
+     * @param iface the interface
+     * @param member the method, signal or property
+     * @param in the types of the in arguments, concatenated (not a tuple)
+     * @param out the types of the results, concatenated (not a tuple)
+     * @throws IllegalArgumentException if either isn't a sequence of complete types
+     */
+    MethodCodec(String iface, String member, String in, String out) {
+        this.iface = iface;
+        this.member = member;
+        inSignature = in.length() == 0 ? null : "(" + in + ")";
+        outSignature = "(" + out + ")";
+        if (inSignature != null) {
+            GVariantReader.checkTypeString(inSignature);
+        }
+        GVariantReader.checkTypeString(outSignature);
+        String single = null;
+        if (out.length() > 0) {
+            try {
+                GVariantReader.checkTypeString(out);
+                single = out;
+            } catch (IllegalArgumentException e) {
+                // More than one result.
+            }
+        }
+        singleOutSignature = single;
+    }
+
+    /**
+     * Make the arguments of a call.
+     * @param args the in arguments, in order
+     * @return the arguments, for the caller to free, or null if the method takes none
+     * @throws IllegalArgumentException if the arguments don't fit the signature
+     */
+    GVariant encode(Object... args) {
+        return inSignature == null ? null : GVariant.newFromJava(inSignature, args);
+    }
+
+    /**
+     * Decode the results of a call, or the arguments of a signal.
+     * This accepts the results either as a tuple, or, if there's only one,
+     * by itself.
+     * @param result the results, or null
+     * @return the results in order, or null if result is null
+     * @throws IllegalStateException if the results don't fit the signature
+     */
+    Object[] decode(GVariant result) {
+        if (result == null) {
+            return null;
+        }
+        String type = result.getTypeString();
+        if (type.equals(outSignature)) {
+            return (Object[]) new GVariantReader(result.getData(), type).readValue();
+        } else if (type.equals(singleOutSignature)) {
+            return new Object[] { new GVariantReader(result.getData(), type).readValue() };
+        }
+        throw new IllegalStateException(String.format("%s.%s: expected %s, not %s",
+                iface, member, outSignature, type));
+    }
+
+    /**
+     * Decode a single value, such as a property, which may be wrapped in a variant.
+     * The contents of a variant are taken as they are.
+     * @param value the value, or null
+     * @return the value, or null if value is null
+     * @throws IllegalStateException if the value isn't of the single result type
+     */
+    Object decodeValue(GVariant value) {
+        if (value == null) {
+            return null;
+        }
+        String type = value.getTypeString();
+        if (!type.equals(singleOutSignature) && !type.equals("v")) {
+            throw new IllegalStateException(String.format("%s.%s: expected %s, not %s",
+                    iface, member, singleOutSignature, type));
+        }
+        return new GVariantReader(value.getData(), type).readValue();
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+
+package com.intel.dleyna;
+
+import java.io.PrintWriter;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Keeps track of the native peers of our wrapper classes, and reclaims those
+ * whose wrappers were garbage collected without being freed.
+ * <p>
+ * Each wrapper registers its peer with a {@link Kind}, and gets a {@link Ref} back.
+ * Freeing the wrapper frees the Ref, which releases the peer there and then.
+ * If the wrapper is collected first, the Ref gets enqueued and a reaper thread
+ * releases the peer, and counts it as leaked. Unlike finalizers, none of this
+ * holds up the garbage collector, or keeps the wrapper around for another cycle.
+ * <p>
+ * Optionally, each Ref remembers where it was allocated, and leaks are totted up
+ * by allocation site, which makes finding the culprit much easier. This costs
+ * a stack trace per peer, so it's off unless enabled with {@link #setTrackSites(boolean)}.
+ */
+final class NativePeers {
+
+    private static final boolean LOG = false;
+    private static final String TAG = "NativePeers";
+
+    /** The number of stack frames that identify an allocation site. */
+    private static final int SITE_DEPTH = 4;
+
+    /** The number of allocation sites shown by {@link #dump(PrintWriter)}. */
+    private static final int DUMP_SITES = 10;
+
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    /** Every Ref not yet released, so they're reachable until their wrappers go. */
+    private static final Ref registered = new Ref();
+
+    private static final List<Kind> kinds = new ArrayList<Kind>();
+
+    private static volatile boolean trackSites;
+
+    /** Leaks so far, by allocation site. */
+    private static final Map<String, AtomicInteger> leakSites = new HashMap<String, AtomicInteger>();
+
+    static {
+        Thread reaper = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        ((Ref) queue.remove()).reclaim();
+                    } catch (InterruptedException e) {
+                        // Keep going.
+                    }
+                }
+            }
+        }, "NativePeerReaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    private NativePeers() {
+    }
+
+    /**
+     * A kind of native peer: how to release one, and how many there are.
+     */
+    static abstract class Kind {
+        final String name;
+        final AtomicInteger live = new AtomicInteger();
+        final AtomicLong created = new AtomicLong();
+        final AtomicLong freed = new AtomicLong();
+        final AtomicLong leaked = new AtomicLong();
+
+        Kind(String name) {
+            this.name = name;
+            synchronized (kinds) {
+                kinds.add(this);
+            }
+        }
+
+        /**
+         * Release a native peer. This may be called on any thread.
+         */
+        abstract void release(long peer);
+
+        /**
+         * @return the number of peers of this kind not yet released
+         */
+        int getLiveCount() {
+            return live.get();
+        }
+    }
+
+    /**
+     * The registration of a native peer. This doesn't refer to the wrapper,
+     * only to the peer, so it can still release the peer once the wrapper is gone.
+     */
+    static final class Ref extends PhantomReference<Object> {
+        private final Kind kind;
+        private long peer;
+        private final Throwable site;
+        // The list of registered Refs, guarded by its head.
+        private Ref prev, next;
+
+        // The head of the list.
+        private Ref() {
+            super(null, null);
+            kind = null;
+            site = null;
+            prev = next = this;
+        }
+
+        private Ref(Object wrapper, Kind kind, long peer, Throwable site) {
+            super(wrapper, queue);
+            this.kind = kind;
+            this.peer = peer;
+            this.site = site;
+        }
+
+        /**
+         * Release the peer, unless that's been done already.
+         * @return whether the peer was released by this call
+         */
+        boolean free() {
+            if (!unlink()) {
+                return false;
+            }
+            clear();
+            kind.freed.incrementAndGet();
+            kind.release(peer);
+            return true;
+        }
+
+        private void reclaim() {
+            if (!unlink()) {
+                return;
+            }
+            kind.leaked.incrementAndGet();
+            String where = site != null ? getSiteKey(site) : null;
+            if (where != null) {
+                synchronized (leakSites) {
+                    AtomicInteger n = leakSites.get(where);
+                    if (n == null) {
+                        leakSites.put(where, n = new AtomicInteger());
+                    }
+                    n.incrementAndGet();
+                }
+            }
+            if (LOG) Log.w(TAG, "reclaim: " + kind.name + " leaked" + (where != null ? " from " + where : ""));
+            kind.release(peer);
+        }
+
+        private boolean unlink() {
+            synchronized (registered) {
+                if (next == null) {
+                    return false;
+                }
+                prev.next = next;
+                next.prev = prev;
+                prev = next = null;
+            }
+            kind.live.decrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Register a newly acquired native peer.
+     * @param wrapper the Java object that owns the peer
+     * @param kind the kind of peer
+     * @param peer the native peer
+     * @return the registration, to be freed when the wrapper is done with the peer
+     */
+    static Ref register(Object wrapper, Kind kind, long peer) {
+        Ref ref = new Ref(wrapper, kind, peer, trackSites ? new Throwable() : null);
+        synchronized (registered) {
+            ref.next = registered.next;
+            ref.prev = registered;
+            registered.next.prev = ref;
+            registered.next = ref;
+        }
+        kind.created.incrementAndGet();
+        kind.live.incrementAndGet();
+        return ref;
+    }
+
+    /**
+     * Start or stop recording where native peers are allocated.
+     * This affects only peers allocated from now on.
+     */
+    static void setTrackSites(boolean enabled) {
+        trackSites = enabled;
+    }
+
+    /**
+     * Reset the counters of leaks by allocation site.
+     */
+    static void resetSites() {
+        synchronized (leakSites) {
+            leakSites.clear();
+        }
+    }
+
+    /**
+     * Print the peer counts, and the worst allocation sites, for dumpsys.
+     */
+    static void dump(PrintWriter pw) {
+        synchronized (kinds) {
+            for (Kind k : kinds) {
+                pw.println(String.format("%s peers: live=%d created=%d freed=%d leaked=%d",
+                        k.name, k.live.get(), k.created.get(), k.freed.get(), k.leaked.get()));
+            }
+        }
+        if (!trackSites) {
+            return;
+        }
+        dumpSites(pw, "Leaked peers by allocation site:", leakSites);
+        // Live peers with a site are candidates for leaks not yet collected.
+        Map<String, AtomicInteger> liveSites = new HashMap<String, AtomicInteger>();
+        List<Throwable> sites = new ArrayList<Throwable>();
+        synchronized (registered) {
+            for (Ref r = registered.next; r != registered; r = r.next) {
+                if (r.site != null) {
+                    sites.add(r.site);
+                }
+            }
+        }
+        for (Throwable t : sites) {
+            String where = getSiteKey(t);
+            AtomicInteger n = liveSites.get(where);
+            if (n == null) {
+                liveSites.put(where, n = new AtomicInteger());
+            }
+            n.incrementAndGet();
+        }
+        dumpSites(pw, "Live peers by allocation site:", liveSites);
+    }
+
+    private static void dumpSites(PrintWriter pw, String title, Map<String, AtomicInteger> counts) {
+        List<Map.Entry<String, AtomicInteger>> entries;
+        synchronized (counts) {
+            entries = new ArrayList<Map.Entry<String, AtomicInteger>>(counts.entrySet());
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, AtomicInteger>>() {
+            public int compare(Map.Entry<String, AtomicInteger> a, Map.Entry<String, AtomicInteger> b) {
+                return b.getValue().get() - a.getValue().get();
+            }
+        });
+        pw.println(title);
+        for (int i = 0; i < entries.size() && i < DUMP_SITES; i++) {
+            pw.println(String.format("  %6d %s", entries.get(i).getValue().get(), entries.get(i).getKey()));
+        }
+    }
+
+    /**
+     * @return the innermost frames of an allocation stack trace,
+     * leaving out the frames of the wrapper classes themselves
+     */
+    private static String getSiteKey(Throwable site) {
+        StringBuilder sb = new StringBuilder();
+        int n = 0;
+        for (StackTraceElement e : site.getStackTrace()) {
+            String c = e.getClassName();
+            if (c.equals(NativePeers.class.getName()) || c.equals(GVariant.class.getName())
+                    || c.equals(GVariantType.class.getName()) || c.equals(GMainLoop.class.getName())
+                    || c.equals(GVariantScope.class.getName())) {
+                continue;
+            }
+            if (n > 0) {
+                sb.append(" < ");
+            }
+            sb.append(e.toString());
+            if (++n == SITE_DEPTH) {
+                break;
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+
+package com.intel.dleyna;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Bundle;
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Delivers notifications to a service's registered clients without holding up the g_main_loop.
+ * <p>
+ * The daemon thread decodes each notification and {@link #post(Notification)}s it, which only
+ * queues it for each client. A small pool of worker threads makes the binder calls, one client
+ * at a time per worker, in order for each client. The client callbacks are all oneway, so a
+ * client that's slow or hung can't hold on to a worker: its calls just wait in its own process.
+ * <p>
+ * Successive notifications with the same merge key (property changes to the same object, say)
+ * are merged while they wait, so a client that falls behind gets fewer, fuller updates rather
+ * than a backlog. Only notifications marked {@link Notification#droppable} may be dropped, when
+ * the queue is full; anything else would leave the client's idea of things permanently wrong.
+ * A call that fails, typically because the client's binder buffer is full of calls it hasn't
+ * got round to, is retried with increasing delays for a few minutes before we give up on it.
+ * Clients that have died are forgotten; so is a client that's alive but has
+ * {@link #MAX_QUEUE_LENGTH} notifications waiting, which we unregister, rather than let its
+ * queue grow without bound.
+ */
+final class NotificationDispatcher<C extends IInterface> {
+
+    private static final boolean LOG = false;
+    private static final String TAG = "NotificationDispatcher";
+
+    /** How many notifications may wait for each client before droppable ones are dropped. */
+    private static final int QUEUE_CAPACITY = 64;
+
+    /** How many notifications may wait for each client before we give up on it. */
+    private static final int MAX_QUEUE_LENGTH = 1024;
+
+    /** How many notifications a worker delivers to one client before giving others a turn. */
+    private static final int DELIVERY_BATCH = 8;
+
+    /** How long to wait before retrying a failed call to a client, at first, in ms. */
+    private static final long RETRY_DELAY = 250;
+
+    /** The most we wait between retries, in ms. */
+    private static final long MAX_RETRY_DELAY = 30000;
+
+    /** How many times we retry a notification before giving up on it. */
+    private static final int MAX_RETRIES = 12;
+
+    private static final int WORKER_THREADS = 2;
+
+    private final RemoteCallbackList<C> clients;
+
+    private final ScheduledExecutorService workers = Executors.newScheduledThreadPool(WORKER_THREADS);
+
+    /** Per-client queues, by the client's binder. Guarded by itself. */
+    private final HashMap<IBinder, ClientQueue> queues = new HashMap<IBinder, ClientQueue>();
+
+    /** Incremented with each post, to spot clients that have gone away. */
+    private int generation;
+
+    /**
+     * @param clients the service's registered clients
+     */
+    NotificationDispatcher(RemoteCallbackList<C> clients) {
+        this.clients = clients;
+    }
+
+    /**
+     * Queue a notification for all currently registered clients.
+     * This doesn't block on any client.
+     */
+    void post(Notification<C> notification) {
+        synchronized (queues) {
+            generation++;
+            int n = clients.beginBroadcast();
+            try {
+                for (int i = 0; i < n; i++) {
+                    C client = clients.getBroadcastItem(i);
+                    IBinder binder = client.asBinder();
+                    ClientQueue q = queues.get(binder);
+                    if (q == null) {
+                        q = new ClientQueue(client);
+                        queues.put(binder, q);
+                    }
+                    q.generation = generation;
+                    q.offer(notification);
+                }
+            } finally {
+                clients.finishBroadcast();
+            }
+            // Forget clients that have unregistered or died.
+            for (Iterator<ClientQueue> it = queues.values().iterator(); it.hasNext();) {
+                if (it.next().generation != generation) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Something to tell every client.
+     * The same instance is queued for every client, so it must not be modified once posted.
+     */
+    static abstract class Notification<C> {
+
+        /** Notifications with the same non-null key may be merged; see {@link #merge}. */
+        final String mergeKey;
+
+        /**
+         * May this be dropped if the client falls behind?
+         * Only if what it says is advisory, like progress, or will be said again soon.
+         */
+        final boolean droppable;
+
+        Notification() {
+            this(null, false);
+        }
+
+        Notification(String mergeKey) {
+            this(mergeKey, false);
+        }
+
+        Notification(String mergeKey, boolean droppable) {
+            this.mergeKey = mergeKey;
+            this.droppable = droppable;
+        }
+
+        /**
+         * Called on a worker thread.
+         */
+        abstract void deliver(C client) throws RemoteException;
+
+        /**
+         * Combine this with a newer notification with the same merge key,
+         * without modifying either.
+         * @return a notification with the same effect as this one followed by the newer one
+         */
+        Notification<C> merge(Notification<C> newer) {
+            return newer;
+        }
+    }
+
+    /**
+     * A change to some of an object's properties.
+     * Successive changes to the same object merge, with the last value winning for each property.
+     */
+    static abstract class PropertiesChanged<C> extends Notification<C> {
+
+        final String objectPath;
+        final Bundle props;
+
+        PropertiesChanged(String objectPath, Bundle props) {
+            super("PropertiesChanged\n" + objectPath);
+            this.objectPath = objectPath;
+            this.props = props;
+        }
+
+        Notification<C> merge(Notification<C> newer) {
+            Bundle merged = new Bundle(props);
+            merged.putAll(((PropertiesChanged<C>) newer).props);
+            return copy(merged);
+        }
+
+        /**
+         * @return a notification like this one, but with the given properties
+         */
+        abstract PropertiesChanged<C> copy(Bundle props);
+    }
+
+    private final class ClientQueue implements Runnable {
+
+        final C client;
+        final ArrayDeque<Notification<C>> pending = new ArrayDeque<Notification<C>>();
+        int generation;
+        /** Is a worker delivering, or about to deliver, to this client? */
+        boolean scheduled;
+        /** The head of the queue while a worker is delivering it, or waiting to retry it. */
+        Notification<C> inFlight;
+        /** How many times in a row the call at the head of the queue has failed. */
+        int failures;
+        /** Notifications dropped since we last said so. */
+        int dropped;
+        /** Have we warned about this client's queue growing past its capacity? */
+        boolean overflowing;
+
+        ClientQueue(C client) {
+            this.client = client;
+        }
+
+        /**
+         * Called with the queues lock held.
+         */
+        void offer(Notification<C> notification) {
+            if (notification.mergeKey != null) {
+                for (Iterator<Notification<C>> it = pending.iterator(); it.hasNext();) {
+                    Notification<C> older = it.next();
+                    if (older != inFlight && notification.mergeKey.equals(older.mergeKey)) {
+                        // It takes the place of the older one at the tail: later is never wrong
+                        // for state, whereas jumping ahead of other notifications could be.
+                        it.remove();
+                        notification = older.merge(notification);
+                        break;
+                    }
+                }
+            }
+            if (pending.size() >= MAX_QUEUE_LENGTH) {
+                abandon();
+                return;
+            }
+            if (pending.size() >= QUEUE_CAPACITY && !dropOldestDroppable()) {
+                if (notification.droppable) {
+                    dropped++;
+                    return;
+                }
+                if (!overflowing) {
+                    overflowing = true;
+                    Log.w(TAG, "Client " + client.asBinder() + " is falling behind, " + pending.size() + " notifications waiting");
+                }
+            }
+            pending.add(notification);
+            if (!scheduled) {
+                scheduled = true;
+                workers.execute(this);
+            }
+        }
+
+        /**
+         * Forget a client that's stopped taking notifications, and unregister it,
+         * as if it had died. Any worker delivering to it stops at the next notification.
+         * Called with the queues lock held.
+         */
+        private void abandon() {
+            Log.e(TAG, "Client " + client.asBinder() + " has " + pending.size()
+                    + " notifications waiting; unregistering it");
+            pending.clear();
+            inFlight = null;
+            queues.remove(client.asBinder());
+            clients.unregister(client);
+        }
+
+        /**
+         * Called with the queues lock held.
+         * @return whether there was a droppable notification to drop
+         */
+        private boolean dropOldestDroppable() {
+            for (Iterator<Notification<C>> it = pending.iterator(); it.hasNext();) {
+                Notification<C> older = it.next();
+                if (older != inFlight && older.droppable) {
+                    it.remove();
+                    dropped++;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Called on a worker thread.
+         */
+        public void run() {
+            for (int i = 0; i < DELIVERY_BATCH; i++) {
+                Notification<C> notification;
+                synchronized (queues) {
+                    if (dropped != 0) {
+                        Log.w(TAG, "Dropped " + dropped + " notifications to slow client " + client.asBinder());
+                        dropped = 0;
+                    }
+                    // Leave it queued until it's delivered, so that we can retry it.
+                    notification = inFlight = pending.peek();
+                    if (notification == null || queues.get(client.asBinder()) != this) {
+                        // Nothing to do, or the client has unregistered since it was scheduled.
+                        inFlight = null;
+                        scheduled = false;
+                        overflowing = false;
+                        return;
+                    }
+                }
+                try {
+                    notification.deliver(client);
+                } catch (DeadObjectException e) {
+                    if (LOG) Log.i(TAG, "Client died: " + client.asBinder());
+                    synchronized (queues) {
+                        inFlight = null;
+                        pending.clear();
+                        scheduled = false;
+                        queues.remove(client.asBinder());
+                    }
+                    return;
+                } catch (RemoteException e) {
+                    if (retry(e)) {
+                        return;
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Notification failed", e);
+                }
+                synchronized (queues) {
+                    inFlight = null;
+                    failures = 0;
+                    pending.poll();
+                }
+            }
+            // Give other clients a turn.
+            workers.execute(this);
+        }
+
+        /**
+         * Arrange to deliver the notification at the head of the queue again, after a delay.
+         * Called on a worker thread.
+         * @return false if we've retried it enough, and it should be dropped instead
+         */
+        private boolean retry(RemoteException e) {
+            synchronized (queues) {
+                if (failures == MAX_RETRIES) {
+                    Log.e(TAG, "Giving up on notification to client " + client.asBinder() + ": " + e);
+                    return false;
+                }
+                long delay = Math.min(RETRY_DELAY << failures, MAX_RETRY_DELAY);
+                failures++;
+                if (LOG) Log.i(TAG, "Notification failed, retrying in " + delay + " ms: " + e);
+                workers.schedule(this, delay, TimeUnit.MILLISECONDS);
+                return true;
+            }
+        }
+    }
+}
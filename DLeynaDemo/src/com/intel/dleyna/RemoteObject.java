@@ -21,8 +21,6 @@
 
 package com.intel.dleyna;
 
-import java.util.HashMap;
-
 import android.util.SparseArray;
 
 /**
@@ -46,23 +44,73 @@ public class RemoteObject {
     /**
      * A set of remote objects, searchable by either integer id or (objectPath, ifaceName).
      * All methods are thread-safe.
+     * <p>
+     * Objects are kept in a trie of object path segments, each node holding
+     * the objects published at its path, one per interface.
+     * Looking up a path walks the trie in place, without allocating,
+     * and finds either the object published at that exact path or the object
+     * of the deepest subtree that contains the path.
      */
     public static class Store {
 
         private SparseArray<RemoteObject> objectsById = new SparseArray<RemoteObject>();
 
-        private HashMap<String,RemoteObject> objectsByName = new HashMap<String,RemoteObject>();
+        /** The node for the path "/". */
+        private final Node root = new Node(null, "");
 
         public synchronized void add(RemoteObject ro) {
             objectsById.append(ro.id, ro);
-            objectsByName.put(ro.ifaceName + ro.objectPath, ro);
+            Node node = root;
+            int end = ro.objectPath.length();
+            for (int start = 1, segEnd; start < end; start = segEnd + 1) {
+                segEnd = nextSegment(ro.objectPath, start);
+                if (segEnd > start) {
+                    Node child = node.getChild(ro.objectPath, start, segEnd);
+                    if (child == null) {
+                        child = node.addChild(ro.objectPath.substring(start, segEnd).intern());
+                    }
+                    node = child;
+                }
+            }
+            node.put(ro);
         }
 
+        /**
+         * Remove one object.
+         * @param id the object's id
+         */
         public synchronized void remove(int id) {
             RemoteObject ro = objectsById.get(id);
             if (ro != null) {
                 objectsById.delete(id);
-                objectsByName.remove(ro.ifaceName + ro.objectPath);
+                Node node = find(ro.objectPath);
+                if (node != null) {
+                    node.remove(ro);
+                    node.prune();
+                }
+            }
+        }
+
+        /**
+         * Remove all the interfaces of a subtree.
+         * @param id the id of any one of the subtree's objects
+         */
+        public synchronized void removeSubtree(int id) {
+            RemoteObject ro = objectsById.get(id);
+            if (ro != null) {
+                Node node = find(ro.objectPath);
+                if (node != null) {
+                    for (int i = node.objectCount - 1; i >= 0; i--) {
+                        RemoteObject o = node.objects[i];
+                        if (o instanceof SubtreeRemoteObject) {
+                            objectsById.delete(o.id);
+                            node.remove(o);
+                        }
+                    }
+                    node.prune();
+                } else {
+                    objectsById.delete(id);
+                }
             }
         }
 
@@ -70,8 +118,160 @@ public class RemoteObject {
             return objectsById.get(id);
         }
 
+        /**
+         * @return the object published at exactly the given path, with the given interface, or null
+         */
         public synchronized RemoteObject getByName(String objectPath, String ifaceName) {
-            return objectsByName.get(ifaceName + objectPath);
+            Node node = find(objectPath);
+            return node != null ? node.get(ifaceName) : null;
+        }
+
+        /**
+         * Find the object that handles the given path and interface:
+         * the object published at that path if any, or else the object of
+         * the deepest subtree containing the path.
+         * @return the object, or null
+         */
+        public synchronized RemoteObject resolve(String objectPath, String ifaceName) {
+            RemoteObject subtree = null;
+            Node node = root;
+            int end = objectPath.length();
+            for (int start = 1, segEnd; start < end; start = segEnd + 1) {
+                RemoteObject ro = node.get(ifaceName);
+                if (ro instanceof SubtreeRemoteObject) {
+                    subtree = ro;
+                }
+                segEnd = nextSegment(objectPath, start);
+                if (segEnd > start) {
+                    node = node.getChild(objectPath, start, segEnd);
+                    if (node == null) {
+                        return subtree;
+                    }
+                }
+            }
+            RemoteObject ro = node.get(ifaceName);
+            return ro != null ? ro : subtree;
+        }
+
+        /**
+         * @return the node for exactly the given path, or null
+         */
+        private Node find(String objectPath) {
+            Node node = root;
+            int end = objectPath.length();
+            for (int start = 1, segEnd; start < end && node != null; start = segEnd + 1) {
+                segEnd = nextSegment(objectPath, start);
+                if (segEnd > start) {
+                    node = node.getChild(objectPath, start, segEnd);
+                }
+            }
+            return node;
+        }
+
+        /**
+         * @return the index of the '/' ending the segment that starts at the given index,
+         * or the length of the path if it's the last segment
+         */
+        private static int nextSegment(String path, int start) {
+            int i = path.indexOf('/', start);
+            return i < 0 ? path.length() : i;
+        }
+    }
+
+    /**
+     * A node of a {@link Store}'s trie.
+     * Few nodes have more than a handful of children or objects, so they're in plain arrays.
+     */
+    private static final class Node {
+        private static final Node[] NO_NODES = new Node[0];
+        private static final RemoteObject[] NO_OBJECTS = new RemoteObject[0];
+
+        final Node parent;
+        final String segment;
+        Node[] children = NO_NODES;
+        int childCount;
+        RemoteObject[] objects = NO_OBJECTS;
+        int objectCount;
+
+        Node(Node parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+
+        /**
+         * @return the child whose segment is path[start, end), or null
+         */
+        Node getChild(String path, int start, int end) {
+            int len = end - start;
+            for (int i = 0; i < childCount; i++) {
+                String seg = children[i].segment;
+                if (seg.length() == len && path.regionMatches(start, seg, 0, len)) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(String segment) {
+            if (childCount == children.length) {
+                Node[] a = new Node[Math.max(4, childCount * 2)];
+                System.arraycopy(children, 0, a, 0, childCount);
+                children = a;
+            }
+            Node child = new Node(this, segment);
+            children[childCount++] = child;
+            return child;
+        }
+
+        RemoteObject get(String ifaceName) {
+            for (int i = 0; i < objectCount; i++) {
+                if (objects[i].ifaceName.equals(ifaceName)) {
+                    return objects[i];
+                }
+            }
+            return null;
+        }
+
+        /** Add an object, replacing any other one with the same interface. */
+        void put(RemoteObject ro) {
+            for (int i = 0; i < objectCount; i++) {
+                if (objects[i].ifaceName.equals(ro.ifaceName)) {
+                    objects[i] = ro;
+                    return;
+                }
+            }
+            if (objectCount == objects.length) {
+                RemoteObject[] a = new RemoteObject[Math.max(4, objectCount * 2)];
+                System.arraycopy(objects, 0, a, 0, objectCount);
+                objects = a;
+            }
+            objects[objectCount++] = ro;
+        }
+
+        void remove(RemoteObject ro) {
+            for (int i = 0; i < objectCount; i++) {
+                if (objects[i] == ro) {
+                    System.arraycopy(objects, i + 1, objects, i, objectCount - i - 1);
+                    objects[--objectCount] = null;
+                    return;
+                }
+            }
+        }
+
+        /** Detach this node, and any ancestors, that no longer lead to any objects. */
+        void prune() {
+            Node node = this;
+            while (node.parent != null && node.objectCount == 0 && node.childCount == 0) {
+                Node p = node.parent;
+                for (int i = 0; i < p.childCount; i++) {
+                    if (p.children[i] == node) {
+                        System.arraycopy(p.children, i + 1, p.children, i, p.childCount - i - 1);
+                        p.children[--p.childCount] = null;
+                        break;
+                    }
+                }
+                node = p;
+            }
         }
     }
 }
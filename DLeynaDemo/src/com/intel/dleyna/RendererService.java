@@ -21,6 +21,11 @@
 
 package com.intel.dleyna;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
 import android.app.Service;
 import android.content.Intent;
 import android.os.Bundle;
@@ -30,6 +35,7 @@ import android.os.RemoteException;
 import android.util.Log;
 
 import com.intel.dleyna.Connector.Invocation;
+import com.intel.dleyna.lib.DeviceSnapshot;
 import com.intel.dleyna.lib.Extras;
 import com.intel.dleyna.lib.IRendererClient;
 import com.intel.dleyna.lib.IRendererService;
@@ -53,6 +59,9 @@ public class RendererService extends Service implements IConnectorClient {
     private static final String IFACE_PUSH_HOST  = "com.intel.dLeynaRenderer.PushHost";
     private static final String IFACE_DBUS_PROP  = "org.freedesktop.DBus.Properties";
 
+    /** How long we wait for a device to respond to a method call, in ms. */
+    private static final long DEFAULT_TIMEOUT = 30000;
+
     private static final String FAKE_TRACK_ID = "/yo/mammas/track";
 
     private Thread daemonThread;
@@ -62,6 +71,15 @@ public class RendererService extends Service implements IConnectorClient {
     private RemoteCallbackList<IRendererClient> clients =
             new RemoteCallbackList<IRendererClient>();
 
+    /** Delivers notifications to the clients, so the daemon thread needn't wait for them. */
+    private final NotificationDispatcher<IRendererClient> notifier =
+            new NotificationDispatcher<IRendererClient>(clients);
+
+    /** Delivers the results of asynchronous calls, off the daemon thread. */
+    private final Executor replyExecutor = Executors.newSingleThreadExecutor();
+
+    private final DeviceSnapshots snapshots = new DeviceSnapshots();
+
     public RendererService() {
         JNI.initialize(JNI.RENDERER_CONF_FILENAME);
         JNI.cleanTempDir();
@@ -73,7 +91,8 @@ public class RendererService extends Service implements IConnectorClient {
     public IBinder onBind(Intent intent) {
         if (LOG) Log.i(TAG, "onBind");
 
-        connector = new Connector(this, MANAGER_OBJECT_PATH, IFACE_MANAGER);
+        connector = new Connector(this, MANAGER_OBJECT_PATH, IFACE_MANAGER, IFACE_DEVICE);
+        connector.setDefaultTimeout(DEFAULT_TIMEOUT);
 
         // Create and start the daemon thread.
         daemonThread = new Thread(daemonRunnable, DAEMON_THREAD_NAME);
@@ -99,6 +118,39 @@ public class RendererService extends Service implements IConnectorClient {
         return false;
     }
 
+    /**
+     * Print the dispatch statistics, for
+     * "adb shell dumpsys activity service com.intel.dleyna.RendererService".
+     * Append "enable", "disable" or "reset" to control the per-method statistics first,
+     * or "sites" or "nosites" to start or stop recording where native peers are allocated.
+     */
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        Connector c = connector;
+        if (c == null) {
+            pw.println("Not bound");
+            return;
+        }
+        if (args != null) {
+            for (String arg : args) {
+                if ("enable".equals(arg)) {
+                    c.setStatsEnabled(true);
+                } else if ("disable".equals(arg)) {
+                    c.setStatsEnabled(false);
+                } else if ("reset".equals(arg)) {
+                    c.resetStats();
+                    NativePeers.resetSites();
+                } else if ("sites".equals(arg)) {
+                    NativePeers.setTrackSites(true);
+                } else if ("nosites".equals(arg)) {
+                    NativePeers.setTrackSites(false);
+                } else {
+                    pw.println("Unknown argument: " + arg);
+                }
+            }
+        }
+        c.dumpStats(pw);
+    }
+
     private Runnable daemonRunnable = new Runnable() {
         public void run() {
             if (LOG) Log.i(TAG, Thread.currentThread().getName() + ": entering");
@@ -145,12 +197,15 @@ public class RendererService extends Service implements IConnectorClient {
             if (mo != null) {
                 Invocation invo = connector.dispatch(client, mo, IFACE_MANAGER, "GetRenderers", null);
                 if (invo.success) {
+                    long decodeStart = connector.startDecode();
                     result = invo.result.getArrayOfString();
+                    connector.endDecode(IFACE_MANAGER, "GetRenderers", decodeStart);
                     invo.result.free();
                 } else {
                     extras.putInt(Extras.KEY_ERR_CODE, invo.errCode);
                     extras.putString(Extras.KEY_ERR_MSG, invo.errMessage);
                 }
+                invo.recycle();
             }
             return result;
         }
@@ -163,9 +218,14 @@ public class RendererService extends Service implements IConnectorClient {
                     extras.putInt(Extras.KEY_ERR_CODE, invo.errCode);
                     extras.putString(Extras.KEY_ERR_MSG, invo.errMessage);
                 }
+                invo.recycle();
             }
         }
 
+        public Bundle getStats() {
+            return connector.getStats();
+        }
+
         /*-----------------+
          | IRendererDevice |
          +-----------------*/
@@ -223,6 +283,14 @@ public class RendererService extends Service implements IConnectorClient {
             return null;
         }
 
+        public DeviceSnapshot getDeviceSnapshot(final IRendererClient client, String objectPath, Bundle extras) {
+            return snapshots.get(objectPath, new DeviceSnapshots.Fetcher() {
+                public Bundle fetch(String objectPath, Bundle extras) {
+                    return getAllDBusProperties(client, objectPath, IFACE_DEVICE, extras);
+                }
+            }, extras);
+        }
+
         public void cancel(IRendererClient client, String objectPath, Bundle extras) {
             RemoteObject ro = connector.getRemoteObject(objectPath, IFACE_DEVICE);
             if (ro != null) {
@@ -232,6 +300,7 @@ public class RendererService extends Service implements IConnectorClient {
                     extras.putInt(Extras.KEY_ERR_CODE, invo.errCode);
                     extras.putString(Extras.KEY_ERR_MSG, invo.errMessage);
                 }
+                invo.recycle();
             }
         }
 
@@ -276,6 +345,45 @@ public class RendererService extends Service implements IConnectorClient {
             doVoidMethodString(client, objectPath, IFACE_CONTROLLER, "OpenUri", uri, extras);
         }
 
+        public void nextAsync(IRendererClient client, int token, String objectPath) {
+            doMethodAsync(client, token, objectPath, IFACE_CONTROLLER, "Next", null);
+        }
+
+        public void previousAsync(IRendererClient client, int token, String objectPath) {
+            doMethodAsync(client, token, objectPath, IFACE_CONTROLLER, "Previous", null);
+        }
+
+        public void pauseAsync(IRendererClient client, int token, String objectPath) {
+            doMethodAsync(client, token, objectPath, IFACE_CONTROLLER, "Pause", null);
+        }
+
+        public void playPauseAsync(IRendererClient client, int token, String objectPath) {
+            doMethodAsync(client, token, objectPath, IFACE_CONTROLLER, "PlayPause", null);
+        }
+
+        public void stopAsync(IRendererClient client, int token, String objectPath) {
+            doMethodAsync(client, token, objectPath, IFACE_CONTROLLER, "Stop", null);
+        }
+
+        public void playAsync(IRendererClient client, int token, String objectPath) {
+            doMethodAsync(client, token, objectPath, IFACE_CONTROLLER, "Play", null);
+        }
+
+        public void seekAsync(IRendererClient client, int token, String objectPath, long offset) {
+            doMethodAsync(client, token, objectPath, IFACE_CONTROLLER, "Seek",
+                    GVariant.newTupleInt64(offset));
+        }
+
+        public void setPositionAsync(IRendererClient client, int token, String objectPath, long position) {
+            doMethodAsync(client, token, objectPath, IFACE_CONTROLLER, "SetPosition",
+                    GVariant.newTupleObjPathInt64(FAKE_TRACK_ID, position));
+        }
+
+        public void openUriAsync(IRendererClient client, int token, String objectPath, String uri) {
+            doMethodAsync(client, token, objectPath, IFACE_CONTROLLER, "OpenUri",
+                    GVariant.newTupleString(uri));
+        }
+
         public String getPlaybackStatus(IRendererClient client, String objectPath, Bundle extras) {
             return getStringDBusProperty(client, objectPath, IFACE_CONTROLLER, "PlaybackStatus", extras);
         }
@@ -444,13 +552,28 @@ public class RendererService extends Service implements IConnectorClient {
         Bundle result = null;
         GVariant gvResult = getDBusProperty(client, objectPath, iface, propName, extras);
         if (gvResult != null) {
-            result = makeBundleFromDictionary(gvResult);
+            result = GVariantBundles.makeBundleFromDictionary(gvResult);
             gvResult.free();
         }
         if (LOG) Log.i(TAG, "getDictDBusProp: result=" + result);
         return result;
     }
 
+    private Bundle getAllDBusProperties(IRendererClient client, String objectPath, String iface,
+            Bundle extras) {
+        if (LOG) Log.i(TAG, String.format("getAllDBusProps: obj=%s iface=%s", objectPath, iface));
+        Bundle result = null;
+        MethodCodec codec = connector.getMethodCodec(IFACE_DBUS_PROP, "GetAll");
+        GVariant args = codec.encode(iface);
+        GVariant gvResult = doMethod(client, objectPath, IFACE_DBUS_PROP, "GetAll", args, extras);
+        args.free();
+        if (gvResult != null) {
+            result = (Bundle) codec.decode(gvResult)[0];
+            gvResult.free();
+        }
+        return result;
+    }
+
     private GVariant getDBusProperty(IRendererClient client, String objectPath, String iface,
             String propName, Bundle extras) {
         if (LOG) Log.i(TAG, String.format("getDBusProp: prop=%s obj=%s iface=%s", propName, objectPath, iface));
@@ -467,6 +590,7 @@ public class RendererService extends Service implements IConnectorClient {
                 extras.putInt(Extras.KEY_ERR_CODE, invo.errCode);
                 extras.putString(Extras.KEY_ERR_MSG, invo.errMessage);
             }
+            invo.recycle();
         }
         return result;
     }
@@ -491,6 +615,7 @@ public class RendererService extends Service implements IConnectorClient {
                 extras.putInt(Extras.KEY_ERR_CODE, invo.errCode);
                 extras.putString(Extras.KEY_ERR_MSG, invo.errMessage);
             }
+            invo.recycle();
         }
     }
 
@@ -558,6 +683,7 @@ public class RendererService extends Service implements IConnectorClient {
                 extras.putInt(Extras.KEY_ERR_CODE, invo.errCode);
                 extras.putString(Extras.KEY_ERR_MSG, invo.errMessage);
             }
+            invo.recycle();
         }
         return gvResult;
     }
@@ -566,55 +692,120 @@ public class RendererService extends Service implements IConnectorClient {
         if (LOG) Log.i(TAG, String.format("%s: method=%s obj=%s iface=%s", method, method2, objPath, iface));
     }
 
+    /*--------------------+
+     | Asynchronous calls |
+     +--------------------*/
+
+    /**
+     * Invoke a void method without tying up the calling binder thread.
+     * The outcome is delivered to the client by {@link IRendererClient#onVoidReply(int, Bundle)}.
+     * @param args arguments to the method, which this takes ownership of
+     */
+    private void doMethodAsync(IRendererClient client, int token, String objectPath, String iface,
+            String method, GVariant args) {
+        if (LOG) logDoMethod("doMethodAsync", objectPath, iface, method);
+        VoidReply reply = new VoidReply(client, token);
+        RemoteObject ro = connector.getRemoteObject(objectPath, iface);
+        if (ro != null) {
+            connector.dispatchAsync(client, ro, iface, method, args, reply);
+        } else {
+            // Same outcome as the synchronous path: no error.
+            if (args != null) {
+                args.free();
+            }
+            replyExecutor.execute(reply);
+        }
+    }
+
+    /**
+     * Delivers the outcome of an asynchronous void call to a client.
+     * The connector calls us on the daemon thread; we send on the reply executor.
+     */
+    private class VoidReply implements Connector.Callback, Runnable {
+
+        private final IRendererClient client;
+        private final int token;
+        private Invocation invocation;
+
+        VoidReply(IRendererClient client, int token) {
+            this.client = client;
+            this.token = token;
+        }
+
+        public void onDone(Invocation invocation) {
+            this.invocation = invocation;
+            replyExecutor.execute(this);
+        }
+
+        public void run() {
+            Bundle extras = new Bundle();
+            if (invocation != null) {
+                if (invocation.success) {
+                    if (invocation.result != null) {
+                        invocation.result.free();
+                    }
+                } else {
+                    extras.putInt(Extras.KEY_ERR_CODE, invocation.errCode);
+                    extras.putString(Extras.KEY_ERR_MSG, invocation.errMessage);
+                }
+                invocation.recycle();
+                invocation = null;
+            }
+            try {
+                client.onVoidReply(token, extras);
+            } catch (RemoteException e) {
+                if (LOG) Log.w(TAG, "VoidReply: client is gone: token=" + token);
+            }
+        }
+    }
+
     /*------------------+
      | IConnectorClient |
      +------------------*/
 
     public void onNotify(String objPath, String ifaceName, String notifName, long params) {
         if (LOG) Log.i(TAG, "onNotify: I=" + ifaceName + " N=" + notifName + " O=" + objPath);
-        GVariant gvParams = new GVariant(params);
-        if (ifaceName.equals(IFACE_MANAGER)) {
-            if (notifName.equals("FoundRenderer")) {
-                onRendererFound(gvParams);
-            } else if (notifName.equals("LostRenderer")) {
-                onRendererLost(gvParams);
-            }
-        } else if (ifaceName.equals(IFACE_DBUS_PROP)) {
-            if (notifName.equals("PropertiesChanged")) {
-                onDBusPropertiesChanged(objPath, gvParams);
+        // Children of the parameters are borrowed, and all released together.
+        GVariantScope scope = GVariantScope.open();
+        try {
+            GVariant gvParams = new GVariant(params);
+            if (ifaceName.equals(IFACE_MANAGER)) {
+                if (notifName.equals("FoundRenderer")) {
+                    onRendererFound(gvParams);
+                } else if (notifName.equals("LostRenderer")) {
+                    onRendererLost(gvParams);
+                }
+            } else if (ifaceName.equals(IFACE_DBUS_PROP)) {
+                if (notifName.equals("PropertiesChanged")) {
+                    onDBusPropertiesChanged(objPath, gvParams);
+                }
             }
+        } finally {
+            scope.close();
         }
-        gvParams.free();
     }
 
     private void onRendererFound(GVariant gvParams) {
         GVariant gvObjPathRenderer = gvParams.getChildAtIndex(0);
-        String objPathRenderer = gvObjPathRenderer.getString();
-        gvObjPathRenderer.free();
+        final String objPathRenderer = gvObjPathRenderer.getString();
         if (LOG) Log.i(TAG, "RendererFound: " + objPathRenderer);
-        int n = clients.beginBroadcast();
-        for (int i = 0; i < n; i++) {
-            try {
-                clients.getBroadcastItem(i).onRendererFound(objPathRenderer);
-            } catch (RemoteException e) {
+        notifier.post(new NotificationDispatcher.Notification<IRendererClient>() {
+            void deliver(IRendererClient client) throws RemoteException {
+                client.onRendererFound(objPathRenderer);
             }
-        }
-        clients.finishBroadcast();
+        });
     }
 
     private void onRendererLost(GVariant gvParams) {
         GVariant gvObjPathRenderer = gvParams.getChildAtIndex(0);
-        String objPathRenderer = gvObjPathRenderer.getString();
-        gvObjPathRenderer.free();
+        final String objPathRenderer = gvObjPathRenderer.getString();
         if (LOG) Log.i(TAG, "RendererLost: " + objPathRenderer);
-        int n = clients.beginBroadcast();
-        for (int i = 0; i < n; i++) {
-            try {
-                clients.getBroadcastItem(i).onRendererLost(objPathRenderer);
-            } catch (RemoteException e) {
+        snapshots.invalidate(objPathRenderer);
+        notifier.post(new NotificationDispatcher.Notification<IRendererClient>() {
+            void deliver(IRendererClient client) throws RemoteException {
+                client.onRendererLost(objPathRenderer);
             }
-        }
-        clients.finishBroadcast();
+        });
     }
 
     private void onDBusPropertiesChanged(String objPath, GVariant gvParams) {
@@ -623,9 +814,10 @@ public class RendererService extends Service implements IConnectorClient {
         if (ifaceName.equals(IFACE_CONTROLLER)) {
             GVariant gvDictionary = gvParams.getChildAtIndex(1);
             onControllerPropertiesChanged(objPath, gvDictionary);
-            gvDictionary.free();
+        } else if (ifaceName.equals(IFACE_DEVICE)) {
+            Object[] args = connector.getSignalCodec(IFACE_DBUS_PROP, "PropertiesChanged").decode(gvParams);
+            snapshots.onPropertiesChanged(objPath, (Bundle) args[1], (String[]) args[2]);
         }
-        gvIface.free();
     }
 
     private void onControllerPropertiesChanged(String objPath, GVariant gvDictionary) {
@@ -636,19 +828,24 @@ public class RendererService extends Service implements IConnectorClient {
             GVariant gvPropValueVariant = gvEntry.getChildAtIndex(1);
             GVariant gvPropValue = gvPropValueVariant.getChildAtIndex(0);
             addControllerProperty(props, gvPropName.getString(), gvPropValue);
-            gvPropValue.free();
-            gvPropValueVariant.free();
-            gvPropName.free();
-            gvEntry.free();
         }
-        int n = clients.beginBroadcast();
-        for (int i = 0; i < n; i++) {
-            try {
-                clients.getBroadcastItem(i).onControllerPropertiesChanged(objPath, props);
-            } catch (RemoteException e) {
-            }
+        notifier.post(new ControllerPropertiesChanged(objPath, props));
+    }
+
+    private static class ControllerPropertiesChanged
+            extends NotificationDispatcher.PropertiesChanged<IRendererClient> {
+
+        ControllerPropertiesChanged(String objectPath, Bundle props) {
+            super(objectPath, props);
+        }
+
+        void deliver(IRendererClient client) throws RemoteException {
+            client.onControllerPropertiesChanged(objectPath, props);
+        }
+
+        NotificationDispatcher.PropertiesChanged<IRendererClient> copy(Bundle props) {
+            return new ControllerPropertiesChanged(objectPath, props);
         }
-        clients.finishBroadcast();
     }
 
     /** Add the controller property with the given name and value to the given bundle. */
@@ -686,7 +883,7 @@ public class RendererService extends Service implements IConnectorClient {
             break;
         case METADATA:
             if (LOG) Log.i(TAG, "CtlrPropChange: " + propName + " BEGIN");
-            bundle.putBundle(propName, makeBundleFromDictionary(gvPropValue));
+            bundle.putBundle(propName, GVariantBundles.makeBundleFromDictionary(gvPropValue));
             if (LOG) Log.i(TAG, "CtlrPropChange: " + propName + " END");
             break;
         case TRANSPORT_PLAY_SPEEDS:
@@ -704,39 +901,10 @@ public class RendererService extends Service implements IConnectorClient {
             Log.e(TAG, "Unknown renderer controller property: " + propName);
             break;
         default:
-            Log.w(TAG, "Unhandled renderer controller property: " + propName);
+            if (!GVariantBundles.putToBundleMaybe(bundle, propName, gvPropValue)) {
+                Log.w(TAG, "Unhandled renderer controller property: " + propName);
+            }
             break;
         }
     }
-
-    private static Bundle makeBundleFromDictionary(GVariant gvDictionary) {
-        Bundle bundle = new Bundle();
-        GVariant gvEntries[] = gvDictionary.getArrayOfGVariant();
-        for (GVariant gvEntry : gvEntries) {
-            GVariant gvEntryName = gvEntry.getChildAtIndex(0);
-            GVariant gvEntryValueVariant = gvEntry.getChildAtIndex(1);
-            GVariant gvEntryValue = gvEntryValueVariant.getChildAtIndex(0);
-            putToBundleMaybe(bundle, gvEntryName.getString(), gvEntryValue);
-            gvEntryValue.free();
-            gvEntryValueVariant.free();
-            gvEntryName.free();
-            gvEntry.free();
-        }
-        return bundle;
-    }
-
-    // Add the (key, value) to the bundle if it's of a type we like.
-    private static void putToBundleMaybe(Bundle bundle, String key, GVariant gvValue) {
-        String type = gvValue.getTypeString();
-        boolean added = false;
-        if (type.equals("o") || type.equals("s")) {
-            bundle.putString(key, gvValue.getString());
-            added = true;
-        } else if (type.equals("x") || type.equals("t")) {
-            bundle.putLong(key, gvValue.getInt64());
-            added = true;
-        }
-        if (LOG) Log.i(TAG, String.format("putToBundle: %s name=%s type=%s",
-                added ? "ADD " : "SKIP", key, type));
-    }
 }
@@ -19,26 +19,46 @@
 
 package com.intel.dleyna;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import android.app.Service;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.DeadObjectException;
 import android.os.IBinder;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.intel.dleyna.Connector.Invocation;
 import com.intel.dleyna.lib.ContainerUpdateId;
 import com.intel.dleyna.lib.DLeynaException;
+import com.intel.dleyna.lib.DeviceSnapshot;
 import com.intel.dleyna.lib.DmsFeature;
 import com.intel.dleyna.lib.Extras;
+import com.intel.dleyna.lib.GVariantReader;
+import com.intel.dleyna.lib.GVariantWriter;
 import com.intel.dleyna.lib.IServerClient;
 import com.intel.dleyna.lib.IServerService;
 import com.intel.dleyna.lib.Icon;
+import com.intel.dleyna.lib.MediaObjectList;
+import com.intel.dleyna.lib.Projection;
 import com.intel.dleyna.lib.ServerControllerProps;
+import com.intel.dleyna.lib.Stats;
 
 public class ServerService extends Service implements IConnectorClient {
 
@@ -59,6 +79,12 @@ public class ServerService extends Service implements IConnectorClient {
     private static final String IFACE_MEDIA_ITEM = "org.gnome.MediaItem2";
     private static final String IFACE_DBUS_PROP  = "org.freedesktop.DBus.Properties";
 
+    /** How long we wait for a device to respond to a method call, in ms. */
+    private static final long DEFAULT_TIMEOUT = 30000;
+
+    /** Browsing and searching a big container can legitimately take longer. */
+    private static final long CONTAINER_TIMEOUT = 60000;
+
     private Thread daemonThread;
 
     private Connector connector;
@@ -66,9 +92,100 @@ public class ServerService extends Service implements IConnectorClient {
     private RemoteCallbackList<IServerClient> clients =
             new RemoteCallbackList<IServerClient>();
 
+    /** Delivers notifications to the clients, so the daemon thread needn't wait for them. */
+    private final NotificationDispatcher<IServerClient> notifier =
+            new NotificationDispatcher<IServerClient>(clients);
+
+    /** Decodes and delivers the results of asynchronous calls, off the daemon thread. */
+    private final Executor replyExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * The read-only methods whose identical concurrent calls share one invocation by default,
+     * as "interface.method" strings. Anything with side effects must stay out of here.
+     */
+    private static final List<String> DEFAULT_COALESCED_METHODS = Arrays.asList(
+            IFACE_DBUS_PROP + ".Get",
+            IFACE_MANAGER + ".GetServers",
+            IFACE_DEVICE + ".BrowseObjects",
+            IFACE_CONTAINER + ".ListChildrenEx",
+            IFACE_CONTAINER + ".SearchObjectsEx",
+            IFACE_MEDIA_OBJECT + ".GetMetaData");
+
+    /**
+     * The methods whose calls are coalesced now; see {@link #dump} to change them.
+     * A method known to have side effects on some server can be taken out at run time.
+     */
+    private final Set<String> coalescedMethods = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+    {
+        coalescedMethods.addAll(DEFAULT_COALESCED_METHODS);
+    }
+
+    /** Each waiter gets its own reference, which it frees as usual. */
+    private final SingleFlight<GVariant> variantFlights = new SingleFlight<GVariant>(coalescedMethods) {
+        protected GVariant share(GVariant result) {
+            return result == null ? null : new GVariant(result.getPeer());
+        }
+    };
+    private final SingleFlight<Bundle[]> bundleArrayFlights = new SingleFlight<Bundle[]>(coalescedMethods);
+    private final SingleFlight<MediaObjectList> mediaObjectListFlights = new SingleFlight<MediaObjectList>(coalescedMethods);
+    private final SingleFlight<String[]> stringArrayFlights = new SingleFlight<String[]>(coalescedMethods);
+    private final SingleFlight<String> stringFlights = new SingleFlight<String>(coalescedMethods);
+
+    private final SingleFlight<?>[] allFlights = new SingleFlight<?>[] {
+        variantFlights, bundleArrayFlights, mediaObjectListFlights, stringArrayFlights, stringFlights };
+
+    /** How many items getChildren browses with each BrowseObjects call, by default. */
+    private static final int DEFAULT_BROWSE_BATCH_SIZE = 64;
+
+    /** The item properties getChildren needs. */
+    private static final String[] ITEM_FILTER = new String[] {
+        "DisplayName", "URLs", "AlbumArtURL", "MIMEType" };
+
+    /** How many items getChildren browses with each BrowseObjects call. */
+    private volatile int browseBatchSize = DEFAULT_BROWSE_BATCH_SIZE;
+
+    /** How the last getChildren went, for dumpsys; or null if there's been none. */
+    private volatile String lastGetChildren;
+
+    /** The most bytes of container listings to keep. */
+    private static final int LISTING_CACHE_BYTES = 4 * 1024 * 1024;
+
+    private final ListingCache listings = new ListingCache(LISTING_CACHE_BYTES);
+
+    /** Where, under the home directory, listings are kept across runs. */
+    private static final String DISK_CACHE_DIR_BASENAME = "listings";
+
+    /** The most bytes of listings to keep on disk for each server. */
+    private static final int DISK_CACHE_FILE_BYTES = 8 * 1024 * 1024;
+
+    private final DiskListingCache disk;
+
+    /** Whether listings are served from disk; they're kept up to date there regardless. */
+    private volatile boolean diskCacheEnabled = true;
+
+    /** The most objects to index. */
+    private static final int INDEX_MAX_OBJECTS = 200000;
+
+    private final MediaIndex index = new MediaIndex(INDEX_MAX_OBJECTS);
+
+    /** Updates the index in order, off the binder threads. */
+    private final Executor indexExecutor = Executors.newSingleThreadExecutor();
+
+    /** SortCaps and SearchCaps, by server object path. */
+    private final ConcurrentHashMap<String, String[]> sortCaps = new ConcurrentHashMap<String, String[]>();
+    private final ConcurrentHashMap<String, String[]> searchCaps = new ConcurrentHashMap<String, String[]>();
+
+    private final DeviceSnapshots snapshots = new DeviceSnapshots();
+
+    private final Crawler crawler;
+
     public ServerService() {
         JNI.initialize(JNI.SERVER_CONF_FILENAME);
         JNI.cleanTempDir();
+        disk = new DiskListingCache(new File(JNI.getHomeDirName(), DISK_CACHE_DIR_BASENAME),
+                DISK_CACHE_FILE_BYTES, diskSource);
+        crawler = new Crawler(crawlerSource);
         // FIXME: move the call to cleanTempDir() into the Application instance
         // of the service app when we split things up someday. You can't just
         // call it from each service process.
@@ -77,7 +194,13 @@ public class ServerService extends Service implements IConnectorClient {
     public IBinder onBind(Intent intent) {
         if (LOG) Log.i(TAG, "onBind");
 
-        connector = new Connector(this, MANAGER_OBJECT_PATH, IFACE_MANAGER);
+        connector = new Connector(this, MANAGER_OBJECT_PATH, IFACE_MANAGER, IFACE_DEVICE);
+        connector.setDefaultTimeout(DEFAULT_TIMEOUT);
+        connector.setDefaultTimeout(IFACE_CONTAINER, CONTAINER_TIMEOUT);
+        // Keep big listings from holding up transport commands and property reads.
+        connector.setLane(IFACE_CONTAINER, "ListChildrenEx", GMainLoop.LANE_BULK);
+        connector.setLane(IFACE_CONTAINER, "SearchObjectsEx", GMainLoop.LANE_BULK);
+        connector.setLane(IFACE_DEVICE, "BrowseObjects", GMainLoop.LANE_BULK);
 
         // Create and start the daemon thread.
         daemonThread = new Thread(daemonRunnable, DAEMON_THREAD_NAME);
@@ -104,6 +227,81 @@ public class ServerService extends Service implements IConnectorClient {
         return false;
     }
 
+    /**
+     * Print the dispatch statistics, for
+     * "adb shell dumpsys activity service com.intel.dleyna.ServerService".
+     * Append "enable", "disable" or "reset" to control the per-method statistics first,
+     * or "sites" or "nosites" to start or stop recording where native peers are allocated,
+     * or "batch=N" to have getChildren browse N items per BrowseObjects call
+     * (the time the last getChildren took is shown, so batch=1, as it was before batching,
+     * can be compared with the default),
+     * or "disk" or "nodisk" to start or stop serving listings kept on disk,
+     * or "bench" to measure the invocation table under contention (which takes a few seconds),
+     * or "decodebench" to measure decoding listings against the per-entry JNI decoding it replaced,
+     * or "indexbench" to measure building and querying an index of made-up objects,
+     * or "coalesce=I.M" or "nocoalesce=I.M" to start or stop sharing identical concurrent calls
+     * of method M of interface I.
+     */
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        Connector c = connector;
+        if (c == null) {
+            pw.println("Not bound");
+            return;
+        }
+        if (args != null) {
+            for (String arg : args) {
+                if ("enable".equals(arg)) {
+                    c.setStatsEnabled(true);
+                } else if ("disable".equals(arg)) {
+                    c.setStatsEnabled(false);
+                } else if ("reset".equals(arg)) {
+                    c.resetStats();
+                    NativePeers.resetSites();
+                    listings.resetStats();
+                    disk.resetStats();
+                    index.resetStats();
+                    for (SingleFlight<?> flights : allFlights) {
+                        flights.resetStats();
+                    }
+                } else if ("sites".equals(arg)) {
+                    NativePeers.setTrackSites(true);
+                } else if ("nosites".equals(arg)) {
+                    NativePeers.setTrackSites(false);
+                } else if (arg.startsWith("coalesce=")) {
+                    coalescedMethods.add(arg.substring("coalesce=".length()));
+                } else if (arg.startsWith("nocoalesce=")) {
+                    coalescedMethods.remove(arg.substring("nocoalesce=".length()));
+                } else if ("bench".equals(arg)) {
+                    InvocationTableBenchmark.run(pw);
+                } else if ("decodebench".equals(arg)) {
+                    DecodeBenchmark.run(pw);
+                } else if ("indexbench".equals(arg)) {
+                    IndexBenchmark.run(pw);
+                } else if ("disk".equals(arg)) {
+                    diskCacheEnabled = true;
+                } else if ("nodisk".equals(arg)) {
+                    diskCacheEnabled = false;
+                } else if (arg.startsWith("batch=")) {
+                    try {
+                        browseBatchSize = Math.max(1, Integer.parseInt(arg.substring("batch=".length())));
+                    } catch (NumberFormatException e) {
+                        pw.println("Bad batch size: " + arg);
+                    }
+                } else {
+                    pw.println("Unknown argument: " + arg);
+                }
+            }
+        }
+        c.dumpStats(pw);
+        pw.println("getChildren: " + (lastGetChildren != null ? lastGetChildren : "none yet"));
+        pw.println("Coalesced calls: shared=" + getSharedCount() + " retried=" + getRetriedCount()
+                + " methods=" + coalescedMethods);
+        listings.dump(pw);
+        disk.dump(pw);
+        index.dump(pw);
+        crawler.dump(pw);
+    }
+
     private Runnable daemonRunnable = new Runnable() {
         public void run() {
             if (LOG) Log.i(TAG, Thread.currentThread().getName() + ": entering");
@@ -144,20 +342,34 @@ public class ServerService extends Service implements IConnectorClient {
          | ServerManager |
          +---------------*/
 
-        public String[] getServers(IServerClient client, Bundle extras) {
-            String[] result = null;
-            RemoteObject mo = connector.getRemoteObject(MANAGER_OBJECT_PATH, IFACE_MANAGER);
-            if (mo != null) {
-                Invocation invo = connector.dispatch(client, MANAGER_OBJECT_PATH, mo, IFACE_MANAGER, "GetServers", null);
-                if (invo.success) {
-                    result = invo.result.getArrayOfString();
-                    invo.result.free();
-                } else {
-                    extras.putInt(Extras.KEY_ERR_CODE, invo.errCode);
-                    extras.putString(Extras.KEY_ERR_MSG, invo.errMessage);
+        public String[] getServers(final IServerClient client, Bundle extras) {
+            return stringArrayFlights.run(IFACE_MANAGER, "GetServers", MANAGER_OBJECT_PATH, "", extras,
+                    new SingleFlight.Call<String[]>() {
+                public String[] call(Bundle extras) {
+                    String[] result = null;
+                    RemoteObject mo = connector.getRemoteObject(MANAGER_OBJECT_PATH, IFACE_MANAGER);
+                    if (mo != null) {
+                        Invocation invo = connector.dispatch(client, MANAGER_OBJECT_PATH, mo, IFACE_MANAGER, "GetServers", null);
+                        if (invo.success) {
+                            long decodeStart = connector.startDecode();
+                            result = invo.result.getArrayOfString();
+                            connector.endDecode(IFACE_MANAGER, "GetServers", decodeStart);
+                            invo.result.free();
+                            if (diskCacheEnabled) {
+                                // Have the servers' disk caches ready for their first browse.
+                                for (String serverPath : result) {
+                                    disk.open(client, serverPath);
+                                }
+                            }
+                        } else {
+                            extras.putInt(Extras.KEY_ERR_CODE, invo.errCode);
+                            extras.putString(Extras.KEY_ERR_MSG, invo.errMessage);
+                        }
+                        invo.recycle();
+                    }
+                    return result;
                 }
-            }
-            return result;
+            });
         }
 
         public void rescan(IServerClient client, Bundle extras) {
@@ -168,9 +380,29 @@ public class ServerService extends Service implements IConnectorClient {
                     extras.putInt(Extras.KEY_ERR_CODE, invo.errCode);
                     extras.putString(Extras.KEY_ERR_MSG, invo.errMessage);
                 }
+                invo.recycle();
             }
         }
 
+        public Bundle getStats() {
+            Bundle b = connector.getStats();
+            b.putLong(Stats.KEY_SHARED_CALLS, getSharedCount());
+            b.putLong(Stats.KEY_RETRIED_SHARED_CALLS, getRetriedCount());
+            listings.toBundle(b);
+            index.toBundle(b);
+            return b;
+        }
+
+        public MediaObjectList searchIndex(IServerClient client, String objectPath, String query, int max,
+                Bundle extras) {
+            if (query == null) {
+                extras.putInt(Extras.KEY_ERR_CODE, DLeynaException.ERR_BAD_QUERY);
+                extras.putString(Extras.KEY_ERR_MSG, "No query");
+                return null;
+            }
+            return index.search(objectPath, query, max);
+        }
+
         public String getVersion(IServerClient client, Bundle extras) {
             String result = null;
             RemoteObject mo = connector.getRemoteObject(MANAGER_OBJECT_PATH, IFACE_MANAGER);
@@ -183,6 +415,7 @@ public class ServerService extends Service implements IConnectorClient {
                     extras.putInt(Extras.KEY_ERR_CODE, invo.errCode);
                     extras.putString(Extras.KEY_ERR_MSG, invo.errMessage);
                 }
+                invo.recycle();
             }
             return result;
         }
@@ -288,6 +521,36 @@ public class ServerService extends Service implements IConnectorClient {
             return null;
         }
 
+        public DeviceSnapshot getDeviceSnapshot(final IServerClient client, String objectPath, Bundle extras) {
+            return snapshots.get(objectPath, new DeviceSnapshots.Fetcher() {
+                public Bundle fetch(String objectPath, Bundle extras) {
+                    // On a cold start, what's on disk will do until it's been revalidated.
+                    Bundle props = diskCacheEnabled ? disk.getDeviceProperties(client, objectPath) : null;
+                    if (props == null) {
+                        props = getAllDBusProperties(client, objectPath, IFACE_DEVICE, extras);
+                        if (props != null && disk.putDeviceProperties(objectPath, props)) {
+                            onDiskListingsStale(objectPath, props);
+                        }
+                    }
+                    return props;
+                }
+            }, extras);
+        }
+
+        public void startCrawl(IServerClient client, String objectPath, int concurrency, int requestsPerSecond,
+                Bundle extras) {
+            if (!objectPath.equals(DiskListingCache.getServerPath(objectPath))) {
+                extras.putInt(Extras.KEY_ERR_CODE, DLeynaException.ERR_BAD_PATH);
+                extras.putString(Extras.KEY_ERR_MSG, "Not a server: " + objectPath);
+                return;
+            }
+            crawler.start(client, objectPath, concurrency, requestsPerSecond);
+        }
+
+        public void stopCrawl(IServerClient client, String objectPath, Bundle extras) {
+            crawler.stop(objectPath);
+        }
+
         public void cancel(IServerClient client, String objectPath, Bundle extras) {
             RemoteObject ro = connector.getRemoteObject(objectPath, IFACE_DEVICE);
             if (ro != null) {
@@ -297,13 +560,25 @@ public class ServerService extends Service implements IConnectorClient {
                     extras.putInt(Extras.KEY_ERR_CODE, invo.errCode);
                     extras.putString(Extras.KEY_ERR_MSG, invo.errMessage);
                 }
+                invo.recycle();
             }
         }
 
-        public Bundle[] browseObjects(IServerClient client, String objectPath, Bundle extras) {
-            String[] objectPaths = new String[] { objectPath };
-            String[] filters = new String[] { "*" };
-            return doBundleArrayMethodStringArrayStringArray(client, objectPath, IFACE_DEVICE, "BrowseObjects", objectPaths, filters, extras);
+        public MediaObjectList browseObjects(IServerClient client, String objectPath, String[] objectPaths,
+                String[] filter, Bundle extras) {
+            if (filter == null) {
+                filter = Projection.FULL;
+            }
+            return doMediaObjectListMethod(client, objectPath, IFACE_DEVICE, "BrowseObjects", new Object[] { objectPaths, filter }, extras);
+        }
+
+        public void browseObjectsAsync(IServerClient client, int token, String objectPath,
+                String[] objectPaths, String[] filter) {
+            if (filter == null) {
+                filter = Projection.FULL;
+            }
+            doMediaObjectListMethodAsync(client, objectPath, IFACE_DEVICE, "BrowseObjects",
+                    new Object[] { objectPaths, filter }, new MediaObjectListReply(client, token));
         }
 
         // TODO: ?
@@ -312,15 +587,65 @@ public class ServerService extends Service implements IConnectorClient {
          | IMediaContainer2 |
          +------------------*/
 
-        public Bundle[] listChildrenEx(IServerClient client, String objectPath, Bundle extras) {
-            String[] filters = new String[] { "*" };
-            return doBundleArrayMethodIntIntStringArrayString(client, objectPath, IFACE_CONTAINER, "ListChildrenEx", 0, 0, filters, "+DisplayName", extras);
+        public MediaObjectList listChildrenEx(IServerClient client, String objectPath, int offset, int max,
+                String[] filter, String sortBy, Bundle extras) {
+            if (filter == null) {
+                filter = Projection.FULL;
+            }
+            if (sortBy == null) {
+                sortBy = "";
+            }
+            if (!checkSortBy(client, objectPath, sortBy, extras)) {
+                return null;
+            }
+            return listChildren(client, objectPath, offset, max, filter, sortBy, extras);
         }
 
-        public Bundle[] searchObjectsEx(IServerClient client, String objectPath, Bundle extras) {
-            String query = "*";
-            String[] filters = new String[] { "*" };
-            return doBundleArrayMethodStringIntIntStringArrayString(client, objectPath, IFACE_CONTAINER, "SearchObjectsEx", query, 0, 0, filters, "+DisplayName", extras);
+        public MediaObjectList searchObjectsEx(IServerClient client, String objectPath, String query, int offset, int max,
+                String[] filter, String sortBy, Bundle extras) {
+            if (query == null) {
+                query = "*";
+            }
+            if (filter == null) {
+                filter = Projection.FULL;
+            }
+            if (sortBy == null) {
+                sortBy = "";
+            }
+            if (!checkSortBy(client, objectPath, sortBy, extras) || !checkQuery(client, objectPath, query, extras)) {
+                return null;
+            }
+            return doMediaObjectListMethod(client, objectPath, IFACE_CONTAINER, "SearchObjectsEx", new Object[] { query, offset, max, filter, sortBy }, extras);
+        }
+
+        public void listChildrenExAsync(final IServerClient client, int token, final String objectPath,
+                final int offset, final int max, String[] filter, String sortBy) {
+            final String[] f = filter == null ? Projection.FULL : filter;
+            final String s = sortBy == null ? "" : sortBy;
+            final MediaObjectListReply reply = new MediaObjectListReply(client, token);
+            checkSortByAsync(client, objectPath, s, reply, new Runnable() {
+                public void run() {
+                    listChildrenAsync(client, objectPath, offset, max, f, s, reply);
+                }
+            });
+        }
+
+        public void searchObjectsExAsync(final IServerClient client, int token, final String objectPath,
+                String query, final int offset, final int max, String[] filter, String sortBy) {
+            final String q = query == null ? "*" : query;
+            final String[] f = filter == null ? Projection.FULL : filter;
+            final String s = sortBy == null ? "" : sortBy;
+            final MediaObjectListReply reply = new MediaObjectListReply(client, token);
+            checkSortByAsync(client, objectPath, s, reply, new Runnable() {
+                public void run() {
+                    checkQueryAsync(client, objectPath, q, reply, new Runnable() {
+                        public void run() {
+                            doMediaObjectListMethodAsync(client, objectPath, IFACE_CONTAINER, "SearchObjectsEx",
+                                    new Object[] { q, offset, max, f, s }, reply);
+                        }
+                    });
+                }
+            });
         }
 
         // TODO: ?
@@ -333,6 +658,11 @@ public class ServerService extends Service implements IConnectorClient {
             return doStringMethodVoid(client, objectPath, IFACE_MEDIA_OBJECT, "GetMetaData", extras);
         }
 
+        public void getMetadataAsync(IServerClient client, int token, String objectPath) {
+            doMethodAsync(client, objectPath, IFACE_MEDIA_OBJECT, "GetMetaData", null,
+                    new StringReply(client, token));
+        }
+
         // TODO: ?
 
         /*-------------------+
@@ -345,34 +675,41 @@ public class ServerService extends Service implements IConnectorClient {
          | IServerDemo |
          +-------------*/
 
-        public Bundle[] getChildren(IServerClient client, String objectPath, Bundle extras) {
+        public MediaObjectList getChildrenList(IServerClient client, String objectPath, Bundle extras) {
             if (LOG) Log.i(TAG, "GetChildren for path = " + objectPath);
+            int batchSize = browseBatchSize;
+            long start = SystemClock.uptimeMillis();
             List<Bundle> childList = getChildren(client, objectPath, extras, true);
+            lastGetChildren = childList.size() + " children in " + (SystemClock.uptimeMillis() - start)
+                    + " ms, browsing items in batches of " + batchSize;
             if (LOG) Log.i(TAG, "GetChildren size = " + childList.size());
-            return childList.toArray(new Bundle[childList.size()]);
+            // Serialized like the other lists, so a big one goes through a pipe.
+            return new MediaObjectList(new GVariantWriter().write("aa{sv}", childList));
         }
 
         private final String[] filters = new String[] { "DisplayName", "Path", "Type" };
         private List<Bundle> getChildren(IServerClient client, String objectPath, Bundle extras, boolean useContainerMethod) {
             List<Bundle> childList = new ArrayList<Bundle>();
             try {
-                String methodName = "ListChildrenEx";
-                Bundle[] children = doBundleArrayMethodIntIntStringArrayString(client, objectPath, IFACE_CONTAINER, methodName, 0, 0, filters, "+DisplayName", extras);
+                Bundle[] children = toBundles(listChildren(client, objectPath, 0, 0, filters, "+DisplayName", extras));
+                List<String> itemPaths = new ArrayList<String>();
                 for (Bundle child : children) {
-                    String path = null;
-                    String name = null;
-                    boolean isContainer = false;
-                    for (String key : child.keySet()) {
-                        if (key.equalsIgnoreCase("path")) {
-                            path = child.getString(key);
-                        } else if (key.equalsIgnoreCase("displayname")) {
-                            name = child.getString(key);
-                        } else if (key.equalsIgnoreCase("type")) {
-                            isContainer = child.getString(key).equalsIgnoreCase("container");
-                        } else {
-                            // future ?
+                    if (!isContainer(child)) {
+                        String path = getStringIgnoringCase(child, "Path");
+                        if (LOG) {
+                            // Only wanted for the log.
+                            String metadata = getMetadata(client, path, extras);
+                            Log.d(TAG, "Media name = " + getStringIgnoringCase(child, "DisplayName"));
+                            Log.d(TAG, "\tmetadata: " + metadata);
                         }
+                        itemPaths.add(path);
                     }
+                }
+                Map<String, Bundle> items = browseItems(client, objectPath, itemPaths, extras);
+                for (Bundle child : children) {
+                    String path = getStringIgnoringCase(child, "Path");
+                    String name = getStringIgnoringCase(child, "DisplayName");
+                    boolean isContainer = isContainer(child);
                     if (LOG) Log.d(TAG, "Examining child: " + name + ", isContainer: " + isContainer);
 
                     if (isContainer) {
@@ -381,48 +718,11 @@ public class ServerService extends Service implements IConnectorClient {
                         bundleToAdd.putString("DisplayName", name);
                         bundleToAdd.putBoolean("Container", Boolean.TRUE);
                         childList.add(bundleToAdd);
-
                     } else {
-                        try {
-                            String metadata = getMetadata(client, path, extras);
-                            if (LOG) {
-                                Log.d(TAG, "Media name = " + name);
-                                Log.d(TAG, "\tmetadata: " + metadata);
-                            }
-                            Bundle[] objects = browseObjects(client, path, extras);
-                            if (LOG) {
-                                Log.d(TAG, "Media name = " + name);
-                                Log.d(TAG, "\tBrowsed objects: " + objects);
-                            }
-                            for (Bundle object : objects) {
-                                if (LOG) {
-                                    Log.d(TAG, "\t\tBrowsed object: " + object);
-                                    for (String key : object.keySet()) {
-                                        Log.d(TAG, "\t\t\t" + key + " --> " + object.get(key));
-                                        if (object.get(key) instanceof String[]) {
-                                            for (String string : (String[])object.get(key)) {
-                                                Log.d(TAG, "\t\t\t\t" + string);
-                                            }
-                                        }
-                                        if (object.get(key) instanceof Bundle[]) {
-                                            for (Bundle bundle : (Bundle[])object.get(key)) {
-                                                Log.d(TAG, "\t\t\t\t" + bundle);
-                                            }
-                                        }
-                                    }
-                                }
-
-                                // TODO: might need another way to keep bundle size small enough for transaction
-                                Bundle bundleToAdd = new Bundle();
-                                bundleToAdd.putString("ObjectPath", path);
-                                bundleToAdd.putString("DisplayName", object.getString("DisplayName"));
-                                bundleToAdd.putStringArray("URLs", object.getStringArray("URLs"));
-                                bundleToAdd.putString("AlbumArtURL", object.getString("AlbumArtURL"));
-                                bundleToAdd.putString("MIMEType", object.getString("MIMEType"));
-                                childList.add(bundleToAdd);
-                            }
-                        } catch (Exception e) {
-                            Log.e(TAG, "\tBrowsed objects exception: " + e.getMessage());
+                        // Items we couldn't browse are left out.
+                        Bundle item = items.get(path);
+                        if (item != null) {
+                            childList.add(item);
                         }
                     }
                 }
@@ -432,31 +732,237 @@ public class ServerService extends Service implements IConnectorClient {
             return childList;
         }
 
+        private boolean isContainer(Bundle child) {
+            String type = getStringIgnoringCase(child, "Type");
+            return type != null && type.equalsIgnoreCase("container");
+        }
+
+        private String getStringIgnoringCase(Bundle bundle, String key) {
+            for (String k : bundle.keySet()) {
+                if (k.equalsIgnoreCase(key)) {
+                    return bundle.getString(k);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Get the properties of a container's items, with one BrowseObjects call per batch of them.
+         * @return the items' properties, as getChildren returns them, by path;
+         * items that can't be browsed are left out
+         */
+        private Map<String, Bundle> browseItems(IServerClient client, String objectPath, List<String> itemPaths,
+                Bundle extras) {
+            Map<String, Bundle> items = new HashMap<String, Bundle>();
+            int batchSize = browseBatchSize;
+            for (int from = 0; from < itemPaths.size(); from += batchSize) {
+                int to = Math.min(from + batchSize, itemPaths.size());
+                String[] paths = itemPaths.subList(from, to).toArray(new String[to - from]);
+                try {
+                    // One dictionary per path, in the same order.
+                    Bundle[] objects = doBundleArrayMethod(client, objectPath, IFACE_DEVICE, "BrowseObjects",
+                            new Object[] { paths, ITEM_FILTER }, extras);
+                    if (objects == null) {
+                        continue;
+                    }
+                    if (LOG) Log.d(TAG, "Browsed " + objects.length + " of " + paths.length + " objects");
+                    for (int i = 0; i < objects.length && i < paths.length; i++) {
+                        Bundle object = objects[i];
+                        if (LOG) Log.d(TAG, "\t\tBrowsed object: " + object);
+                        if (object.containsKey("Error")) {
+                            Log.e(TAG, "\tBrowsed object error: " + paths[i]);
+                            continue;
+                        }
+                        Bundle bundleToAdd = new Bundle();
+                        bundleToAdd.putString("ObjectPath", paths[i]);
+                        bundleToAdd.putString("DisplayName", object.getString("DisplayName"));
+                        bundleToAdd.putStringArray("URLs", object.getStringArray("URLs"));
+                        bundleToAdd.putString("AlbumArtURL", object.getString("AlbumArtURL"));
+                        bundleToAdd.putString("MIMEType", object.getString("MIMEType"));
+                        items.put(paths[i], bundleToAdd);
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "\tBrowsed objects exception: " + e.getMessage());
+                }
+            }
+            return items;
+        }
+
         // TODO: ?
     };
 
     /*--------------------*/
 
+    /**
+     * Check that the server can sort by each property of a sort order.
+     * If it can't, or we can't tell, put an error in the extras.
+     * @return whether it can
+     */
+    private boolean checkSortBy(IServerClient client, String objectPath, String sortBy, Bundle extras) {
+        if (sortBy.length() == 0) {
+            return true;
+        }
+        String[] caps = getCaps(client, objectPath, "SortCaps", sortCaps, extras);
+        return caps != null && checkSortBy(sortBy, caps, extras);
+    }
+
+    private static boolean checkSortBy(String sortBy, String[] caps, Bundle extras) {
+        String key = Caps.findUnsupportedSortKey(sortBy, caps);
+        if (key != null) {
+            extras.putInt(Extras.KEY_ERR_CODE, DLeynaException.ERR_NOT_SUPPORTED);
+            extras.putString(Extras.KEY_ERR_MSG, "Can't sort by " + key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check that the server can search on each property of a query.
+     * If it can't, or we can't tell, put an error in the extras.
+     * @return whether it can
+     */
+    private boolean checkQuery(IServerClient client, String objectPath, String query, Bundle extras) {
+        if (query.equals("*")) {
+            return true;
+        }
+        String[] caps = getCaps(client, objectPath, "SearchCaps", searchCaps, extras);
+        return caps != null && checkQuery(query, caps, extras);
+    }
+
+    private static boolean checkQuery(String query, String[] caps, Bundle extras) {
+        String property = Caps.findUnsupportedSearchProperty(query, caps);
+        if (property != null) {
+            extras.putInt(Extras.KEY_ERR_CODE, DLeynaException.ERR_BAD_QUERY);
+            extras.putString(Extras.KEY_ERR_MSG, "Can't search on " + property);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get a server's SortCaps or SearchCaps, which we keep until the server is lost.
+     * @param objectPath the server, or any object on it
+     * @return the capabilities, or null, with an error in the extras, if we can't get them
+     */
+    private String[] getCaps(IServerClient client, String objectPath, String propName,
+            ConcurrentHashMap<String, String[]> cache, Bundle extras) {
+        RemoteObject ro = connector.getRemoteObject(objectPath, IFACE_DEVICE);
+        if (ro == null) {
+            extras.putInt(Extras.KEY_ERR_CODE, DLeynaException.ERR_DEVICE_NOT_FOUND);
+            extras.putString(Extras.KEY_ERR_MSG, "No server for " + objectPath);
+            return null;
+        }
+        String[] caps = cache.get(ro.objectPath);
+        if (caps == null) {
+            caps = getArrayOfStringDBusProperty(client, ro.objectPath, IFACE_DEVICE, propName, extras);
+            if (caps != null) {
+                cache.put(ro.objectPath, caps);
+            }
+        }
+        return caps;
+    }
+
+    /**
+     * Like {@link #checkSortBy}, for an asynchronous call: carry on with it if the server
+     * can sort that way, or else send the error.
+     */
+    private void checkSortByAsync(IServerClient client, String objectPath, final String sortBy,
+            final MediaObjectListReply reply, final Runnable next) {
+        if (sortBy.length() == 0) {
+            next.run();
+            return;
+        }
+        getCapsAsync(client, objectPath, "SortCaps", sortCaps, new CapsCallback() {
+            public void onCaps(String[] caps, Bundle extras) {
+                if (caps != null && checkSortBy(sortBy, caps, extras)) {
+                    next.run();
+                } else {
+                    reply.deliver(null, extras);
+                }
+            }
+        });
+    }
+
+    /**
+     * Like {@link #checkQuery}, for an asynchronous call: carry on with it if the server
+     * can search on the query's properties, or else send the error.
+     */
+    private void checkQueryAsync(IServerClient client, String objectPath, final String query,
+            final MediaObjectListReply reply, final Runnable next) {
+        if (query.equals("*")) {
+            next.run();
+            return;
+        }
+        getCapsAsync(client, objectPath, "SearchCaps", searchCaps, new CapsCallback() {
+            public void onCaps(String[] caps, Bundle extras) {
+                if (caps != null && checkQuery(query, caps, extras)) {
+                    next.run();
+                } else {
+                    reply.deliver(null, extras);
+                }
+            }
+        });
+    }
+
+    /** Receives a server's capabilities, got asynchronously. */
+    private interface CapsCallback {
+        /**
+         * @param caps the capabilities, or null, with an error in the extras, if we can't get them
+         */
+        void onCaps(String[] caps, Bundle extras);
+    }
+
+    /**
+     * Like {@link #getCaps}, without waiting for the server. The callback is called
+     * at once if we have the capabilities, or else on the reply executor.
+     */
+    private void getCapsAsync(IServerClient client, String objectPath, String propName,
+            final ConcurrentHashMap<String, String[]> cache, final CapsCallback callback) {
+        RemoteObject ro = connector.getRemoteObject(objectPath, IFACE_DEVICE);
+        RemoteObject po = ro == null ? null : connector.getRemoteObject(ro.objectPath, IFACE_DBUS_PROP);
+        if (po == null) {
+            Bundle extras = new Bundle();
+            extras.putInt(Extras.KEY_ERR_CODE, DLeynaException.ERR_DEVICE_NOT_FOUND);
+            extras.putString(Extras.KEY_ERR_MSG, "No server for " + objectPath);
+            callback.onCaps(null, extras);
+            return;
+        }
+        final String serverPath = ro.objectPath;
+        String[] caps = cache.get(serverPath);
+        if (caps != null) {
+            callback.onCaps(caps, new Bundle());
+            return;
+        }
+        GVariant args = GVariant.newTupleStringString(IFACE_DEVICE, propName);
+        connector.dispatchAsync(client, serverPath, po, IFACE_DBUS_PROP, "Get", args, new Reply(client, 0) {
+            protected void send(GVariant gvResult, Bundle extras) {
+                String[] caps = null;
+                if (gvResult != null) {
+                    GVariant gvCaps = gvResult.getChildAtIndex(0);
+                    caps = gvCaps.getArrayOfString();
+                    gvCaps.free();
+                    cache.put(serverPath, caps);
+                }
+                callback.onCaps(caps, extras);
+            }
+        });
+    }
+
     private DmsFeature[] getArrayOfDmsFeatureDBusProperty(IServerClient client, String objectPath, String iface,
             String propName, Bundle extras) {
         DmsFeature[] result = null;
         GVariant gvResult = getDBusProperty(client, objectPath, iface, propName, extras);
         if (gvResult != null) {
             if (LOG) Log.i(TAG, "getArrayOfDmsFeatureDBusProperty: type = " + gvResult.getTypeString());
-            // expecting type "a(ssao)"
-            List<DmsFeature> features = new ArrayList<DmsFeature>();
-            GVariant[] gvFeatures = gvResult.getArrayOfGVariant();
-            for (GVariant gvFeature : gvFeatures) {
-                GVariant gvName = gvFeature.getChildAtIndex(0);
-                GVariant gvVersion = gvFeature.getChildAtIndex(1);
-                GVariant gvObjectPaths = gvFeature.getChildAtIndex(2);
-                String name = gvName.getString();
-                String version = gvVersion.getString();
-                String[] objectPaths = gvObjectPaths.getArrayOfString();
-                gvName.free();
-                gvVersion.free();
-                gvObjectPaths.free();
-                gvFeature.free();
+            long decodeStart = connector.startDecode();
+            Object[] values = (Object[]) connector.getPropertyCodec(iface, propName).decodeValue(gvResult);
+            connector.endDecode(iface, propName, decodeStart);
+            List<DmsFeature> features = new ArrayList<DmsFeature>(values.length);
+            for (Object value : values) {
+                Object[] feature = (Object[]) value;
+                String name = (String) feature[0];
+                String version = (String) feature[1];
+                String[] objectPaths = (String[]) feature[2];
                 if (LOG) Log.i(TAG, "Feature: name = " + name + ", version = " + version + "objectPaths = " + objectPaths);
                 features.add(new DmsFeature(name, version, objectPaths));
             }
@@ -551,31 +1057,32 @@ public class ServerService extends Service implements IConnectorClient {
         Bundle result = null;
         GVariant gvResult = getDBusProperty(client, objectPath, iface, propName, extras);
         if (gvResult != null) {
-            result = makeBundleFromDictionary(gvResult);
+            result = GVariantBundles.makeBundleFromDictionary(gvResult);
             gvResult.free();
         }
         if (LOG) Log.i(TAG, "getDictDBusProp: result=" + result);
         return result;
     }
 
+    private Bundle getAllDBusProperties(IServerClient client, String objectPath, String iface,
+            Bundle extras) {
+        if (LOG) Log.i(TAG, String.format("getAllDBusProps: obj=%s iface=%s", objectPath, iface));
+        Bundle result = null;
+        MethodCodec codec = connector.getMethodCodec(IFACE_DBUS_PROP, "GetAll");
+        GVariant args = codec.encode(iface);
+        GVariant gvResult = doMethod(client, objectPath, IFACE_DBUS_PROP, "GetAll", args, extras);
+        args.free();
+        if (gvResult != null) {
+            result = (Bundle) codec.decode(gvResult)[0];
+            gvResult.free();
+        }
+        return result;
+    }
+
     private GVariant getDBusProperty(IServerClient client, String objectPath, String iface,
             String propName, Bundle extras) {
         if (LOG) Log.i(TAG, String.format("getDBusProp: prop=%s obj=%s iface=%s", propName, objectPath, iface));
-        GVariant result = null;
-        RemoteObject ro = connector.getRemoteObject(objectPath, IFACE_DBUS_PROP);
-        if (ro != null) {
-            GVariant args = GVariant.newTupleStringString(iface, propName);
-            Invocation invo = connector.dispatch(client, objectPath, ro, IFACE_DBUS_PROP, "Get", args);
-            args.free();
-            if (invo.success) {
-                result = invo.result.getChildAtIndex(0);
-                invo.result.free();
-            } else {
-                extras.putInt(Extras.KEY_ERR_CODE, invo.errCode);
-                extras.putString(Extras.KEY_ERR_MSG, invo.errMessage);
-            }
-        }
-        return result;
+        return doPropertyGet(client, objectPath, iface, propName, extras);
     }
 
     private String getStringInterfaceProperty(IServerClient client, String objectPath, String iface,
@@ -617,21 +1124,32 @@ public class ServerService extends Service implements IConnectorClient {
     private GVariant getInterfaceProperty(IServerClient client, String objectPath, String iface,
             String propName, Bundle extras) {
         if (LOG) Log.i(TAG, String.format("getInterfaceProp: prop=%s obj=%s iface=%s", propName, objectPath, iface));
-        GVariant result = null;
-        RemoteObject ro = connector.getRemoteObject(objectPath, IFACE_DBUS_PROP);
-        if (ro != null) {
-            GVariant args = GVariant.newTupleStringString(iface, propName);
-            Invocation invo = connector.dispatch(client, objectPath, ro, IFACE_DBUS_PROP, "Get", args);
-            args.free();
-            if (invo.success) {
-                result = invo.result.getChildAtIndex(0);
-                invo.result.free();
-            } else {
-                extras.putInt(Extras.KEY_ERR_CODE, invo.errCode);
-                extras.putString(Extras.KEY_ERR_MSG, invo.errMessage);
+        return doPropertyGet(client, objectPath, iface, propName, extras);
+    }
+
+    private GVariant doPropertyGet(final IServerClient client, final String objectPath, final String iface,
+            final String propName, Bundle extras) {
+        return variantFlights.run(IFACE_DBUS_PROP, "Get", objectPath, SingleFlight.key(iface, propName), extras,
+                new SingleFlight.Call<GVariant>() {
+            public GVariant call(Bundle extras) {
+                GVariant result = null;
+                RemoteObject ro = connector.getRemoteObject(objectPath, IFACE_DBUS_PROP);
+                if (ro != null) {
+                    GVariant args = GVariant.newTupleStringString(iface, propName);
+                    Invocation invo = connector.dispatch(client, objectPath, ro, IFACE_DBUS_PROP, "Get", args);
+                    args.free();
+                    if (invo.success) {
+                        result = invo.result.getChildAtIndex(0);
+                        invo.result.free();
+                    } else {
+                        extras.putInt(Extras.KEY_ERR_CODE, invo.errCode);
+                        extras.putString(Extras.KEY_ERR_MSG, invo.errMessage);
+                    }
+                    invo.recycle();
+                }
+                return result;
             }
-        }
-        return result;
+        });
     }
 
 /*
@@ -655,6 +1173,7 @@ public class ServerService extends Service implements IConnectorClient {
                 extras.putInt(Extras.KEY_ERR_CODE, invo.errCode);
                 extras.putString(Extras.KEY_ERR_MSG, invo.errMessage);
             }
+            invo.recycle();
         }
     }
 */
@@ -712,106 +1231,361 @@ public class ServerService extends Service implements IConnectorClient {
     }
 */
 
-    private String doStringMethodVoid(IServerClient client, String objectPath, String iface,
-            String method, Bundle extras) {
+    private String doStringMethodVoid(final IServerClient client, final String objectPath, final String iface,
+            final String method, Bundle extras) {
         if (LOG) logDoMethod("doStringMethodVoid", objectPath, iface, method);
-        String result = null;
-        GVariant gvResult = doMethod(client, objectPath, iface, method, null, extras);
-        if (gvResult != null) {
-            result = gvResult.getString();
-            gvResult.free();
+        return stringFlights.run(iface, method, objectPath, "", extras,
+                new SingleFlight.Call<String>() {
+            public String call(Bundle extras) {
+                String result = null;
+                GVariant gvResult = doMethod(client, objectPath, iface, method, null, extras);
+                if (gvResult != null) {
+                    result = gvResult.getString();
+                    gvResult.free();
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Call a method that returns an array of dictionaries, and perhaps the total number
+     * of matches, which goes in the extras.
+     * The arguments are encoded, and the results decoded, according to the method's signatures.
+     */
+    private Bundle[] doBundleArrayMethod(final IServerClient client, final String objectPath, final String iface,
+            final String method, final Object[] args, Bundle extras) {
+        if (LOG) logDoMethod("doBundleArrayMethod", objectPath, iface, method);
+        return bundleArrayFlights.run(iface, method, objectPath, SingleFlight.key(args), extras,
+                new SingleFlight.Call<Bundle[]>() {
+            public Bundle[] call(Bundle extras) {
+                Bundle[] result = null;
+                MethodCodec codec = connector.getMethodCodec(iface, method);
+                GVariant gvArgs = codec.encode(args);
+                GVariant gvResult = doMethod(client, objectPath, iface, method, gvArgs, extras);
+                if (gvArgs != null) {
+                    gvArgs.free();
+                }
+                if (gvResult != null) {
+                    if (LOG) Log.i(TAG, "doBundleArrayMethod: result type = " + gvResult.getTypeString());
+                    result = decodeBundleArray(codec, gvResult, extras);
+                    if (LOG) Log.i(TAG, "doBundleArrayMethod: result size = " + result.length);
+                    gvResult.free();
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Decode the results of a method returning an array of dictionaries,
+     * putting a second result, the total number of matches, in the extras.
+     */
+    private Bundle[] decodeBundleArray(MethodCodec codec, GVariant gvResult, Bundle extras) {
+        long decodeStart = connector.startDecode();
+        Object[] results = codec.decode(gvResult);
+        connector.endDecode(codec.iface, codec.member, decodeStart);
+        if (results.length > 1 && results[1] instanceof Integer) {
+            extras.putInt(Extras.KEY_TOTAL_ITEMS, (Integer) results[1]);
+        }
+        return (Bundle[]) results[0];
+    }
+
+    /**
+     * Like {@link #doBundleArrayMethod}, but the result keeps the dictionary array
+     * as it's serialized, leaving the decoding to the client.
+     */
+    private MediaObjectList doMediaObjectListMethod(IServerClient client, String objectPath, String iface,
+            String method, Object[] args, Bundle extras) {
+        return doMediaObjectListMethod(client, objectPath, iface, method, args, Connector.LANE_DEFAULT, extras);
+    }
+
+    /**
+     * @param lane the g_main_loop lane to dispatch the method in, or {@link Connector#LANE_DEFAULT};
+     * calls in other than the default lane aren't shared with calls in the default one
+     */
+    private MediaObjectList doMediaObjectListMethod(final IServerClient client, final String objectPath,
+            final String iface, final String method, final Object[] args, final int lane, Bundle extras) {
+        if (LOG) logDoMethod("doMediaObjectListMethod", objectPath, iface, method);
+        String argsKey = SingleFlight.key(args);
+        if (lane != Connector.LANE_DEFAULT) {
+            argsKey += "\n" + lane;
+        }
+        return mediaObjectListFlights.run(iface, method, objectPath, argsKey, extras,
+                new SingleFlight.Call<MediaObjectList>() {
+            public MediaObjectList call(Bundle extras) {
+                MediaObjectList result = null;
+                GVariant gvArgs = connector.getMethodCodec(iface, method).encode(args);
+                GVariant gvResult = doMethod(client, objectPath, iface, method, gvArgs, lane, extras);
+                if (gvArgs != null) {
+                    gvArgs.free();
+                }
+                if (gvResult != null) {
+                    if (LOG) Log.i(TAG, "doMediaObjectListMethod: result type = " + gvResult.getTypeString());
+                    long decodeStart = connector.startDecode();
+                    result = makeMediaObjectList(gvResult, extras);
+                    connector.endDecode(iface, method, decodeStart);
+                    if (LOG) Log.i(TAG, "doMediaObjectListMethod: result size = " + result.size());
+                    gvResult.free();
+                }
+                return result;
+            }
+        });
+    }
+
+    private long getSharedCount() {
+        long n = 0;
+        for (SingleFlight<?> flights : allFlights) {
+            n += flights.getSharedCount();
         }
-        return result;
+        return n;
     }
 
-    private Bundle[] doBundleArrayMethodStringArrayStringArray(IServerClient client, String objectPath, String iface,
-            String method, String[] arg1, String[] arg2, Bundle extras) {
-        if (LOG) logDoMethod("doBundleArrayMethodStringArrayStringArray", objectPath, iface, method);
-        Bundle[] result = null;
-        GVariant gvArgs = GVariant.newTupleStringArrayStringArray(arg1, arg2);
-        if (LOG) Log.i(TAG, "doBundleArrayMethodStringArrayStringArray: args type = " + gvArgs.getTypeString());
-        GVariant gvResult = doMethod(client, objectPath, iface, method, gvArgs, extras);
-        gvArgs.free();
-        if (gvResult != null) {
-            if (LOG) Log.i(TAG, "doBundleArrayMethodStringArrayStringArray: result type = " + gvResult.getTypeString());
-            // expecting type "aa{sv}"
-            List<Bundle> bundles = new ArrayList<Bundle>();
-            GVariant[] gvDicts = gvResult.getArrayOfGVariant();
-            for (GVariant gvDict : gvDicts) {
-                bundles.add(makeBundleFromDictionary(gvDict));
-                gvDict.free();
+    private long getRetriedCount() {
+        long n = 0;
+        for (SingleFlight<?> flights : allFlights) {
+            n += flights.getRetriedCount();
+        }
+        return n;
+    }
+
+    /**
+     * Get a container's children, from the cache if we have them.
+     */
+    private MediaObjectList listChildren(IServerClient client, String objectPath, int offset, int max,
+            String[] filter, String sortBy, Bundle extras) {
+        Object[] args = new Object[] { offset, max, filter, sortBy };
+        String key = ListingCache.key(objectPath, args);
+        MediaObjectList result = listings.get(key);
+        if (result == null) {
+            int generation = listings.getGeneration(objectPath);
+            if (diskCacheEnabled) {
+                result = disk.get(client, objectPath, args);
+            }
+            if (result != null) {
+                listings.put(key, result, generation);
+                updateIndex(objectPath, result, filter, generation);
+                return result;
+            }
+            result = doMediaObjectListMethod(client, objectPath, IFACE_CONTAINER, "ListChildrenEx", args, extras);
+            if (result != null && !extras.containsKey(Extras.KEY_ERR_CODE)) {
+                keepListing(objectPath, args, filter, result, generation);
             }
-            result = bundles.toArray(new Bundle[bundles.size()]);
-            if (LOG) Log.i(TAG, "doBundleArrayMethodStringArrayStringArray: result size = " + result.length);
-            gvResult.free();
         }
         return result;
     }
 
-    private Bundle[] doBundleArrayMethodIntIntStringArrayString(IServerClient client, String objectPath, String iface,
-            String method, int arg1, int arg2, String[] arg3, String arg4, Bundle extras) {
-        if (LOG) logDoMethod("doBundleArrayMethodIntIntStringArrayString", objectPath, iface, method);
-        Bundle[] result = null;
-        GVariant gvArgs = GVariant.newTupleIntIntStringArrayString(arg1, arg2, arg3, arg4);
-        if (LOG) Log.i(TAG, "doBundleArrayMethodIntIntStringArrayString: args type = " + gvArgs.getTypeString());
-        GVariant gvResult = doMethod(client, objectPath, iface, method, gvArgs, extras);
-        gvArgs.free();
-        if (gvResult != null) {
-            if (LOG) Log.i(TAG, "doBundleArrayMethodIntIntStringArrayString: result type = " + gvResult.getTypeString());
-            // expecting type "aa{sv}"
-            List<Bundle> bundles = new ArrayList<Bundle>();
-            GVariant[] gvDicts = gvResult.getArrayOfGVariant();
-            for (GVariant gvDict : gvDicts) {
-                bundles.add(makeBundleFromDictionary(gvDict));
-                gvDict.free();
+    /**
+     * Like {@link #listChildren}, without waiting for the server.
+     */
+    private void listChildrenAsync(IServerClient client, String objectPath, int offset, int max,
+            String[] filter, String sortBy, MediaObjectListReply reply) {
+        Object[] args = new Object[] { offset, max, filter, sortBy };
+        String key = ListingCache.key(objectPath, args);
+        MediaObjectList result = listings.get(key);
+        if (result != null) {
+            reply.deliver(result, new Bundle());
+            return;
+        }
+        int generation = listings.getGeneration(objectPath);
+        if (diskCacheEnabled) {
+            result = disk.get(client, objectPath, args);
+        }
+        if (result != null) {
+            listings.put(key, result, generation);
+            updateIndex(objectPath, result, filter, generation);
+            reply.deliver(result, new Bundle());
+            return;
+        }
+        reply.keepAs(objectPath, args, filter, generation);
+        doMediaObjectListMethodAsync(client, objectPath, IFACE_CONTAINER, "ListChildrenEx", args, reply);
+    }
+
+    /**
+     * Keep a listing just fetched from the server in the caches, and index it,
+     * unless the container has changed since the fetch started.
+     * @param generation the container's generation before the fetch started
+     */
+    private void keepListing(String containerPath, Object[] args, String[] filter, MediaObjectList listing,
+            int generation) {
+        listings.put(ListingCache.key(containerPath, args), listing, generation);
+        if (listings.getGeneration(containerPath) == generation) {
+            disk.put(containerPath, args, listing);
+        }
+        updateIndex(containerPath, listing, filter, generation);
+    }
+
+    private final Crawler.Source crawlerSource = new Crawler.Source() {
+        /**
+         * Like {@link ServerService#listChildren}, but leaving the memory cache
+         * to the listings the user has asked for, and dispatching in the background lane,
+         * behind the calls the user is waiting for.
+         */
+        public MediaObjectList listChildren(IServerClient client, String containerPath, int offset, int max,
+                Bundle extras) {
+            Object[] args = new Object[] { offset, max, Crawler.FILTER, "" };
+            MediaObjectList result = null;
+            int generation = listings.getGeneration(containerPath);
+            if (diskCacheEnabled) {
+                result = disk.get(client, containerPath, args);
             }
-            result = bundles.toArray(new Bundle[bundles.size()]);
-            if (LOG) Log.i(TAG, "doBundleArrayMethodIntIntStringArrayString: result size = " + result.length);
-            gvResult.free();
+            if (result == null) {
+                result = doMediaObjectListMethod(client, containerPath, IFACE_CONTAINER, "ListChildrenEx", args,
+                        GMainLoop.LANE_BACKGROUND, extras);
+                if (result == null || extras.containsKey(Extras.KEY_ERR_CODE)) {
+                    return null;
+                }
+                if (listings.getGeneration(containerPath) == generation) {
+                    disk.put(containerPath, args, result);
+                }
+            }
+            updateIndex(containerPath, result, Crawler.FILTER, generation);
+            return result;
         }
-        return result;
+
+        public void onProgress(final String serverPath, final int containersDone, final int containersPending,
+                final int objects, final boolean finished) {
+            // Clients only need the latest progress, and it's only advisory.
+            notifier.post(new NotificationDispatcher.Notification<IServerClient>("CrawlProgress\n" + serverPath, true) {
+                void deliver(IServerClient client) throws RemoteException {
+                    client.onCrawlProgress(serverPath, containersDone, containersPending, objects, finished);
+                }
+            });
+        }
+    };
+
+    /**
+     * Index the objects of a listing, in the background, if it has all the index needs
+     * and the container hasn't changed since it was fetched.
+     * @param filter the properties the listing was fetched with
+     * @param generation the container's generation before the listing was fetched
+     */
+    private void updateIndex(final String containerPath, final MediaObjectList listing, String[] filter,
+            final int generation) {
+        if (listing.getData() == null || !MediaIndex.isComplete(filter)
+                || listings.getGeneration(containerPath) != generation) {
+            return;
+        }
+        indexExecutor.execute(new Runnable() {
+            public void run() {
+                // Checked again here, in order with removeFromIndex: a change that came
+                // after the check above may already have dropped the container's children.
+                if (listings.getGeneration(containerPath) == generation) {
+                    index.add(listing);
+                }
+            }
+        });
     }
 
-    // TODO: handle the second return value
-    private Bundle[] doBundleArrayMethodStringIntIntStringArrayString(IServerClient client, String objectPath, String iface,
-            String method, String arg1, int arg2, int arg3, String[] arg4, String arg5, Bundle extras) {
-        if (LOG) logDoMethod("doBundleArrayMethodStringIntIntStringArrayString", objectPath, iface, method);
-        Bundle[] result = null;
-        GVariant gvArgs = GVariant.newTupleStringIntIntStringArrayString(arg1, arg2, arg3, arg4, arg5);
-        if (LOG) Log.i(TAG, "doBundleArrayMethodStringIntIntStringArrayString: args type = " + gvArgs.getTypeString());
-        GVariant gvResult = doMethod(client, objectPath, iface, method, gvArgs, extras);
-        gvArgs.free();
-        if (gvResult != null) {
-            if (LOG) Log.i(TAG, "doBundleArrayMethodStringIntIntStringArrayString: result type = " + gvResult.getTypeString());
-            // expecting type "aa{sv}u"
-            List<Bundle> bundles = new ArrayList<Bundle>();
-            // TODO:  needs work all the way down to get 2nd return param
-            //GVariant[] gvDicts = gvResult.getChildAtIndex(0).getArrayOfGVariant();
-            //int retVal2 = gvResult.getChildAtIndex(1).getUInt32();
-            GVariant[] gvDicts = gvResult.getArrayOfGVariant();
-            for (GVariant gvDict : gvDicts) {
-                bundles.add(makeBundleFromDictionary(gvDict));
-                gvDict.free();
+    /**
+     * Drop objects from the index, in the background, after any pending additions.
+     * @param containerPaths containers whose children to drop
+     * @param serverPath a server whose objects to drop, or null
+     */
+    private void removeFromIndex(final String[] containerPaths, final String serverPath) {
+        indexExecutor.execute(new Runnable() {
+            public void run() {
+                for (String containerPath : containerPaths) {
+                    index.removeChildren(containerPath);
+                }
+                if (serverPath != null) {
+                    index.removeServer(serverPath);
+                }
+            }
+        });
+    }
+
+    private final DiskListingCache.Source diskSource = new DiskListingCache.Source() {
+        public String getUniqueDeviceName(IServerClient client, String serverPath) {
+            return getStringDBusProperty(client, serverPath, IFACE_DEVICE, "UDN", new Bundle());
+        }
+
+        public Bundle getDeviceProperties(IServerClient client, String serverPath) {
+            return getAllDBusProperties(client, serverPath, IFACE_DEVICE, new Bundle());
+        }
+
+        public void onRevalidated(String serverPath, Bundle props, boolean stale) {
+            snapshots.put(serverPath, props);
+            if (stale) {
+                onDiskListingsStale(serverPath, props);
             }
-            result = bundles.toArray(new Bundle[bundles.size()]);
-            if (LOG) Log.i(TAG, "doBundleArrayMethodStringIntIntStringArrayString: result size = " + result.length + ", return value 2 = " /*+ retVal2*/);
-            gvResult.free();
         }
+    };
+
+    /**
+     * Listings from disk turned out to be stale. Drop any we've kept in memory,
+     * and tell the clients, who may have some too, that the server has changed.
+     */
+    private void onDiskListingsStale(String serverPath, Bundle props) {
+        if (LOG) Log.i(TAG, "onDiskListingsStale: " + serverPath);
+        listings.invalidateServer(serverPath);
+        removeFromIndex(new String[0], serverPath);
+        String propName = ServerControllerProps.Enum.SYSTEM_UPDATE_ID.getPropName();
+        Bundle changed = new Bundle();
+        changed.putInt(propName, props.getInt(propName));
+        notifier.post(new ControllerPropertiesChanged(serverPath, changed));
+    }
+
+    /**
+     * Decode all of a list, for the methods that return Bundle arrays.
+     */
+    private Bundle[] toBundles(MediaObjectList list) {
+        if (list == null) {
+            return null;
+        }
+        long decodeStart = connector.startDecode();
+        Bundle[] result = new GVariantReader(list.getData(), "aa{sv}").readDictionaryArray();
+        connector.endDecode(IFACE_CONTAINER, "ListChildrenEx", decodeStart);
         return result;
     }
 
+    /**
+     * Take the dictionary array from the results of a method, either alone or first
+     * in a tuple, with a second result, the total number of matches, in the list,
+     * and also in the extras.
+     */
+    private static MediaObjectList makeMediaObjectList(GVariant gvResult, Bundle extras) {
+        String type = gvResult.getTypeString();
+        if (type.equals("aa{sv}")) {
+            return new MediaObjectList(gvResult.getData());
+        } else if (!type.startsWith("(aa{sv}")) {
+            throw new IllegalStateException("Unexpected type: " + type);
+        }
+        GVariantScope scope = GVariantScope.open();
+        try {
+            int totalItems = -1;
+            if (type.equals("(aa{sv}u)")) {
+                totalItems = gvResult.getChildAtIndex(1).getUInt32();
+                extras.putInt(Extras.KEY_TOTAL_ITEMS, totalItems);
+            }
+            return new MediaObjectList(gvResult.getChildAtIndex(0).getData(), totalItems);
+        } finally {
+            scope.close();
+        }
+    }
+
     private GVariant doMethod(IServerClient client, String objectPath, String iface,
             String method, GVariant args, Bundle extras) {
+        return doMethod(client, objectPath, iface, method, args, Connector.LANE_DEFAULT, extras);
+    }
+
+    /**
+     * @param lane the g_main_loop lane to dispatch the method in, or {@link Connector#LANE_DEFAULT}
+     */
+    private GVariant doMethod(IServerClient client, String objectPath, String iface,
+            String method, GVariant args, int lane, Bundle extras) {
         GVariant gvResult = null;
         RemoteObject ro = connector.getRemoteObject(objectPath, iface);
         if (ro != null) {
-            Invocation invo = connector.dispatch(client, objectPath, ro, iface, method, args);
+            Invocation invo = connector.dispatch(client, objectPath, ro, iface, method, args,
+                    connector.getDefaultTimeout(iface), lane);
             if (invo.success) {
                 gvResult = invo.result;
             } else {
                 extras.putInt(Extras.KEY_ERR_CODE, invo.errCode);
                 extras.putString(Extras.KEY_ERR_MSG, invo.errMessage);
             }
+            invo.recycle();
         }
         return gvResult;
     }
@@ -820,189 +1594,388 @@ public class ServerService extends Service implements IConnectorClient {
         if (LOG) Log.i(TAG, String.format("%s: method=%s obj=%s iface=%s", method, method2, objPath, iface));
     }
 
+    /*--------------------+
+     | Asynchronous calls |
+     +--------------------*/
+
+    /**
+     * Invoke a method that returns a list of objects, without waiting for it.
+     * Unlike {@link #doMediaObjectListMethod}, this doesn't share calls.
+     */
+    private void doMediaObjectListMethodAsync(IServerClient client, String objectPath, String iface,
+            String method, Object[] args, MediaObjectListReply reply) {
+        doMethodAsync(client, objectPath, iface, method, connector.getMethodCodec(iface, method).encode(args), reply);
+    }
+
+    /**
+     * Invoke a method without tying up the calling binder thread.
+     * The outcome is delivered to the client by the given reply.
+     * @param args arguments to the method, which this takes ownership of
+     */
+    private void doMethodAsync(IServerClient client, String objectPath, String iface,
+            String method, GVariant args, Reply reply) {
+        if (LOG) logDoMethod("doMethodAsync", objectPath, iface, method);
+        RemoteObject ro = connector.getRemoteObject(objectPath, iface);
+        if (ro != null) {
+            connector.dispatchAsync(client, objectPath, ro, iface, method, args, reply);
+        } else {
+            // Same outcome as the synchronous path: no result, no error.
+            if (args != null) {
+                args.free();
+            }
+            replyExecutor.execute(reply);
+        }
+    }
+
+    /**
+     * Delivers the outcome of an asynchronous call to a client.
+     * The connector calls us on the daemon thread; we decode and send on the reply executor.
+     */
+    private abstract class Reply implements Connector.Callback, Runnable {
+
+        protected final IServerClient client;
+        protected final int token;
+        private Invocation invocation;
+        /** The method, for the statistics. */
+        protected String iface;
+        protected String method;
+
+        Reply(IServerClient client, int token) {
+            this.client = client;
+            this.token = token;
+        }
+
+        public void onDone(Invocation invocation) {
+            this.invocation = invocation;
+            replyExecutor.execute(this);
+        }
+
+        public void run() {
+            Bundle extras = new Bundle();
+            GVariant gvResult = null;
+            if (invocation != null) {
+                if (invocation.success) {
+                    gvResult = invocation.result;
+                } else {
+                    extras.putInt(Extras.KEY_ERR_CODE, invocation.errCode);
+                    extras.putString(Extras.KEY_ERR_MSG, invocation.errMessage);
+                }
+                iface = invocation.iface;
+                method = invocation.meth;
+                invocation.recycle();
+                invocation = null;
+            }
+            try {
+                send(gvResult, extras);
+            } catch (RemoteException e) {
+                Bundle error = getDeliveryError(token, e);
+                if (error != null) {
+                    try {
+                        send(null, error);
+                    } catch (RemoteException e2) {
+                        if (LOG) Log.w(TAG, "Reply: can't deliver the error either: token=" + token);
+                    }
+                }
+            } finally {
+                if (gvResult != null) {
+                    gvResult.free();
+                }
+            }
+        }
+
+        /**
+         * Send the reply.
+         * @param gvResult the method's result, or null; the caller frees it
+         * @param extras error information, if any
+         */
+        protected abstract void send(GVariant gvResult, Bundle extras) throws RemoteException;
+    }
+
+    private class StringReply extends Reply {
+        StringReply(IServerClient client, int token) {
+            super(client, token);
+        }
+
+        protected void send(GVariant gvResult, Bundle extras) throws RemoteException {
+            client.onStringReply(token, gvResult == null ? null : gvResult.getString(), extras);
+        }
+    }
+
+    /**
+     * Delivers the outcome of an asynchronous listing, search or browse to a client,
+     * keeping a listing of a container's children as {@link #listChildren} would.
+     */
+    private class MediaObjectListReply extends Reply {
+        private String containerPath;
+        private Object[] args;
+        private String[] filter;
+        private int generation;
+
+        MediaObjectListReply(IServerClient client, int token) {
+            super(client, token);
+        }
+
+        /**
+         * Keep the listing, once we have it.
+         * @param generation the container's generation before the fetch started
+         */
+        void keepAs(String containerPath, Object[] args, String[] filter, int generation) {
+            this.containerPath = containerPath;
+            this.args = args;
+            this.filter = filter;
+            this.generation = generation;
+        }
+
+        protected void send(GVariant gvResult, Bundle extras) throws RemoteException {
+            MediaObjectList result = null;
+            if (gvResult != null) {
+                try {
+                    long decodeStart = connector.startDecode();
+                    result = makeMediaObjectList(gvResult, extras);
+                    connector.endDecode(iface, method, decodeStart);
+                    if (containerPath != null) {
+                        keepListing(containerPath, args, filter, result, generation);
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "MediaObjectListReply: failed: token=" + token, e);
+                    result = null;
+                    extras.putInt(Extras.KEY_ERR_CODE, DLeynaException.ERR_OPERATION_FAILED);
+                    extras.putString(Extras.KEY_ERR_MSG, e.toString());
+                }
+            }
+            client.onMediaObjectListReply(token, result, extras);
+        }
+
+        /**
+         * Deliver a result we have without calling the server, or an error, on the reply executor.
+         */
+        void deliver(final MediaObjectList result, final Bundle extras) {
+            replyExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        client.onMediaObjectListReply(token, result, extras);
+                    } catch (RemoteException e) {
+                        Bundle error = getDeliveryError(token, e);
+                        if (error != null) {
+                            try {
+                                client.onMediaObjectListReply(token, null, error);
+                            } catch (RemoteException e2) {
+                                if (LOG) Log.w(TAG, "MediaObjectListReply: can't deliver the error either: token=" + token);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Decide what to tell a client whose reply couldn't be delivered.
+     * @return the error to send instead, or null if the client is gone
+     */
+    private static Bundle getDeliveryError(int token, RemoteException e) {
+        if (e instanceof DeadObjectException) {
+            if (LOG) Log.w(TAG, "Reply: client is gone: token=" + token);
+            return null;
+        }
+        // Such as a TransactionTooLargeException: the client is still waiting for the token.
+        Log.w(TAG, "Reply: can't deliver: token=" + token + ": " + e);
+        Bundle error = new Bundle();
+        error.putInt(Extras.KEY_ERR_CODE, DLeynaException.ERR_OPERATION_FAILED);
+        error.putString(Extras.KEY_ERR_MSG, "Can't deliver the reply: " + e);
+        return error;
+    }
+
     /*------------------+
      | IConnectorClient |
      +------------------*/
 
     public void onNotify(String objPath, String ifaceName, String notifName, long params) {
         if (LOG) Log.i(TAG, "onNotify: I=" + ifaceName + " N=" + notifName + " O=" + objPath);
-        GVariant gvParams = new GVariant(params);
-        if (ifaceName.equals(IFACE_MANAGER)) {
-            if (notifName.equals("FoundServer")) {
-                onServerFound(gvParams);
-            } else if (notifName.equals("LostServer")) {
-                onServerLost(gvParams);
-            } else if (notifName.equals("LastChange")) {
-                onLastChange(objPath, gvParams);
-            } else {
-                Log.w(TAG, "onNotify: unprocessed notification: I=" + ifaceName + " N=" + notifName + " O=" + objPath);
-            }
-        } else if (ifaceName.equals(IFACE_DBUS_PROP)) {
-            if (notifName.equals("PropertiesChanged")) {
-                onDBusPropertiesChanged(objPath, gvParams);
-            } else {
-                Log.w(TAG, "onNotify: unprocessed notification: I=" + ifaceName + " N=" + notifName + " O=" + objPath);
-            }
-        } else if (ifaceName.equals(IFACE_DEVICE)) {
-            if (notifName.equals("ContainerUpdateIDs")) {
-                onContainerUpdateIds(objPath, gvParams);
-            } else if (notifName.equals("Changed")) {
-                onDevicePropertiesChanged(objPath, gvParams);
-            } else if (notifName.equals("UploadUpdate")) {
-                onUploadUpdate(objPath, gvParams);
+        // Children of the parameters are borrowed, and all released together.
+        GVariantScope scope = GVariantScope.open();
+        try {
+            GVariant gvParams = new GVariant(params);
+            if (ifaceName.equals(IFACE_MANAGER)) {
+                if (notifName.equals("FoundServer")) {
+                    onServerFound(gvParams);
+                } else if (notifName.equals("LostServer")) {
+                    onServerLost(gvParams);
+                } else if (notifName.equals("LastChange")) {
+                    onLastChange(objPath, gvParams);
+                } else {
+                    Log.w(TAG, "onNotify: unprocessed notification: I=" + ifaceName + " N=" + notifName + " O=" + objPath);
+                }
+            } else if (ifaceName.equals(IFACE_DBUS_PROP)) {
+                if (notifName.equals("PropertiesChanged")) {
+                    onDBusPropertiesChanged(objPath, gvParams);
+                } else {
+                    Log.w(TAG, "onNotify: unprocessed notification: I=" + ifaceName + " N=" + notifName + " O=" + objPath);
+                }
+            } else if (ifaceName.equals(IFACE_DEVICE)) {
+                if (notifName.equals("ContainerUpdateIDs")) {
+                    onContainerUpdateIds(objPath, gvParams);
+                } else if (notifName.equals("Changed")) {
+                    onDevicePropertiesChanged(objPath, gvParams);
+                } else if (notifName.equals("UploadUpdate")) {
+                    onUploadUpdate(objPath, gvParams);
+                } else {
+                    Log.w(TAG, "onNotify: unprocessed notification: I=" + ifaceName + " N=" + notifName + " O=" + objPath);
+                }
             } else {
                 Log.w(TAG, "onNotify: unprocessed notification: I=" + ifaceName + " N=" + notifName + " O=" + objPath);
             }
-        } else {
-            Log.w(TAG, "onNotify: unprocessed notification: I=" + ifaceName + " N=" + notifName + " O=" + objPath);
+        } finally {
+            scope.close();
         }
-        gvParams.free();
     }
 
     private void onServerFound(GVariant gvParams) {
         GVariant gvObjPathServer = gvParams.getChildAtIndex(0);
-        String objPathServer = gvObjPathServer.getString();
-        gvObjPathServer.free();
+        final String objPathServer = gvObjPathServer.getString();
         if (LOG) Log.i(TAG, "ServerFound: " + objPathServer);
-        int n = clients.beginBroadcast();
-        for (int i = 0; i < n; i++) {
-            try {
-                clients.getBroadcastItem(i).onServerFound(objPathServer);
-            } catch (RemoteException e) {
+        // Whatever had this path before is gone.
+        listings.invalidateServer(objPathServer);
+        removeFromIndex(new String[0], objPathServer);
+        notifier.post(new NotificationDispatcher.Notification<IServerClient>() {
+            void deliver(IServerClient client) throws RemoteException {
+                client.onServerFound(objPathServer);
             }
-        }
-        clients.finishBroadcast();
+        });
     }
 
     private void onServerLost(GVariant gvParams) {
         GVariant gvObjPathServer = gvParams.getChildAtIndex(0);
-        String objPathServer = gvObjPathServer.getString();
-        gvObjPathServer.free();
+        final String objPathServer = gvObjPathServer.getString();
         if (LOG) Log.i(TAG, "ServerLost: " + objPathServer);
-        int n = clients.beginBroadcast();
-        for (int i = 0; i < n; i++) {
-            try {
-                clients.getBroadcastItem(i).onServerLost(objPathServer);
-            } catch (RemoteException e) {
+        sortCaps.remove(objPathServer);
+        searchCaps.remove(objPathServer);
+        snapshots.invalidate(objPathServer);
+        disk.close(objPathServer);
+        // So that listings still being fetched from it aren't kept or indexed.
+        listings.invalidateServer(objPathServer);
+        removeFromIndex(new String[0], objPathServer);
+        crawler.forget(objPathServer);
+        notifier.post(new NotificationDispatcher.Notification<IServerClient>() {
+            void deliver(IServerClient client) throws RemoteException {
+                client.onServerLost(objPathServer);
             }
-        }
-        clients.finishBroadcast();
+        });
     }
 
-    private void onLastChange(String objPath, GVariant gvParams) {
+    private void onLastChange(final String objPath, GVariant gvParams) {
         if (LOG) Log.i(TAG, "LastChange: " + objPath);
-        int n = clients.beginBroadcast();
-        for (int i = 0; i < n; i++) {
-            try {
-                clients.getBroadcastItem(i).onLastChange(objPath, null/*TODO: gvParams*/);
-            } catch (RemoteException e) {
+        notifier.post(new NotificationDispatcher.Notification<IServerClient>() {
+            void deliver(IServerClient client) throws RemoteException {
+                client.onLastChange(objPath, null/*TODO: gvParams*/);
             }
-        }
-        clients.finishBroadcast();
+        });
     }
 
-    private void onContainerUpdateIds(String objPath, GVariant gvParams) {
+    private void onContainerUpdateIds(final String objPath, GVariant gvParams) {
         if (LOG) Log.i(TAG, "ContainerUpdateIDs: " + objPath + ", type = " + gvParams.getTypeString());
-        // expecting (a(ou))
-        List<ContainerUpdateId> containerUpdateIds = new ArrayList<ContainerUpdateId>();
-        GVariant gvContainer = gvParams.getChildAtIndex(0);
-        GVariant[] gvContainerUpdateIds = gvContainer.getArrayOfGVariant();
-        for (GVariant gvContainerUpdateId : gvContainerUpdateIds) {
-            GVariant o = gvContainerUpdateId.getChildAtIndex(0);
-            GVariant u = gvContainerUpdateId.getChildAtIndex(1);
-            String oPath = o.getString();
-            int uId = u.getUInt32();
-            o.free();
-            u.free();
-            gvContainerUpdateId.free();
-            if (LOG) Log.i(TAG, "ContainerUpdateIDs: objPath = " + oPath + ", id = " + uId);
-            containerUpdateIds.add(new ContainerUpdateId(oPath, uId));
-        }
-        gvContainer.free();
-        
-        ContainerUpdateId[] updates = containerUpdateIds.toArray(new ContainerUpdateId[containerUpdateIds.size()]);
+        final ContainerUpdateId[] updates = (ContainerUpdateId[]) connector.getSignalCodec(IFACE_DEVICE, "ContainerUpdateIDs").decode(gvParams)[0];
+        String[] containerPaths = new String[updates.length];
+        for (int i = 0; i < updates.length; i++) {
+            containerPaths[i] = updates[i].getObjectPath();
+            listings.invalidateContainer(containerPaths[i]);
+            disk.invalidateContainer(containerPaths[i]);
+        }
+        removeFromIndex(containerPaths, null);
+        for (ContainerUpdateId update : updates) {
+            crawler.onContainerUpdateId(update.getObjectPath(), update.getId());
+        }
         if (LOG) Log.i(TAG, "ContainerUpdateIDs: updates size = " + updates.length);
 
-        int n = clients.beginBroadcast();
-        for (int i = 0; i < n; i++) {
-            try {
-                clients.getBroadcastItem(i).onContainerUpdateIds(objPath, updates);
-            } catch (RemoteException e) {
+        notifier.post(new ContainerUpdateIds(objPath, updates));
+    }
+
+    /**
+     * Successive updates from the same server merge, with the latest ID winning for each container,
+     * so that a busy server can't build up an endless backlog for a slow client.
+     */
+    private static class ContainerUpdateIds extends NotificationDispatcher.Notification<IServerClient> {
+
+        final String objectPath;
+        final ContainerUpdateId[] updates;
+
+        ContainerUpdateIds(String objectPath, ContainerUpdateId[] updates) {
+            super("ContainerUpdateIDs\n" + objectPath);
+            this.objectPath = objectPath;
+            this.updates = updates;
+        }
+
+        void deliver(IServerClient client) throws RemoteException {
+            client.onContainerUpdateIds(objectPath, updates);
+        }
+
+        NotificationDispatcher.Notification<IServerClient> merge(
+                NotificationDispatcher.Notification<IServerClient> newer) {
+            LinkedHashMap<String, ContainerUpdateId> merged = new LinkedHashMap<String, ContainerUpdateId>();
+            for (ContainerUpdateId update : updates) {
+                merged.put(update.getObjectPath(), update);
             }
+            for (ContainerUpdateId update : ((ContainerUpdateIds) newer).updates) {
+                merged.remove(update.getObjectPath());
+                merged.put(update.getObjectPath(), update);
+            }
+            return new ContainerUpdateIds(objectPath,
+                    merged.values().toArray(new ContainerUpdateId[merged.size()]));
         }
-        clients.finishBroadcast();
     }
 
-    private void onDevicePropertiesChanged(String objPath, GVariant gvParams) {
+    private void onDevicePropertiesChanged(final String objPath, GVariant gvParams) {
         if (LOG) Log.i(TAG, "Changed: " + objPath + ", type = " + gvParams.getTypeString());
-        // expecting (aa{sv})
-        //List<DeviceChange> deviceChanges = new ArrayList<DeviceChange>();
-        GVariant gvContainer = gvParams.getChildAtIndex(0);
-        Log.w(TAG, "Changed: " + objPath + " " + gvContainer.getTypeString());
-        GVariant[] gvChanged = gvContainer.getArrayOfGVariant();
-        Log.w(TAG, "Changed: gv length = " + gvChanged.length);
-        for (GVariant gvChange : gvChanged) {
-            //GVariant gvDictionary = gvChange.getChildAtIndex(0);
-            //Log.w(TAG, "Changed: " + gvDictionary.toString() + " " + gvDictionary.getTypeString());
-
-            Bundle bundle = new Bundle();
-            //GVariant gvEntries[] = gvDictionary.getArrayOfGVariant();
-            GVariant gvEntries[] = gvChange.getArrayOfGVariant();
-            for (GVariant gvEntry : gvEntries) {
-                GVariant gvKey = gvEntry.getChildAtIndex(0);
-                //Log.w(TAG, "Changed: " + gvKey.toString() + " " + gvKey.getTypeString());
-                GVariant gvKeyValueVariant = gvEntry.getChildAtIndex(1);
-                //Log.w(TAG, "Changed: " + gvKeyValueVariant.toString() + " " + gvKeyValueVariant.getTypeString());
-                GVariant gvKeyValue = gvKeyValueVariant.getChildAtIndex(0);
-                //Log.w(TAG, "Changed: " + gvKeyValue.toString() + " " + gvKeyValue.getTypeString());
-                //TODO: add to some bundle or something... (bundle, gvKey.getString(), gvKeyValue);
-                gvKeyValue.free();
-                gvKeyValueVariant.free();
-                gvKey.free();
-                gvEntry.free();
+        // expecting (aa{sv}), one dictionary per changed object
+        Bundle[] changes = GVariantBundles.makeBundleArrayFromDictionaryArray(gvParams.getChildAtIndex(0));
+        if (LOG) Log.i(TAG, "Changed: changes length = " + changes.length);
+        List<String> parents = new ArrayList<String>();
+        for (Bundle change : changes) {
+            String parent = change.getString("Parent");
+            if (parent != null) {
+                listings.invalidateContainer(parent);
+                disk.invalidateContainer(parent);
+                parents.add(parent);
             }
-            //gvDictionary.free();
-            gvChange.free();
         }
-        gvContainer.free();
+        removeFromIndex(parents.toArray(new String[parents.size()]), null);
+        // The changes bump the SystemUpdateID, which comes with no notification of its own.
+        snapshots.invalidate(objPath);
 
-        int n = clients.beginBroadcast();
-        for (int i = 0; i < n; i++) {
-            try {
-                clients.getBroadcastItem(i).onDevicePropertiesChanged(objPath, null/*TODO: gvParams*/);
-            } catch (RemoteException e) {
+        final Bundle props = new Bundle();
+        props.putParcelableArray("Changes", changes);
+        notifier.post(new NotificationDispatcher.Notification<IServerClient>() {
+            void deliver(IServerClient client) throws RemoteException {
+                client.onDevicePropertiesChanged(objPath, props);
             }
-        }
-        clients.finishBroadcast();
+        });
     }
 
-    private void onUploadUpdate(String objPath, GVariant gvParams) {
+    private void onUploadUpdate(final String objPath, GVariant gvParams) {
         if (LOG) Log.i(TAG, "UploadUpdate: " + objPath + ", type = " + gvParams.getTypeString());
         // TODO: get from gvParams
-        int id = 0;
-        String status = "";
-        long length = 0L;
-        long total = 0L;
-
-        int n = clients.beginBroadcast();
-        for (int i = 0; i < n; i++) {
-            try {
-                clients.getBroadcastItem(i).onUploadUpdate(objPath, id, status, length, total);
-            } catch (RemoteException e) {
+        final int id = 0;
+        final String status = "";
+        final long length = 0L;
+        final long total = 0L;
+
+        notifier.post(new NotificationDispatcher.Notification<IServerClient>() {
+            void deliver(IServerClient client) throws RemoteException {
+                client.onUploadUpdate(objPath, id, status, length, total);
             }
-        }
-        clients.finishBroadcast();
+        });
     }
 
     private void onDBusPropertiesChanged(String objPath, GVariant gvParams) {
         GVariant gvIface = gvParams.getChildAtIndex(0);
         String ifaceName = gvIface.getString();
         if (ifaceName.equals(IFACE_CONTROLLER)) {
+            // The controller's interface is also the device's.
+            Object[] args = connector.getSignalCodec(IFACE_DBUS_PROP, "PropertiesChanged").decode(gvParams);
+            snapshots.onPropertiesChanged(objPath, (Bundle) args[1], (String[]) args[2]);
             GVariant gvDictionary = gvParams.getChildAtIndex(1);
             onControllerPropertiesChanged(objPath, gvDictionary);
-            gvDictionary.free();
         }
-        gvIface.free();
     }
 
     private void onControllerPropertiesChanged(String objPath, GVariant gvDictionary) {
@@ -1013,19 +1986,30 @@ public class ServerService extends Service implements IConnectorClient {
             GVariant gvPropValueVariant = gvEntry.getChildAtIndex(1);
             GVariant gvPropValue = gvPropValueVariant.getChildAtIndex(0);
             addControllerProperty(props, gvPropName.getString(), gvPropValue);
-            gvPropValue.free();
-            gvPropValueVariant.free();
-            gvPropName.free();
-            gvEntry.free();
         }
-        int n = clients.beginBroadcast();
-        for (int i = 0; i < n; i++) {
-            try {
-                clients.getBroadcastItem(i).onControllerPropertiesChanged(objPath, props);
-            } catch (RemoteException e) {
-            }
+        String systemUpdateId = ServerControllerProps.Enum.SYSTEM_UPDATE_ID.getPropName();
+        if (props.containsKey(systemUpdateId)) {
+            // Anything on the server may have changed.
+            listings.invalidateServer(objPath);
+            disk.onSystemUpdateId(objPath, props.getInt(systemUpdateId));
+        }
+        notifier.post(new ControllerPropertiesChanged(objPath, props));
+    }
+
+    private static class ControllerPropertiesChanged
+            extends NotificationDispatcher.PropertiesChanged<IServerClient> {
+
+        ControllerPropertiesChanged(String objectPath, Bundle props) {
+            super(objectPath, props);
+        }
+
+        void deliver(IServerClient client) throws RemoteException {
+            client.onControllerPropertiesChanged(objectPath, props);
+        }
+
+        NotificationDispatcher.PropertiesChanged<IServerClient> copy(Bundle props) {
+            return new ControllerPropertiesChanged(objectPath, props);
         }
-        clients.finishBroadcast();
     }
 
     /** Add the controller property with the given name and value to the given bundle. */
@@ -1041,77 +2025,10 @@ public class ServerService extends Service implements IConnectorClient {
             Log.e(TAG, "Unknown server controller property: " + propName);
             break;
         default:
-            Log.w(TAG, "Unhandled server controller property: " + propName);
-            break;
-        }
-    }
-
-    private static Bundle makeBundleFromBooleanDictionary(GVariant gvDictionary) {
-        Bundle bundle = new Bundle();
-        GVariant gvEntries[] = gvDictionary.getArrayOfGVariant();
-        for (GVariant gvEntry : gvEntries) {
-            GVariant gvEntryName = gvEntry.getChildAtIndex(0);
-            GVariant gvEntryValue = gvEntry.getChildAtIndex(1);
-            bundle.putBoolean(gvEntryName.getString(), gvEntryValue.getBoolean());
-            gvEntryValue.free();
-            gvEntryName.free();
-            gvEntry.free();
-        }
-        return bundle;
-    }
-
-    private static Bundle makeBundleFromDictionary(GVariant gvDictionary) {
-        Bundle bundle = new Bundle();
-        GVariant gvEntries[] = gvDictionary.getArrayOfGVariant();
-        for (GVariant gvEntry : gvEntries) {
-            GVariant gvEntryName = gvEntry.getChildAtIndex(0);
-            GVariant gvEntryValueVariant = gvEntry.getChildAtIndex(1);
-            GVariant gvEntryValue = gvEntryValueVariant.getChildAtIndex(0);
-            putToBundleMaybe(bundle, gvEntryName.getString(), gvEntryValue);
-            gvEntryValue.free();
-            gvEntryValueVariant.free();
-            gvEntryName.free();
-            gvEntry.free();
-        }
-        return bundle;
-    }
-
-    // Add the (key, value) to the bundle if it's of a type we like.
-    private static void putToBundleMaybe(Bundle bundle, String key, GVariant gvValue) {
-        String type = gvValue.getTypeString();
-        boolean added = false;
-        if (type.equals("o") || type.equals("s")) {
-            bundle.putString(key, gvValue.getString());
-            added = true;
-        } else if (type.equals("i") || type.equals("u")) {
-            bundle.putInt(key, gvValue.getUInt32());
-            added = true;
-        } else if (type.equals("x") || type.equals("t")) {
-            bundle.putLong(key, gvValue.getInt64());
-            added = true;
-        } else if (type.equals("b")) {
-            bundle.putBoolean(key, gvValue.getBoolean());
-            added = true;
-        } else if (type.equals("as")) {
-            bundle.putStringArray(key, gvValue.getArrayOfString());
-            added = true;
-        } else if (type.equals("a{sb}") || type.equals("a(sb)")) {
-            bundle.putBundle(key, makeBundleFromBooleanDictionary(gvValue));
-            added = true;
-        } else if (type.equals("aa{sv}")) {
-            List<Bundle> bundles = new ArrayList<Bundle>();
-            GVariant[] gvDicts = gvValue.getArrayOfGVariant();
-            for (GVariant gvDict : gvDicts) {
-                bundles.add(makeBundleFromDictionary(gvDict));
-                gvDict.free();
+            if (!GVariantBundles.putToBundleMaybe(bundle, propName, gvPropValue)) {
+                Log.w(TAG, "Unhandled server controller property: " + propName);
             }
-            Bundle[] bundleArray = bundles.toArray(new Bundle[bundles.size()]);
-            bundle.putParcelableArray(key, bundleArray);
-            added = true;
-        } else {
-            // TODO:
+            break;
         }
-        if (LOG) Log.i(TAG, String.format("putToBundle: %s name=%s type=%s",
-                added ? "ADD " : "SKIP", key, type));
     }
 }
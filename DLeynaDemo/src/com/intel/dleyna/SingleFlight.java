@@ -0,0 +1,216 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Tom Keel <thomas.keel@intel.com>
+ */
+
+
+package com.intel.dleyna;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Bundle;
+
+import com.intel.dleyna.lib.DLeynaException;
+import com.intel.dleyna.lib.Extras;
+
+/**
+ * Lets identical concurrent calls share one invocation of a read-only method.
+ * <p>
+ * The first caller for a given (method, object, arguments) runs the call; anyone who asks
+ * for the same thing while it's in flight waits for it instead, and gets a share of its
+ * result and a copy of its error extras. Only the methods in the set given to the constructor
+ * are coalesced, so that non-idempotent methods can be left out; other calls just run.
+ * The set is read on each call, so it can be changed while calls are being made.
+ * <p>
+ * The shared invocation is made on behalf of the first caller's client. If that client
+ * cancels its calls, the others didn't ask for that, so they each make the call themselves.
+ * <p>
+ * By default the result itself is shared, so callers must not modify it.
+ * Override {@link #share(Object)} for results that each caller must own, such as
+ * {@link GVariant}s that each caller will free.
+ * @param <T> the type of the result
+ */
+class SingleFlight<T> {
+
+    /**
+     * A call that may be coalesced.
+     */
+    interface Call<T> {
+        /**
+         * @param extras where to report errors
+         * @return the result, or null
+         */
+        public T call(Bundle extras);
+    }
+
+    private static class Flight<T> {
+        int waiters;
+        boolean done;
+        ArrayList<T> shares;
+        Bundle extras;
+    }
+
+    /** The coalesced methods, as "interface.method" strings. */
+    private final Set<String> methods;
+
+    /** The calls in flight, by key. */
+    private final HashMap<String, Flight<T>> flights = new HashMap<String, Flight<T>>();
+
+    /** The number of calls that were satisfied by sharing. */
+    private final AtomicLong sharedCount = new AtomicLong();
+
+    /** The number of calls that waited to share a result, but made the call after all. */
+    private final AtomicLong retriedCount = new AtomicLong();
+
+    SingleFlight(Set<String> methods) {
+        this.methods = methods;
+    }
+
+    /**
+     * Run a call, or wait for an identical one that's already in flight.
+     * @param iface name of the interface
+     * @param method name of the method
+     * @param objectPath the target object
+     * @param argsKey a string that's equal for equal arguments
+     * @param extras where to report errors
+     * @param call the call
+     * @return the call's result, or a share of it
+     */
+    T run(String iface, String method, String objectPath, String argsKey, Bundle extras,
+            Call<T> call) {
+        if (!methods.contains(iface + '.' + method)) {
+            return call.call(extras);
+        }
+        String key = iface + '.' + method + '\n' + objectPath + '\n' + argsKey;
+
+        Flight<T> flight;
+        boolean leader = false;
+        synchronized (flights) {
+            flight = flights.get(key);
+            if (flight == null) {
+                flight = new Flight<T>();
+                flights.put(key, flight);
+                leader = true;
+            } else {
+                flight.waiters++;
+            }
+        }
+        if (!leader) {
+            return await(flight, extras, call);
+        }
+
+        // We're the leader.
+        T result = null;
+        try {
+            result = call.call(extras);
+        } finally {
+            // Once it's out of the map, nobody else can join, so the number of waiters is final.
+            synchronized (flights) {
+                flights.remove(key);
+            }
+            synchronized (flight) {
+                flight.shares = new ArrayList<T>(flight.waiters);
+                for (int i = 0; i < flight.waiters; i++) {
+                    flight.shares.add(share(result));
+                }
+                // A snapshot, since the leader's caller may go on to add to its extras.
+                flight.extras = new Bundle(extras);
+                flight.done = true;
+                flight.notifyAll();
+            }
+        }
+        return result;
+    }
+
+    private T await(Flight<T> flight, Bundle extras, Call<T> call) {
+        boolean interrupted = false;
+        T share;
+        Bundle flightExtras;
+        synchronized (flight) {
+            // We've been counted as a waiter, so we must stay for our share.
+            while (!flight.done) {
+                try {
+                    flight.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            share = flight.shares.remove(flight.shares.size() - 1);
+            flightExtras = flight.extras;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (flightExtras.getInt(Extras.KEY_ERR_CODE, -1) == DLeynaException.ERR_CANCELLED) {
+            // The leader's client cancelled; we didn't.
+            retriedCount.incrementAndGet();
+            return call.call(extras);
+        }
+        extras.putAll(flightExtras);
+        sharedCount.incrementAndGet();
+        return share;
+    }
+
+    /**
+     * Make a share of the leader's result for one waiter.
+     * @param result the leader's result, possibly null
+     * @return the share
+     */
+    protected T share(T result) {
+        return result;
+    }
+
+    /**
+     * Make an arguments key for {@link #run}.
+     * @param args the arguments; each must be null, a String[], or have a suitable toString()
+     * @return a string that's equal for equal arguments
+     */
+    static String key(Object... args) {
+        StringBuilder sb = new StringBuilder();
+        for (Object arg : args) {
+            if (arg instanceof String[]) {
+                for (String s : (String[]) arg) {
+                    sb.append(s).append('\1');
+                }
+            } else {
+                sb.append(arg);
+            }
+            sb.append('\0');
+        }
+        return sb.toString();
+    }
+
+    /** @return the number of calls that were satisfied by sharing */
+    long getSharedCount() {
+        return sharedCount.get();
+    }
+
+    /** @return the number of calls that made the call themselves since the shared one was cancelled */
+    long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    void resetStats() {
+        sharedCount.set(0);
+        retriedCount.set(0);
+    }
+}
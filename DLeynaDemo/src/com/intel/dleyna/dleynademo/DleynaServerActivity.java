@@ -52,6 +52,7 @@ import android.widget.Toast;
 
 import com.intel.dleyna.lib.DLeynaException;
 import com.intel.dleyna.lib.IServerController;
+import com.intel.dleyna.lib.MediaObjectList;
 import com.intel.dleyna.lib.Server;
 import com.intel.dleyna.lib.ServerControllerListener;
 import com.intel.dleyna.lib.ServerManager;
@@ -441,7 +442,10 @@ public class DleynaServerActivity extends Activity {
             List<ContainedObjectLite> container = new ArrayList<ContainedObjectLite>();
             Bundle[] children = null;
             try {
-                children = server.getChildren(objectPath);
+                MediaObjectList list = server.getChildrenList(objectPath);
+                if (list != null) {
+                    children = list.toArray();
+                }
             } catch (RemoteException e) {
                 if (App.LOG) Log.w(TAG, "RemoteException in getChildren() " + e.getMessage());
             } catch (DLeynaException e) {
@@ -34,6 +34,14 @@ public class ContainerUpdateId implements Parcelable {
         this.id = id;
     }
 
+    public String getObjectPath() {
+        return objectPath;
+    }
+
+    public int getId() {
+        return id;
+    }
+
     public int describeContents() {
         return 0;
     }
@@ -24,6 +24,8 @@ public class DLeynaException extends Exception {
     public static final int ERR_BAD_MIME = 12;
     public static final int ERR_HOST_FAILED = 13;
     public static final int ERR_IO = 14;
+    /** Not from dLeyna: the background service gave up waiting for the device to respond. */
+    public static final int ERR_TIMEOUT = 15;
 
     private int errorCode;
 
@@ -0,0 +1,187 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.intel.dleyna.lib;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * All the properties of a Server's or Renderer's device interface,
+ * got in one call rather than one call per property.
+ * <p>
+ * The typed getters cover the usual properties; {@link #getProperties()} has them all.
+ * A getter returns null (or the stated default) if the device doesn't have the property;
+ * Renderers, for instance, have none of the Server-only ones.
+ */
+public class DeviceSnapshot implements Parcelable {
+
+    private final String objectPath;
+    private final Bundle props;
+
+    /**
+     * @param objectPath the device's object path
+     * @param props the device's properties, by name; they're copied
+     */
+    public DeviceSnapshot(String objectPath, Bundle props) {
+        this.objectPath = objectPath;
+        this.props = new Bundle(props);
+    }
+
+    /**
+     * @return a snapshot with some properties changed
+     */
+    public DeviceSnapshot withChanges(Bundle changes) {
+        DeviceSnapshot s = new DeviceSnapshot(objectPath, props);
+        s.props.putAll(changes);
+        return s;
+    }
+
+    public String getObjectPath() {
+        return objectPath;
+    }
+
+    /**
+     * @return a copy of all the properties, by name
+     */
+    public Bundle getProperties() {
+        return new Bundle(props);
+    }
+
+    public String getLocation() {
+        return props.getString("Location");
+    }
+
+    public String getUniqueDeviceName() {
+        return props.getString("UDN");
+    }
+
+    public String getRootUniqueDeviceName() {
+        return props.getString("RootUDN");
+    }
+
+    public String getDeviceType() {
+        return props.getString("DeviceType");
+    }
+
+    public String getFriendlyName() {
+        return props.getString("FriendlyName");
+    }
+
+    public String getManufacturer() {
+        return props.getString("Manufacturer");
+    }
+
+    public String getManufacturerUrl() {
+        return props.getString("ManufacturerUrl");
+    }
+
+    public String getModelDescription() {
+        return props.getString("ModelDescription");
+    }
+
+    public String getModelName() {
+        return props.getString("ModelName");
+    }
+
+    public String getModelNumber() {
+        return props.getString("ModelNumber");
+    }
+
+    public String getModelUrl() {
+        return props.getString("ModelURL");
+    }
+
+    public String getSerialNumber() {
+        return props.getString("SerialNumber");
+    }
+
+    public String getPresentationUrl() {
+        return props.getString("PresentationURL");
+    }
+
+    public String getIconUrl() {
+        return props.getString("IconURL");
+    }
+
+    public String getProtocolInfo() {
+        return props.getString("ProtocolInfo");
+    }
+
+    public Bundle getDlnaCaps() {
+        return props.getBundle("DLNACaps");
+    }
+
+    public String[] getSearchCaps() {
+        return props.getStringArray("SearchCaps");
+    }
+
+    public String[] getSortCaps() {
+        return props.getStringArray("SortCaps");
+    }
+
+    public String[] getSortExtCaps() {
+        return props.getStringArray("SortExtCaps");
+    }
+
+    public String getServiceResetToken() {
+        return props.getString("ServiceResetToken");
+    }
+
+    /**
+     * @return the system update ID, or -1 if there isn't one
+     */
+    public int getSystemUpdateId() {
+        return props.getInt("SystemUpdateID", -1);
+    }
+
+    public boolean isSleeping() {
+        return props.getBoolean("Sleeping", false);
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeString(objectPath);
+        out.writeBundle(props);
+    }
+
+    public String toString() {
+        return "DeviceSnapshot[" + objectPath + " " + props + "]";
+    }
+
+    public static final Parcelable.Creator<DeviceSnapshot> CREATOR
+            = new Parcelable.Creator<DeviceSnapshot>() {
+        public DeviceSnapshot createFromParcel(Parcel in) {
+            return new DeviceSnapshot(in);
+        }
+
+        public DeviceSnapshot[] newArray(int size) {
+            return new DeviceSnapshot[size];
+        }
+    };
+
+    private DeviceSnapshot(Parcel in) {
+        objectPath = in.readString();
+        props = in.readBundle();
+    }
+}
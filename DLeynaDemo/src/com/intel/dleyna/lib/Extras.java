@@ -7,15 +7,26 @@ public class Extras {
     public static final String KEY_ERR_CODE = "ErrCode";
     public static final String KEY_ERR_MSG  = "ErrMsg";
 
+    /** For a search, the total number of matches, of which the results may be a page. */
+    public static final String KEY_TOTAL_ITEMS = "TotalItems";
+
     public static void throwExceptionIfError(Bundle extras) throws DLeynaException {
+        DLeynaException e = getExceptionIfError(extras);
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    public static DLeynaException getExceptionIfError(Bundle extras) {
         if (extras.containsKey(KEY_ERR_CODE)) {
             int errCode = extras.getInt(KEY_ERR_CODE);
             String errMsg = extras.getString(KEY_ERR_MSG);
             if (errCode == DLeynaException.ERR_UNKNOWN_PROPERTY) {
-                throw new DLeynaUnknownPropertyException(errMsg);
+                return new DLeynaUnknownPropertyException(errMsg);
             } else {
-                throw new DLeynaException(errCode, errMsg);
+                return new DLeynaException(errCode, errMsg);
             }
         }
+        return null;
     }
 }
@@ -0,0 +1,817 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.intel.dleyna.lib;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.os.Bundle;
+
+/**
+ * Decodes GVariant values from their serialized form, as given by g_variant_get_data(),
+ * without any calls into the native library.
+ * <p>
+ * This understands the whole GVariant serialization format, but only converts to Java
+ * the types that the services deliver to clients: strings and object paths, integers
+ * (bytes and 16 and 32 bit ones as int, 64 bit ones as long), booleans, doubles,
+ * string, object path and double arrays, string-to-boolean dictionaries,
+ * (arrays of) string-to-variant dictionaries, and container update IDs ("a(ou)").
+ * Dictionary entries of other types are skipped.
+ * {@link #readWritable(StringMapper)} copies values of any type, for writing back.
+ * <p>
+ * The data are expected to be trusted and in normal form: bounds are checked only
+ * as far as needed to avoid reading outside the data.
+ */
+public class GVariantReader {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] data;
+    /** For reading numbers, which are in native byte order. */
+    private final ByteBuffer numbers;
+    private final Type type;
+
+    /**
+     * @param data the serialized value, from its position to its limit; it's copied
+     * @param typeString the value's type, à la g_variant_get_type_string()
+     */
+    public GVariantReader(ByteBuffer data, String typeString) {
+        this(copy(data), typeString);
+    }
+
+    /**
+     * @param data the serialized value; it's not copied
+     * @param typeString the value's type, à la g_variant_get_type_string()
+     */
+    public GVariantReader(byte[] data, String typeString) {
+        this.data = data;
+        this.numbers = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+        this.type = Type.get(typeString);
+    }
+
+    /**
+     * Check a type string, and prepare to decode values of the type.
+     * @param typeString a type, à la g_variant_get_type_string()
+     * @throws IllegalArgumentException if it's not a single complete type
+     */
+    public static void checkTypeString(String typeString) {
+        Type.get(typeString);
+    }
+
+    private static byte[] copy(ByteBuffer data) {
+        byte[] a = new byte[data.remaining()];
+        data.duplicate().get(a);
+        return a;
+    }
+
+    /**
+     * @return the value, which must be of type "aa{sv}", as an array of Bundles
+     */
+    public Bundle[] readDictionaryArray() {
+        checkType("aa{sv}");
+        return readDictionaryArray(type, 0, data.length);
+    }
+
+    /**
+     * @return the value, which must be of type "a{sv}", as a Bundle
+     */
+    public Bundle readDictionary() {
+        checkType("a{sv}");
+        return readDictionary(type, 0, data.length);
+    }
+
+    /**
+     * @return the value, which must be of type "as" or "ao"
+     */
+    public String[] readStringArray() {
+        if (!type.signature.equals("as") && !type.signature.equals("ao")) {
+            throw new IllegalStateException("Not a string array: " + type.signature);
+        }
+        return readStringArray(type, 0, data.length);
+    }
+
+    /**
+     * Decode a value of any type, as follows: booleans as Boolean; bytes and 16 and 32 bit
+     * integers as Integer; 64 bit integers as Long; doubles as Double; strings, object paths
+     * and signatures as String; variants as their contents; maybes as their contents or null;
+     * string and object path arrays as String[]; double arrays as double[];
+     * string-to-variant dictionaries as Bundle; arrays of those as Bundle[];
+     * "a(ou)" as ContainerUpdateId[]; other arrays as Object[]; and tuples and
+     * dictionary entries as Object[] of their members.
+     * @return the value
+     */
+    public Object readValue() {
+        return read(type, 0, data.length);
+    }
+
+    /**
+     * Changes strings as a value is copied.
+     */
+    public interface StringMapper {
+        /** @return the string to copy in place of s */
+        String map(String s);
+    }
+
+    /**
+     * Decode the value in a form that {@link GVariantWriter} writes back as the same value
+     * of the same type, except that every string, object path and signature is passed
+     * through the mapper: variants as {@link GVariantWriter.Serialized}, with their own
+     * type strings; arrays as Lists; tuples and dictionary entries as Object[] of their
+     * members; maybes as their contents or null; and other values as by {@link #readValue()}.
+     * @return the value
+     */
+    public Object readWritable(StringMapper mapper) {
+        return readWritable(type, 0, data.length, mapper);
+    }
+
+    /**
+     * @return the value, which must be of type "a(ou)", as container update IDs
+     */
+    public ContainerUpdateId[] readContainerUpdateIds() {
+        checkType("a(ou)");
+        return readContainerUpdateIds(type, 0, data.length);
+    }
+
+    /**
+     * @return the number of elements of the value, which must be an array
+     */
+    public int getArrayLength() {
+        checkArray();
+        return getArrayLength(type, 0, data.length);
+    }
+
+    /**
+     * Decode just one element of an "aa{sv}".
+     * @param index the element's index
+     * @return the element, as a Bundle
+     */
+    public Bundle readDictionaryArrayElement(int index) {
+        checkType("aa{sv}");
+        return readDictionary(type.element, getElementStart(type, 0, data.length, index),
+                getElementEnd(type, 0, data.length, index));
+    }
+
+    /**
+     * @return where an element of the value, which must be an array, starts in the data
+     */
+    public int getArrayElementStart(int index) {
+        checkArray();
+        return getElementStart(type, 0, data.length, index);
+    }
+
+    /**
+     * @return where an element of the value, which must be an array, ends in the data
+     */
+    public int getArrayElementEnd(int index) {
+        checkArray();
+        return getElementEnd(type, 0, data.length, index);
+    }
+
+    /**
+     * Decode just one value of one element of an "aa{sv}".
+     * The other entries of the element are skipped without being decoded.
+     * @param index the element's index
+     * @param key the key of the value
+     * @return the value, as by {@link #readValue()}, or null if the element has no such key
+     */
+    public Object readDictionaryArrayValue(int index, String key) {
+        checkType("aa{sv}");
+        return readDictionaryValue(type.element, getElementStart(type, 0, data.length, index),
+                getElementEnd(type, 0, data.length, index), key.getBytes(UTF8));
+    }
+
+    /**
+     * Decode just one value of an "a{sv}".
+     * The other entries are skipped without being decoded.
+     * @param key the key of the value
+     * @return the value, as by {@link #readValue()}, or null if there's no such key
+     */
+    public Object readDictionaryValue(String key) {
+        checkType("a{sv}");
+        return readDictionaryValue(type, 0, data.length, key.getBytes(UTF8));
+    }
+
+    private Object readDictionaryValue(Type t, int start, int end, byte[] key) {
+        int n = getArrayLength(t, start, end);
+        for (int i = 0; i < n; i++) {
+            int eStart = getElementStart(t, start, end, i);
+            int eEnd = getElementEnd(t, start, end, i);
+            int osize = getOffsetSize(eEnd - eStart);
+            int keyEnd = eStart + readOffset(eEnd - osize, osize);
+            if (equals(key, eStart, keyEnd - 1)) {
+                int vStart = align(eStart, keyEnd, t.element.members[1].alignment);
+                return read(t.element.members[1], vStart, eEnd - osize);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the bytes from start to end (exclusive) are the given ones
+     */
+    private boolean equals(byte[] bytes, int start, int end) {
+        if (end - start != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (data[start + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void checkArray() {
+        if (type.code != 'a') {
+            throw new IllegalStateException("Not an array: " + type.signature);
+        }
+    }
+
+    private void checkType(String signature) {
+        if (!type.signature.equals(signature)) {
+            throw new IllegalStateException("Expected " + signature + ", not " + type.signature);
+        }
+    }
+
+    /*----------+
+     | Decoding |
+     +----------*/
+
+    private Bundle[] readDictionaryArray(Type t, int start, int end) {
+        int n = getArrayLength(t, start, end);
+        Bundle[] bundles = new Bundle[n];
+        for (int i = 0; i < n; i++) {
+            bundles[i] = readDictionary(t.element, getElementStart(t, start, end, i),
+                    getElementEnd(t, start, end, i));
+        }
+        return bundles;
+    }
+
+    /**
+     * Decode an a{sv}: for each entry, the key and the variant holding the value.
+     */
+    private Bundle readDictionary(Type t, int start, int end) {
+        Bundle bundle = new Bundle();
+        Type entry = t.element;
+        int n = getArrayLength(t, start, end);
+        for (int i = 0; i < n; i++) {
+            int eStart = getElementStart(t, start, end, i);
+            int eEnd = getElementEnd(t, start, end, i);
+            // {sv}: the key's end is the entry's only framing offset.
+            int osize = getOffsetSize(eEnd - eStart);
+            int keyEnd = eStart + readOffset(eEnd - osize, osize);
+            String key = readString(eStart, keyEnd);
+            int vStart = align(eStart, keyEnd, entry.members[1].alignment);
+            putVariant(bundle, key, vStart, eEnd - osize);
+        }
+        return bundle;
+    }
+
+    /**
+     * Add the value of a variant to the bundle, if it's of a type we like.
+     */
+    private void putVariant(Bundle bundle, String key, int start, int end) {
+        int sep = getVariantSeparator(start, end);
+        Type t = getVariantType(sep, end);
+        if (t == null) {
+            return;
+        }
+        put(bundle, key, t, start, sep);
+    }
+
+    /**
+     * A variant is its value, a zero byte, then the value's type string.
+     * @return the position of the zero byte
+     */
+    private int getVariantSeparator(int start, int end) {
+        int sep = end - 1;
+        while (sep > start && data[sep] != 0) {
+            sep--;
+        }
+        return sep;
+    }
+
+    private Type getVariantType(int sep, int end) {
+        return sep + 2 == end ? Type.getBasic((char) data[sep + 1])
+                : Type.get(new String(data, sep + 1, end - sep - 1, UTF8));
+    }
+
+    private Object read(Type t, int start, int end) {
+        switch (t.code) {
+        case 'b':
+            return end > start && data[start] != 0;
+        case 'y':
+            return end > start ? data[start] & 0xff : 0;
+        case 'n':
+            return end - start == 2 ? (int) numbers.getShort(start) : 0;
+        case 'q':
+            return end - start == 2 ? numbers.getShort(start) & 0xffff : 0;
+        case 'i':
+        case 'u':
+        case 'h':
+            return end - start == 4 ? numbers.getInt(start) : 0;
+        case 'x':
+        case 't':
+            return end - start == 8 ? numbers.getLong(start) : 0L;
+        case 'd':
+            return end - start == 8 ? numbers.getDouble(start) : 0.0;
+        case 's':
+        case 'o':
+        case 'g':
+            return readString(start, end);
+        case 'v': {
+            int sep = getVariantSeparator(start, end);
+            Type vt = getVariantType(sep, end);
+            return vt != null ? read(vt, start, sep) : null;
+        }
+        case 'm':
+            if (end == start) {
+                return null;
+            }
+            // A variable-size value is followed by a zero byte.
+            return read(t.element, start, t.element.fixedSize != 0 ? end : end - 1);
+        case 'a':
+            return readArray(t, start, end);
+        case '(':
+        case '{':
+            return readTuple(t, start, end, null);
+        default:
+            return null;
+        }
+    }
+
+    private Object readWritable(Type t, int start, int end, StringMapper mapper) {
+        switch (t.code) {
+        case 's':
+        case 'o':
+        case 'g':
+            return mapper.map(readString(start, end));
+        case 'v': {
+            int sep = getVariantSeparator(start, end);
+            Type vt = getVariantType(sep, end);
+            if (vt == null) {
+                throw new IllegalStateException("Unknown variant type");
+            }
+            byte[] bytes;
+            if (hasStrings(vt)) {
+                ByteBuffer b = new GVariantWriter().write(vt.signature,
+                        readWritable(vt, start, sep, mapper));
+                bytes = copy(b);
+            } else {
+                // Nothing in it to change.
+                bytes = Arrays.copyOfRange(data, start, sep);
+            }
+            return new GVariantWriter.Serialized(vt.signature, ByteBuffer.wrap(bytes));
+        }
+        case 'm':
+            if (end == start) {
+                return null;
+            }
+            return readWritable(t.element, start, t.element.fixedSize != 0 ? end : end - 1, mapper);
+        case 'a': {
+            int n = getArrayLength(t, start, end);
+            List<Object> values = new ArrayList<Object>(n);
+            for (int i = 0; i < n; i++) {
+                values.add(readWritable(t.element, getElementStart(t, start, end, i),
+                        getElementEnd(t, start, end, i), mapper));
+            }
+            return values;
+        }
+        case '(':
+        case '{':
+            return readTuple(t, start, end, mapper);
+        default:
+            return read(t, start, end);
+        }
+    }
+
+    /**
+     * @return whether values of the type may hold strings, object paths or signatures
+     */
+    private static boolean hasStrings(Type t) {
+        for (int i = 0; i < t.signature.length(); i++) {
+            switch (t.signature.charAt(i)) {
+            case 's':
+            case 'o':
+            case 'g':
+            case 'v':
+                return true;
+            default:
+                break;
+            }
+        }
+        return false;
+    }
+
+    private Object readArray(Type t, int start, int end) {
+        Type e = t.element;
+        switch (e.code) {
+        case 's':
+        case 'o':
+            return readStringArray(t, start, end);
+        case 'd':
+            return readDoubleArray(t, start, end);
+        default:
+            if (e.signature.equals("{sv}")) {
+                return readDictionary(t, start, end);
+            } else if (e.signature.equals("a{sv}")) {
+                return readDictionaryArray(t, start, end);
+            } else if (e.signature.equals("(ou)")) {
+                return readContainerUpdateIds(t, start, end);
+            }
+            int n = getArrayLength(t, start, end);
+            Object[] values = new Object[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = read(e, getElementStart(t, start, end, i), getElementEnd(t, start, end, i));
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Decode a tuple or dictionary entry. Each variable-size member but the last
+     * has its end recorded in a framing offset; these are at the end, last first.
+     * @param mapper if not null, decode the members as by {@link #readWritable(StringMapper)}
+     */
+    private Object[] readTuple(Type t, int start, int end, StringMapper mapper) {
+        Type[] members = t.members;
+        Object[] values = new Object[members.length];
+        int osize = getOffsetSize(end - start);
+        int offsetsEnd = end;
+        int pos = start;
+        for (int i = 0; i < members.length; i++) {
+            Type m = members[i];
+            int mStart = align(start, pos, m.alignment);
+            int mEnd;
+            if (m.fixedSize != 0) {
+                mEnd = mStart + m.fixedSize;
+            } else if (i == members.length - 1) {
+                mEnd = offsetsEnd;
+            } else {
+                offsetsEnd -= osize;
+                mEnd = start + readOffset(offsetsEnd, osize);
+            }
+            values[i] = mapper == null ? read(m, mStart, mEnd)
+                    : readWritable(m, mStart, mEnd, mapper);
+            pos = mEnd;
+        }
+        return values;
+    }
+
+    private void put(Bundle bundle, String key, Type t, int start, int end) {
+        switch (t.code) {
+        case 's':
+        case 'o':
+            bundle.putString(key, readString(start, end));
+            break;
+        case 'y':
+            bundle.putInt(key, end > start ? data[start] & 0xff : 0);
+            break;
+        case 'n':
+            bundle.putInt(key, end - start == 2 ? numbers.getShort(start) : 0);
+            break;
+        case 'q':
+            bundle.putInt(key, end - start == 2 ? numbers.getShort(start) & 0xffff : 0);
+            break;
+        case 'i':
+        case 'u':
+            bundle.putInt(key, end - start == 4 ? numbers.getInt(start) : 0);
+            break;
+        case 'x':
+        case 't':
+            bundle.putLong(key, end - start == 8 ? numbers.getLong(start) : 0);
+            break;
+        case 'd':
+            bundle.putDouble(key, end - start == 8 ? numbers.getDouble(start) : 0);
+            break;
+        case 'b':
+            bundle.putBoolean(key, end > start && data[start] != 0);
+            break;
+        case 'a':
+            putArray(bundle, key, t, start, end);
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void putArray(Bundle bundle, String key, Type t, int start, int end) {
+        Type e = t.element;
+        switch (e.code) {
+        case 's':
+        case 'o':
+            bundle.putStringArray(key, readStringArray(t, start, end));
+            break;
+        case 'd':
+            bundle.putDoubleArray(key, readDoubleArray(t, start, end));
+            break;
+        case 'a':
+            if (e.signature.equals("a{sv}")) {
+                bundle.putParcelableArray(key, readDictionaryArray(t, start, end));
+            }
+            break;
+        case '{':
+            if (e.signature.equals("{sv}")) {
+                bundle.putBundle(key, readDictionary(t, start, end));
+            } else if (e.signature.equals("{sb}")) {
+                bundle.putBundle(key, readBooleanDictionary(t, start, end));
+            }
+            break;
+        case '(':
+            if (e.signature.equals("(sb)")) {
+                bundle.putBundle(key, readBooleanDictionary(t, start, end));
+            } else if (e.signature.equals("(ou)")) {
+                bundle.putParcelableArray(key, readContainerUpdateIds(t, start, end));
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    private String[] readStringArray(Type t, int start, int end) {
+        int n = getArrayLength(t, start, end);
+        String[] strings = new String[n];
+        for (int i = 0; i < n; i++) {
+            strings[i] = readString(getElementStart(t, start, end, i), getElementEnd(t, start, end, i));
+        }
+        return strings;
+    }
+
+    private double[] readDoubleArray(Type t, int start, int end) {
+        int n = getArrayLength(t, start, end);
+        double[] doubles = new double[n];
+        for (int i = 0; i < n; i++) {
+            doubles[i] = numbers.getDouble(start + i * 8);
+        }
+        return doubles;
+    }
+
+    private ContainerUpdateId[] readContainerUpdateIds(Type t, int start, int end) {
+        int n = getArrayLength(t, start, end);
+        ContainerUpdateId[] ids = new ContainerUpdateId[n];
+        for (int i = 0; i < n; i++) {
+            int eStart = getElementStart(t, start, end, i);
+            int eEnd = getElementEnd(t, start, end, i);
+            // (ou): the path's end is the entry's only framing offset.
+            int osize = getOffsetSize(eEnd - eStart);
+            int pathEnd = eStart + readOffset(eEnd - osize, osize);
+            int idStart = align(eStart, pathEnd, 4);
+            int id = idStart + 4 <= eEnd - osize ? numbers.getInt(idStart) : 0;
+            ids[i] = new ContainerUpdateId(readString(eStart, pathEnd), id);
+        }
+        return ids;
+    }
+
+    private Bundle readBooleanDictionary(Type t, int start, int end) {
+        Bundle bundle = new Bundle();
+        int n = getArrayLength(t, start, end);
+        for (int i = 0; i < n; i++) {
+            int eStart = getElementStart(t, start, end, i);
+            int eEnd = getElementEnd(t, start, end, i);
+            // {sb} or (sb): the key's end is the entry's only framing offset.
+            int osize = getOffsetSize(eEnd - eStart);
+            int keyEnd = eStart + readOffset(eEnd - osize, osize);
+            bundle.putBoolean(readString(eStart, keyEnd), data[keyEnd] != 0);
+        }
+        return bundle;
+    }
+
+    /**
+     * @return the string, without its terminating zero byte
+     */
+    private String readString(int start, int end) {
+        return end > start ? new String(data, start, end - start - 1, UTF8) : "";
+    }
+
+    /*---------------+
+     | Serialization |
+     +---------------*/
+
+    private int getArrayLength(Type t, int start, int end) {
+        int size = end - start;
+        if (size == 0) {
+            return 0;
+        }
+        int fixedSize = t.element.fixedSize;
+        if (fixedSize != 0) {
+            return size / fixedSize;
+        }
+        // Variable-size elements are followed by the offset of each one's end.
+        int osize = getOffsetSize(size);
+        int offsetsStart = readOffset(end - osize, osize);
+        return (size - offsetsStart) / osize;
+    }
+
+    private int getElementStart(Type t, int start, int end, int i) {
+        int fixedSize = t.element.fixedSize;
+        if (fixedSize != 0) {
+            return start + i * fixedSize;
+        }
+        if (i == 0) {
+            return start;
+        }
+        int osize = getOffsetSize(end - start);
+        int offsetsStart = start + readOffset(end - osize, osize);
+        return align(start, start + readOffset(offsetsStart + (i - 1) * osize, osize), t.element.alignment);
+    }
+
+    private int getElementEnd(Type t, int start, int end, int i) {
+        int fixedSize = t.element.fixedSize;
+        if (fixedSize != 0) {
+            return start + (i + 1) * fixedSize;
+        }
+        int osize = getOffsetSize(end - start);
+        int offsetsStart = start + readOffset(end - osize, osize);
+        return start + readOffset(offsetsStart + i * osize, osize);
+    }
+
+    /**
+     * @return the size of the framing offsets in a container of the given size
+     */
+    private static int getOffsetSize(int size) {
+        if (size > 0xffff) {
+            return 4;
+        } else if (size > 0xff) {
+            return 2;
+        } else if (size > 0) {
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Framing offsets are always little-endian.
+     */
+    private int readOffset(int pos, int size) {
+        switch (size) {
+        case 1:
+            return data[pos] & 0xff;
+        case 2:
+            return (data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8;
+        case 4:
+            return (data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8
+                    | (data[pos + 2] & 0xff) << 16 | (data[pos + 3] & 0xff) << 24;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * @return pos rounded up to a multiple of alignment, relative to the container's start
+     */
+    private static int align(int containerStart, int pos, int alignment) {
+        return containerStart + ((pos - containerStart + alignment - 1) & -alignment);
+    }
+
+    /*-------+
+     | Types |
+     +-------*/
+
+    /**
+     * A parsed type signature, with what the serialization needs to know about it.
+     */
+    static final class Type {
+
+        private static final ConcurrentHashMap<String, Type> cache = new ConcurrentHashMap<String, Type>();
+
+        private static final Type[] basic = new Type[128];
+        static {
+            for (char c : "bynqiuxthdsog".toCharArray()) {
+                basic[c] = parse(String.valueOf(c), new int[1]);
+            }
+            basic['v'] = parse("v", new int[1]);
+        }
+
+        final char code;
+        final String signature;
+        final int alignment;
+        /** The size of every value of this type, or 0 if they vary. */
+        final int fixedSize;
+        /** If an array or maybe, the type of the element. */
+        final Type element;
+        /** If a tuple or dictionary entry, the types of the members. */
+        final Type[] members;
+
+        private Type(char code, String signature, int alignment, int fixedSize,
+                Type element, Type[] members) {
+            this.code = code;
+            this.signature = signature;
+            this.alignment = alignment;
+            this.fixedSize = fixedSize;
+            this.element = element;
+            this.members = members;
+        }
+
+        /**
+         * @return the type for a one-character signature, or null if it's not a basic type
+         */
+        static Type getBasic(char code) {
+            return code < basic.length ? basic[code] : null;
+        }
+
+        static Type get(String signature) {
+            Type t = signature.length() == 1 ? getBasic(signature.charAt(0)) : cache.get(signature);
+            if (t == null) {
+                int[] pos = new int[1];
+                t = parse(signature, pos);
+                if (pos[0] != signature.length()) {
+                    throw new IllegalArgumentException("Bad type signature: " + signature);
+                }
+                cache.put(signature, t);
+            }
+            return t;
+        }
+
+        /**
+         * Parse the complete type starting at pos[0], and advance pos[0] past it.
+         */
+        private static Type parse(String sig, int[] pos) {
+            int start = pos[0];
+            if (start >= sig.length()) {
+                throw new IllegalArgumentException("Bad type signature: " + sig);
+            }
+            char c = sig.charAt(pos[0]++);
+            switch (c) {
+            case 'b':
+            case 'y':
+                return new Type(c, sig.substring(start, pos[0]), 1, 1, null, null);
+            case 'n':
+            case 'q':
+                return new Type(c, sig.substring(start, pos[0]), 2, 2, null, null);
+            case 'i':
+            case 'u':
+            case 'h':
+                return new Type(c, sig.substring(start, pos[0]), 4, 4, null, null);
+            case 'x':
+            case 't':
+            case 'd':
+                return new Type(c, sig.substring(start, pos[0]), 8, 8, null, null);
+            case 's':
+            case 'o':
+            case 'g':
+                return new Type(c, sig.substring(start, pos[0]), 1, 0, null, null);
+            case 'v':
+                return new Type(c, sig.substring(start, pos[0]), 8, 0, null, null);
+            case 'a':
+            case 'm': {
+                Type element = parse(sig, pos);
+                return new Type(c, sig.substring(start, pos[0]), element.alignment, 0, element, null);
+            }
+            case '(':
+            case '{': {
+                char close = c == '(' ? ')' : '}';
+                ArrayList<Type> members = new ArrayList<Type>();
+                while (pos[0] < sig.length() && sig.charAt(pos[0]) != close) {
+                    members.add(parse(sig, pos));
+                }
+                if (pos[0]++ >= sig.length()) {
+                    throw new IllegalArgumentException("Bad type signature: " + sig);
+                }
+                int alignment = 1;
+                int size = 0;
+                boolean fixed = true;
+                for (Type m : members) {
+                    alignment = Math.max(alignment, m.alignment);
+                    if (m.fixedSize == 0) {
+                        fixed = false;
+                    } else {
+                        size = ((size + m.alignment - 1) & -m.alignment) + m.fixedSize;
+                    }
+                }
+                int fixedSize = 0;
+                if (fixed) {
+                    // The unit type () takes one byte.
+                    fixedSize = members.isEmpty() ? 1 : (size + alignment - 1) & -alignment;
+                }
+                return new Type(c, sig.substring(start, pos[0]), alignment, fixedSize, null,
+                        members.toArray(new Type[members.size()]));
+            }
+            default:
+                throw new IllegalArgumentException("Bad type signature: " + sig);
+            }
+        }
+    }
+}
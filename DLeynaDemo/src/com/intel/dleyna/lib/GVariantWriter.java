@@ -0,0 +1,359 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.intel.dleyna.lib;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Bundle;
+
+import com.intel.dleyna.lib.GVariantReader.Type;
+
+/**
+ * Serializes Java values into the GVariant serialization format, as expected by
+ * g_variant_new_from_data(), without any calls into the native library.
+ * <p>
+ * Values are given as follows, according to the type they're written as:
+ * <ul>
+ * <li>b: Boolean
+ * <li>y, n, q, i, u, h, x, t: any Number
+ * <li>d: any Number
+ * <li>s, o, g: String
+ * <li>v: a {@link Serialized} value, or a String, Boolean, Integer, Long, Double or String[],
+ * which are written as s, b, i, x, d and as respectively
+ * <li>arrays: an Object[] (including String[] and the like), a primitive array, or a List;
+ * and for arrays of dictionary entries, a Map, or a Bundle, whose null values are left out
+ * <li>maybe: the value, or null for nothing
+ * <li>tuples and dictionary entries: an Object[] of the members; dictionary entries
+ * may also be given as Map.Entry
+ * </ul>
+ * <p>
+ * A writer reuses its buffer from one value to the next, so each thread should have its own.
+ */
+public class GVariantWriter {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    /** Direct, so it can be handed straight to native code. */
+    private ByteBuffer buf = newBuffer(INITIAL_CAPACITY);
+    private int pos;
+
+    /** Stack of the end offsets of container members, pending their framing offsets. */
+    private int[] ends = new int[16];
+    private int endsTop;
+
+    /**
+     * A value that's already serialized, to be written as the content of a variant.
+     */
+    public static final class Serialized {
+        final String typeString;
+        final ByteBuffer data;
+
+        /**
+         * @param typeString the value's type
+         * @param data the serialized value, from its position to its limit
+         */
+        public Serialized(String typeString, ByteBuffer data) {
+            this.typeString = typeString;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Serialize a value, replacing whatever this writer held before.
+     * @param typeString the type to write the value as
+     * @param value the value
+     * @return the serialized data, from position 0 to its limit;
+     * valid until this writer is next used
+     * @throws IllegalArgumentException if the value doesn't fit the type
+     */
+    public ByteBuffer write(String typeString, Object value) {
+        pos = 0;
+        endsTop = 0;
+        write(Type.get(typeString), value);
+        ByteBuffer data = buf.duplicate();
+        data.position(0);
+        data.limit(pos);
+        return data;
+    }
+
+    private void write(Type t, Object value) {
+        align(t.alignment);
+        switch (t.code) {
+        case 'b':
+            ensure(1);
+            buf.put(pos++, (byte) (((Boolean) value) ? 1 : 0));
+            break;
+        case 'y':
+            ensure(1);
+            buf.put(pos++, ((Number) value).byteValue());
+            break;
+        case 'n':
+        case 'q':
+            ensure(2);
+            buf.putShort(pos, ((Number) value).shortValue());
+            pos += 2;
+            break;
+        case 'i':
+        case 'u':
+        case 'h':
+            ensure(4);
+            buf.putInt(pos, ((Number) value).intValue());
+            pos += 4;
+            break;
+        case 'x':
+        case 't':
+            ensure(8);
+            buf.putLong(pos, ((Number) value).longValue());
+            pos += 8;
+            break;
+        case 'd':
+            ensure(8);
+            buf.putDouble(pos, ((Number) value).doubleValue());
+            pos += 8;
+            break;
+        case 's':
+        case 'o':
+        case 'g':
+            writeString((String) value);
+            break;
+        case 'v':
+            writeVariant(value);
+            break;
+        case 'a':
+            writeArray(t, value);
+            break;
+        case 'm':
+            if (value != null) {
+                write(t.element, value);
+                if (t.element.fixedSize == 0) {
+                    ensure(1);
+                    buf.put(pos++, (byte) 0);
+                }
+            }
+            break;
+        case '(':
+        case '{':
+            writeTuple(t, value);
+            break;
+        default:
+            throw new IllegalArgumentException("Unsupported type: " + t.signature);
+        }
+    }
+
+    private void writeString(String s) {
+        byte[] bytes = s.getBytes(UTF8);
+        ensure(bytes.length + 1);
+        buf.position(pos);
+        buf.put(bytes);
+        buf.put((byte) 0);
+        pos += bytes.length + 1;
+    }
+
+    /**
+     * A variant is its value, a zero byte, then the value's type string.
+     */
+    private void writeVariant(Object value) {
+        String typeString;
+        if (value instanceof Serialized) {
+            Serialized s = (Serialized) value;
+            typeString = s.typeString;
+            ByteBuffer data = s.data.duplicate();
+            ensure(data.remaining());
+            buf.position(pos);
+            pos += data.remaining();
+            buf.put(data);
+        } else {
+            typeString = getTypeString(value);
+            write(Type.get(typeString), value);
+        }
+        ensure(1 + typeString.length());
+        buf.put(pos++, (byte) 0);
+        for (int i = 0; i < typeString.length(); i++) {
+            buf.put(pos++, (byte) typeString.charAt(i));
+        }
+    }
+
+    private static String getTypeString(Object value) {
+        if (value instanceof String) {
+            return "s";
+        } else if (value instanceof Boolean) {
+            return "b";
+        } else if (value instanceof Integer) {
+            return "i";
+        } else if (value instanceof Long) {
+            return "x";
+        } else if (value instanceof Double) {
+            return "d";
+        } else if (value instanceof String[]) {
+            return "as";
+        } else if (value instanceof Bundle) {
+            return "a{sv}";
+        }
+        throw new IllegalArgumentException("No variant type for " + value);
+    }
+
+    private void writeArray(Type t, Object value) {
+        int start = pos;
+        int base = endsTop;
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                writeElement(t.element, e, start);
+            }
+        } else if (value instanceof Bundle) {
+            Bundle b = (Bundle) value;
+            for (String key : b.keySet()) {
+                Object v = b.get(key);
+                if (v != null) {
+                    writeElement(t.element, new Object[] { key, v }, start);
+                }
+            }
+        } else if (value instanceof List) {
+            for (Object e : (List<?>) value) {
+                writeElement(t.element, e, start);
+            }
+        } else if (value instanceof Object[]) {
+            for (Object e : (Object[]) value) {
+                writeElement(t.element, e, start);
+            }
+        } else {
+            // A primitive array.
+            int n = Array.getLength(value);
+            for (int i = 0; i < n; i++) {
+                writeElement(t.element, Array.get(value, i), start);
+            }
+        }
+        if (t.element.fixedSize == 0) {
+            writeOffsets(start, base, false);
+        }
+    }
+
+    private void writeElement(Type element, Object e, int start) {
+        write(element, e);
+        if (element.fixedSize == 0) {
+            pushEnd(pos - start);
+        }
+    }
+
+    private void writeTuple(Type t, Object value) {
+        Object[] members;
+        if (value instanceof Map.Entry) {
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) value;
+            members = new Object[] { e.getKey(), e.getValue() };
+        } else {
+            members = (Object[]) value;
+        }
+        if (members.length != t.members.length) {
+            throw new IllegalArgumentException("Need " + t.members.length + " values for "
+                    + t.signature + ", not " + members.length);
+        }
+        int start = pos;
+        int base = endsTop;
+        for (int i = 0; i < members.length; i++) {
+            Type m = t.members[i];
+            write(m, members[i]);
+            // The end of every variable-size member but the last is recorded.
+            if (m.fixedSize == 0 && i != members.length - 1) {
+                pushEnd(pos - start);
+            }
+        }
+        if (t.fixedSize != 0) {
+            // Pad to the full size (the unit type takes one byte).
+            ensure(t.fixedSize);
+            while (pos - start < t.fixedSize) {
+                buf.put(pos++, (byte) 0);
+            }
+        } else {
+            writeOffsets(start, base, true);
+        }
+    }
+
+    /**
+     * Write the framing offsets pushed since base, and pop them.
+     * @param reversed whether they're to be written last first, as for tuples
+     */
+    private void writeOffsets(int start, int base, boolean reversed) {
+        int n = endsTop - base;
+        if (n == 0) {
+            return;
+        }
+        int body = pos - start;
+        int osize;
+        if (body + n <= 0xff) {
+            osize = 1;
+        } else if (body + 2 * n <= 0xffff) {
+            osize = 2;
+        } else {
+            osize = 4;
+        }
+        ensure(n * osize);
+        for (int i = 0; i < n; i++) {
+            int end = ends[reversed ? endsTop - 1 - i : base + i];
+            for (int b = 0; b < osize; b++) {
+                // Framing offsets are always little-endian.
+                buf.put(pos++, (byte) (end >>> (8 * b)));
+            }
+        }
+        endsTop = base;
+    }
+
+    private void pushEnd(int end) {
+        if (endsTop == ends.length) {
+            int[] a = new int[ends.length * 2];
+            System.arraycopy(ends, 0, a, 0, endsTop);
+            ends = a;
+        }
+        ends[endsTop++] = end;
+    }
+
+    /**
+     * Pad with zeros to a multiple of the alignment. Every container starts at
+     * a multiple of its own alignment, so aligning relative to the start of the buffer
+     * is the same as aligning relative to the container.
+     */
+    private void align(int alignment) {
+        int aligned = (pos + alignment - 1) & -alignment;
+        ensure(aligned - pos);
+        while (pos < aligned) {
+            buf.put(pos++, (byte) 0);
+        }
+    }
+
+    private void ensure(int n) {
+        if (pos + n > buf.capacity()) {
+            ByteBuffer b = newBuffer(Math.max(buf.capacity() * 2, pos + n));
+            ByteBuffer old = buf.duplicate();
+            old.position(0);
+            old.limit(pos);
+            b.put(old);
+            buf = b;
+        }
+    }
+
+    private static ByteBuffer newBuffer(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+}
@@ -46,7 +46,10 @@ public interface IMediaContainer2 {
      * @return the contained children.
      * @throws RemoteException no connection to the background server service
      * @throws DLeynaException failure reported by the background server service
+     * @deprecated Use {@link #listChildrenEx(String, int, int, String[], String)},
+     * which can page and filter.
      */
+    @Deprecated
     public Bundle[] listChildrenEx(String objectPath) throws RemoteException, DLeynaException;
 
     /**
@@ -54,6 +57,122 @@ public interface IMediaContainer2 {
      * @return the search results.
      * @throws RemoteException no connection to the background server service
      * @throws DLeynaException failure reported by the background server service
+     * @deprecated Use {@link #searchObjectsEx(String, String, int, int, String[], String)},
+     * which can page and filter.
      */
+    @Deprecated
     public Bundle[] searchObjectsEx(String objectPath) throws RemoteException, DLeynaException;
+
+    /**
+     * Get the Container's children, decoding each only when it's accessed.
+     * @return the contained children.
+     * @throws RemoteException no connection to the background server service
+     * @throws DLeynaException failure reported by the background server service
+     * @deprecated Use {@link #listChildrenEx(String, int, int, String[], String)},
+     * which can page and filter.
+     */
+    @Deprecated
+    public MediaObjectList listChildrenExList(String objectPath) throws RemoteException, DLeynaException;
+
+    /**
+     * Get the Container's searched objects, decoding each only when it's accessed.
+     * @return the search results.
+     * @throws RemoteException no connection to the background server service
+     * @throws DLeynaException failure reported by the background server service
+     * @deprecated Use {@link #searchObjectsEx(String, String, int, int, String[], String)},
+     * which can page and filter.
+     */
+    @Deprecated
+    public MediaObjectList searchObjectsExList(String objectPath) throws RemoteException, DLeynaException;
+
+    /**
+     * Get a page of the Container's children.
+     * @param offset the index of the first child to get
+     * @param max the most children to get, or 0 for all from offset on
+     * @param filter the names of the properties to get, such as {@link Projection#LIST_ROW}
+     * @param sortBy the sort order, such as "+DisplayName", or "" for the server's order;
+     * the server must be able to sort by each property, according to {@link IMediaDevice#getSortCaps()}
+     * @return the children; there may be fewer than max even if there are more to come,
+     * so only an empty page means there are no more
+     * @throws RemoteException no connection to the background server service
+     * @throws DLeynaException failure reported by the background server service,
+     * including {@link DLeynaException#ERR_NOT_SUPPORTED} for an unsupported sort order
+     */
+    public MediaObjectList listChildrenEx(String objectPath, int offset, int max, String[] filter, String sortBy)
+            throws RemoteException, DLeynaException;
+
+    /**
+     * Get a page of the objects beneath the Container that match a query.
+     * @param query the query, à la UPnP SearchCriteria, such as "Type derivedfrom \"item.audio\"",
+     * or "*" for all; the server must be able to search on each property, according to
+     * {@link IMediaDevice#getSearchCaps()}
+     * @param offset the index of the first result to get
+     * @param max the most results to get, or 0 for all from offset on
+     * @param filter the names of the properties to get, such as {@link Projection#LIST_ROW}
+     * @param sortBy the sort order, as for {@link #listChildrenEx(String, int, int, String[], String)}
+     * @return the results; the total number of matches is in {@link MediaObjectList#getTotalItems()}
+     * @throws RemoteException no connection to the background server service
+     * @throws DLeynaException failure reported by the background server service,
+     * including {@link DLeynaException#ERR_BAD_QUERY} for an unsupported query
+     */
+    public MediaObjectList searchObjectsEx(String objectPath, String query, int offset, int max,
+            String[] filter, String sortBy) throws RemoteException, DLeynaException;
+
+    /**
+     * Get a cursor over the Container's children, which fetches them a page at a time,
+     * prefetching the next page while the current one is in use.
+     * Nothing is fetched until the cursor's first move.
+     * @param pageSize the number of children to fetch at a time
+     * @param filter the names of the properties to get, such as {@link Projection#LIST_ROW}
+     * @param sortBy the sort order, such as "+DisplayName", or "" for the server's order
+     * @return the cursor
+     */
+    public MediaObjectCursor listChildrenExCursor(String objectPath, int pageSize, String[] filter, String sortBy);
+
+    /**
+     * Get the Container's children, without blocking the calling thread.
+     * <p>
+     * Unlike the other methods of this interface, this one may be invoked from the UI thread.
+     * @param listener receives the contained children, on the application's main thread.
+     * @throws RemoteException no connection to the background server service
+     * @deprecated Use {@link #listChildrenExAsync(String, int, int, String[], String, IReplyListener)}.
+     */
+    @Deprecated
+    public void listChildrenExAsync(String objectPath, IReplyListener<Bundle[]> listener)
+            throws RemoteException;
+
+    /**
+     * Get a page of the Container's children, without blocking the calling thread.
+     * This is as for {@link #listChildrenEx(String, int, int, String[], String)}.
+     * <p>
+     * Unlike the other methods of this interface, this one may be invoked from the UI thread.
+     * @param listener receives the children, on the application's main thread.
+     * @throws RemoteException no connection to the background server service
+     */
+    public void listChildrenExAsync(String objectPath, int offset, int max, String[] filter, String sortBy,
+            IReplyListener<MediaObjectList> listener) throws RemoteException;
+
+    /**
+     * Get the Container's searched objects, without blocking the calling thread.
+     * <p>
+     * Unlike the other methods of this interface, this one may be invoked from the UI thread.
+     * @param listener receives the search results, on the application's main thread.
+     * @throws RemoteException no connection to the background server service
+     * @deprecated Use {@link #searchObjectsExAsync(String, String, int, int, String[], String, IReplyListener)}.
+     */
+    @Deprecated
+    public void searchObjectsExAsync(String objectPath, IReplyListener<Bundle[]> listener)
+            throws RemoteException;
+
+    /**
+     * Get a page of the objects beneath the Container that match a query, without blocking
+     * the calling thread.
+     * This is as for {@link #searchObjectsEx(String, String, int, int, String[], String)}.
+     * <p>
+     * Unlike the other methods of this interface, this one may be invoked from the UI thread.
+     * @param listener receives the results, on the application's main thread.
+     * @throws RemoteException no connection to the background server service
+     */
+    public void searchObjectsExAsync(String objectPath, String query, int offset, int max, String[] filter,
+            String sortBy, IReplyListener<MediaObjectList> listener) throws RemoteException;
 }
@@ -272,6 +272,47 @@ public interface IMediaDevice {
      */
     public String getProtocolInfo() throws RemoteException, DLeynaException;
 
+    /**
+     * Get all of the Server's device properties at once.
+     * This is much cheaper than getting several of them one by one.
+     * The background server service keeps the snapshot up to date as the properties change.
+     * @return the device properties.
+     * @throws RemoteException no connection to the background server service
+     * @throws DLeynaException failure reported by the background server service
+     */
+    public DeviceSnapshot getDeviceSnapshot() throws RemoteException, DLeynaException;
+
+    /**
+     * Search the local index of the Server's objects.
+     * This is as for {@link ServerManager#searchIndex(String, int)}, but for this Server only.
+     * @param query the words to look for
+     * @param max the most objects to find, or 0 for all
+     * @return the matching objects' Path, Parent, DisplayName and MIMEType
+     * @throws RemoteException no connection to the background server service
+     * @throws DLeynaException failure reported by the background server service
+     */
+    public MediaObjectList searchIndex(String query, int max) throws RemoteException, DLeynaException;
+
+    /**
+     * Start crawling the Server's containers in the background, so that browsing them
+     * is quick and {@link #searchIndex(String, int)} finds what's in them.
+     * A stopped crawl carries on where it left off; containers that have changed since
+     * they were crawled are crawled again.
+     * Progress is reported to {@link IMediaDeviceListener#onCrawlProgress}.
+     * @param concurrency the most requests to have in progress at once
+     * @param requestsPerSecond the most requests to start each second, or 0 for no limit
+     * @throws RemoteException no connection to the background server service
+     * @throws DLeynaException failure reported by the background server service
+     */
+    public void startCrawl(int concurrency, int requestsPerSecond) throws RemoteException, DLeynaException;
+
+    /**
+     * Stop crawling the Server's containers, until {@link #startCrawl(int, int)} is called again.
+     * @throws RemoteException no connection to the background server service
+     * @throws DLeynaException failure reported by the background server service
+     */
+    public void stopCrawl() throws RemoteException, DLeynaException;
+
     /**
      * Get the device icon.
      * @return the device icon.
@@ -301,6 +342,52 @@ public interface IMediaDevice {
      * @return the contained objects.
      * @throws RemoteException no connection to the background server service
      * @throws DLeynaException failure reported by the background server service
+     * @deprecated Use {@link #browseObjects(String[], String[])}, which can filter.
      */
+    @Deprecated
     public Bundle[] browseObjects() throws RemoteException, DLeynaException;
+
+    /**
+     * Get the Server's contained objects, decoding each only when it's accessed.
+     * @return the contained objects.
+     * @throws RemoteException no connection to the background server service
+     * @throws DLeynaException failure reported by the background server service
+     * @deprecated Use {@link #browseObjects(String[], String[])}, which can filter.
+     */
+    @Deprecated
+    public MediaObjectList browseObjectsList() throws RemoteException, DLeynaException;
+
+    /**
+     * Get some of the Server's objects, with just some of their properties.
+     * @param objectPaths the objects to get
+     * @param filter the names of the properties to get, such as {@link Projection#LIST_ROW}
+     * @return the objects, in the same order
+     * @throws RemoteException no connection to the background server service
+     * @throws DLeynaException failure reported by the background server service
+     */
+    public MediaObjectList browseObjects(String[] objectPaths, String[] filter)
+            throws RemoteException, DLeynaException;
+
+    /**
+     * Get the Server's contained objects, without blocking the calling thread.
+     * <p>
+     * Unlike the other methods of this interface, this one may be invoked from the UI thread.
+     * @param listener receives the contained objects, on the application's main thread.
+     * @throws RemoteException no connection to the background server service
+     * @deprecated Use {@link #browseObjectsAsync(String[], String[], IReplyListener)}.
+     */
+    @Deprecated
+    public void browseObjectsAsync(IReplyListener<Bundle[]> listener) throws RemoteException;
+
+    /**
+     * Get some of the Server's objects, with just some of their properties,
+     * without blocking the calling thread.
+     * This is as for {@link #browseObjects(String[], String[])}.
+     * <p>
+     * Unlike the other methods of this interface, this one may be invoked from the UI thread.
+     * @param listener receives the objects, on the application's main thread.
+     * @throws RemoteException no connection to the background server service
+     */
+    public void browseObjectsAsync(String[] objectPaths, String[] filter, IReplyListener<MediaObjectList> listener)
+            throws RemoteException;
 }
@@ -59,4 +59,16 @@ public interface IMediaDeviceListener {
      * @param total the size (bytes) of the file being uploaded
      */
     public void onUploadUpdate(IMediaDevice device, int id, String status, long length, long total);
+
+    /**
+     * Notification of the progress of a crawl started by {@link IMediaDevice#startCrawl(int, int)}.
+     * Notifications may be skipped when they come faster than they're handled.
+     * @param device the media device
+     * @param containersDone the number of containers crawled
+     * @param containersPending the number of containers found but not yet crawled
+     * @param objects the number of objects seen
+     * @param finished whether there's nothing left to crawl
+     */
+    public void onCrawlProgress(IMediaDevice device, int containersDone, int containersPending, int objects,
+            boolean finished);
 }
@@ -48,4 +48,14 @@ public interface IMediaObject2 {
      * @throws DLeynaException failure reported by the background server service
      */
     public String getMetadata(String objectPath) throws RemoteException, DLeynaException;
+
+    /**
+     * Get the media object's metadata, without blocking the calling thread.
+     * <p>
+     * Unlike the other methods of this interface, this one may be invoked from the UI thread.
+     * @param listener receives the metadata as an xml string, on the application's main thread.
+     * @throws RemoteException no connection to the background server service
+     */
+    public void getMetadataAsync(String objectPath, IReplyListener<String> listener)
+            throws RemoteException;
 }
@@ -166,6 +166,77 @@ public interface IRendererController {
      */
     public void openUri(String uri) throws RemoteException, DLeynaException;
 
+    /*
+     * Asynchronous variants of the transport commands above.
+     * <p>
+     * These don't block the calling thread, so unlike the other methods of this interface
+     * they may be invoked from the UI thread. The outcome is delivered to the given listener,
+     * on the application's main thread.
+     */
+
+    /**
+     * Like {@link #next()}, but without blocking the calling thread.
+     * @param listener receives the outcome
+     * @throws RemoteException no connection to the background renderer service
+     */
+    public void nextAsync(IReplyListener<Void> listener) throws RemoteException;
+
+    /**
+     * Like {@link #previous()}, but without blocking the calling thread.
+     * @param listener receives the outcome
+     * @throws RemoteException no connection to the background renderer service
+     */
+    public void previousAsync(IReplyListener<Void> listener) throws RemoteException;
+
+    /**
+     * Like {@link #pause()}, but without blocking the calling thread.
+     * @param listener receives the outcome
+     * @throws RemoteException no connection to the background renderer service
+     */
+    public void pauseAsync(IReplyListener<Void> listener) throws RemoteException;
+
+    /**
+     * Like {@link #playPause()}, but without blocking the calling thread.
+     * @param listener receives the outcome
+     * @throws RemoteException no connection to the background renderer service
+     */
+    public void playPauseAsync(IReplyListener<Void> listener) throws RemoteException;
+
+    /**
+     * Like {@link #stop()}, but without blocking the calling thread.
+     * @param listener receives the outcome
+     * @throws RemoteException no connection to the background renderer service
+     */
+    public void stopAsync(IReplyListener<Void> listener) throws RemoteException;
+
+    /**
+     * Like {@link #play()}, but without blocking the calling thread.
+     * @param listener receives the outcome
+     * @throws RemoteException no connection to the background renderer service
+     */
+    public void playAsync(IReplyListener<Void> listener) throws RemoteException;
+
+    /**
+     * Like {@link #seek(long)}, but without blocking the calling thread.
+     * @param listener receives the outcome
+     * @throws RemoteException no connection to the background renderer service
+     */
+    public void seekAsync(long offset, IReplyListener<Void> listener) throws RemoteException;
+
+    /**
+     * Like {@link #setPosition(long)}, but without blocking the calling thread.
+     * @param listener receives the outcome
+     * @throws RemoteException no connection to the background renderer service
+     */
+    public void setPositionAsync(long position, IReplyListener<Void> listener) throws RemoteException;
+
+    /**
+     * Like {@link #openUri(String)}, but without blocking the calling thread.
+     * @param listener receives the outcome
+     * @throws RemoteException no connection to the background renderer service
+     */
+    public void openUriAsync(String uri, IReplyListener<Void> listener) throws RemoteException;
+
     /**
      * Get the current playback status.
      * @return one of
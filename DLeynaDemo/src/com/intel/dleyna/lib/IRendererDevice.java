@@ -160,6 +160,16 @@ public interface IRendererDevice {
      */
     public String getProtocolInfo() throws RemoteException, DLeynaException;
 
+    /**
+     * Get all of the Renderer's device properties at once.
+     * This is much cheaper than getting several of them one by one.
+     * The background renderer service keeps the snapshot up to date as the properties change.
+     * @return the device properties.
+     * @throws RemoteException no connection to the background renderer service
+     * @throws DLeynaException failure reported by the background renderer service
+     */
+    public DeviceSnapshot getDeviceSnapshot() throws RemoteException, DLeynaException;
+
     /**
      * Get the device icon.
      * @return the device icon.
@@ -0,0 +1,45 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.intel.dleyna.lib;
+
+/**
+ * Receives the outcome of an asynchronous method call, such as
+ * {@link IMediaContainer2#listChildrenExAsync(String, int, int, String[], String, IReplyListener)}.
+ * <p>
+ * Exactly one of the methods will be called for each call,
+ * unless the connection to the background service is lost first.
+ * <p>
+ * All replies will run on the application's main thread.
+ * @param <T> the type of the method's result
+ */
+public interface IReplyListener<T> {
+
+    /**
+     * The method succeeded.
+     * @param result the method's result, or null if it has none
+     */
+    public void onReply(T result);
+
+    /**
+     * The method failed.
+     * @param e failure reported by the background service
+     */
+    public void onError(DLeynaException e);
+}
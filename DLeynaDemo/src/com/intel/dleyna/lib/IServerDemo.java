@@ -33,5 +33,15 @@ import android.os.RemoteException;
  */
 public interface IServerDemo {
 
+    /**
+     * @deprecated Use {@link #getChildrenList(String)}, which is safe for containers of any size.
+     */
+    @Deprecated
     public Bundle[] getChildren(String objectPath) throws RemoteException, DLeynaException;
+
+    /**
+     * Like {@link #getChildren(String)}, but safe for containers of any size:
+     * big results come through a pipe rather than in the binder transaction.
+     */
+    public MediaObjectList getChildrenList(String objectPath) throws RemoteException, DLeynaException;
 }
@@ -39,4 +39,8 @@ public class MediaDeviceListener implements IMediaDeviceListener {
 
     public void onUploadUpdate(IMediaDevice device, int id, String status, long length, long total) {
     }
+
+    public void onCrawlProgress(IMediaDevice device, int containersDone, int containersPending, int objects,
+            boolean finished) {
+    }
 }
@@ -0,0 +1,219 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.intel.dleyna.lib;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+
+/**
+ * Steps through a possibly very large list of media objects, such as a container's
+ * children, fetching them from the server a page at a time.
+ * <p>
+ * Once half of the current page has been stepped through, the next page is fetched
+ * in the background, so that it's usually there by the time it's needed.
+ * Servers may return fewer objects than asked for even when there are more, so the end
+ * is only taken to be reached with an empty page, or, if the server says how many objects
+ * there are in all, once that many have been stepped through.
+ * <p>
+ * {@link #moveToNext()} may block while a page is fetched,
+ * so, as for the other Server methods, don't use a cursor from the UI thread.
+ * Instances aren't thread-safe. Call {@link #close()} when you're done with one
+ * before reaching the end, so that no more pages are fetched.
+ */
+public class MediaObjectCursor {
+
+    private static final String PREFETCH_THREAD_NAME = "MediaObjectPrefetch";
+
+    /** Runs the prefetches of all cursors. */
+    private static final Executor prefetcher = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, PREFETCH_THREAD_NAME);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /** Fetches a page of objects. */
+    interface PageSource {
+        MediaObjectList fetch(int offset, int max) throws RemoteException, DLeynaException;
+    }
+
+    private final PageSource source;
+    private final int pageSize;
+
+    /** The current page, or null before the first. */
+    private MediaObjectList page;
+    /** The position of the current page's first object in the whole list. */
+    private int pageOffset;
+    /** The current object's index in the page. */
+    private int index = -1;
+    /** The next page, if it's being prefetched. */
+    private FutureTask<MediaObjectList> next;
+    private boolean done;
+
+    /**
+     * @param source where to get pages from
+     * @param pageSize the number of objects to fetch at a time
+     */
+    MediaObjectCursor(PageSource source, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize=" + pageSize);
+        }
+        this.source = source;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Move to the next object, fetching another page if needed.
+     * @return false if there are no more objects
+     * @throws RemoteException no connection to the background server service
+     * @throws DLeynaException failure reported by the background server service
+     */
+    public boolean moveToNext() throws RemoteException, DLeynaException {
+        if (done) {
+            return false;
+        }
+        if (page != null && index + 1 < page.size()) {
+            index++;
+            prefetchMaybe();
+            return true;
+        }
+        if (page != null && isLastPage()) {
+            done = true;
+            return false;
+        }
+        int offset = page == null ? 0 : pageOffset + page.size();
+        MediaObjectList p = next != null ? await(next, offset) : source.fetch(offset, pageSize);
+        next = null;
+        if (p == null || p.size() == 0) {
+            done = true;
+            page = null;
+            return false;
+        }
+        page = p;
+        pageOffset = offset;
+        index = 0;
+        prefetchMaybe();
+        return true;
+    }
+
+    /**
+     * @return the current object's position in the whole list, or -1 before the first
+     */
+    public int getPosition() {
+        return page == null ? -1 : pageOffset + index;
+    }
+
+    /**
+     * @return the current object's properties
+     */
+    public Bundle get() {
+        checkPosition();
+        return page.get(index);
+    }
+
+    /**
+     * Get one of the current object's properties, without decoding the others.
+     * @param key the name of the property, such as "DisplayName"
+     * @return the value, or null if the object doesn't have the property
+     */
+    public Object getValue(String key) {
+        checkPosition();
+        return page.getValue(index, key);
+    }
+
+    /**
+     * Stop fetching pages.
+     */
+    public void close() {
+        done = true;
+        if (page != null) {
+            // Let the service stop sending the rest of it.
+            page.close();
+            page = null;
+        }
+        if (next != null) {
+            next.cancel(false);
+            next = null;
+        }
+    }
+
+    private void checkPosition() {
+        if (page == null || index < 0) {
+            throw new IllegalStateException("No current object");
+        }
+    }
+
+    /**
+     * @return whether the current page is known to be the last, from the total number of objects
+     */
+    private boolean isLastPage() {
+        // Servers that can't count say 0.
+        int total = page.getTotalItems();
+        return total > 0 && pageOffset + page.size() >= total;
+    }
+
+    /**
+     * Start fetching the next page once we're halfway through the current one.
+     */
+    private void prefetchMaybe() {
+        if (next != null || index < page.size() / 2 || isLastPage()) {
+            return;
+        }
+        final int offset = pageOffset + page.size();
+        next = new FutureTask<MediaObjectList>(new Callable<MediaObjectList>() {
+            public MediaObjectList call() throws Exception {
+                return source.fetch(offset, pageSize);
+            }
+        });
+        prefetcher.execute(next);
+    }
+
+    private MediaObjectList await(FutureTask<MediaObjectList> future, int offset)
+            throws RemoteException, DLeynaException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            // Keep the interrupt for the caller, and fetch the page ourselves.
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            return source.fetch(offset, pageSize);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            } else if (cause instanceof DLeynaException) {
+                throw (DLeynaException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.intel.dleyna.lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+
+/**
+ * A list of media objects, each described by a Bundle of its properties,
+ * as returned by listChildrenEx, searchObjectsEx and browseObjects.
+ * <p>
+ * The list travels as the serialized GVariant ("aa{sv}") that the server returned,
+ * so the service needn't build Bundles for binder to marshal all over again.
+ * An object's Bundle is only decoded when it's first asked for;
+ * {@link #getValue(int, String)} decodes a single property without decoding the rest.
+ * <p>
+ * Lists bigger than {@link #STREAM_THRESHOLD} bytes would risk overflowing the binder
+ * transaction buffer, so only a pipe goes in the Parcel, and the objects follow through
+ * the pipe, one serialized "a{sv}" at a time. The receiver reads them all from the pipe
+ * in the background as soon as the list arrives, so the sender is never held up by
+ * a receiver that only looks at the first few; accessing an object that hasn't come
+ * yet waits for it. Such a list can't be parceled again.
+ * The sender writes each list to its pipe on a thread of its own, which ends once the
+ * receiver has read everything or closed its end. {@link #close()} a list you're done with
+ * to stop receiving it.
+ * <p>
+ * Instances are thread-safe, so they can be shared, as the service's caches do:
+ * decoding on demand is synchronized.
+ */
+public class MediaObjectList implements Parcelable, Iterable<Bundle> {
+
+    /** Lists of more bytes than this are sent through a pipe. */
+    public static final int STREAM_THRESHOLD = 256 * 1024;
+
+    private static final String TYPE = "aa{sv}";
+    private static final String ELEMENT_TYPE = "a{sv}";
+
+    private static final int TRANSFER_INLINE = 0;
+    private static final int TRANSFER_STREAM = 1;
+
+    private static final String WRITER_THREAD_NAME = "MediaObjectListWriter";
+    private static final String READER_THREAD_NAME = "MediaObjectListReader";
+
+    /** Reads lists from pipes, each on a thread of its own while it's coming. */
+    private static final Executor readers = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, READER_THREAD_NAME);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final int size;
+    /** The serialized list, or null if it's coming through a pipe. */
+    private final byte[] data;
+    /** For a page of search results, the total number of matches; otherwise -1. */
+    private final int totalItems;
+
+    // The rest is filled in on demand, guarded by this.
+
+    /** Decodes the data on demand; made when first needed. */
+    private GVariantReader reader;
+    /** Is the reader still reading objects from the pipe? */
+    private boolean receiving;
+    /** Has the receiver stopped wanting objects from the pipe? */
+    private boolean closed;
+    /** Why the reader stopped before the end, if it did. */
+    private IOException failure;
+    /** The serialized objects that have come through the pipe so far. */
+    private byte[][] elements;
+    private int received;
+    /** The objects decoded so far. */
+    private final Bundle[] objects;
+
+    /**
+     * @param data the serialized "aa{sv}", from its position to its limit; it's copied
+     */
+    public MediaObjectList(ByteBuffer data) {
+        this(data, -1);
+    }
+
+    /**
+     * @param data the serialized "aa{sv}", from its position to its limit; it's copied
+     * @param totalItems for a page of search results, the total number of matches; otherwise -1
+     */
+    public MediaObjectList(ByteBuffer data, int totalItems) {
+        this.data = new byte[data.remaining()];
+        data.duplicate().get(this.data);
+        this.totalItems = totalItems;
+        size = getReader().getArrayLength();
+        objects = new Bundle[size];
+    }
+
+    private MediaObjectList(Parcel in) {
+        size = in.readInt();
+        totalItems = in.readInt();
+        objects = new Bundle[size];
+        if (in.readInt() == TRANSFER_STREAM) {
+            data = null;
+            ParcelFileDescriptor source = ParcelFileDescriptor.CREATOR.createFromParcel(in);
+            final DataInputStream stream = new DataInputStream(new BufferedInputStream(
+                    new ParcelFileDescriptor.AutoCloseInputStream(source)));
+            elements = new byte[size][];
+            receiving = true;
+            readers.execute(new Runnable() {
+                public void run() {
+                    readAll(stream);
+                }
+            });
+        } else {
+            data = in.createByteArray();
+        }
+    }
+
+    private GVariantReader getReader() {
+        if (reader == null) {
+            reader = new GVariantReader(data, TYPE);
+        }
+        return reader;
+    }
+
+    /**
+     * @return the number of objects
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the serialized "aa{sv}", read-only, or null if the list came through a pipe
+     */
+    public ByteBuffer getData() {
+        return data == null ? null : ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return for a page of search results, the total number of matches; otherwise -1
+     */
+    public int getTotalItems() {
+        return totalItems;
+    }
+
+    /**
+     * Get an object's properties, decoding them if they haven't been already.
+     * @param index the object's index
+     * @return the properties
+     * @throws IllegalStateException if the object didn't come through the pipe
+     */
+    public synchronized Bundle get(int index) {
+        checkIndex(index);
+        Bundle b = objects[index];
+        if (b == null) {
+            if (data != null) {
+                b = getReader().readDictionaryArrayElement(index);
+            } else {
+                b = new GVariantReader(receive(index), ELEMENT_TYPE).readDictionary();
+                // We won't need the serialized form again.
+                elements[index] = null;
+            }
+            objects[index] = b;
+        }
+        return b;
+    }
+
+    /**
+     * Get one of an object's properties.
+     * If the object's properties haven't all been decoded, only this one is.
+     * @param index the object's index
+     * @param key the name of the property, such as "DisplayName"
+     * @return the value, or null if the object doesn't have the property
+     * @throws IllegalStateException if the object didn't come through the pipe
+     */
+    public synchronized Object getValue(int index, String key) {
+        checkIndex(index);
+        Bundle b = objects[index];
+        if (b != null) {
+            return b.get(key);
+        } else if (data != null) {
+            return getReader().readDictionaryArrayValue(index, key);
+        } else {
+            return new GVariantReader(receive(index), ELEMENT_TYPE).readDictionaryValue(key);
+        }
+    }
+
+    /**
+     * Get one of an object's properties that's a string.
+     * @return the value, or null if the object doesn't have the property or it's not a string
+     */
+    public String getString(int index, String key) {
+        Object value = getValue(index, key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * @return all the objects' properties, which are all decoded
+     */
+    public Bundle[] toArray() {
+        Bundle[] result = new Bundle[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Wait for any objects still to come through the pipe, so that accessing them won't block.
+     * @throws IllegalStateException if they can't all be read
+     */
+    synchronized void receiveAll() {
+        if (size > 0 && data == null) {
+            receive(size - 1);
+        }
+    }
+
+    /**
+     * Stop receiving objects through the pipe, if they're coming that way.
+     * Those not yet received can no longer be accessed.
+     */
+    public synchronized void close() {
+        // The reader closes the pipe once it sees this.
+        closed = true;
+        notifyAll();
+    }
+
+    public Iterator<Bundle> iterator() {
+        return new Iterator<Bundle>() {
+            private int next;
+
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            public Bundle next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                return get(next++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + size);
+        }
+    }
+
+    /**
+     * Wait for an object to come through the pipe, if it hasn't already.
+     * Called with this locked.
+     * @return the given object, serialized
+     */
+    private byte[] receive(int index) {
+        while (received <= index) {
+            if (closed || !receiving) {
+                throw new IllegalStateException("Object " + index + " was not received", failure);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for object " + index);
+            }
+        }
+        return elements[index];
+    }
+
+    /**
+     * Read all the objects from the pipe, or until the list is closed.
+     * Called on a reader thread, which owns the stream.
+     */
+    private void readAll(DataInputStream stream) {
+        try {
+            for (int i = 0; i < size; i++) {
+                byte[] element = new byte[stream.readInt()];
+                stream.readFully(element);
+                synchronized (this) {
+                    if (closed) {
+                        break;
+                    }
+                    elements[received++] = element;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+            }
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // Nothing more to do.
+            }
+            synchronized (this) {
+                receiving = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /*------------+
+     | Parcelable |
+     +------------*/
+
+    public int describeContents() {
+        return isStreamed() ? CONTENTS_FILE_DESCRIPTOR : 0;
+    }
+
+    private boolean isStreamed() {
+        return data != null && data.length > STREAM_THRESHOLD;
+    }
+
+    /**
+     * @throws IllegalStateException if this list itself came through a pipe
+     */
+    public void writeToParcel(Parcel out, int flags) {
+        if (data == null) {
+            throw new IllegalStateException("Can't parcel a list received through a pipe");
+        }
+        out.writeInt(size);
+        out.writeInt(totalItems);
+        if (isStreamed()) {
+            ParcelFileDescriptor[] pipe = null;
+            try {
+                pipe = ParcelFileDescriptor.createPipe();
+            } catch (IOException e) {
+                // Try it the ordinary way.
+            }
+            if (pipe != null) {
+                out.writeInt(TRANSFER_STREAM);
+                pipe[0].writeToParcel(out, PARCELABLE_WRITE_RETURN_VALUE);
+                final ParcelFileDescriptor sink = pipe[1];
+                // If the receiver goes away, or the Parcel never reaches it, its end is closed,
+                // and the writer gets an error, closes the sink and ends.
+                Thread writer = new Thread(new Runnable() {
+                    public void run() {
+                        send(sink);
+                    }
+                }, WRITER_THREAD_NAME);
+                writer.setDaemon(true);
+                writer.start();
+                return;
+            }
+        }
+        out.writeInt(TRANSFER_INLINE);
+        out.writeByteArray(data);
+    }
+
+    /**
+     * Write each object to the pipe: its length, then the serialized "a{sv}".
+     * Elements of an "aa{sv}" are 8-byte aligned, so each is a valid "a{sv}" by itself.
+     */
+    private void send(ParcelFileDescriptor sink) {
+        GVariantReader r = new GVariantReader(data, TYPE);
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+                new ParcelFileDescriptor.AutoCloseOutputStream(sink)));
+        try {
+            for (int i = 0; i < size; i++) {
+                int start = r.getArrayElementStart(i);
+                int end = r.getArrayElementEnd(i);
+                os.writeInt(end - start);
+                os.write(data, start, end - start);
+            }
+            os.flush();
+        } catch (IOException e) {
+            // The receiver has stopped reading.
+        } finally {
+            try {
+                os.close();
+            } catch (IOException e) {
+                // Nothing more to do.
+            }
+        }
+    }
+
+    public String toString() {
+        return "MediaObjectList[size=" + size + (data != null ? ", bytes=" + data.length : ", streamed") + "]";
+    }
+
+    public static final Parcelable.Creator<MediaObjectList> CREATOR
+            = new Parcelable.Creator<MediaObjectList>() {
+        public MediaObjectList createFromParcel(Parcel in) {
+            return new MediaObjectList(in);
+        }
+
+        public MediaObjectList[] newArray(int size) {
+            return new MediaObjectList[size];
+        }
+    };
+}
@@ -0,0 +1,46 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.intel.dleyna.lib;
+
+/**
+ * Predefined filters for listChildrenEx, searchObjectsEx and browseObjects:
+ * the names of the properties to get for each object.
+ * Asking for just what you'll show saves decoding and copying the rest,
+ * all the way from the server.
+ * <p>
+ * The arrays are shared, so don't modify them.
+ */
+public final class Projection {
+
+    /** Enough to show an object as a row of a list. */
+    public static final String[] LIST_ROW = new String[] {
+        "Path", "Type", "DisplayName", "AlbumArtURL", "ChildCount" };
+
+    /** Enough to play an item. */
+    public static final String[] PLAYBACK = new String[] {
+        "Path", "Type", "DisplayName", "AlbumArtURL", "URLs", "MIMEType",
+        "Duration", "Artist", "Album" };
+
+    /** All the properties. */
+    public static final String[] FULL = new String[] { "*" };
+
+    private Projection() {
+    }
+}
@@ -190,6 +190,15 @@ public class Renderer implements IRendererDevice, IRendererController, IRenderer
         Extras.throwExceptionIfError(extras);
     }
 
+    public DeviceSnapshot getDeviceSnapshot() throws RemoteException, DLeynaException {
+        IRendererService service = manager.getRendererService();
+        IRendererClient client = manager.getRendererClient();
+        Bundle extras = new Bundle();
+        DeviceSnapshot result = service.getDeviceSnapshot(client, objectPath, extras);
+        Extras.throwExceptionIfError(extras);
+        return result;
+    }
+
     public Icon getIcon() throws RemoteException, DLeynaException {
         IRendererService service = manager.getRendererService();
         IRendererClient client = manager.getRendererClient();
@@ -279,6 +288,114 @@ public class Renderer implements IRendererDevice, IRendererController, IRenderer
         Extras.throwExceptionIfError(extras);
     }
 
+    public void nextAsync(IReplyListener<Void> listener) throws RemoteException {
+        IRendererService service = manager.getRendererService();
+        IRendererClient client = manager.getRendererClient();
+        int token = manager.addPendingReply(listener);
+        try {
+            service.nextAsync(client, token, objectPath);
+        } catch (RemoteException e) {
+            manager.removePendingReply(token);
+            throw e;
+        }
+    }
+
+    public void previousAsync(IReplyListener<Void> listener) throws RemoteException {
+        IRendererService service = manager.getRendererService();
+        IRendererClient client = manager.getRendererClient();
+        int token = manager.addPendingReply(listener);
+        try {
+            service.previousAsync(client, token, objectPath);
+        } catch (RemoteException e) {
+            manager.removePendingReply(token);
+            throw e;
+        }
+    }
+
+    public void pauseAsync(IReplyListener<Void> listener) throws RemoteException {
+        IRendererService service = manager.getRendererService();
+        IRendererClient client = manager.getRendererClient();
+        int token = manager.addPendingReply(listener);
+        try {
+            service.pauseAsync(client, token, objectPath);
+        } catch (RemoteException e) {
+            manager.removePendingReply(token);
+            throw e;
+        }
+    }
+
+    public void playPauseAsync(IReplyListener<Void> listener) throws RemoteException {
+        IRendererService service = manager.getRendererService();
+        IRendererClient client = manager.getRendererClient();
+        int token = manager.addPendingReply(listener);
+        try {
+            service.playPauseAsync(client, token, objectPath);
+        } catch (RemoteException e) {
+            manager.removePendingReply(token);
+            throw e;
+        }
+    }
+
+    public void stopAsync(IReplyListener<Void> listener) throws RemoteException {
+        IRendererService service = manager.getRendererService();
+        IRendererClient client = manager.getRendererClient();
+        int token = manager.addPendingReply(listener);
+        try {
+            service.stopAsync(client, token, objectPath);
+        } catch (RemoteException e) {
+            manager.removePendingReply(token);
+            throw e;
+        }
+    }
+
+    public void playAsync(IReplyListener<Void> listener) throws RemoteException {
+        IRendererService service = manager.getRendererService();
+        IRendererClient client = manager.getRendererClient();
+        int token = manager.addPendingReply(listener);
+        try {
+            service.playAsync(client, token, objectPath);
+        } catch (RemoteException e) {
+            manager.removePendingReply(token);
+            throw e;
+        }
+    }
+
+    public void seekAsync(long offset, IReplyListener<Void> listener) throws RemoteException {
+        IRendererService service = manager.getRendererService();
+        IRendererClient client = manager.getRendererClient();
+        int token = manager.addPendingReply(listener);
+        try {
+            service.seekAsync(client, token, objectPath, offset);
+        } catch (RemoteException e) {
+            manager.removePendingReply(token);
+            throw e;
+        }
+    }
+
+    public void setPositionAsync(long position, IReplyListener<Void> listener) throws RemoteException {
+        IRendererService service = manager.getRendererService();
+        IRendererClient client = manager.getRendererClient();
+        int token = manager.addPendingReply(listener);
+        try {
+            service.setPositionAsync(client, token, objectPath, position);
+        } catch (RemoteException e) {
+            manager.removePendingReply(token);
+            throw e;
+        }
+    }
+
+    public void openUriAsync(String uri, IReplyListener<Void> listener) throws RemoteException {
+        IRendererService service = manager.getRendererService();
+        IRendererClient client = manager.getRendererClient();
+        int token = manager.addPendingReply(listener);
+        try {
+            service.openUriAsync(client, token, objectPath, uri);
+        } catch (RemoteException e) {
+            manager.removePendingReply(token);
+            throw e;
+        }
+    }
+
     public String getPlaybackStatus() throws RemoteException, DLeynaException {
         IRendererService service = manager.getRendererService();
         IRendererClient client = manager.getRendererClient();
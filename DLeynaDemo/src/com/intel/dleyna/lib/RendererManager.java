@@ -37,6 +37,7 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.RemoteException;
 import android.util.Log;
+import android.util.SparseArray;
 
 /**
  * This class enables applications to discover Digital Media Renderers
@@ -89,6 +90,12 @@ public class RendererManager {
     /** The handler we use to run notifications on the main thread. */
     private Handler handler;
 
+    /** Maps tokens of outstanding asynchronous calls to their listeners. */
+    private final SparseArray<IReplyListener<Void>> pendingReplies = new SparseArray<IReplyListener<Void>>();
+
+    /** We attribute tokens to asynchronous calls starting with 1. */
+    private int lastAssignedToken;
+
     /**
      * Construct a manager instance, and register for notification of events.
      * Note that you will only receive events after invoking {@link #connect(Context)}.
@@ -158,6 +165,7 @@ public class RendererManager {
             }
             serviceConnected = false;
         }
+        clearPendingReplies();
         if (serviceBound) {
             context.unbindService(rendererConnection);
             // We should be on the main thread, but even so, we don't want recursion.
@@ -194,6 +202,7 @@ public class RendererManager {
         public void onServiceDisconnected(ComponentName arg0) {
             if (LOG) Log.i(TAG, "onServiceDisconnected: bound=" + serviceBound + " connected=" + serviceConnected);
             serviceConnected = false;
+            clearPendingReplies();
             if (serviceBound) {
                 listener.onDisconnected();
                 serviceBound = false;
@@ -256,6 +265,19 @@ public class RendererManager {
         return renderers.values().toArray(new Renderer[renderers.size()]);
     }
 
+    /**
+     * Get the background renderer service's dispatch statistics.
+     * Per-method statistics are only collected once enabled through dumpsys.
+     * @return the statistics, as described in {@link Stats}
+     * @throws RemoteException no connection to the background renderer service
+     */
+    public Bundle getStats() throws RemoteException {
+        if (!serviceConnected) {
+            throw new RemoteException();
+        }
+        return rendererService.getStats();
+    }
+
     /**
      * Cause a GuPNP rescan to be performed.
      * <p>
@@ -466,8 +488,56 @@ public class RendererManager {
                 }
             }
         }
+
+        /*--------------------------------------+
+         | Replies to asynchronous method calls |
+         +--------------------------------------*/
+
+        public void onVoidReply(int token, Bundle extras) {
+            final IReplyListener<Void> l = removePendingReply(token);
+            if (l == null) {
+                if (LOG) Log.e(TAG, "onVoidReply: MISSING: token=" + token);
+                return;
+            }
+            final DLeynaException e = Extras.getExceptionIfError(extras);
+            handler.post(new Runnable() {
+                public void run() {
+                    if (e != null) {
+                        l.onError(e);
+                    } else {
+                        l.onReply(null);
+                    }
+                }
+            });
+        }
      };
 
+    /**
+     * Remember the listener for a new asynchronous call.
+     * @return the token identifying the call
+     */
+    int addPendingReply(IReplyListener<Void> listener) {
+        synchronized (pendingReplies) {
+            int token = ++lastAssignedToken;
+            pendingReplies.put(token, listener);
+            return token;
+        }
+    }
+
+    IReplyListener<Void> removePendingReply(int token) {
+        synchronized (pendingReplies) {
+            IReplyListener<Void> l = pendingReplies.get(token);
+            pendingReplies.remove(token);
+            return l;
+        }
+    }
+
+    private void clearPendingReplies() {
+        synchronized (pendingReplies) {
+            pendingReplies.clear();
+        }
+    }
+
      IRendererService getRendererService() {
          return rendererService;
      }
@@ -288,6 +288,40 @@ public class Server implements IMediaDevice, IMediaContainer2, IMediaObject2, IS
         return result;
     }
 
+    public MediaObjectList searchIndex(String query, int max) throws RemoteException, DLeynaException {
+        IServerService service = manager.getServerService();
+        IServerClient client = manager.getServerClient();
+        Bundle extras = new Bundle();
+        MediaObjectList result = service.searchIndex(client, objectPath, query, max, extras);
+        Extras.throwExceptionIfError(extras);
+        return result;
+    }
+
+    public void startCrawl(int concurrency, int requestsPerSecond) throws RemoteException, DLeynaException {
+        IServerService service = manager.getServerService();
+        IServerClient client = manager.getServerClient();
+        Bundle extras = new Bundle();
+        service.startCrawl(client, objectPath, concurrency, requestsPerSecond, extras);
+        Extras.throwExceptionIfError(extras);
+    }
+
+    public void stopCrawl() throws RemoteException, DLeynaException {
+        IServerService service = manager.getServerService();
+        IServerClient client = manager.getServerClient();
+        Bundle extras = new Bundle();
+        service.stopCrawl(client, objectPath, extras);
+        Extras.throwExceptionIfError(extras);
+    }
+
+    public DeviceSnapshot getDeviceSnapshot() throws RemoteException, DLeynaException {
+        IServerService service = manager.getServerService();
+        IServerClient client = manager.getServerClient();
+        Bundle extras = new Bundle();
+        DeviceSnapshot result = service.getDeviceSnapshot(client, objectPath, extras);
+        Extras.throwExceptionIfError(extras);
+        return result;
+    }
+
     public Icon getIcon() throws RemoteException, DLeynaException {
         IServerService service = manager.getServerService();
         IServerClient client = manager.getServerClient();
@@ -305,39 +339,154 @@ public class Server implements IMediaDevice, IMediaContainer2, IMediaObject2, IS
         Extras.throwExceptionIfError(extras);
     }
 
+    @Deprecated
     public Bundle[] browseObjects() throws RemoteException, DLeynaException {
+        return toArray(browseObjectsList());
+    }
+
+    @Deprecated
+    public MediaObjectList browseObjectsList() throws RemoteException, DLeynaException {
+        return browseObjects(new String[] { objectPath }, new String[] { "*" });
+    }
+
+    public MediaObjectList browseObjects(String[] objectPaths, String[] filter)
+            throws RemoteException, DLeynaException {
         IServerService service = manager.getServerService();
         IServerClient client = manager.getServerClient();
         Bundle extras = new Bundle();
-        Bundle[] result = service.browseObjects(client, objectPath, extras);
+        MediaObjectList result = service.browseObjects(client, objectPath, objectPaths, filter, extras);
         Extras.throwExceptionIfError(extras);
         return result;
     }
 
+    @Deprecated
+    public void browseObjectsAsync(IReplyListener<Bundle[]> listener) throws RemoteException {
+        browseObjectsAsync(new String[] { objectPath }, new String[] { "*" }, toBundles(listener));
+    }
+
+    public void browseObjectsAsync(String[] objectPaths, String[] filter, IReplyListener<MediaObjectList> listener)
+            throws RemoteException {
+        IServerService service = manager.getServerService();
+        IServerClient client = manager.getServerClient();
+        int token = manager.addPendingReply(listener);
+        try {
+            service.browseObjectsAsync(client, token, objectPath, objectPaths, filter);
+        } catch (RemoteException e) {
+            manager.removePendingReply(token);
+            throw e;
+        }
+    }
+
     // TODO: ?
 
     /*------------------+
      | IMediaContainer2 |
      +------------------*/
 
+    @Deprecated
     public Bundle[] listChildrenEx(String objectPath) throws RemoteException, DLeynaException {
+        return toArray(listChildrenExList(objectPath));
+    }
+
+    @Deprecated
+    public MediaObjectList listChildrenExList(String objectPath) throws RemoteException, DLeynaException {
+        return listChildrenEx(objectPath, 0, 0, new String[] { "*" }, "+DisplayName");
+    }
+
+    public MediaObjectList listChildrenEx(String objectPath, int offset, int max, String[] filter, String sortBy)
+            throws RemoteException, DLeynaException {
         IServerService service = manager.getServerService();
         IServerClient client = manager.getServerClient();
         Bundle extras = new Bundle();
-        Bundle[] result = service.listChildrenEx(client, objectPath, extras);
+        MediaObjectList result = service.listChildrenEx(client, objectPath, offset, max, filter, sortBy, extras);
         Extras.throwExceptionIfError(extras);
         return result;
     }
 
-    public Bundle[] searchObjectsEx(String objectPath) throws RemoteException, DLeynaException {
+    public MediaObjectList searchObjectsEx(String objectPath, String query, int offset, int max,
+            String[] filter, String sortBy) throws RemoteException, DLeynaException {
         IServerService service = manager.getServerService();
         IServerClient client = manager.getServerClient();
         Bundle extras = new Bundle();
-        Bundle[] result = service.searchObjectsEx(client, objectPath, extras);
+        MediaObjectList result = service.searchObjectsEx(client, objectPath, query, offset, max, filter, sortBy, extras);
         Extras.throwExceptionIfError(extras);
         return result;
     }
 
+    public MediaObjectCursor listChildrenExCursor(final String objectPath, int pageSize,
+            final String[] filter, final String sortBy) {
+        return new MediaObjectCursor(new MediaObjectCursor.PageSource() {
+            public MediaObjectList fetch(int offset, int max) throws RemoteException, DLeynaException {
+                return listChildrenEx(objectPath, offset, max, filter, sortBy);
+            }
+        }, pageSize);
+    }
+
+    @Deprecated
+    public void listChildrenExAsync(String objectPath, IReplyListener<Bundle[]> listener) throws RemoteException {
+        listChildrenExAsync(objectPath, 0, 0, new String[] { "*" }, "+DisplayName", toBundles(listener));
+    }
+
+    public void listChildrenExAsync(String objectPath, int offset, int max, String[] filter, String sortBy,
+            IReplyListener<MediaObjectList> listener) throws RemoteException {
+        IServerService service = manager.getServerService();
+        IServerClient client = manager.getServerClient();
+        int token = manager.addPendingReply(listener);
+        try {
+            service.listChildrenExAsync(client, token, objectPath, offset, max, filter, sortBy);
+        } catch (RemoteException e) {
+            manager.removePendingReply(token);
+            throw e;
+        }
+    }
+
+    @Deprecated
+    public Bundle[] searchObjectsEx(String objectPath) throws RemoteException, DLeynaException {
+        return toArray(searchObjectsExList(objectPath));
+    }
+
+    @Deprecated
+    public MediaObjectList searchObjectsExList(String objectPath) throws RemoteException, DLeynaException {
+        return searchObjectsEx(objectPath, "*", 0, 0, new String[] { "*" }, "+DisplayName");
+    }
+
+    @Deprecated
+    public void searchObjectsExAsync(String objectPath, IReplyListener<Bundle[]> listener) throws RemoteException {
+        searchObjectsExAsync(objectPath, "*", 0, 0, new String[] { "*" }, "+DisplayName", toBundles(listener));
+    }
+
+    public void searchObjectsExAsync(String objectPath, String query, int offset, int max, String[] filter,
+            String sortBy, IReplyListener<MediaObjectList> listener) throws RemoteException {
+        IServerService service = manager.getServerService();
+        IServerClient client = manager.getServerClient();
+        int token = manager.addPendingReply(listener);
+        try {
+            service.searchObjectsExAsync(client, token, objectPath, query, offset, max, filter, sortBy);
+        } catch (RemoteException e) {
+            manager.removePendingReply(token);
+            throw e;
+        }
+    }
+
+    private static Bundle[] toArray(MediaObjectList list) {
+        return list == null ? null : list.toArray();
+    }
+
+    /**
+     * Adapt a listener that wants the objects as Bundles to a reply that comes as a list.
+     */
+    private static IReplyListener<MediaObjectList> toBundles(final IReplyListener<Bundle[]> listener) {
+        return new IReplyListener<MediaObjectList>() {
+            public void onReply(MediaObjectList result) {
+                listener.onReply(toArray(result));
+            }
+
+            public void onError(DLeynaException e) {
+                listener.onError(e);
+            }
+        };
+    }
+
     // TODO: ?
 
     /*---------------+
@@ -353,6 +502,18 @@ public class Server implements IMediaDevice, IMediaContainer2, IMediaObject2, IS
         return result;
     }
 
+    public void getMetadataAsync(String objectPath, IReplyListener<String> listener) throws RemoteException {
+        IServerService service = manager.getServerService();
+        IServerClient client = manager.getServerClient();
+        int token = manager.addPendingReply(listener);
+        try {
+            service.getMetadataAsync(client, token, objectPath);
+        } catch (RemoteException e) {
+            manager.removePendingReply(token);
+            throw e;
+        }
+    }
+
     // TODO: ?
 
     /*-------------------+
@@ -369,11 +530,16 @@ public class Server implements IMediaDevice, IMediaContainer2, IMediaObject2, IS
     | IServerDemo |
     +-------------*/
 
+    @Deprecated
     public Bundle[] getChildren(String objectPath) throws RemoteException, DLeynaException {
+        return toArray(getChildrenList(objectPath));
+    }
+
+    public MediaObjectList getChildrenList(String objectPath) throws RemoteException, DLeynaException {
         IServerService service = manager.getServerService();
         IServerClient client = manager.getServerClient();
         Bundle extras = new Bundle();
-        Bundle[] result = service.getChildren(client, objectPath, extras);
+        MediaObjectList result = service.getChildrenList(client, objectPath, extras);
         Extras.throwExceptionIfError(extras);
         return result;
     }
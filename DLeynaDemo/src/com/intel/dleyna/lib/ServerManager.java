@@ -35,6 +35,7 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.RemoteException;
 import android.util.Log;
+import android.util.SparseArray;
 
 /**
  * This class enables applications to discover Digital Media Servers
@@ -87,6 +88,12 @@ public class ServerManager {
     /** The handler we use to run notifications on the main thread. */
     private Handler handler;
 
+    /** Maps tokens of outstanding asynchronous calls to their listeners. */
+    private final SparseArray<IReplyListener<?>> pendingReplies = new SparseArray<IReplyListener<?>>();
+
+    /** We attribute tokens to asynchronous calls starting with 1. */
+    private int lastAssignedToken;
+
     /**
      * Construct a manager instance, and register for notification of events.
      * Note that you will only receive events after invoking {@link #connect(Context)}.
@@ -156,6 +163,7 @@ public class ServerManager {
             }
             serviceConnected = false;
         }
+        clearPendingReplies();
         if (serviceBound) {
             context.unbindService(serverConnection);
             // We should be on the main thread, but even so, we don't want recursion.
@@ -193,6 +201,7 @@ public class ServerManager {
         public void onServiceDisconnected(ComponentName arg0) {
             if (LOG) Log.i(TAG, "onServiceDisconnected: bound=" + serviceBound + " connected=" + serviceConnected);
             serviceConnected = false;
+            clearPendingReplies();
             if (serviceBound) {
                 listener.onDisconnected();
                 serviceBound = false;
@@ -273,7 +282,45 @@ public class ServerManager {
         if (LOG) Log.i(TAG, "getVersion: " + version);
         return version;
     }
+
+    /**
+     * Search the local index of all the servers' objects, which is much quicker than asking
+     * each server, and works the same way whatever the server.
+     * <p>
+     * The index holds the objects of every container that has been listed,
+     * and is kept up to date as containers change and servers come and go.
+     * @param query words separated by spaces, each of which must be a word of
+     * the DisplayName, Artist, Album, Genre or MIMEType of a matching object,
+     * or, ending in '*', the start of one; case and punctuation don't matter
+     * @param max the most objects to find, or 0 for all
+     * @return the matching objects' Path, Parent, DisplayName and MIMEType
+     * @throws RemoteException no connection to the background server service
+     * @throws DLeynaException failure reported by the background server service
+     */
+    public MediaObjectList searchIndex(String query, int max) throws RemoteException, DLeynaException {
+        if (!serviceConnected) {
+            throw new RemoteException();
+        }
+
+        Bundle extras = new Bundle();
+        MediaObjectList result = serverService.searchIndex(serverClient, null, query, max, extras);
+        Extras.throwExceptionIfError(extras);
+        return result;
+    }
     
+    /**
+     * Get the background server service's dispatch statistics.
+     * Per-method statistics are only collected once enabled through dumpsys.
+     * @return the statistics, as described in {@link Stats}
+     * @throws RemoteException no connection to the background server service
+     */
+    public Bundle getStats() throws RemoteException {
+        if (!serviceConnected) {
+            throw new RemoteException();
+        }
+        return serverService.getStats();
+    }
+
     /**
      * Cause a GuPNP rescan to be performed.
      * <p>
@@ -421,7 +468,95 @@ public class ServerManager {
          public void onUploadUpdate(final String objectPath, final int id, final String status, final long length, final long total) {
               Log.w(TAG, "MediaDevice: " + objectPath + " onUploadUpdate -- TODO");
          }
+
+        public void onCrawlProgress(final String objectPath, final int containersDone, final int containersPending,
+                final int objects, final boolean finished) {
+            if (LOG) Log.i(TAG, "onCrawlProgress: " + objectPath + ": " + containersDone + " done, "
+                    + containersPending + " pending" + (finished ? ", finished" : ""));
+            final Server s = servers.get(objectPath);
+            if (s == null) {
+                if (LOG) Log.e(TAG, "onCrawlProgress: MISSING: " + objectPath);
+                return;
+            }
+            handler.post(new Runnable() {
+                public void run() {
+                    for (IMediaDeviceListener l : s.getMediaDeviceListeners()) {
+                        l.onCrawlProgress(s, containersDone, containersPending, objects, finished);
+                    }
+                }
+            });
+        }
+
+        /*--------------------------------------+
+         | Replies to asynchronous method calls |
+         +--------------------------------------*/
+
+        public void onMediaObjectListReply(int token, MediaObjectList result, Bundle extras) {
+            if (result != null) {
+                // Don't leave the main thread waiting on the pipe.
+                try {
+                    result.receiveAll();
+                } catch (IllegalStateException e) {
+                    result = null;
+                    extras.putInt(Extras.KEY_ERR_CODE, DLeynaException.ERR_IO);
+                    extras.putString(Extras.KEY_ERR_MSG, e.getMessage());
+                }
+            }
+            postReply(token, result, extras);
+        }
+
+        public void onStringReply(int token, String result, Bundle extras) {
+            postReply(token, result, extras);
+        }
      };
+
+    /**
+     * Remember the listener for a new asynchronous call.
+     * @return the token identifying the call
+     */
+    int addPendingReply(IReplyListener<?> listener) {
+        synchronized (pendingReplies) {
+            int token = ++lastAssignedToken;
+            pendingReplies.put(token, listener);
+            return token;
+        }
+    }
+
+    IReplyListener<?> removePendingReply(int token) {
+        synchronized (pendingReplies) {
+            IReplyListener<?> l = pendingReplies.get(token);
+            pendingReplies.remove(token);
+            return l;
+        }
+    }
+
+    private void clearPendingReplies() {
+        synchronized (pendingReplies) {
+            pendingReplies.clear();
+        }
+    }
+
+    /**
+     * Forward the reply to an asynchronous call to its listener, on the main thread.
+     */
+    @SuppressWarnings("unchecked")
+    private void postReply(int token, final Object result, Bundle extras) {
+        final IReplyListener<Object> l = (IReplyListener<Object>) removePendingReply(token);
+        if (l == null) {
+            if (LOG) Log.e(TAG, "postReply: MISSING: token=" + token);
+            return;
+        }
+        final DLeynaException e = Extras.getExceptionIfError(extras);
+        handler.post(new Runnable() {
+            public void run() {
+                if (e != null) {
+                    l.onError(e);
+                } else {
+                    l.onReply(result);
+                }
+            }
+        });
+    }
      
      IServerService getServerService() {
          return serverService;
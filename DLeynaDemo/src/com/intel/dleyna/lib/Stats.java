@@ -0,0 +1,116 @@
+/*
+ * dLeyna
+ *
+ * Copyright (C) 2013-2017 Intel Corporation. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU Lesser General Public License,
+ * version 2.1, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St - Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.intel.dleyna.lib;
+
+/**
+ * Keys of the dispatch statistics Bundle returned by the background services'
+ * {@code getStats()}.
+ * <p>
+ * The top-level Bundle holds {@link #KEY_ENABLED}, the g_main_loop and
+ * pending invocation figures below, and, for each method that has been called since
+ * the statistics were last reset, a Bundle keyed by "interface.method".
+ * Each method Bundle holds a histogram summary Bundle for each of {@link #KEY_WAIT},
+ * {@link #KEY_NATIVE} and {@link #KEY_DECODE}, and an {@link #KEY_ERRORS} Bundle
+ * mapping each error code, as a decimal string, to the number of failures with that code.
+ * <p>
+ * All times are in microseconds.
+ */
+public class Stats {
+
+    /** boolean: are statistics being collected? */
+    public static final String KEY_ENABLED = "enabled";
+
+    /** Bundle: time from submission until the daemon thread got round to the call. */
+    public static final String KEY_WAIT = "wait";
+    /** Bundle: time from dispatch until the native service returned. */
+    public static final String KEY_NATIVE = "native";
+    /** Bundle: time spent turning the result into what the client receives. */
+    public static final String KEY_DECODE = "decode";
+    /** Bundle: failure counts by error code. */
+    public static final String KEY_ERRORS = "errors";
+
+    // Histogram summaries.
+    /** long: number of samples */
+    public static final String KEY_COUNT = "count";
+    /** long: mean */
+    public static final String KEY_MEAN = "mean";
+    /** long: median, to within a factor of two */
+    public static final String KEY_P50 = "p50";
+    /** long: 90th percentile, to within a factor of two */
+    public static final String KEY_P90 = "p90";
+    /** long: 99th percentile, to within a factor of two */
+    public static final String KEY_P99 = "p99";
+    /** long: maximum */
+    public static final String KEY_MAX = "max";
+
+    // The g_main_loop, and the invocations awaiting results.
+    /** int: tasks waiting to run on the g_main_loop */
+    public static final String KEY_LOOP_QUEUE_DEPTH = "loop.queueDepth";
+    /** int: the most tasks ever waiting to run on the g_main_loop */
+    public static final String KEY_LOOP_MAX_QUEUE_DEPTH = "loop.maxQueueDepth";
+    /** long: mean wait in the high priority lane */
+    public static final String KEY_LOOP_HIGH_MEAN_WAIT = "loop.high.meanWait";
+    /** long: longest wait in the high priority lane */
+    public static final String KEY_LOOP_HIGH_MAX_WAIT = "loop.high.maxWait";
+    /** long: mean wait in the bulk lane */
+    public static final String KEY_LOOP_BULK_MEAN_WAIT = "loop.bulk.meanWait";
+    /** long: longest wait in the bulk lane */
+    public static final String KEY_LOOP_BULK_MAX_WAIT = "loop.bulk.maxWait";
+    /** long: mean wait in the background lane */
+    public static final String KEY_LOOP_BACKGROUND_MEAN_WAIT = "loop.background.meanWait";
+    /** long: longest wait in the background lane */
+    public static final String KEY_LOOP_BACKGROUND_MAX_WAIT = "loop.background.maxWait";
+    /** int: invocations awaiting results */
+    public static final String KEY_PENDING = "pending";
+
+    /** int: native GVariant instances not yet released */
+    public static final String KEY_LIVE_GVARIANTS = "liveGVariants";
+
+    // The server service's sharing of identical concurrent calls.
+    /** long: calls that got a share of another's result rather than being made */
+    public static final String KEY_SHARED_CALLS = "singleFlight.shared";
+    /** long: calls that waited for another, but were made anyway because it was cancelled */
+    public static final String KEY_RETRIED_SHARED_CALLS = "singleFlight.retried";
+
+    // The server service's cache of container listings.
+    /** int: listings found in the cache */
+    public static final String KEY_LISTING_CACHE_HITS = "listingCache.hits";
+    /** int: listings not found in the cache */
+    public static final String KEY_LISTING_CACHE_MISSES = "listingCache.misses";
+    /** int: listings dropped to make room for others */
+    public static final String KEY_LISTING_CACHE_EVICTIONS = "listingCache.evictions";
+    /** int: listings dropped because their container changed */
+    public static final String KEY_LISTING_CACHE_INVALIDATIONS = "listingCache.invalidations";
+    /** int: bytes of listings in the cache */
+    public static final String KEY_LISTING_CACHE_BYTES = "listingCache.bytes";
+
+    // The server service's local index of the servers' objects.
+    /** int: objects in the index */
+    public static final String KEY_INDEX_OBJECTS = "index.objects";
+    /** int: distinct words in the index */
+    public static final String KEY_INDEX_TERMS = "index.terms";
+    /** int: searches of the index */
+    public static final String KEY_INDEX_QUERIES = "index.queries";
+    /** long: mean time to search the index */
+    public static final String KEY_INDEX_MEAN_QUERY_TIME = "index.meanQueryTime";
+
+    private Stats() {
+    }
+}